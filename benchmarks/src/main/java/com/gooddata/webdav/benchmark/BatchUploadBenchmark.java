@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.gooddata.webdav.BatchUploadReport;
+import com.gooddata.webdav.UploadItem;
+import com.gooddata.webdav.WebDavUploader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Batches of {@value #BATCH_SIZE} file uploads at various concurrency levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchUploadBenchmark {
+
+    private static final int BATCH_SIZE = 64;
+
+    @Param({"1024", "1048576"})
+    public long payloadSize;
+
+    @Param({"1", "4", "16", "64"})
+    public int parallelism;
+
+    @Param({"HTTP_CLIENT", "JDK"})
+    public BenchmarkTransport transport;
+
+    private LocalWebDavServer server;
+    private WebDavUploader uploader;
+    private File file;
+    private final AtomicLong batchCounter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalWebDavServer().start();
+        uploader = Benchmarks.newUploader(server, parallelism, transport);
+        file = Benchmarks.createFile(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public BatchUploadReport transferBatch(final ByteCounters counters) {
+        final long batch = batchCounter.incrementAndGet();
+        final List<UploadItem> items = new ArrayList<UploadItem>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            items.add(new UploadItem(file, "benchmark", "batch-" + batch + "-" + i, Benchmarks.CONTENT_TYPE));
+        }
+        final BatchUploadReport report = uploader.transferBatch(items, parallelism);
+        if (!report.isSuccess()) {
+            throw new IllegalStateException("Batch upload failed: " + report.getFailures());
+        }
+        counters.bytes += BATCH_SIZE * payloadSize;
+        return report;
+    }
+}
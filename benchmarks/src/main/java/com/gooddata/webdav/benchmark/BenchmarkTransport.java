@@ -0,0 +1,14 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+/**
+ * HTTP engines the uploader can be benchmarked with.
+ */
+public enum BenchmarkTransport {
+    /** {@link com.gooddata.webdav.HttpClientTransport} */
+    HTTP_CLIENT,
+    /** {@link com.gooddata.webdav.JdkHttpTransport} */
+    JDK
+}
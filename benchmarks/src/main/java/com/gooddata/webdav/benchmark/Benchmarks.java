@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.gooddata.webdav.HttpClientTransport;
+import com.gooddata.webdav.JdkHttpTransport;
+import com.gooddata.webdav.WebDavSstAuthenticator;
+import com.gooddata.webdav.WebDavTransport;
+import com.gooddata.webdav.WebDavUploader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class Benchmarks {
+
+    static final String CONTENT_TYPE = "application/octet-stream";
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Creates uploader authenticated via SST token against given stand-in.
+     */
+    static WebDavUploader newUploader(final LocalWebDavServer server, final int maxConnections) {
+        final WebDavUploader uploader = new WebDavUploader(server.getHost(), server.getPort(), "http",
+                server.getHost(), server.getPort(), "http", LocalWebDavServer.SUPER_SECURE_TOKEN);
+        uploader.setMaxConnections(maxConnections);
+        return uploader;
+    }
+
+    /**
+     * Creates uploader authenticated via SST token against given stand-in, sending requests through given engine.
+     */
+    static WebDavUploader newUploader(final LocalWebDavServer server, final int maxConnections,
+            final BenchmarkTransport transport) {
+        if (transport == BenchmarkTransport.HTTP_CLIENT) {
+            return newUploader(server, maxConnections);
+        }
+        final WebDavTransport webDavTransport = new JdkHttpTransport("http", server.getHost(), server.getPort());
+        final WebDavUploader uploader = new WebDavUploader(webDavTransport,
+                new WebDavSstAuthenticator(new HttpClientTransport("http", server.getHost(), server.getPort())),
+                LocalWebDavServer.SUPER_SECURE_TOKEN);
+        uploader.setMaxConnections(maxConnections);
+        return uploader;
+    }
+
+    /**
+     * Creates temporary file of given size filled with random (incompressible) data.
+     */
+    static File createFile(final long size) throws IOException {
+        final File file = File.createTempFile("webdav-benchmark", ".bin");
+        file.deleteOnExit();
+        final byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                final int length = (int) Math.min(chunk.length, remaining);
+                out.write(chunk, 0, length);
+                remaining -= length;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Stream of given length generated on the fly without holding the payload in memory.
+     */
+    static final class PayloadInputStream extends InputStream {
+        private long remaining;
+
+        PayloadInputStream(final long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return (int) (remaining & 0x7f);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = (int) Math.min(length, remaining);
+            // content doesn't matter, the stand-in discards it
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Repeatable entity of given length generated on the fly, so that failed uploads can be retried.
+     */
+    static final class PayloadRequestEntity implements RequestEntity {
+        private static final byte[] CHUNK = new byte[64 * 1024];
+
+        private final long length;
+
+        PayloadRequestEntity(final long length) {
+            this.length = length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeRequest(final OutputStream out) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                final int chunk = (int) Math.min(CHUNK.length, remaining);
+                out.write(CHUNK, 0, chunk);
+                remaining -= chunk;
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public String getContentType() {
+            return CONTENT_TYPE;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary benchmark result reporting uploaded bytes per time unit (bytes/s, divide by 10^6 for MB/s).
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounters {
+
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.gooddata.webdav.WebDavUploader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Small uploads into directories of various depths, with and without the remote directory cache - measures the cost
+ * of MKCOL round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryCreationBenchmark {
+
+    private static final byte[] CONTENT = "JUST A PLAIN TEXT!".getBytes();
+
+    @Param({"1", "3", "5"})
+    public int pathDepth;
+
+    @Param({"true", "false"})
+    public boolean directoryCache;
+
+    private LocalWebDavServer server;
+    private WebDavUploader uploader;
+    private String remoteDir;
+    private final AtomicLong fileCounter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalWebDavServer().start();
+        uploader = Benchmarks.newUploader(server, 64);
+        if (!directoryCache) {
+            uploader.setDirectoryCache(null);
+        }
+        final StringBuilder path = new StringBuilder("benchmark");
+        for (int i = 1; i < pathDepth; i++) {
+            path.append("/level").append(i);
+        }
+        remoteDir = path.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void transferSmallFile() {
+        uploader.transferRequestEntity(new ByteArrayRequestEntity(CONTENT, Benchmarks.CONTENT_TYPE), remoteDir,
+                "small-" + fileCounter.incrementAndGet(), Benchmarks.CONTENT_TYPE);
+    }
+}
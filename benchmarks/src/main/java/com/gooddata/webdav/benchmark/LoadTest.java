@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.gooddata.webdav.RetryPolicy;
+import com.gooddata.webdav.UploadMetricsListener;
+import com.gooddata.webdav.UploadPhase;
+import com.gooddata.webdav.WebDavUploader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator driving {@link WebDavUploader} with a synthetic workload against {@link LocalWebDavServer} with
+ * optionally injected faults. Reports upload latency percentiles, throughput, retries and re-authentications.
+ * <pre>
+ * java -cp target/benchmarks.jar com.gooddata.webdav.benchmark.LoadTest --threads=32 --duration=60 \
+ *     --sizes=4k:70,1m:25,32m:5 --fanout=8 --depth=2 --error-rate=0.01 --drop-rate=0.005 --expire-tokens-every=5000
+ * </pre>
+ * Run without arguments to use the defaults, with {@code --help} to list the options.
+ */
+public final class LoadTest {
+
+    private static final Map<String, String> OPTIONS = new LinkedHashMap<String, String>();
+
+    static {
+        OPTIONS.put("threads", "8|number of uploading threads");
+        OPTIONS.put("connections", "0|maximum number of connections, number of threads if 0");
+        OPTIONS.put("transport", "HTTP_CLIENT|HTTP engine, HTTP_CLIENT or JDK");
+        OPTIONS.put("duration", "30|duration of the test in seconds");
+        OPTIONS.put("files", "0|stop after uploading this many files, unlimited if 0");
+        OPTIONS.put("sizes", "4k:70,256k:25,8m:5|distribution of file sizes as size:weight pairs");
+        OPTIONS.put("fanout", "8|number of subdirectories of every directory");
+        OPTIONS.put("depth", "2|depth of the directory tree files are spread over");
+        OPTIONS.put("attempts", "3|maximum attempts of an idempotent request, 1 disables retries");
+        OPTIONS.put("latency", "0|latency added to every WebDAV request in milliseconds");
+        OPTIONS.put("bandwidth", "0|bandwidth cap of the server shared by all connections in bytes/s, e.g. 50m");
+        OPTIONS.put("error-rate", "0|fraction of WebDAV requests failing with server error");
+        OPTIONS.put("error-status", "503|status of injected server errors");
+        OPTIONS.put("error-burst", "0|number of requests failing in every server error burst");
+        OPTIONS.put("error-burst-every", "0|interval between server error bursts in milliseconds");
+        OPTIONS.put("drop-rate", "0|fraction of WebDAV requests whose connection is dropped without response");
+        OPTIONS.put("unauthorized-rate", "0|fraction of requests whose temporary token is rejected with 401");
+        OPTIONS.put("token-validity", "600000|validity of temporary tokens issued by the server in milliseconds");
+        OPTIONS.put("expire-tokens-every", "0|interval of expiring all temporary tokens (401 storm) in milliseconds");
+    }
+
+    private final Map<String, String> options;
+    private final RequestCounter requests = new RequestCounter();
+    private final AtomicLong fileCounter = new AtomicLong();
+    private final AtomicLong failedUploads = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+
+    private LoadTest(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            printUsage();
+            System.exit(1);
+        }
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        final int threads = intOption("threads");
+        final int connections = intOption("connections");
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(longOption("duration"));
+        final long maxFiles = longOption("files");
+        final SizeDistribution sizes = new SizeDistribution(options.get("sizes"));
+
+        final LocalWebDavServer server = new LocalWebDavServer().start();
+        final ScheduledExecutorService faults = Executors.newSingleThreadScheduledExecutor();
+        configureFaults(server, faults);
+
+        final WebDavUploader uploader = Benchmarks.newUploader(server, connections > 0 ? connections : threads,
+                BenchmarkTransport.valueOf(options.get("transport")));
+        final int attempts = intOption("attempts");
+        uploader.setRetryPolicy(attempts > 1 ? new RetryPolicy(attempts, RetryPolicy.DEFAULT.getInitialDelayMillis(),
+                RetryPolicy.DEFAULT.getMaxDelayMillis(), RetryPolicy.DEFAULT.getMultiplier()) : RetryPolicy.NONE);
+        uploader.setMetricsListener(requests);
+
+        System.out.println("Running " + options);
+        final String root = "loadtest-" + System.currentTimeMillis();
+        final List<Worker> workers = new ArrayList<Worker>(threads);
+        final long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final Worker worker = new Worker(uploader, root, sizes, deadline, maxFiles);
+            worker.setName("load-test-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        faults.shutdownNow();
+        uploader.getTransport().shutdown();
+        server.stop();
+        report(workers, elapsed, server);
+    }
+
+    private void configureFaults(final LocalWebDavServer server, final ScheduledExecutorService faults) {
+        server.setLatencyMillis(longOption("latency"));
+        server.setBandwidthBytesPerSecond(parseSize(options.get("bandwidth")));
+        server.setServerErrorRate(doubleOption("error-rate"));
+        server.setServerErrorStatus(intOption("error-status"));
+        server.setDropRate(doubleOption("drop-rate"));
+        server.setUnauthorizedRate(doubleOption("unauthorized-rate"));
+        server.setTokenValidityMillis(longOption("token-validity"));
+
+        final int burst = intOption("error-burst");
+        final long burstInterval = longOption("error-burst-every");
+        if (burst > 0 && burstInterval > 0) {
+            faults.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    server.injectServerErrors(burst);
+                }
+            }, burstInterval, burstInterval, TimeUnit.MILLISECONDS);
+        }
+        final long expiryInterval = longOption("expire-tokens-every");
+        if (expiryInterval > 0) {
+            faults.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    server.expireTemporaryTokens();
+                }
+            }, expiryInterval, expiryInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void report(final List<Worker> workers, final long elapsedNanos, final LocalWebDavServer server) {
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.latencyCount;
+        }
+        final long[] latencies = new long[count];
+        int position = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, position, worker.latencyCount);
+            position += worker.latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        final double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.println(String.format(Locale.US, "uploads:      %d succeeded, %d failed in %.1f s",
+                count, failedUploads.get(), seconds));
+        System.out.println(String.format(Locale.US, "throughput:   %.1f files/s, %.2f MB/s",
+                count / seconds, bytesUploaded.get() / seconds / 1e6));
+        System.out.println(String.format(Locale.US, "latency [ms]: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f",
+                percentileMillis(latencies, 50), percentileMillis(latencies, 99), percentileMillis(latencies, 99.9),
+                percentileMillis(latencies, 100)));
+        System.out.println(String.format(Locale.US, "requests:     %d MKCOL, %d PUT, %d token",
+                requests.count(UploadPhase.MKCOL), requests.count(UploadPhase.PUT),
+                requests.count(UploadPhase.TOKEN_REFRESH)));
+        System.out.println(String.format(Locale.US, "retried:      %d (%d I/O errors, %d retryable statuses), "
+                + "%d re-authentications", requests.retried(), requests.ioErrors.get(),
+                requests.retryableStatuses.get(), requests.reauthentications.get()));
+        System.out.println(String.format(Locale.US, "server:       %d injected faults", server.getFaultCount()));
+    }
+
+    private static double percentileMillis(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+        return sorted[Math.max(rank - 1, 0)] / 1e6;
+    }
+
+    private final class Worker extends Thread {
+        private final WebDavUploader uploader;
+        private final String root;
+        private final SizeDistribution sizes;
+        private final long deadline;
+        private final long maxFiles;
+        private final int fanout = intOption("fanout");
+        private final int depth = intOption("depth");
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+
+        Worker(final WebDavUploader uploader, final String root, final SizeDistribution sizes, final long deadline,
+                final long maxFiles) {
+            this.uploader = uploader;
+            this.root = root;
+            this.sizes = sizes;
+            this.deadline = deadline;
+            this.maxFiles = maxFiles;
+        }
+
+        @Override
+        public void run() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                final long file = fileCounter.incrementAndGet();
+                if (maxFiles > 0 && file > maxFiles) {
+                    return;
+                }
+                final StringBuilder dir = new StringBuilder(root);
+                for (int level = 0; level < depth; level++) {
+                    dir.append("/d").append(random.nextInt(fanout));
+                }
+                final long size = sizes.next(random);
+                final long start = System.nanoTime();
+                try {
+                    uploader.transferRequestEntity(new Benchmarks.PayloadRequestEntity(size), dir.toString(),
+                            "file-" + file, Benchmarks.CONTENT_TYPE);
+                } catch (RuntimeException e) {
+                    failedUploads.incrementAndGet();
+                    continue;
+                }
+                record(System.nanoTime() - start);
+                bytesUploaded.addAndGet(size);
+            }
+        }
+
+        private void record(final long nanos) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+
+    /**
+     * Counts requests of the uploader; every request failing with I/O error or retryable status is retried unless
+     * it has run out of attempts.
+     */
+    private static final class RequestCounter implements UploadMetricsListener {
+        private final RetryPolicy statuses = RetryPolicy.DEFAULT;
+        private final AtomicLong[] counts = new AtomicLong[UploadPhase.values().length];
+        private final AtomicLong ioErrors = new AtomicLong();
+        private final AtomicLong retryableStatuses = new AtomicLong();
+        private final AtomicLong reauthentications = new AtomicLong();
+
+        RequestCounter() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new AtomicLong();
+            }
+        }
+
+        @Override
+        public void onRequest(final UploadPhase phase, final int statusCode, final long durationNanos) {
+            counts[phase.ordinal()].incrementAndGet();
+            if (statusCode == 0) {
+                ioErrors.incrementAndGet();
+            } else if (statuses.isRetryableStatus(statusCode)) {
+                retryableStatuses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onUpload(final long bytes, final long durationNanos, final boolean success) {
+        }
+
+        @Override
+        public void onReauthentication() {
+            reauthentications.incrementAndGet();
+        }
+
+        long count(final UploadPhase phase) {
+            return counts[phase.ordinal()].get();
+        }
+
+        long retried() {
+            return ioErrors.get() + retryableStatuses.get();
+        }
+    }
+
+    /**
+     * Weighted discrete distribution of file sizes, e.g. {@code 4k:70,1m:30}.
+     */
+    private static final class SizeDistribution {
+        private final long[] sizes;
+        private final long[] cumulativeWeights;
+
+        SizeDistribution(final String spec) {
+            final String[] entries = spec.split(",");
+            sizes = new long[entries.length];
+            cumulativeWeights = new long[entries.length];
+            long total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                final String[] pair = entries[i].trim().split(":");
+                sizes[i] = parseSize(pair[0]);
+                total += pair.length > 1 ? Long.parseLong(pair[1].trim()) : 1;
+                cumulativeWeights[i] = total;
+            }
+            if (total <= 0) {
+                throw new IllegalArgumentException("Weights of sizes must be positive: " + spec);
+            }
+        }
+
+        long next(final ThreadLocalRandom random) {
+            final long point = random.nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < sizes.length; i++) {
+                if (point < cumulativeWeights[i]) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
+    }
+
+    /**
+     * Parses size with optional k, m or g suffix (powers of 1024).
+     */
+    static long parseSize(final String value) {
+        final String size = value.trim().toLowerCase(Locale.US);
+        if (size.isEmpty()) {
+            throw new IllegalArgumentException("Size must not be empty");
+        }
+        final char unit = size.charAt(size.length() - 1);
+        final int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+        final String number = shift == 0 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(number) << shift;
+    }
+
+    /**
+     * @return options with defaults filled in, null if the arguments are invalid or help is requested
+     */
+    private static Map<String, String> parseOptions(final String[] args) {
+        final Map<String, String> options = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> option : OPTIONS.entrySet()) {
+            options.put(option.getKey(), option.getValue().substring(0, option.getValue().indexOf('|')));
+        }
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                return null;
+            }
+            final String name = arg.substring(2, separator);
+            if (!OPTIONS.containsKey(name)) {
+                System.err.println("Unknown option " + name);
+                return null;
+            }
+            options.put(name, arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -cp benchmarks.jar " + LoadTest.class.getName() + " [--option=value]...");
+        for (Map.Entry<String, String> option : OPTIONS.entrySet()) {
+            final String[] defaultAndDescription = option.getValue().split("\\|", 2);
+            System.err.println(String.format("  --%-20s %s (default %s)", option.getKey(), defaultAndDescription[1],
+                    defaultAndDescription[0]));
+        }
+    }
+
+    private int intOption(final String name) {
+        return Integer.parseInt(options.get(name).trim());
+    }
+
+    private long longOption(final String name) {
+        return Long.parseLong(options.get(name).trim());
+    }
+
+    private double doubleOption(final String name) {
+        return Double.parseDouble(options.get(name).trim());
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in of GoodData WebDAV and of the GDC token resource, listening on the loopback interface.
+ * <p>
+ * Supports MKCOL, PUT, PROPFIND (depth 0 and 1) and DELETE under {@code /uploads}, HTTP BASIC authentication and
+ * the {@code /gdc/account/token} flow exchanging the GDCAuthSST cookie for a GDCAuthTT cookie. Uploaded content is
+ * counted and discarded, only sizes and timestamps are kept, so arbitrarily large payloads can be uploaded.
+ * <p>
+ * Faults can be injected into WebDAV requests for load and resilience testing: added latency, a bandwidth cap shared
+ * by all connections, temporary tokens rejected with 401 at random or all at once, 5xx responses at random or in
+ * bursts and connections dropped without response. The token resource itself is never faulty.
+ */
+public class LocalWebDavServer {
+
+    public static final String SUPER_SECURE_TOKEN = "local-sst";
+    public static final String USERNAME = "bench@gooddata.com";
+    public static final String PASSWORD = "bench";
+
+    private static final String WEBDAV_ROOT = "/uploads";
+    private static final String TOKEN_URI = "/gdc/account/token";
+    private static final String SST_COOKIE = "GDCAuthSST";
+    private static final String TT_COOKIE = "GDCAuthTT";
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
+    private final ConcurrentMap<String, Long> temporaryTokens = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong tokenCounter = new AtomicLong();
+    private final String basicAuthorization;
+
+    private final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicLong faultCount = new AtomicLong();
+
+    private volatile long tokenValidityMillis = 600 * 1000L;
+    private volatile long latencyMillis;
+    private volatile long bandwidthBytesPerSecond;
+    /** Time in nanoseconds when the bandwidth cap lets the next byte in. */
+    private final AtomicLong bandwidthReservedUntil = new AtomicLong();
+    private volatile double unauthorizedRate;
+    private volatile double serverErrorRate;
+    private final AtomicInteger serverErrorBurst = new AtomicInteger();
+    private volatile int serverErrorStatus = 503;
+    private volatile double dropRate;
+
+    /**
+     * Creates new server listening on an ephemeral loopback port.
+     */
+    public LocalWebDavServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Creates new server listening on given loopback port.
+     *
+     * @param port port, 0 for an ephemeral one
+     */
+    public LocalWebDavServer(final int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    LocalWebDavServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.basicAuthorization = "Basic " + Base64.getEncoder().encodeToString((USERNAME + ":" + PASSWORD).getBytes("UTF-8"));
+        this.resources.put(WEBDAV_ROOT, Resource.collection());
+    }
+
+    public LocalWebDavServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getHost() {
+        return "localhost";
+    }
+
+    /**
+     * Sets validity of issued temporary tokens; requests with expired token are rejected with 401.
+     */
+    public void setTokenValidityMillis(final long tokenValidityMillis) {
+        this.tokenValidityMillis = tokenValidityMillis;
+    }
+
+    /**
+     * Invalidates all issued temporary tokens, so that the next request of every client is rejected with 401.
+     */
+    public void expireTemporaryTokens() {
+        temporaryTokens.clear();
+    }
+
+    /**
+     * Sets time every WebDAV request is delayed by before it's handled.
+     */
+    public void setLatencyMillis(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Caps the rate request bodies are read with, shared by all connections.
+     *
+     * @param bandwidthBytesPerSecond the cap or 0 (default) for unlimited
+     */
+    public void setBandwidthBytesPerSecond(final long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * Sets fraction of requests authenticated by a temporary token which are rejected with 401 as if the token
+     * expired; the token is invalidated.
+     */
+    public void setUnauthorizedRate(final double unauthorizedRate) {
+        this.unauthorizedRate = unauthorizedRate;
+    }
+
+    /**
+     * Sets fraction of WebDAV requests answered by {@link #setServerErrorStatus(int) server error}.
+     */
+    public void setServerErrorRate(final double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+    }
+
+    /**
+     * Answers the next {@code count} WebDAV requests by {@link #setServerErrorStatus(int) server error}.
+     */
+    public void injectServerErrors(final int count) {
+        serverErrorBurst.addAndGet(count);
+    }
+
+    /**
+     * Sets status of injected server errors, 503 by default.
+     */
+    public void setServerErrorStatus(final int serverErrorStatus) {
+        this.serverErrorStatus = serverErrorStatus;
+    }
+
+    /**
+     * Sets fraction of WebDAV requests whose connection is closed, after reading part of the body, without response.
+     */
+    public void setDropRate(final double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * @return number of requests which failed because of an injected fault
+     */
+    public long getFaultCount() {
+        return faultCount.get();
+    }
+
+    public long getRequestCount(final String method) {
+        final AtomicLong count = requestCounts.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Removes all uploaded files and directories and invalidates all issued tokens.
+     */
+    public void reset() {
+        resources.clear();
+        resources.put(WEBDAV_ROOT, Resource.collection());
+        temporaryTokens.clear();
+    }
+
+    //--------------------------------------------------- PROTECTED STUFF ----------------------------------------------
+
+    protected void handle(final HttpExchange exchange) throws IOException {
+        final String method = exchange.getRequestMethod();
+        final String path = normalize(exchange.getRequestURI().getPath());
+        countRequest(method);
+
+        if (TOKEN_URI.equals(path)) {
+            handleToken(exchange);
+        } else if (!path.equals(WEBDAV_ROOT) && !path.startsWith(WEBDAV_ROOT + "/")) {
+            drainAndRespond(exchange, 404);
+        } else if (!isAuthorized(exchange)) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"GoodData WebDAV\"");
+            drainAndRespond(exchange, 401);
+        } else if (injectFault(exchange)) {
+            faultCount.incrementAndGet();
+        } else if ("MKCOL".equals(method)) {
+            handleMkCol(exchange, path);
+        } else if ("PUT".equals(method)) {
+            handlePut(exchange, path);
+        } else if ("PROPFIND".equals(method)) {
+            handlePropFind(exchange, path);
+        } else if ("DELETE".equals(method)) {
+            handleDelete(exchange, path);
+        } else {
+            drainAndRespond(exchange, 405);
+        }
+    }
+
+    /**
+     * Delays the request and fails it if a fault is due.
+     *
+     * @return true if the request has been failed
+     */
+    protected boolean injectFault(final HttpExchange exchange) throws IOException {
+        final long latency = latencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            // headers are not sent, so closing the exchange closes the connection
+            exchange.getRequestBody().read(BUFFERS.get());
+            return true;
+        }
+        if (claimServerError() || (serverErrorRate > 0 && random.nextDouble() < serverErrorRate)) {
+            drainAndRespond(exchange, serverErrorStatus);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean claimServerError() {
+        int burst;
+        do {
+            burst = serverErrorBurst.get();
+            if (burst <= 0) {
+                return false;
+            }
+        } while (!serverErrorBurst.compareAndSet(burst, burst - 1));
+        return true;
+    }
+
+    protected void handleToken(final HttpExchange exchange) throws IOException {
+        if (!SUPER_SECURE_TOKEN.equals(cookie(exchange, SST_COOKIE))) {
+            drainAndRespond(exchange, 401);
+            return;
+        }
+        final String token = "tt-" + tokenCounter.incrementAndGet();
+        temporaryTokens.put(token, System.currentTimeMillis());
+        exchange.getResponseHeaders().add("Set-Cookie", TT_COOKIE + "=" + token + "; Path=/");
+        respond(exchange, 200, "{\"userToken\":{\"token\":\"" + token + "\"}}", "application/json");
+    }
+
+    protected void handleMkCol(final HttpExchange exchange, final String path) throws IOException {
+        drain(exchange);
+        final Resource existing = resources.get(path);
+        if (existing != null) {
+            exchange.getResponseHeaders().add("Location", path + "/");
+            respond(exchange, 301);
+        } else if (!isCollection(parentOf(path))) {
+            respond(exchange, 409);
+        } else {
+            resources.putIfAbsent(path, Resource.collection());
+            respond(exchange, 201);
+        }
+    }
+
+    protected void handlePut(final HttpExchange exchange, final String path) throws IOException {
+        final long length = drain(exchange);
+        if (!isCollection(parentOf(path))) {
+            respond(exchange, 409);
+            return;
+        }
+        final Resource previous = resources.put(path, Resource.file(length));
+        respond(exchange, previous == null ? 201 : 204);
+    }
+
+    protected void handlePropFind(final HttpExchange exchange, final String path) throws IOException {
+        drain(exchange);
+        final Resource resource = resources.get(path);
+        if (resource == null) {
+            respond(exchange, 404);
+            return;
+        }
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        xml.append("<D:multistatus xmlns:D=\"DAV:\">");
+        appendResponse(xml, path, resource);
+        if (!"0".equals(exchange.getRequestHeaders().getFirst("Depth")) && resource.collection) {
+            final String prefix = path + "/";
+            for (Map.Entry<String, Resource> entry : resources.entrySet()) {
+                final String child = entry.getKey();
+                if (child.startsWith(prefix) && child.indexOf('/', prefix.length()) < 0) {
+                    appendResponse(xml, child, entry.getValue());
+                }
+            }
+        }
+        xml.append("</D:multistatus>");
+        respond(exchange, 207, xml.toString(), "text/xml; charset=utf-8");
+    }
+
+    protected void handleDelete(final HttpExchange exchange, final String path) throws IOException {
+        drain(exchange);
+        if (resources.remove(path) == null) {
+            respond(exchange, 404);
+            return;
+        }
+        final String prefix = path + "/";
+        for (String child : resources.keySet()) {
+            if (child.startsWith(prefix)) {
+                resources.remove(child);
+            }
+        }
+        respond(exchange, 204);
+    }
+
+    protected boolean isAuthorized(final HttpExchange exchange) {
+        if (basicAuthorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            return true;
+        }
+        final String token = cookie(exchange, TT_COOKIE);
+        if (token == null) {
+            return false;
+        }
+        final Long issuedAt = temporaryTokens.get(token);
+        if (issuedAt == null || System.currentTimeMillis() - issuedAt >= tokenValidityMillis) {
+            return false;
+        }
+        if (unauthorizedRate > 0 && ThreadLocalRandom.current().nextDouble() < unauthorizedRate) {
+            temporaryTokens.remove(token);
+            faultCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads and discards the request body.
+     *
+     * @return number of bytes read
+     */
+    protected long drain(final HttpExchange exchange) throws IOException {
+        final InputStream body = exchange.getRequestBody();
+        final byte[] buffer = BUFFERS.get();
+        long total = 0;
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            total += read;
+            throttle(read);
+        }
+        bytesReceived.addAndGet(total);
+        return total;
+    }
+
+    /**
+     * Waits until the bandwidth cap lets {@code bytes} more bytes in.
+     */
+    private void throttle(final int bytes) throws IOException {
+        final long bytesPerSecond = bandwidthBytesPerSecond;
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        final long duration = TimeUnit.SECONDS.toNanos(1) * bytes / bytesPerSecond;
+        long reserved;
+        long until;
+        do {
+            reserved = bandwidthReservedUntil.get();
+            until = Math.max(reserved, System.nanoTime()) + duration;
+        } while (!bandwidthReservedUntil.compareAndSet(reserved, until));
+        final long wait = until - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    protected void drainAndRespond(final HttpExchange exchange, final int status) throws IOException {
+        drain(exchange);
+        respond(exchange, status);
+    }
+
+    protected void respond(final HttpExchange exchange, final int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    protected void respond(final HttpExchange exchange, final int status, final String body, final String contentType)
+            throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private void countRequest(final String method) {
+        AtomicLong count = requestCounts.get(method);
+        if (count == null) {
+            requestCounts.putIfAbsent(method, new AtomicLong());
+            count = requestCounts.get(method);
+        }
+        count.incrementAndGet();
+    }
+
+    private boolean isCollection(final String path) {
+        final Resource resource = resources.get(path);
+        return resource != null && resource.collection;
+    }
+
+    private static void appendResponse(final StringBuilder xml, final String path, final Resource resource) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        xml.append("<D:response><D:href>").append(path).append(resource.collection ? "/" : "").append("</D:href>")
+                .append("<D:propstat><D:prop>")
+                .append(resource.collection ? "<D:resourcetype><D:collection/></D:resourcetype>" : "<D:resourcetype/>")
+                .append("<D:getlastmodified>").append(format.format(new Date(resource.lastModified)))
+                .append("</D:getlastmodified>");
+        if (!resource.collection) {
+            xml.append("<D:getcontentlength>").append(resource.length).append("</D:getcontentlength>")
+                    .append("<D:getetag>\"").append(Long.toHexString(resource.length)).append('-')
+                    .append(Long.toHexString(resource.lastModified)).append("\"</D:getetag>");
+        }
+        xml.append("</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>");
+    }
+
+    private static String cookie(final HttpExchange exchange, final String name) {
+        final List<String> headers = exchange.getRequestHeaders().get("Cookie");
+        if (headers == null) {
+            return null;
+        }
+        for (String header : headers) {
+            for (String cookie : header.split(";")) {
+                final int separator = cookie.indexOf('=');
+                if (separator > 0 && cookie.substring(0, separator).trim().equals(name)) {
+                    return cookie.substring(separator + 1).trim().replace("\"", "");
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String normalize(final String path) {
+        String normalized = path;
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private static String parentOf(final String path) {
+        final int separator = path.lastIndexOf('/');
+        return separator <= 0 ? "/" : path.substring(0, separator);
+    }
+
+    private static final class Resource {
+        private final boolean collection;
+        private final long length;
+        private final long lastModified;
+
+        private Resource(final boolean collection, final long length) {
+            this.collection = collection;
+            this.length = length;
+            this.lastModified = System.currentTimeMillis();
+        }
+
+        static Resource collection() {
+            return new Resource(true, 0);
+        }
+
+        static Resource file(final long length) {
+            return new Resource(false, length);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.gooddata.webdav.FileChannelRequestEntity;
+import com.gooddata.webdav.WebDavUploader;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File uploads of various sizes, comparing {@link FileChannelRequestEntity} used by
+ * {@link WebDavUploader#transferFile} with HttpClient's {@link FileRequestEntity}.
+ * Run with {@code -t N} to measure N concurrent uploaders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferFileBenchmark {
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long payloadSize;
+
+    @Param({"FILE_CHANNEL", "FILE"})
+    public String entity;
+
+    private LocalWebDavServer server;
+    private WebDavUploader uploader;
+    private File file;
+    private final AtomicLong fileCounter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalWebDavServer().start();
+        uploader = Benchmarks.newUploader(server, 64);
+        file = Benchmarks.createFile(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public void transferFile(final ByteCounters counters) {
+        final RequestEntity requestEntity = "FILE".equals(entity)
+                ? new FileRequestEntity(file, Benchmarks.CONTENT_TYPE)
+                : new FileChannelRequestEntity(file, Benchmarks.CONTENT_TYPE);
+        uploader.transferRequestEntity(requestEntity, "benchmark", "file-" + fileCounter.incrementAndGet(),
+                Benchmarks.CONTENT_TYPE);
+        counters.bytes += payloadSize;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav.benchmark;
+
+import com.gooddata.webdav.WebDavUploader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Input stream uploads in the default (buffered) and streaming mode. Buffered uploads of 1 GB need a heap larger
+ * than 2 GB, run them with {@code -jvmArgs -Xmx4g}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferInputStreamBenchmark {
+
+    @Param({"1024", "1048576", "67108864"})
+    public long payloadSize;
+
+    @Param({"STREAMING", "BUFFERED"})
+    public String mode;
+
+    private LocalWebDavServer server;
+    private WebDavUploader uploader;
+    private final AtomicLong fileCounter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalWebDavServer().start();
+        uploader = Benchmarks.newUploader(server, 64);
+        uploader.setStreamingUploads("STREAMING".equals(mode));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void transferInputStream(final ByteCounters counters) {
+        uploader.transferInputStream(new Benchmarks.PayloadInputStream(payloadSize), "benchmark",
+                "stream-" + fileCounter.incrementAndGet(), Benchmarks.CONTENT_TYPE);
+        counters.bytes += payloadSize;
+    }
+}
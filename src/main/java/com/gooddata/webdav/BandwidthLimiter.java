@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Token bucket limiting the rate of uploaded bytes, shared by concurrent transfers.
+ * <p>
+ * When the bucket is empty, waiting transfers get bytes in the order of their virtual finish time (weighted fair
+ * queuing): a transfer with weight 3 gets three times the bandwidth of a concurrent transfer with weight 1, and
+ * a newly started transfer doesn't have to wait for transfers which started before it. Waiting threads sleep until
+ * enough tokens accumulate, nothing spins.
+ * <p>
+ * The rate can be changed at any time, even while transfers are waiting. A limiter can be shared by several
+ * uploaders to enforce a global limit, see {@link WebDavUploader#setSharedBandwidthLimiter(BandwidthLimiter)}.
+ */
+public class BandwidthLimiter {
+
+    public static final long UNLIMITED = 0;
+
+    /** Maximum number of bytes granted at once - larger writes are split, so transfers interleave finely. */
+    static final int MAX_GRANT = 64 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Transfer> waiting = new PriorityQueue<Transfer>();
+
+    private volatile long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private double virtualTime;
+
+    /**
+     * Creates new limiter.
+     *
+     * @param bytesPerSecond maximum rate or {@link #UNLIMITED}
+     */
+    public BandwidthLimiter(final long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Changes the maximum rate, waiting transfers are woken up to use the new one.
+     *
+     * @param bytesPerSecond maximum rate or {@link #UNLIMITED}
+     */
+    public void setBytesPerSecond(final long bytesPerSecond) {
+        Validate.isTrue(bytesPerSecond >= 0, "bytesPerSecond must not be negative");
+        lock.lock();
+        try {
+            refill(this.bytesPerSecond);
+            this.bytesPerSecond = bytesPerSecond;
+            tokens = Math.min(tokens, burst(bytesPerSecond));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return number of transfers waiting for bandwidth
+     */
+    public int getWaitingTransfers() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers new transfer. The returned handle must be used by one thread at a time.
+     *
+     * @param weight weight of the transfer in the fair sharing
+     */
+    public Transfer newTransfer(final int weight) {
+        Validate.isTrue(weight > 0, "weight must be positive");
+        return new Transfer(weight);
+    }
+
+    /**
+     * Waits until {@code bytes} (at most {@link #MAX_GRANT}) may be sent by the transfer.
+     */
+    void acquire(final Transfer transfer, final int bytes) throws InterruptedIOException {
+        if (bytesPerSecond == UNLIMITED) {
+            return;
+        }
+        try {
+            lock.lockInterruptibly();
+            try {
+                transfer.finishTag = Math.max(transfer.finishTag, virtualTime) + (double) bytes / transfer.weight;
+                waiting.add(transfer);
+                try {
+                    for (long rate = bytesPerSecond; rate != UNLIMITED; rate = bytesPerSecond) {
+                        if (waiting.peek() != transfer) {
+                            changed.await();
+                            continue;
+                        }
+                        refill(rate);
+                        if (tokens >= bytes) {
+                            tokens -= bytes;
+                            break;
+                        }
+                        changed.awaitNanos((long) ((bytes - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+                    }
+                    virtualTime = transfer.finishTag;
+                } finally {
+                    waiting.remove(transfer);
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+        }
+    }
+
+    /** Must be called with {@link #lock} held. */
+    private void refill(final long rate) {
+        final long now = System.nanoTime();
+        if (rate != UNLIMITED) {
+            tokens = Math.min(burst(rate), tokens + (double) (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Bucket capacity - 50 ms worth of bytes, at least one grant.
+     */
+    private static double burst(final long rate) {
+        return Math.max(MAX_GRANT, rate / 20);
+    }
+
+    /**
+     * Handle of one transfer sharing the limiter.
+     */
+    public static final class Transfer implements Comparable<Transfer> {
+        private final int weight;
+        private double finishTag;
+
+        private Transfer(final int weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public int compareTo(final Transfer other) {
+            return Double.compare(finishTag, other.finishTag);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Outcome of uploading single {@link UploadItem} within a batch.
+ */
+public final class BatchItemResult {
+
+    private final UploadItem item;
+    private final RuntimeException failure;
+    private final long durationMillis;
+    private final boolean skipped;
+
+    BatchItemResult(final UploadItem item, final RuntimeException failure, final long durationMillis) {
+        this(item, failure, durationMillis, false);
+    }
+
+    BatchItemResult(final UploadItem item, final RuntimeException failure, final long durationMillis,
+            final boolean skipped) {
+        Validate.notNull(item, "item must not be null");
+        this.item = item;
+        this.failure = failure;
+        this.durationMillis = durationMillis;
+        this.skipped = skipped;
+    }
+
+    public UploadItem getItem() {
+        return item;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    /**
+     * @return the exception which caused the upload to fail, typically {@link WebDavUploaderException},
+     *         or null if the item has been uploaded successfully
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return time spent uploading the item in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return true if the item has not been uploaded because the {@link WebDavUploader#setUploadJournal(UploadJournal)
+     *         upload journal} records it as already uploaded
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchItemResult [item=" + item + ", success=" + isSuccess() + ", durationMillis=" + durationMillis
+                + ", skipped=" + skipped + "]";
+    }
+}
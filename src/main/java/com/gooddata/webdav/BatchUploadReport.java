@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Report of a batch upload containing one {@link BatchItemResult} per uploaded item in the order of submission.
+ * @see WebDavUploader#transferBatch(java.util.Collection, int)
+ */
+public final class BatchUploadReport {
+
+    private final List<BatchItemResult> results;
+    private final long durationMillis;
+
+    BatchUploadReport(final List<BatchItemResult> results, final long durationMillis) {
+        this.results = Collections.unmodifiableList(new ArrayList<BatchItemResult>(results));
+        this.durationMillis = durationMillis;
+    }
+
+    public List<BatchItemResult> getResults() {
+        return results;
+    }
+
+    public List<BatchItemResult> getFailures() {
+        final List<BatchItemResult> failures = new ArrayList<BatchItemResult>();
+        for (BatchItemResult result : results) {
+            if (!result.isSuccess()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    public int getSuccessCount() {
+        return results.size() - getFailureCount();
+    }
+
+    public int getFailureCount() {
+        int failures = 0;
+        for (BatchItemResult result : results) {
+            if (!result.isSuccess()) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return true if all items have been uploaded successfully
+     */
+    public boolean isSuccess() {
+        return getFailureCount() == 0;
+    }
+
+    /**
+     * @return wall-clock time of the whole batch in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchUploadReport [items=" + results.size() + ", failures=" + getFailureCount()
+                + ", durationMillis=" + durationMillis + "]";
+    }
+}
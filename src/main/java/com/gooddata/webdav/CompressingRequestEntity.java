@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang.Validate;
+
+/**
+ * {@link RequestEntity} compressing another entity while it's being sent, into gzip or single entry zip format.
+ * Nothing is written to temporary files: the source is deflated in blocks of fixed size, so the memory used is
+ * bounded by the block size times the parallelism.
+ * <p>
+ * With parallelism greater than one, the blocks are deflated concurrently (the same way as pigz does it): every
+ * block is deflated independently, primed with the last 32 KB of the previous block as the dictionary, and all but
+ * the last block end with a sync flush, so the concatenated blocks form one valid deflate stream. The output differs
+ * slightly from the output of {@link java.util.zip.GZIPOutputStream} but any inflater reads it.
+ * <p>
+ * The length of the compressed body is not known in advance, so the entity is sent using chunked transfer encoding.
+ * Zip archives are limited to 4 GB as ZIP64 is not written; use gzip for larger uploads.
+ */
+public class CompressingRequestEntity implements RequestEntity {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long ZIP_MAX_SIZE = 0xFFFFFFFFL;
+
+    private static final ExecutorService COMPRESSORS = Executors.newCachedThreadPool(
+            UploadThreads.newThreadFactory("webdav-compression-", false));
+
+    private final RequestEntity source;
+    private final UploadCompression compression;
+    private final String entryName;
+    private final int level;
+    private final int parallelism;
+    private final int blockSize;
+
+    /**
+     * Creates new compressing entity.
+     *
+     * @param source entity to compress
+     * @param compression {@link UploadCompression#GZIP} or {@link UploadCompression#ZIP}
+     * @param entryName name of the zip entry (ignored for gzip)
+     * @param level compression level 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param parallelism number of blocks compressed concurrently
+     * @param blockSize size of the uncompressed block in bytes
+     */
+    public CompressingRequestEntity(final RequestEntity source, final UploadCompression compression,
+            final String entryName, final int level, final int parallelism, final int blockSize) {
+        Validate.notNull(source, "source entity must be defined!");
+        Validate.isTrue(compression == UploadCompression.GZIP || compression == UploadCompression.ZIP,
+                "compression must be GZIP or ZIP");
+        Validate.isTrue(compression != UploadCompression.ZIP || entryName != null, "zip entry name must be defined");
+        Validate.isTrue(level == Deflater.DEFAULT_COMPRESSION || (level >= 0 && level <= 9),
+                "level must be between 0 and 9");
+        Validate.isTrue(parallelism > 0, "parallelism must be positive");
+        Validate.isTrue(blockSize >= DICTIONARY_SIZE, "blockSize must be at least " + DICTIONARY_SIZE);
+        Validate.isTrue(compression != UploadCompression.ZIP || source.getContentLength() <= ZIP_MAX_SIZE,
+                "zip archive cannot contain more than 4 GB, use GZIP compression");
+        this.source = source;
+        this.compression = compression;
+        this.entryName = entryName;
+        this.level = level;
+        this.parallelism = parallelism;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return source.isRepeatable();
+    }
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        final CountingOutputStream counting = new CountingOutputStream(out);
+        final byte[] name = entryName != null ? entryName.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final int dosTime = dosTime(System.currentTimeMillis());
+        if (compression == UploadCompression.GZIP) {
+            counting.write(new byte[] {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+        } else {
+            writeInt(counting, 0x04034b50);
+            writeZipEntryHeader(counting, dosTime, 0, 0, 0, name);
+            counting.write(name);
+        }
+        final long dataStart = counting.getByteCount();
+
+        final BlockDeflatingOutputStream deflating = new BlockDeflatingOutputStream(counting);
+        try {
+            source.writeRequest(deflating);
+            deflating.finish();
+        } finally {
+            deflating.release();
+        }
+
+        final long crc = deflating.crc.getValue();
+        final long size = deflating.size;
+        if (compression == UploadCompression.GZIP) {
+            writeInt(counting, (int) crc);
+            writeInt(counting, (int) size);
+        } else {
+            final long compressedSize = counting.getByteCount() - dataStart;
+            if (size > ZIP_MAX_SIZE || compressedSize > ZIP_MAX_SIZE) {
+                throw new IOException("zip archive cannot contain more than 4 GB, use GZIP compression");
+            }
+            // data descriptor
+            writeInt(counting, 0x08074b50);
+            writeInt(counting, (int) crc);
+            writeInt(counting, (int) compressedSize);
+            writeInt(counting, (int) size);
+            // central directory
+            final long centralDirectoryStart = counting.getByteCount();
+            writeInt(counting, 0x02014b50);
+            writeShort(counting, 20);
+            writeZipEntryHeader(counting, dosTime, crc, compressedSize, size, name);
+            writeShort(counting, 0); // comment length
+            writeShort(counting, 0); // disk number
+            writeShort(counting, 0); // internal attributes
+            writeInt(counting, 0); // external attributes
+            writeInt(counting, 0); // offset of the local header
+            counting.write(name);
+            final long centralDirectorySize = counting.getByteCount() - centralDirectoryStart;
+            // end of central directory
+            writeInt(counting, 0x06054b50);
+            writeShort(counting, 0);
+            writeShort(counting, 0);
+            writeShort(counting, 1);
+            writeShort(counting, 1);
+            writeInt(counting, (int) centralDirectorySize);
+            writeInt(counting, (int) centralDirectoryStart);
+            writeShort(counting, 0);
+        }
+        counting.flush();
+    }
+
+    /**
+     * Fields shared by the local file header and the central directory header, starting with "version needed".
+     */
+    private static void writeZipEntryHeader(final OutputStream out, final int dosTime, final long crc,
+            final long compressedSize, final long size, final byte[] name) throws IOException {
+        writeShort(out, 20);
+        writeShort(out, 0x0808); // sizes in data descriptor, UTF-8 name
+        writeShort(out, Deflater.DEFLATED);
+        writeInt(out, dosTime);
+        writeInt(out, (int) crc);
+        writeInt(out, (int) compressedSize);
+        writeInt(out, (int) size);
+        writeShort(out, name.length);
+        writeShort(out, 0);
+    }
+
+    private static int dosTime(final long millis) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return (calendar.get(Calendar.YEAR) - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeShort(final OutputStream out, final int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(final OutputStream out, final int value) throws IOException {
+        writeShort(out, value);
+        writeShort(out, value >>> 16);
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return compression.getContentType();
+    }
+
+    public UploadCompression getCompression() {
+        return compression;
+    }
+
+    public RequestEntity getSource() {
+        return source;
+    }
+
+    /**
+     * Collects written bytes into blocks and writes them deflated, in order, to the target stream. Up to
+     * {@link #parallelism} blocks are deflated at the same time.
+     */
+    private class BlockDeflatingOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final CRC32 crc = new CRC32();
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        private byte[] block = new byte[blockSize];
+        private int blockLength;
+        private byte[] dictionary;
+        private long size;
+        /** Deflater of the whole stream used when blocks are not compressed in parallel. */
+        private Deflater serialDeflater;
+        private byte[] serialBuffer;
+
+        BlockDeflatingOutputStream(final OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (blockLength == block.length) {
+                    dispatch(false);
+                }
+                final int copied = Math.min(length, block.length - blockLength);
+                System.arraycopy(bytes, offset, block, blockLength, copied);
+                blockLength += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        void finish() throws IOException {
+            dispatch(true);
+            while (!pending.isEmpty()) {
+                writeCompleted();
+            }
+        }
+
+        private void dispatch(final boolean last) throws IOException {
+            final byte[] data = block;
+            final int length = blockLength;
+            final byte[] previous = dictionary;
+            crc.update(data, 0, length);
+            size += length;
+            if (parallelism == 1) {
+                deflateSerially(data, length, last);
+                blockLength = 0;
+                return;
+            }
+            pending.add(COMPRESSORS.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    final ByteArrayOutputStream output = new ByteArrayOutputStream(length / 2 + 64);
+                    deflate(data, length, previous, last, output);
+                    return output.toByteArray();
+                }
+            }));
+            dictionary = data;
+            if (!last) {
+                // the block is still read by the compressor, the next one needs a new buffer
+                block = new byte[blockSize];
+                blockLength = 0;
+            }
+            while (pending.size() > parallelism) {
+                writeCompleted();
+            }
+        }
+
+        private void deflateSerially(final byte[] data, final int length, final boolean last) throws IOException {
+            if (serialDeflater == null) {
+                serialDeflater = new Deflater(level, true);
+                serialBuffer = new byte[64 * 1024];
+            }
+            serialDeflater.setInput(data, 0, length);
+            while (!serialDeflater.needsInput()) {
+                target.write(serialBuffer, 0, serialDeflater.deflate(serialBuffer));
+            }
+            if (last) {
+                serialDeflater.finish();
+                while (!serialDeflater.finished()) {
+                    target.write(serialBuffer, 0, serialDeflater.deflate(serialBuffer));
+                }
+            }
+        }
+
+        void release() {
+            cancelPending();
+            if (serialDeflater != null) {
+                serialDeflater.end();
+            }
+        }
+
+        private void writeCompleted() throws IOException {
+            final Future<byte[]> future = pending.poll();
+            try {
+                target.write(future.get());
+            } catch (InterruptedException e) {
+                cancelPending();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing the upload");
+            } catch (ExecutionException e) {
+                cancelPending();
+                throw new IOException("Compression of the upload failed", e.getCause());
+            }
+        }
+
+        private void cancelPending() {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Deflates one block independently of the others, see the class description.
+     */
+    private void deflate(final byte[] data, final int length, final byte[] previousBlock, final boolean last,
+            final OutputStream output) throws IOException {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (previousBlock != null) {
+                deflater.setDictionary(previousBlock, previousBlock.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            final byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int deflated;
+                do {
+                    deflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, deflated);
+                } while (deflated == buffer.length);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+}
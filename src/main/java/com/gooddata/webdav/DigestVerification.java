@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * How is the digest of an uploaded file checked with the server, see
+ * {@link WebDavUploader#setDigestVerification(DigestVerification)}.
+ * <p>
+ * Plain WebDAV servers (e.g. Apache mod_dav) compute ETags from the size and modification time rather than from the
+ * content. ETag which doesn't look like a digest of the configured algorithm is therefore not considered a mismatch,
+ * the upload is just reported as not {@link UploadResult#isVerified() verified}.
+ */
+public enum DigestVerification {
+    /** Digest is only computed and reported. */
+    NONE,
+    /** Digest is compared with the ETag returned in response to PUT. */
+    ETAG,
+    /**
+     * The uploaded file is looked up by PROPFIND; its length must match the number of uploaded bytes and its ETag
+     * is compared with the digest. Costs one more request per upload.
+     */
+    PROPFIND
+}
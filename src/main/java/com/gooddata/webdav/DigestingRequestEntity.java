@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang.Validate;
+
+/**
+ * {@link RequestEntity} computing a message digest of the bytes written by another entity while they are being sent,
+ * so the content doesn't have to be read twice. If the entity is written several times (e.g. resent after
+ * re-authentication), the digest of the last complete write is kept.
+ */
+public class DigestingRequestEntity implements RequestEntity {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final RequestEntity delegate;
+    private final String algorithm;
+    private volatile byte[] digest;
+    private volatile long writtenLength = -1;
+
+    /**
+     * Creates new entity.
+     *
+     * @param delegate entity providing the content
+     * @param algorithm digest algorithm, e.g. SHA-256 or MD5
+     * @throws IllegalArgumentException if the algorithm is not supported by the JVM
+     */
+    public DigestingRequestEntity(final RequestEntity delegate, final String algorithm) {
+        Validate.notNull(delegate, "delegate must be defined");
+        Validate.notEmpty(algorithm, "algorithm must be defined");
+        this.delegate = delegate;
+        this.algorithm = algorithm;
+        newMessageDigest();
+    }
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        final MessageDigest messageDigest = newMessageDigest();
+        final CountingOutputStream counting = new CountingOutputStream(out);
+        delegate.writeRequest(new DigestOutputStream(counting, messageDigest));
+        digest = messageDigest.digest();
+        writtenLength = counting.getByteCount();
+    }
+
+    /**
+     * Wraps the content of the delegate read by a transport instead of {@link #writeRequest(OutputStream)}; the digest
+     * and the written length are set when the stream is read to its end.
+     */
+    InputStream digest(final InputStream content) {
+        final MessageDigest messageDigest = newMessageDigest();
+        return new FilterInputStream(content) {
+            private long count;
+            private boolean finished;
+
+            @Override
+            public int read() throws IOException {
+                final int b = in.read();
+                if (b == -1) {
+                    finish();
+                } else {
+                    messageDigest.update((byte) b);
+                    count++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                final int read = in.read(bytes, offset, length);
+                if (read == -1) {
+                    finish();
+                } else {
+                    messageDigest.update(bytes, offset, read);
+                    count += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(final long n) {
+                // skipped bytes would be missing in the digest
+                return 0;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            private void finish() {
+                if (!finished) {
+                    finished = true;
+                    digest = messageDigest.digest();
+                    writtenLength = count;
+                }
+            }
+        };
+    }
+
+    private MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm " + algorithm, e);
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return delegate.isRepeatable();
+    }
+
+    @Override
+    public long getContentLength() {
+        return delegate.getContentLength();
+    }
+
+    @Override
+    public String getContentType() {
+        return delegate.getContentType();
+    }
+
+    public RequestEntity getDelegate() {
+        return delegate;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return digest of the written content or null if the content hasn't been completely written yet
+     */
+    public byte[] getDigest() {
+        final byte[] current = digest;
+        return current != null ? current.clone() : null;
+    }
+
+    /**
+     * @return lowercase hexadecimal digest of the written content or null if it hasn't been completely written yet
+     */
+    public String getDigestHex() {
+        final byte[] current = digest;
+        return current != null ? toHex(current) : null;
+    }
+
+    /**
+     * @return number of bytes of the last complete write, useful for entities of unknown length, or -1 if the content
+     *         hasn't been completely written yet
+     */
+    public long getWrittenLength() {
+        return writtenLength;
+    }
+
+    static String toHex(final byte[] bytes) {
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
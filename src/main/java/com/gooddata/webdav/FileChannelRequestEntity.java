@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang.Validate;
+
+/**
+ * {@link RequestEntity} uploading a file through {@link FileChannel} and a large buffer borrowed from a small shared
+ * pool for the duration of {@link #writeRequest(OutputStream)}. Unlike
+ * {@link org.apache.commons.httpclient.methods.FileRequestEntity}, which copies the file through a freshly allocated
+ * 4 KB array, nothing is allocated per chunk, buffers are reused across uploads and the number of read/write calls
+ * is much lower. The pool is not tied to threads, so short-lived (e.g. virtual) worker threads neither allocate
+ * a buffer each nor keep one pinned after they finish.
+ * <p>
+ * HttpClient hands the entity a plain {@link OutputStream}, so the bytes still have to pass through a heap array;
+ * kernel level {@link FileChannel#transferTo} to the socket is not reachable through this API.
+ * <p>
+ * The length of the file is captured when the entity is created; exactly that many bytes are sent. The entity may
+ * also send only a region of the file, e.g. one part of a {@link MultipartManifest multi-part upload}.
+ */
+public class FileChannelRequestEntity implements RequestEntity {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /** Maximum number of idle buffers kept for reuse, buffers returned above it are left to the garbage collector. */
+    static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+
+    private final File file;
+    private final String contentType;
+    private final int bufferSize;
+    private final long offset;
+    private final long contentLength;
+
+    /** @see #FileChannelRequestEntity(File, String, int) */
+    public FileChannelRequestEntity(final File file, final String contentType) {
+        this(file, contentType, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates new file entity.
+     *
+     * @param file file to upload
+     * @param contentType content type of the file
+     * @param bufferSize size of the copy buffer in bytes
+     */
+    public FileChannelRequestEntity(final File file, final String contentType, final int bufferSize) {
+        this(file, 0, file.length(), contentType, bufferSize);
+    }
+
+    /**
+     * Creates new entity sending {@code length} bytes of the file starting at {@code offset}.
+     *
+     * @param file file to upload
+     * @param offset position of the first byte to send
+     * @param length number of bytes to send
+     * @param contentType content type of the file
+     * @param bufferSize size of the copy buffer in bytes
+     */
+    public FileChannelRequestEntity(final File file, final long offset, final long length, final String contentType,
+            final int bufferSize) {
+        Validate.notNull(file, "File for upload must be defined!");
+        Validate.isTrue(offset >= 0, "offset must not be negative");
+        Validate.isTrue(length >= 0, "length must not be negative");
+        Validate.isTrue(bufferSize > 0, "bufferSize must be positive");
+        this.file = file;
+        this.offset = offset;
+        this.contentType = contentType;
+        this.bufferSize = bufferSize;
+        this.contentLength = length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        final byte[] array = acquireBuffer(bufferSize);
+        final ByteBuffer buffer = ByteBuffer.wrap(array);
+        final RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            releaseBuffer(array);
+            throw e;
+        }
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            long remaining = contentLength;
+            long position = offset;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(array.length, remaining));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File " + file.getAbsolutePath() + " has been truncated during upload, "
+                            + remaining + " of " + contentLength + " bytes are missing");
+                }
+                out.write(array, 0, read);
+                remaining -= read;
+                position += read;
+            }
+        } finally {
+            releaseBuffer(array);
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Opens the sent region of the file for transports which read the body instead of letting the entity write it.
+     */
+    InputStream open() throws IOException {
+        final FileInputStream input = new FileInputStream(file);
+        try {
+            input.getChannel().position(offset);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        return new BoundedInputStream(input, contentLength);
+    }
+
+    /**
+     * @return pooled buffer of the given size, or a new one if no such buffer is idle
+     */
+    private static byte[] acquireBuffer(final int size) {
+        final byte[] buffer = BUFFERS.poll();
+        // a buffer of a different size is dropped, so the pool converges to the size actually used
+        return buffer != null && buffer.length == size ? buffer : new byte[size];
+    }
+
+    private static void releaseBuffer(final byte[] buffer) {
+        BUFFERS.offer(buffer);
+    }
+
+    /**
+     * @return number of idle pooled buffers
+     */
+    static int getPooledBufferCount() {
+        return BUFFERS.size();
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return position of the first sent byte in the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Default {@link WebDavTransport} based on commons-httpclient 3.1. I/O is blocking, each executing request occupies
+ * its calling thread; {@link #executeAsync(TransportRequest)} runs the request on an executor.
+ */
+public class HttpClientTransport implements WebDavTransport {
+
+    static final String COOKIE_POLICY = "AcceptGDCAuthSSTCookiePolicy";
+
+    static {
+        CookiePolicy.registerCookieSpec(COOKIE_POLICY, WebDavSstAuthenticator.AcceptGDCAuthSSTCookiePolicy.class);
+    }
+
+    private final HttpClient httpClient;
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final boolean sharedConnectionManager;
+    private final HostConfiguration hostConfiguration;
+    private final Executor asyncExecutor;
+    /** Executor created by this transport and shut down with it, null if the executor has been passed in. */
+    private final ExecutorService ownExecutor;
+    private volatile Credentials credentials;
+    /** Last sent cookie of every name, reused while its value (typically the temporary token) doesn't change. */
+    private final ConcurrentMap<String, Cookie> cookies = new ConcurrentHashMap<String, Cookie>();
+
+    /** @see #HttpClientTransport(String, String, int, Executor) */
+    public HttpClientTransport(final String protocol, final String host, final int port) {
+        this(protocol, host, port, null);
+    }
+
+    /**
+     * Creates new transport with pooled connections to given host.
+     *
+     * @param protocol protocol, typically https
+     * @param host host name
+     * @param port port, typically 443
+     * @param asyncExecutor executor running requests passed to {@link #executeAsync(TransportRequest)}, null for
+     *                      an unbounded pool of daemon threads
+     */
+    public HttpClientTransport(final String protocol, final String host, final int port, final Executor asyncExecutor) {
+        this(protocol, host, port, null, asyncExecutor);
+    }
+
+    /**
+     * Creates new transport using connections of given shared connection manager, see {@link WebDavClientRegistry}.
+     * Credentials and cookies stay private to the transport. Connection limits of a shared manager are left to its
+     * owner - {@link #setMaxConnections(int)} has no effect and {@link #shutdown()} doesn't close the connections.
+     *
+     * @param protocol protocol, typically https
+     * @param host host name
+     * @param port port, typically 443
+     * @param connectionManager shared connection manager, null to create own one
+     * @param asyncExecutor executor running requests passed to {@link #executeAsync(TransportRequest)}, null for
+     *                      an unbounded pool of daemon threads
+     */
+    public HttpClientTransport(final String protocol, final String host, final int port,
+            final MultiThreadedHttpConnectionManager connectionManager, final Executor asyncExecutor) {
+        Validate.notEmpty(host, "host cannot be empty");
+        Validate.isTrue(port > 0 && port < 65536, "valid port must be specified");
+        Validate.notEmpty(protocol, "protocol cannot be empty");
+
+        this.sharedConnectionManager = connectionManager != null;
+        this.connectionManager = connectionManager != null ? connectionManager : new MultiThreadedHttpConnectionManager();
+        this.hostConfiguration = new HostConfiguration();
+        this.hostConfiguration.setHost(host, port, protocol);
+        this.httpClient = new HttpClient(this.connectionManager);
+        this.httpClient.setHostConfiguration(hostConfiguration);
+        this.ownExecutor = asyncExecutor != null ? null
+                : Executors.newCachedThreadPool(UploadThreads.newThreadFactory("webdav-transport-", false));
+        this.asyncExecutor = asyncExecutor != null ? asyncExecutor : ownExecutor;
+    }
+
+    @Override
+    public TransportResponse execute(final TransportRequest request) throws IOException {
+        if (request.isAborted()) {
+            throw new InterruptedIOException("Request " + request + " has been aborted");
+        }
+        final HttpMethodBase method = createMethod(request);
+        final HttpState state = createState(request);
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                // closing the connection fails a blocked read of the executing thread, but waits for its blocked write
+                asyncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        method.abort();
+                    }
+                });
+            }
+        });
+        try {
+            httpClient.executeMethod(hostConfiguration, method, state);
+        } catch (IOException e) {
+            method.releaseConnection();
+            throw e;
+        } catch (RuntimeException e) {
+            method.releaseConnection();
+            throw e;
+        }
+        return new HttpClientResponse(method, state);
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(final TransportRequest request) {
+        final CompletableFuture<TransportResponse> result = new CompletableFuture<TransportResponse>();
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TransportResponse response = execute(request);
+                    if (!result.complete(response)) {
+                        // cancelled in the meantime
+                        response.release();
+                    }
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    private HttpMethodBase createMethod(final TransportRequest request) {
+        final HttpMethodBase method;
+        if ("GET".equals(request.getMethod())) {
+            method = new GetMethod(request.getPath());
+        } else if ("HEAD".equals(request.getMethod())) {
+            method = new HeadMethod(request.getPath());
+        } else {
+            final EntityEnclosingMethod entityMethod = new TransportMethod(request.getMethod(), request.getPath());
+            if (request.getEntity() != null) {
+                entityMethod.setRequestEntity(request.getEntity());
+            }
+            method = entityMethod;
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            method.setRequestHeader(header.getKey(), header.getValue());
+        }
+        //register special cookie policy that is more friendly to cookie's origin path
+        method.getParams().setCookiePolicy(COOKIE_POLICY);
+        if (request.isExpectContinue()) {
+            method.getParams().setBooleanParameter(HttpMethodParams.USE_EXPECT_CONTINUE, true);
+        }
+        return method;
+    }
+
+    /**
+     * Every request has its own state so that cookies of concurrent requests don't interfere.
+     */
+    private HttpState createState(final TransportRequest request) {
+        final HttpState state = new HttpState();
+        final Credentials current = credentials;
+        if (current != null) {
+            state.setCredentials(AuthScope.ANY, current);
+        }
+        for (Map.Entry<String, String> cookie : request.getCookies().entrySet()) {
+            state.addCookie(cookie(cookie.getKey(), cookie.getValue()));
+        }
+        return state;
+    }
+
+    private Cookie cookie(final String name, final String value) {
+        final Cookie last = cookies.get(name);
+        if (last != null && value.equals(last.getValue())) {
+            return last;
+        }
+        final Cookie cookie = new Cookie(getHost(), name, value, "/", null, false);
+        cookies.put(name, cookie);
+        return cookie;
+    }
+
+    @Override
+    public void setCredentials(final String username, final String password) {
+        this.credentials = new UsernamePasswordCredentials(username, password);
+    }
+
+    @Override
+    public String getHost() {
+        return hostConfiguration.getHost();
+    }
+
+    @Override
+    public void setMaxConnections(final int maxConnections) {
+        Validate.isTrue(maxConnections > 0, "maxConnections must be positive");
+        if (sharedConnectionManager) {
+            return;
+        }
+        final HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(Math.max(maxConnections, params.getMaxTotalConnections()));
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return connectionManager.getParams().getMaxConnectionsPerHost(hostConfiguration);
+    }
+
+    @Override
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool(hostConfiguration);
+    }
+
+    @Override
+    public void shutdown() {
+        if (!sharedConnectionManager) {
+            connectionManager.shutdown();
+        }
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Method with arbitrary name (MKCOL, PROPFIND, ...) and optional body.
+     */
+    private static final class TransportMethod extends EntityEnclosingMethod {
+        private final String name;
+
+        TransportMethod(final String name, final String uri) {
+            super(uri);
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class HttpClientResponse implements TransportResponse {
+        private final HttpMethodBase method;
+        private final HttpState state;
+        private boolean released;
+
+        HttpClientResponse(final HttpMethodBase method, final HttpState state) {
+            this.method = method;
+            this.state = state;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return method.getStatusCode();
+        }
+
+        @Override
+        public String getHeader(final String name) {
+            final Header header = method.getResponseHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        @Override
+        public String getCookie(final String name) {
+            for (Cookie cookie : state.getCookies()) {
+                if (name.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return method.getResponseBodyAsStream();
+        }
+
+        /**
+         * Reads the rest of a short body through a reused buffer (HttpClient would allocate one for every response)
+         * so that the connection can be reused; the connection of a long body is closed instead.
+         */
+        @Override
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            try {
+                if (!ResponseBodies.drain(method.getResponseBodyAsStream())) {
+                    method.abort();
+                }
+            } catch (IOException e) {
+                method.abort();
+            } finally {
+                method.releaseConnection();
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking {@link WebDavTransport} based on {@link HttpClient java.net.http.HttpClient}. Requests are sent
+ * asynchronously by a small number of selector and executor threads, HTTP/2 is used when the server supports it.
+ * <p>
+ * {@link #setMaxConnections(int) Maximum connections} limits the number of concurrently executing requests; requests
+ * above the limit are queued without blocking the caller of {@link #executeAsync(TransportRequest)}.
+ * <p>
+ * Bodies of {@link FileChannelRequestEntity}, {@link StreamingRequestEntity}, {@link ByteArrayRequestEntity} and
+ * {@link StringRequestEntity}, also wrapped in {@link DigestingRequestEntity}, {@link RateLimitedRequestEntity} or
+ * progress reporting of {@link UploadHandle}, are read by the client directly (see {@link RequestBodies}). Other
+ * entities, notably {@link CompressingRequestEntity}, are written through a pipe by a helper thread per upload
+ * because {@link RequestEntity#writeRequest(OutputStream)} can only push the bytes.
+ */
+public class JdkHttpTransport implements WebDavTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService ENTITY_WRITERS = Executors.newCachedThreadPool(
+            UploadThreads.newThreadFactory("webdav-entity-writer-", false));
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HttpClient httpClient;
+    private final String host;
+    private final String baseUri;
+
+    private final Object limitLock = new Object();
+    private final Deque<Runnable> waitingRequests = new ArrayDeque<Runnable>();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int executingRequests;
+
+    private volatile String authorization;
+    private volatile CookieHeader lastCookieHeader;
+
+    /**
+     * Creates new transport preferring HTTP/2 for https (negotiated via ALPN) and using HTTP/1.1 for plain http,
+     * where HTTP/2 would cost an upgrade attempt on every new connection.
+     *
+     * @see #JdkHttpTransport(String, String, int, HttpClient.Version, Executor)
+     */
+    public JdkHttpTransport(final String protocol, final String host, final int port) {
+        this(protocol, host, port, "https".equalsIgnoreCase(protocol) ? HttpClient.Version.HTTP_2
+                : HttpClient.Version.HTTP_1_1, null);
+    }
+
+    /**
+     * Creates new transport.
+     *
+     * @param protocol protocol, typically https
+     * @param host host name
+     * @param port port, typically 443
+     * @param version preferred HTTP version; with {@link HttpClient.Version#HTTP_2} the client falls back to HTTP/1.1
+     *                if the server doesn't support HTTP/2
+     * @param executor executor for asynchronous tasks of the client, null for the client's default
+     */
+    public JdkHttpTransport(final String protocol, final String host, final int port, final HttpClient.Version version,
+            final Executor executor) {
+        Validate.notEmpty(host, "host cannot be empty");
+        Validate.isTrue(port > 0 && port < 65536, "valid port must be specified");
+        Validate.notEmpty(protocol, "protocol cannot be empty");
+        Validate.notNull(version, "version must be defined");
+
+        final HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(version)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        this.httpClient = builder.build();
+        this.host = host;
+        this.baseUri = protocol + "://" + host + ":" + port;
+    }
+
+    @Override
+    public TransportResponse execute(final TransportRequest request) throws IOException {
+        final CompletableFuture<TransportResponse> response = executeAsync(request);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while executing " + request);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to execute " + request, cause);
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(final TransportRequest request) {
+        final CompletableFuture<TransportResponse> result = new CompletableFuture<TransportResponse>();
+        final Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                send(request, result);
+            }
+        };
+        synchronized (limitLock) {
+            if (executingRequests >= maxConnections) {
+                waitingRequests.add(send);
+                return result;
+            }
+            executingRequests++;
+        }
+        send.run();
+        return result;
+    }
+
+    /**
+     * Sends the request; the slot taken by the request is freed when its response is released or when it fails.
+     */
+    private void send(final TransportRequest request, final CompletableFuture<TransportResponse> result) {
+        if (result.isDone()) {
+            releaseSlot();
+            return;
+        }
+        if (request.isAborted()) {
+            releaseSlot();
+            result.completeExceptionally(new InterruptedIOException("Request " + request + " has been aborted"));
+            return;
+        }
+        // pipes of the entity written by ENTITY_WRITERS, closed if the exchange fails before reading them
+        final Queue<InputStream> pipes = new ConcurrentLinkedQueue<InputStream>();
+        final HttpRequest httpRequest;
+        try {
+            httpRequest = createRequest(request, pipes);
+        } catch (IOException e) {
+            releaseSlot();
+            result.completeExceptionally(e);
+            return;
+        } catch (RuntimeException e) {
+            releaseSlot();
+            result.completeExceptionally(e);
+            return;
+        }
+        final CompletableFuture<HttpResponse<InputStream>> sending = httpClient.sendAsync(httpRequest,
+                HttpResponse.BodyHandlers.ofInputStream());
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                // cancels the exchange and closes its connection
+                sending.cancel(true);
+            }
+        });
+        sending.whenComplete(
+                new BiConsumer<HttpResponse<InputStream>, Throwable>() {
+                    @Override
+                    public void accept(HttpResponse<InputStream> response, Throwable failure) {
+                        if (failure != null) {
+                            closePipes(pipes);
+                            releaseSlot();
+                            final Throwable cause = unwrap(failure);
+                            result.completeExceptionally(cause instanceof CancellationException
+                                    ? new InterruptedIOException("Request " + request + " has been aborted") : cause);
+                            return;
+                        }
+                        final JdkResponse jdkResponse = new JdkResponse(response);
+                        if (!result.complete(jdkResponse)) {
+                            // cancelled in the meantime
+                            jdkResponse.release();
+                        }
+                    }
+                });
+    }
+
+    private void releaseSlot() {
+        synchronized (limitLock) {
+            executingRequests--;
+        }
+        dispatchWaiting();
+    }
+
+    /**
+     * Starts waiting requests while there are free slots.
+     */
+    private void dispatchWaiting() {
+        while (true) {
+            final Runnable next;
+            synchronized (limitLock) {
+                if (executingRequests >= maxConnections || waitingRequests.isEmpty()) {
+                    return;
+                }
+                next = waitingRequests.poll();
+                executingRequests++;
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * Builds the Cookie header; the header of the last request is reused as long as the cookies (typically just
+     * the temporary token) don't change.
+     */
+    private String cookieHeader(final Map<String, String> cookies) {
+        final CookieHeader last = lastCookieHeader;
+        if (last != null && last.cookies.equals(cookies)) {
+            return last.header;
+        }
+        final StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        final CookieHeader built = new CookieHeader(new LinkedHashMap<String, String>(cookies), header.toString());
+        lastCookieHeader = built;
+        return built.header;
+    }
+
+    private HttpRequest createRequest(final TransportRequest request, final Queue<InputStream> pipes)
+            throws IOException {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUri + request.getPath()))
+                .method(request.getMethod(), createBodyPublisher(request.getEntity(), pipes))
+                .expectContinue(request.isExpectContinue());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        final RequestEntity entity = request.getEntity();
+        if (entity != null && entity.getContentType() != null && !request.getHeaders().containsKey("Content-Type")) {
+            builder.header("Content-Type", entity.getContentType());
+        }
+        if (!request.getCookies().isEmpty()) {
+            builder.header("Cookie", cookieHeader(request.getCookies()));
+        }
+        final String currentAuthorization = authorization;
+        if (currentAuthorization != null) {
+            builder.header("Authorization", currentAuthorization);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param pipes receives pipes created for the entity, see {@link #pipe(RequestEntity)}
+     */
+    private static HttpRequest.BodyPublisher createBodyPublisher(final RequestEntity entity,
+            final Queue<InputStream> pipes) throws IOException {
+        if (entity == null) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        if (entity instanceof FileChannelRequestEntity) {
+            final FileChannelRequestEntity fileEntity = (FileChannelRequestEntity) entity;
+            if (fileEntity.getOffset() == 0 && fileEntity.getContentLength() == fileEntity.getFile().length()) {
+                return HttpRequest.BodyPublishers.fromPublisher(
+                        HttpRequest.BodyPublishers.ofFile(fileEntity.getFile().toPath()), entity.getContentLength());
+            }
+        }
+        if (entity instanceof ByteArrayRequestEntity) {
+            return HttpRequest.BodyPublishers.ofByteArray(((ByteArrayRequestEntity) entity).getContent());
+        }
+        if (entity instanceof StringRequestEntity) {
+            return HttpRequest.BodyPublishers.ofByteArray(RequestBodies.toBytes((StringRequestEntity) entity));
+        }
+        final Supplier<InputStream> body;
+        if (RequestBodies.isReadable(entity)) {
+            body = new Supplier<InputStream>() {
+                @Override
+                public InputStream get() {
+                    try {
+                        return RequestBodies.open(entity);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        } else {
+            body = new Supplier<InputStream>() {
+                @Override
+                public InputStream get() {
+                    final InputStream pipe = pipe(entity);
+                    pipes.add(pipe);
+                    return pipe;
+                }
+            };
+        }
+        final HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(body);
+        return entity.getContentLength() >= 0
+                ? HttpRequest.BodyPublishers.fromPublisher(publisher, entity.getContentLength())
+                : publisher;
+    }
+
+    private static InputStream pipe(final RequestEntity entity) {
+        final PipedInputStream input = new PipedInputStream(PIPE_BUFFER_SIZE);
+        final PipedOutputStream output;
+        try {
+            output = new PipedOutputStream(input);
+        } catch (IOException e) {
+            throw new WebDavUploaderException("Cannot create pipe for request entity!", e);
+        }
+        ENTITY_WRITERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    entity.writeRequest(output);
+                } catch (IOException e) {
+                    LoggerFactory.getLogger(JdkHttpTransport.class)
+                            .warn("action=webdav_transport status=entity_write_error", e);
+                } finally {
+                    try {
+                        output.close();
+                    } catch (IOException ignored) {
+                        // the reader has gone
+                    }
+                }
+            }
+        });
+        return input;
+    }
+
+    /**
+     * Closes the reading side of the pipes, so that their writers blocked on a full pipe fail instead of waiting
+     * forever for a reader which has gone.
+     */
+    private static void closePipes(final Queue<InputStream> pipes) {
+        for (InputStream pipe = pipes.poll(); pipe != null; pipe = pipes.poll()) {
+            try {
+                pipe.close();
+            } catch (IOException ignored) {
+                // closing the reading side of a pipe doesn't fail
+            }
+        }
+    }
+
+    private static Throwable unwrap(final Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    @Override
+    public void setCredentials(final String username, final String password) {
+        final String credentials = username + ":" + password;
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public void setMaxConnections(final int maxConnections) {
+        Validate.isTrue(maxConnections > 0, "maxConnections must be positive");
+        synchronized (limitLock) {
+            this.maxConnections = maxConnections;
+        }
+        dispatchWaiting();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        synchronized (limitLock) {
+            return maxConnections;
+        }
+    }
+
+    /**
+     * @return number of requests being executed whose response hasn't been released yet
+     */
+    @Override
+    public int getConnectionsInPool() {
+        synchronized (limitLock) {
+            return executingRequests;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (limitLock) {
+            if (!waitingRequests.isEmpty()) {
+                logger.warn("action=webdav_transport status=shutdown waiting_requests={}", waitingRequests.size());
+            }
+        }
+    }
+
+    private final class JdkResponse implements TransportResponse {
+        private final HttpResponse<InputStream> response;
+        private boolean released;
+
+        JdkResponse(final HttpResponse<InputStream> response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getHeader(final String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public String getCookie(final String name) {
+            final HttpHeaders headers = response.headers();
+            for (String setCookie : headers.allValues("Set-Cookie")) {
+                for (HttpCookie cookie : HttpCookie.parse(setCookie)) {
+                    if (name.equals(cookie.getName())) {
+                        return cookie.getValue();
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return response.body();
+        }
+
+        @Override
+        public void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            final InputStream body = response.body();
+            try {
+                // read the rest of a short body so that the connection can be reused
+                ResponseBodies.drain(body);
+            } catch (IOException e) {
+                logger.debug("action=webdav_transport status=drain_error", e);
+            } finally {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+                releaseSlot();
+            }
+        }
+    }
+
+    private static final class CookieHeader {
+        private final Map<String, String> cookies;
+        private final String header;
+
+        CookieHeader(final Map<String, String> cookies, final String header) {
+            this.cookies = cookies;
+            this.header = header;
+        }
+    }
+}
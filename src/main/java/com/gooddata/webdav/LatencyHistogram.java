@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets. Recording a value costs a few atomic increments
+ * and allocates nothing; percentiles are approximated by the upper bound of the bucket (at most 2x the real value).
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 48;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records single duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(nanos, 0) / 1000;
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        final long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / (n * 1000000.0);
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return approximate latency in milliseconds below which {@code percentile} percent of recorded values lie
+     */
+    public double getPercentileMillis(final double percentile) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(n * Math.min(Math.max(percentile, 0), 100) / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank && seen > 0) {
+                // bucket N holds values in [2^(N-1), 2^N) microseconds
+                return Math.min((1L << bucket) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+}
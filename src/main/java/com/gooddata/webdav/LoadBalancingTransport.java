@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link WebDavTransport} spreading requests over several equivalent endpoints, e.g. nodes of one WebDAV storage or
+ * of GDC rest api (for {@link WebDavSstAuthenticator}). Directories created and temporary tokens obtained through one
+ * endpoint must be valid on the others.
+ * <p>
+ * Every request goes to the endpoint chosen by the {@link Selection selection strategy} among endpoints which are not
+ * ejected. Endpoints are checked passively - an endpoint failing with {@link IOException} or 5xx status
+ * {@link #setEjectionThreshold(int) several times} in a row is ejected for the
+ * {@link #setEjectionMillis(long) ejection time}, prolonged with every repeated ejection - and optionally actively by
+ * {@link #startHealthChecks(String, long) periodic requests}, which also return recovered endpoints back early.
+ * If all endpoints are ejected, the one whose ejection ends first is used.
+ * <p>
+ * Idempotent requests failing with {@link IOException} or with 502, 503 or 504 status are sent again to another
+ * endpoint right away, provided their body is repeatable. The failover happens within one call of the transport, so
+ * it multiplies with the {@link WebDavUploader#setRetryPolicy(RetryPolicy) retry policy} of the uploader: every
+ * attempt of the uploader tries each endpoint at most once, i.e. a request is sent at most
+ * {@code maxAttempts * endpoints} times, and the uploader waits for its retry delay only after all the endpoints have
+ * failed. {@link #setFailover(boolean) Disable the failover} to leave retries to the retry policy only; failing
+ * endpoints are ejected either way.
+ */
+public class LoadBalancingTransport implements WebDavTransport {
+
+    /** How is the endpoint for a request chosen. */
+    public enum Selection {
+        /** Endpoint with the fewest requests in progress. */
+        LEAST_OUTSTANDING,
+        /** Endpoint with the lowest average latency multiplied by the number of requests in progress. */
+        LATENCY_WEIGHTED
+    }
+
+    public static final int DEFAULT_EJECTION_THRESHOLD = 3;
+    public static final long DEFAULT_EJECTION_MILLIS = 30 * 1000L;
+
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+    /** Weight of the last request in the moving average of latency. */
+    private static final double LATENCY_DECAY = 0.2;
+
+    private static final ScheduledExecutorService HEALTH_CHECKER = Executors.newSingleThreadScheduledExecutor(
+            UploadThreads.newThreadFactory("webdav-health-check-", false));
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final List<Endpoint> endpoints;
+    private volatile Selection selection = Selection.LEAST_OUTSTANDING;
+    private volatile int ejectionThreshold = DEFAULT_EJECTION_THRESHOLD;
+    private volatile long ejectionMillis = DEFAULT_EJECTION_MILLIS;
+    private volatile boolean failover = true;
+    private ScheduledFuture<?> healthChecks;
+
+    /**
+     * Creates new transport.
+     *
+     * @param endpoints transports connected to the individual endpoints
+     */
+    public LoadBalancingTransport(final List<? extends WebDavTransport> endpoints) {
+        Validate.notEmpty(endpoints, "endpoints must not be empty");
+        Validate.noNullElements(endpoints, "endpoints must not contain null");
+        final List<Endpoint> list = new ArrayList<Endpoint>(endpoints.size());
+        for (WebDavTransport transport : endpoints) {
+            list.add(new Endpoint(transport));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public TransportResponse execute(final TransportRequest request) throws IOException {
+        final Set<Endpoint> tried = new HashSet<Endpoint>();
+        for (;;) {
+            final Endpoint endpoint = select(tried);
+            tried.add(endpoint);
+            final long start = endpoint.start();
+            final TransportResponse response;
+            try {
+                response = endpoint.transport.execute(request);
+            } catch (IOException e) {
+                endpoint.fail();
+                if (canFailOver(request, tried)) {
+                    logger.info("action=webdav_failover status=io_error endpoint={} request={} error={}",
+                            new Object[] {endpoint, request, e.toString()});
+                    continue;
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                endpoint.abandon();
+                throw e;
+            }
+            final TransportResponse tracked = endpoint.track(start, response);
+            if (isFailOverStatus(response.getStatusCode()) && canFailOver(request, tried)) {
+                logger.info("action=webdav_failover status=error_status endpoint={} request={} status_code={}",
+                        new Object[] {endpoint, request, response.getStatusCode()});
+                tracked.release();
+                continue;
+            }
+            return tracked;
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(final TransportRequest request) {
+        final CompletableFuture<TransportResponse> result = new CompletableFuture<TransportResponse>();
+        executeAsync(request, new HashSet<Endpoint>(), result);
+        return result;
+    }
+
+    private void executeAsync(final TransportRequest request, final Set<Endpoint> tried,
+            final CompletableFuture<TransportResponse> result) {
+        final Endpoint endpoint = select(tried);
+        tried.add(endpoint);
+        final long start = endpoint.start();
+        final CompletableFuture<TransportResponse> response;
+        try {
+            response = endpoint.transport.executeAsync(request);
+        } catch (RuntimeException e) {
+            endpoint.abandon();
+            result.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete(new BiConsumer<TransportResponse, Throwable>() {
+            @Override
+            public void accept(final TransportResponse response, final Throwable failure) {
+                if (failure != null) {
+                    endpoint.fail();
+                    if (canFailOver(request, tried)) {
+                        executeAsync(request, tried, result);
+                    } else {
+                        result.completeExceptionally(failure);
+                    }
+                    return;
+                }
+                final TransportResponse tracked = endpoint.track(start, response);
+                if (isFailOverStatus(response.getStatusCode()) && canFailOver(request, tried)) {
+                    tracked.release();
+                    executeAsync(request, tried, result);
+                } else if (!result.complete(tracked)) {
+                    // cancelled in the meantime
+                    tracked.release();
+                }
+            }
+        });
+    }
+
+    private boolean canFailOver(final TransportRequest request, final Set<Endpoint> tried) {
+        return failover && tried.size() < endpoints.size() && request.isIdempotent() && !request.isAborted()
+                && (request.getEntity() == null || request.getEntity().isRepeatable());
+    }
+
+    private static boolean isFailOverStatus(final int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Chooses the best endpoint which hasn't been tried yet and isn't ejected; if all of them are ejected, the one
+     * whose ejection ends first.
+     */
+    private Endpoint select(final Set<Endpoint> tried) {
+        final long now = System.currentTimeMillis();
+        final int size = endpoints.size();
+        // random start so that ties are spread over the endpoints
+        final int offset = ThreadLocalRandom.current().nextInt(size);
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        Endpoint leastEjected = null;
+        for (int i = 0; i < size; i++) {
+            final Endpoint endpoint = endpoints.get((offset + i) % size);
+            if (tried.contains(endpoint)) {
+                continue;
+            }
+            if (endpoint.ejectedUntil > now) {
+                if (leastEjected == null || endpoint.ejectedUntil < leastEjected.ejectedUntil) {
+                    leastEjected = endpoint;
+                }
+                continue;
+            }
+            final double score = endpoint.score(selection);
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        if (leastEjected != null) {
+            return leastEjected;
+        }
+        throw new IllegalStateException("No endpoint left to try");
+    }
+
+    /**
+     * Starts periodic health checks of all the endpoints: every endpoint is sent {@code HEAD path} and is healthy
+     * if it responds with status lower than 500. Ejected endpoints which pass the check are returned back.
+     *
+     * @param path path to check, e.g. /uploads or /gdc/ping
+     * @param intervalMillis interval between the checks
+     */
+    public synchronized void startHealthChecks(final String path, final long intervalMillis) {
+        Validate.notEmpty(path, "path must not be empty");
+        Validate.isTrue(intervalMillis > 0, "intervalMillis must be positive");
+        stopHealthChecks();
+        healthChecks = HEALTH_CHECKER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Endpoint endpoint : endpoints) {
+                    checkHealth(endpoint, path);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopHealthChecks() {
+        if (healthChecks != null) {
+            healthChecks.cancel(false);
+            healthChecks = null;
+        }
+    }
+
+    private void checkHealth(final Endpoint endpoint, final String path) {
+        boolean healthy;
+        try {
+            final TransportResponse response = endpoint.transport.execute(new TransportRequest("HEAD", path));
+            try {
+                healthy = response.getStatusCode() < 500;
+            } finally {
+                response.release();
+            }
+        } catch (IOException e) {
+            healthy = false;
+        } catch (RuntimeException e) {
+            logger.warn("action=webdav_health_check status=error endpoint=" + endpoint, e);
+            healthy = false;
+        }
+        if (healthy) {
+            endpoint.recover();
+        } else {
+            endpoint.recordFailure();
+        }
+    }
+
+    /**
+     * Sets number of consecutive failures after which an endpoint is ejected.
+     *
+     * @param ejectionThreshold the number of failures, {@link #DEFAULT_EJECTION_THRESHOLD} by default
+     */
+    public void setEjectionThreshold(final int ejectionThreshold) {
+        Validate.isTrue(ejectionThreshold > 0, "ejectionThreshold must be positive");
+        this.ejectionThreshold = ejectionThreshold;
+    }
+
+    public int getEjectionThreshold() {
+        return ejectionThreshold;
+    }
+
+    /**
+     * Sets how long is a failing endpoint not used; the time is multiplied by the number of consecutive ejections
+     * (up to ten times).
+     *
+     * @param ejectionMillis the time in milliseconds, {@link #DEFAULT_EJECTION_MILLIS} by default
+     */
+    public void setEjectionMillis(final long ejectionMillis) {
+        Validate.isTrue(ejectionMillis > 0, "ejectionMillis must be positive");
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    public long getEjectionMillis() {
+        return ejectionMillis;
+    }
+
+    /**
+     * Enables or disables sending a failed idempotent request again to another endpoint within the same call.
+     *
+     * @param failover whether to fail over, true by default
+     */
+    public void setFailover(final boolean failover) {
+        this.failover = failover;
+    }
+
+    public boolean isFailover() {
+        return failover;
+    }
+
+    public void setSelection(final Selection selection) {
+        Validate.notNull(selection, "selection must not be null");
+        this.selection = selection;
+    }
+
+    public Selection getSelection() {
+        return selection;
+    }
+
+    /**
+     * @return transports of the endpoints
+     */
+    public List<WebDavTransport> getEndpoints() {
+        final List<WebDavTransport> transports = new ArrayList<WebDavTransport>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            transports.add(endpoint.transport);
+        }
+        return transports;
+    }
+
+    /**
+     * @return true if the endpoint is currently ejected
+     */
+    public boolean isEjected(final WebDavTransport transport) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.transport == transport) {
+                return endpoint.ejectedUntil > System.currentTimeMillis();
+            }
+        }
+        throw new IllegalArgumentException("Unknown endpoint " + transport);
+    }
+
+    @Override
+    public void setCredentials(final String username, final String password) {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.transport.setCredentials(username, password);
+        }
+    }
+
+    /**
+     * @return host of the first endpoint
+     */
+    @Override
+    public String getHost() {
+        return endpoints.get(0).transport.getHost();
+    }
+
+    /**
+     * Sets maximum number of connections to every endpoint.
+     */
+    @Override
+    public void setMaxConnections(final int maxConnections) {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.transport.setMaxConnections(maxConnections);
+        }
+    }
+
+    /**
+     * @return the lowest maximum number of connections of the endpoints
+     */
+    @Override
+    public int getMaxConnections() {
+        int min = Integer.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            min = Math.min(min, endpoint.transport.getMaxConnections());
+        }
+        return min;
+    }
+
+    @Override
+    public int getConnectionsInPool() {
+        int sum = 0;
+        for (Endpoint endpoint : endpoints) {
+            sum += endpoint.transport.getConnectionsInPool();
+        }
+        return sum;
+    }
+
+    @Override
+    public void shutdown() {
+        stopHealthChecks();
+        for (Endpoint endpoint : endpoints) {
+            endpoint.transport.shutdown();
+        }
+    }
+
+    private final class Endpoint {
+        private final WebDavTransport transport;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        /** Moving average of the time to response headers in nanoseconds, 0 until the first response. */
+        private volatile double averageLatency;
+        private int consecutiveFailures;
+        private int consecutiveEjections;
+        private volatile long ejectedUntil;
+
+        Endpoint(final WebDavTransport transport) {
+            this.transport = transport;
+        }
+
+        double score(final Selection selection) {
+            final int inProgress = outstanding.get();
+            if (selection == Selection.LEAST_OUTSTANDING) {
+                return inProgress;
+            }
+            // unknown latency gets the endpoint tried
+            return averageLatency * (inProgress + 1);
+        }
+
+        long start() {
+            outstanding.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Wraps the response so that the request is counted as outstanding until it is released.
+         */
+        TransportResponse track(final long start, final TransportResponse response) {
+            recordLatency(System.nanoTime() - start);
+            if (response.getStatusCode() >= 500) {
+                recordFailure();
+            } else {
+                recordSuccess();
+            }
+            return new TrackedResponse(this, response);
+        }
+
+        /**
+         * The request failed without response.
+         */
+        void fail() {
+            outstanding.decrementAndGet();
+            recordFailure();
+        }
+
+        /**
+         * Ends the request which failed without a fault of the endpoint, e.g. because of a programming error.
+         */
+        void abandon() {
+            outstanding.decrementAndGet();
+        }
+
+        private void recordLatency(final long latency) {
+            final double average = averageLatency;
+            averageLatency = average == 0 ? latency : average + LATENCY_DECAY * (latency - average);
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            consecutiveEjections = 0;
+        }
+
+        synchronized void recordFailure() {
+            if (++consecutiveFailures < ejectionThreshold) {
+                return;
+            }
+            consecutiveFailures = 0;
+            consecutiveEjections = Math.min(consecutiveEjections + 1, MAX_EJECTION_MULTIPLIER);
+            ejectedUntil = System.currentTimeMillis() + ejectionMillis * consecutiveEjections;
+            logger.warn("action=webdav_endpoint_ejected endpoint={} ejection_millis={}", this,
+                    ejectionMillis * consecutiveEjections);
+        }
+
+        synchronized void recover() {
+            consecutiveFailures = 0;
+            if (ejectedUntil > System.currentTimeMillis()) {
+                ejectedUntil = 0;
+                logger.info("action=webdav_endpoint_recovered endpoint={}", this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return transport.getHost();
+        }
+    }
+
+    private static final class TrackedResponse implements TransportResponse {
+        private final Endpoint endpoint;
+        private final TransportResponse delegate;
+        private boolean released;
+
+        TrackedResponse(final Endpoint endpoint, final TransportResponse delegate) {
+            this.endpoint = endpoint;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public String getHeader(final String name) {
+            return delegate.getHeader(name);
+        }
+
+        @Override
+        public String getCookie(final String name) {
+            return delegate.getCookie(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return delegate.getBody();
+        }
+
+        @Override
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                endpoint.outstanding.decrementAndGet();
+            }
+            delegate.release();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.util.URIUtil;
+
+/**
+ * Streaming (StAX) parser of WebDAV multistatus responses. Every {@code <response>} element is converted to
+ * {@link RemoteResource} and passed to {@link RemoteResourceHandler} as soon as it's parsed, so the memory used by
+ * the parser is bounded by a single entry regardless of the size of the response.
+ * <p>
+ * Only properties from {@code <propstat>} elements with status 200 are taken into account.
+ */
+final class MultiStatusParser {
+
+    private static final String DAV_NAMESPACE = "DAV:";
+    private static final String DIRECTORY_SEPARATOR = "/";
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /** Matches status line of a successful propstat, e.g. "HTTP/1.1 200 OK". */
+    private static final Pattern OK_STATUS = Pattern.compile("\\s*\\S+\\s+200(\\s.*)?", Pattern.DOTALL);
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private MultiStatusParser() {
+    }
+
+    /**
+     * Parses given multistatus response.
+     *
+     * @param response response body, not closed by the parser
+     * @param handler handler receiving parsed resources
+     * @return number of parsed resources
+     * @throws XMLStreamException if the response is not a valid XML
+     */
+    static int parse(final InputStream response, final RemoteResourceHandler handler) throws XMLStreamException {
+        final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(response);
+        try {
+            int count = 0;
+            boolean inPropstat = false;
+            // values of the current response
+            String href = null;
+            boolean collection = false;
+            String contentLength = null;
+            String lastModified = null;
+            String etag = null;
+            // values of the current propstat, applied to the response only if its status is 200
+            boolean propstatCollection = false;
+            String propstatContentLength = null;
+            String propstatLastModified = null;
+            String propstatEtag = null;
+            String propstatStatus = null;
+
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+                    continue;
+                }
+                if (!DAV_NAMESPACE.equals(reader.getNamespaceURI())) {
+                    continue;
+                }
+                final String name = reader.getLocalName();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("response".equals(name)) {
+                        href = null;
+                        collection = false;
+                        contentLength = null;
+                        lastModified = null;
+                        etag = null;
+                    } else if ("propstat".equals(name)) {
+                        inPropstat = true;
+                        propstatCollection = false;
+                        propstatContentLength = null;
+                        propstatLastModified = null;
+                        propstatEtag = null;
+                        propstatStatus = null;
+                    } else if ("href".equals(name) && !inPropstat) {
+                        href = reader.getElementText().trim();
+                    } else if ("status".equals(name) && inPropstat) {
+                        propstatStatus = reader.getElementText();
+                    } else if ("collection".equals(name) && inPropstat) {
+                        propstatCollection = true;
+                    } else if ("getcontentlength".equals(name) && inPropstat) {
+                        propstatContentLength = reader.getElementText();
+                    } else if ("getlastmodified".equals(name) && inPropstat) {
+                        propstatLastModified = reader.getElementText();
+                    } else if ("getetag".equals(name) && inPropstat) {
+                        propstatEtag = reader.getElementText().trim();
+                    }
+                } else if ("propstat".equals(name)) {
+                    inPropstat = false;
+                    if (isOk(propstatStatus)) {
+                        collection |= propstatCollection;
+                        contentLength = propstatContentLength != null ? propstatContentLength : contentLength;
+                        lastModified = propstatLastModified != null ? propstatLastModified : lastModified;
+                        etag = propstatEtag != null ? propstatEtag : etag;
+                    }
+                } else if ("response".equals(name) && href != null) {
+                    handler.handle(new RemoteResource(href, nameOf(href),
+                            collection || href.endsWith(DIRECTORY_SEPARATOR),
+                            parseContentLength(contentLength), parseLastModified(lastModified), etag));
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isOk(final String status) {
+        return status != null && OK_STATUS.matcher(status).matches();
+    }
+
+    static long parseContentLength(final String contentLength) {
+        if (contentLength == null) {
+            return RemoteResource.UNKNOWN;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return RemoteResource.UNKNOWN;
+        }
+    }
+
+    static long parseLastModified(final String lastModified) {
+        if (lastModified == null) {
+            return RemoteResource.UNKNOWN;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(lastModified.trim()).getTime();
+        } catch (ParseException e) {
+            return RemoteResource.UNKNOWN;
+        }
+    }
+
+    /**
+     * @return decoded last segment of given href
+     */
+    static String nameOf(final String href) {
+        String path = href;
+        while (path.endsWith(DIRECTORY_SEPARATOR)) {
+            path = path.substring(0, path.length() - 1);
+        }
+        final String name = path.substring(path.lastIndexOf(DIRECTORY_SEPARATOR) + 1);
+        try {
+            return URIUtil.decode(name, "UTF-8");
+        } catch (URIException e) {
+            return name;
+        }
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Manifest of a file uploaded in parts by {@link WebDavUploader#transferLargeFile(java.io.File, String, String, String)}.
+ * The manifest is uploaded as JSON after all the parts, so its presence means that the set of parts is complete:
+ * <pre>
+ * {"file":"data.csv","size":150,"partSize":100,"checksumAlgorithm":"SHA-256","parts":[
+ *   {"name":"data.csv.part0000","offset":0,"size":100,"checksum":"..."},
+ *   {"name":"data.csv.part0001","offset":100,"size":50,"checksum":"..."}]}
+ * </pre>
+ */
+public class MultipartManifest {
+
+    private final String fileName;
+    private final long size;
+    private final long partSize;
+    private final String checksumAlgorithm;
+    private final List<UploadPart> parts;
+
+    public MultipartManifest(final String fileName, final long size, final long partSize,
+            final String checksumAlgorithm, final List<UploadPart> parts) {
+        Validate.notEmpty(fileName, "fileName must be defined");
+        Validate.notNull(parts, "parts must be defined");
+        this.fileName = fileName;
+        this.size = size;
+        this.partSize = partSize;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.parts = Collections.unmodifiableList(new ArrayList<UploadPart>(parts));
+    }
+
+    /**
+     * @return remote name of the original file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * @return parts in the order of their offsets
+     */
+    public List<UploadPart> getParts() {
+        return parts;
+    }
+
+    public String toJson() {
+        final StringBuilder json = new StringBuilder(128 + parts.size() * 128);
+        json.append("{\"file\":");
+        appendString(json, fileName);
+        json.append(",\"size\":").append(size)
+                .append(",\"partSize\":").append(partSize)
+                .append(",\"checksumAlgorithm\":");
+        appendString(json, checksumAlgorithm);
+        json.append(",\"parts\":[");
+        for (int i = 0; i < parts.size(); i++) {
+            final UploadPart part = parts.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":");
+            appendString(json, part.getName());
+            json.append(",\"offset\":").append(part.getOffset())
+                    .append(",\"size\":").append(part.getSize())
+                    .append(",\"checksum\":");
+            appendString(json, part.getChecksum());
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(final StringBuilder json, final String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return "MultipartManifest{fileName=" + fileName + ", size=" + size + ", parts=" + parts.size() + "}";
+    }
+}
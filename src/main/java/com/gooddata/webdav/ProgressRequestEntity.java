@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * {@link RequestEntity} reporting bytes written by another entity to an {@link UploadHandle} and failing the write
+ * once the handle is cancelled. Writes are split into chunks of at most {@link #MAX_CHUNK} bytes, so that progress
+ * and cancellation are noticed even when the delegate writes its whole content at once.
+ */
+class ProgressRequestEntity implements RequestEntity {
+
+    static final int MAX_CHUNK = 64 * 1024;
+
+    private final RequestEntity delegate;
+    private final UploadHandle handle;
+
+    ProgressRequestEntity(final RequestEntity delegate, final UploadHandle handle) {
+        this.delegate = delegate;
+        this.handle = handle;
+    }
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        checkCancelled();
+        handle.bodyStarted();
+        delegate.writeRequest(new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                checkCancelled();
+                out.write(b);
+                handle.bytesWritten(1);
+            }
+
+            @Override
+            public void write(final byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    checkCancelled();
+                    final int chunk = Math.min(length, MAX_CHUNK);
+                    out.write(bytes, offset, chunk);
+                    handle.bytesWritten(chunk);
+                    offset += chunk;
+                    length -= chunk;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the connection stream belongs to the transport
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Wraps the content of the delegate read by a transport instead of {@link #writeRequest(OutputStream)}.
+     */
+    InputStream report(final InputStream content) throws IOException {
+        checkCancelled();
+        handle.bodyStarted();
+        return new FilterInputStream(content) {
+            @Override
+            public int read() throws IOException {
+                checkCancelled();
+                final int b = in.read();
+                if (b != -1) {
+                    handle.bytesWritten(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                checkCancelled();
+                final int read = in.read(bytes, offset, Math.min(length, MAX_CHUNK));
+                if (read > 0) {
+                    handle.bytesWritten(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    private void checkCancelled() throws IOException {
+        if (handle.isCancelled()) {
+            throw new InterruptedIOException("Upload of " + handle.getRemoteFileName() + " has been cancelled");
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return delegate.isRepeatable();
+    }
+
+    @Override
+    public long getContentLength() {
+        return delegate.getContentLength();
+    }
+
+    @Override
+    public String getContentType() {
+        return delegate.getContentType();
+    }
+
+    RequestEntity getDelegate() {
+        return delegate;
+    }
+
+    UploadHandle getHandle() {
+        return handle;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.lang.Validate;
+
+/**
+ * {@link RequestEntity} writing another entity no faster than allowed by given {@link BandwidthLimiter}s, e.g. the
+ * limiter of the uploader and a limiter shared by all uploaders. Writes are split into chunks of at most
+ * {@link BandwidthLimiter#MAX_GRANT} bytes and each chunk waits for all the limiters; nothing is allocated per write.
+ */
+public class RateLimitedRequestEntity implements RequestEntity {
+
+    private final RequestEntity delegate;
+    private final int weight;
+    private final BandwidthLimiter[] limiters;
+
+    /**
+     * Creates new entity.
+     *
+     * @param delegate entity providing the content
+     * @param weight weight of the transfer in fair sharing of the limiters
+     * @param limiters limiters to obey
+     */
+    public RateLimitedRequestEntity(final RequestEntity delegate, final int weight,
+            final BandwidthLimiter... limiters) {
+        Validate.notNull(delegate, "delegate must be defined");
+        Validate.isTrue(weight > 0, "weight must be positive");
+        Validate.noNullElements(limiters, "limiters must not contain null");
+        this.delegate = delegate;
+        this.weight = weight;
+        this.limiters = limiters.clone();
+    }
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        final BandwidthLimiter.Transfer[] transfers = new BandwidthLimiter.Transfer[limiters.length];
+        for (int i = 0; i < limiters.length; i++) {
+            transfers[i] = limiters[i].newTransfer(weight);
+        }
+        delegate.writeRequest(new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                acquire(transfers, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(final byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    final int chunk = Math.min(length, BandwidthLimiter.MAX_GRANT);
+                    acquire(transfers, chunk);
+                    out.write(bytes, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the connection stream belongs to the transport
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Wraps the content of the delegate read by a transport instead of {@link #writeRequest(OutputStream)}; every read
+     * chunk is held back until the limiters grant it.
+     */
+    InputStream limit(final InputStream content) {
+        final BandwidthLimiter.Transfer[] transfers = new BandwidthLimiter.Transfer[limiters.length];
+        for (int i = 0; i < limiters.length; i++) {
+            transfers[i] = limiters[i].newTransfer(weight);
+        }
+        return new FilterInputStream(content) {
+            @Override
+            public int read() throws IOException {
+                final int b = in.read();
+                if (b != -1) {
+                    acquire(transfers, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                final int read = in.read(bytes, offset, Math.min(length, BandwidthLimiter.MAX_GRANT));
+                if (read > 0) {
+                    acquire(transfers, read);
+                }
+                return read;
+            }
+        };
+    }
+
+    private void acquire(final BandwidthLimiter.Transfer[] transfers, final int bytes) throws IOException {
+        for (int i = 0; i < limiters.length; i++) {
+            limiters[i].acquire(transfers[i], bytes);
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return delegate.isRepeatable();
+    }
+
+    @Override
+    public long getContentLength() {
+        return delegate.getContentLength();
+    }
+
+    @Override
+    public String getContentType() {
+        return delegate.getContentType();
+    }
+
+    public RequestEntity getDelegate() {
+        return delegate;
+    }
+}
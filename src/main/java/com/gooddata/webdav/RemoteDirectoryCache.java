@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Bounded cache of remote WebDAV directories which are known to exist.
+ * <p>
+ * {@link WebDavUploader} consults the cache before issuing MKCOL requests so that repeated uploads into the same
+ * directories do not pay one extra round trip per path segment. Entries expire after the configured time to live
+ * and the least recently used entries are evicted once the cache reaches its maximum size.
+ * <p>
+ * The cache is thread safe and may be shared by several {@link WebDavUploader} instances talking to the same WebDAV
+ * host.
+ */
+public class RemoteDirectoryCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000L;
+
+    private static final String DIRECTORY_SEPARATOR = "/";
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<String, Long> directories;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /** @see #RemoteDirectoryCache(int, long) */
+    public RemoteDirectoryCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Creates new cache.
+     *
+     * @param maxSize maximum number of directories held by the cache
+     * @param ttlMillis how long (in milliseconds) is a cached directory considered to exist
+     */
+    public RemoteDirectoryCache(final int maxSize, final long ttlMillis) {
+        Validate.isTrue(maxSize > 0, "maxSize must be positive");
+        Validate.isTrue(ttlMillis > 0, "ttlMillis must be positive");
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.directories = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > RemoteDirectoryCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Checks whether given directory is known to exist. Every call is counted either as a hit or as a miss.
+     *
+     * @param directory remote directory path
+     * @return true if the directory has been created (or found existing) within the time to live
+     */
+    public boolean contains(final String directory) {
+        final boolean found;
+        synchronized (directories) {
+            final Long expiresAt = directories.get(directory);
+            if (expiresAt != null && expiresAt < currentTimeMillis()) {
+                directories.remove(directory);
+                found = false;
+            } else {
+                found = expiresAt != null;
+            }
+        }
+        if (found) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return found;
+    }
+
+    /**
+     * Marks given directory as existing.
+     *
+     * @param directory remote directory path
+     */
+    public void add(final String directory) {
+        Validate.notEmpty(directory, "directory must not be empty");
+        synchronized (directories) {
+            directories.put(directory, currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    /**
+     * Removes given directory and all its cached subdirectories from the cache.
+     *
+     * @param directory remote directory path
+     */
+    public void invalidate(final String directory) {
+        final String prefix = directory + DIRECTORY_SEPARATOR;
+        synchronized (directories) {
+            for (Iterator<String> it = directories.keySet().iterator(); it.hasNext(); ) {
+                final String cached = it.next();
+                if (cached.equals(directory) || cached.startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all directories from the cache. Hit and miss counters are preserved.
+     */
+    public void clear() {
+        synchronized (directories) {
+            directories.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (directories) {
+            return directories.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteDirectoryCache [size=" + size() + ", hits=" + hitCount + ", misses=" + missCount + "]";
+    }
+}
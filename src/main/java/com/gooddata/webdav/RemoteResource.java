@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Remote WebDAV resource (file or directory) as listed by PROPFIND.
+ */
+public final class RemoteResource {
+
+    /** Value of unknown content length or last modification time. */
+    public static final long UNKNOWN = -1;
+
+    private final String href;
+    private final String name;
+    private final boolean collection;
+    private final long contentLength;
+    private final long lastModified;
+    private final String etag;
+
+    /**
+     * Creates new remote resource.
+     *
+     * @param href href of the resource as returned by the server
+     * @param name decoded name of the resource (last segment of the href)
+     * @param collection whether the resource is a directory
+     * @param contentLength length in bytes or {@link #UNKNOWN}
+     * @param lastModified last modification time in milliseconds since epoch or {@link #UNKNOWN}
+     * @param etag entity tag (optional)
+     */
+    public RemoteResource(final String href, final String name, final boolean collection, final long contentLength,
+            final long lastModified, final String etag) {
+        Validate.notNull(href, "href must not be null");
+        Validate.notNull(name, "name must not be null");
+        this.href = href;
+        this.name = name;
+        this.collection = collection;
+        this.contentLength = contentLength;
+        this.lastModified = lastModified;
+        this.etag = etag;
+    }
+
+    public String getHref() {
+        return href;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isCollection() {
+        return collection;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the entity tag or null if the server didn't return it
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteResource [href=" + href + ", collection=" + collection + ", contentLength=" + contentLength
+                + ", lastModified=" + lastModified + ", etag=" + etag + "]";
+    }
+}
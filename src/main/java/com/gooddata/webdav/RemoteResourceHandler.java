@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * Callback receiving remote resources one by one as they are parsed from a PROPFIND response.
+ * @see WebDavUploader#listRemoteDirectory(String, RemoteResourceHandler)
+ */
+public interface RemoteResourceHandler {
+
+    /**
+     * Handles single remote resource. Runtime exceptions thrown by the handler abort the listing.
+     *
+     * @param resource the resource
+     */
+    void handle(RemoteResource resource);
+}
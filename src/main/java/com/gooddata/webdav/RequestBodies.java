@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+
+/**
+ * Opens request bodies for transports which pull the body instead of letting the entity write it, so that no helper
+ * thread has to push {@link RequestEntity#writeRequest(java.io.OutputStream)} through a pipe.
+ * <p>
+ * Files, streams and in-memory bodies are readable, and so are the digesting, progress and rate limiting wrappers
+ * of a readable entity; reading them has the same effect as writing them (the digest is computed, progress reported
+ * and bandwidth limited). Other entities, e.g. {@link CompressingRequestEntity}, can only be written.
+ */
+final class RequestBodies {
+
+    private RequestBodies() {
+    }
+
+    /**
+     * @return whether {@link #open(RequestEntity)} can be used for the entity
+     */
+    static boolean isReadable(final RequestEntity entity) {
+        if (entity instanceof DigestingRequestEntity) {
+            return isReadable(((DigestingRequestEntity) entity).getDelegate());
+        }
+        if (entity instanceof ProgressRequestEntity) {
+            return isReadable(((ProgressRequestEntity) entity).getDelegate());
+        }
+        if (entity instanceof RateLimitedRequestEntity) {
+            return isReadable(((RateLimitedRequestEntity) entity).getDelegate());
+        }
+        return entity instanceof FileChannelRequestEntity || entity instanceof StreamingRequestEntity
+                || entity instanceof ByteArrayRequestEntity || entity instanceof StringRequestEntity;
+    }
+
+    /**
+     * Opens the body of a {@link #isReadable(RequestEntity) readable} entity.
+     *
+     * @return stream of the body
+     * @throws IOException if the body cannot be opened
+     * @throws IllegalArgumentException if the entity is not readable
+     */
+    static InputStream open(final RequestEntity entity) throws IOException {
+        if (entity instanceof DigestingRequestEntity) {
+            final DigestingRequestEntity digesting = (DigestingRequestEntity) entity;
+            return digesting.digest(open(digesting.getDelegate()));
+        }
+        if (entity instanceof ProgressRequestEntity) {
+            final ProgressRequestEntity progress = (ProgressRequestEntity) entity;
+            return progress.report(open(progress.getDelegate()));
+        }
+        if (entity instanceof RateLimitedRequestEntity) {
+            final RateLimitedRequestEntity rateLimited = (RateLimitedRequestEntity) entity;
+            return rateLimited.limit(open(rateLimited.getDelegate()));
+        }
+        if (entity instanceof FileChannelRequestEntity) {
+            return ((FileChannelRequestEntity) entity).open();
+        }
+        if (entity instanceof StreamingRequestEntity) {
+            return ((StreamingRequestEntity) entity).consume();
+        }
+        if (entity instanceof ByteArrayRequestEntity) {
+            return new ByteArrayInputStream(((ByteArrayRequestEntity) entity).getContent());
+        }
+        if (entity instanceof StringRequestEntity) {
+            return new ByteArrayInputStream(toBytes((StringRequestEntity) entity));
+        }
+        throw new IllegalArgumentException("Body of " + entity.getClass().getName() + " can only be written");
+    }
+
+    static byte[] toBytes(final StringRequestEntity entity) throws IOException {
+        final String charset = entity.getCharset();
+        return charset != null ? entity.getContent().getBytes(charset)
+                : entity.getContent().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the unread rest of response bodies before their connection is released, so that the connection can be
+ * reused. Drained bodies are small error or multi-status payloads, so the bytes are discarded through a small buffer
+ * allocated per call rather than one kept per thread; bodies longer than {@link #MAX_DRAINED_BYTES} are left unread
+ * and their connection should be closed instead.
+ */
+final class ResponseBodies {
+
+    static final int MAX_DRAINED_BYTES = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 2 * 1024;
+
+    private ResponseBodies() {
+    }
+
+    /**
+     * Reads and discards at most {@link #MAX_DRAINED_BYTES} of the body.
+     *
+     * @param body the body, may be null
+     * @return true if the whole body has been read
+     */
+    static boolean drain(final InputStream body) throws IOException {
+        if (body == null) {
+            return true;
+        }
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int remaining = MAX_DRAINED_BYTES;
+        while (remaining > 0) {
+            final int read = body.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) {
+                return true;
+            }
+            remaining -= read;
+        }
+        return body.read() == -1;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Retry policy of idempotent WebDAV requests failing with {@link java.io.IOException} or a transient status
+ * (500, 502, 503, 504, 408, 429). Delay before attempt {@code n + 1} is drawn uniformly from
+ * {@code [0, min(maxDelay, initialDelay * multiplier^(n-1))]} ("full jitter"), so clients failing at the same moment
+ * don't retry in lockstep.
+ */
+public class RetryPolicy {
+
+    /** Policy which never retries. */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1);
+
+    /** 3 attempts, delays up to 200 ms and 400 ms. */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 200, 5000, 2);
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+
+    /**
+     * @param maxAttempts maximum number of attempts including the first one
+     * @param initialDelayMillis upper bound of the delay before the second attempt
+     * @param maxDelayMillis upper bound of any delay
+     * @param multiplier growth of the delay bound with every attempt
+     */
+    public RetryPolicy(final int maxAttempts, final long initialDelayMillis, final long maxDelayMillis,
+            final double multiplier) {
+        Validate.isTrue(maxAttempts > 0, "maxAttempts must be positive");
+        Validate.isTrue(initialDelayMillis >= 0, "initialDelayMillis must not be negative");
+        Validate.isTrue(maxDelayMillis >= initialDelayMillis, "maxDelayMillis must not be less than initialDelayMillis");
+        Validate.isTrue(multiplier >= 1, "multiplier must be at least 1");
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * @param statusCode HTTP status code
+     * @return true if the request may succeed when retried
+     */
+    public boolean isRetryableStatus(final int statusCode) {
+        switch (statusCode) {
+            case 408:
+            case 429:
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                // e.g. 501 Not Implemented or 505 HTTP Version Not Supported won't change
+                return false;
+        }
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting with 1
+     * @return delay in milliseconds before the next attempt
+     */
+    public long getDelayMillis(final int attempt) {
+        final double bound = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt - 1));
+        return bound < 1 ? 0 : ThreadLocalRandom.current().nextLong((long) bound + 1);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", initialDelayMillis=" + initialDelayMillis
+                + ", maxDelayMillis=" + maxDelayMillis + ", multiplier=" + multiplier + "}";
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs many small files destined for the same remote directory into zip archives, so that they are uploaded by one
+ * PUT instead of one request (or more) per file. The archive is streamed from the files when it's being uploaded,
+ * no temporary archive is created.
+ * <p>
+ * Files added for a remote directory are collected until their total size or count reaches the threshold, until
+ * the oldest of them has waited for the maximum delay, or until {@link #flush()} or {@link #close()} is called.
+ * The archive is then uploaded by the {@link WebDavUploader#getUploadScheduler() upload scheduler} of the uploader
+ * and the future returned for every packed file is completed once the archive has been uploaded.
+ */
+public class SmallFilePacker {
+
+    public static final long DEFAULT_MAX_ARCHIVE_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ARCHIVE_FILES = 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+    public static final String DEFAULT_ARCHIVE_PREFIX = "pack";
+
+    private static final String ARCHIVE_CONTENT_TYPE = "application/zip";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final WebDavUploader uploader;
+    private final long maxArchiveBytes;
+    private final int maxArchiveFiles;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            UploadThreads.newThreadFactory("webdav-packer-", false));
+    private final AtomicLong archiveSequence = new AtomicLong();
+
+    private final Object lock = new Object();
+    private final Map<String, Archive> pending = new HashMap<String, Archive>();
+    private boolean closed;
+    private volatile String archivePrefix = DEFAULT_ARCHIVE_PREFIX;
+
+    /** @see #SmallFilePacker(WebDavUploader, long, int, long) */
+    public SmallFilePacker(final WebDavUploader uploader) {
+        this(uploader, DEFAULT_MAX_ARCHIVE_BYTES, DEFAULT_MAX_ARCHIVE_FILES, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Creates new packer.
+     *
+     * @param uploader uploader of the archives
+     * @param maxArchiveBytes the archive is uploaded when the files in it have at least this many bytes
+     * @param maxArchiveFiles the archive is uploaded when it contains this many files
+     * @param maxDelayMillis the archive is uploaded at the latest this many milliseconds after its first file
+     *                       has been added
+     */
+    public SmallFilePacker(final WebDavUploader uploader, final long maxArchiveBytes, final int maxArchiveFiles,
+            final long maxDelayMillis) {
+        Validate.notNull(uploader, "uploader must not be null");
+        Validate.isTrue(maxArchiveBytes > 0, "maxArchiveBytes must be positive");
+        Validate.isTrue(maxArchiveFiles > 0, "maxArchiveFiles must be positive");
+        Validate.isTrue(maxDelayMillis > 0, "maxDelayMillis must be positive");
+        this.uploader = uploader;
+        this.maxArchiveBytes = maxArchiveBytes;
+        this.maxArchiveFiles = maxArchiveFiles;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Adds the file to the archive being collected for {@code remoteDir}. Adding a file with the same
+     * {@code entryName} as a file already waiting in the archive uploads the archive first.
+     *
+     * @param file file to pack
+     * @param remoteDir remote directory of the archive
+     * @param entryName name of the file in the archive
+     * @return future completed with the result of the archive upload once the archive containing the file has been
+     *         uploaded
+     */
+    public CompletableFuture<UploadResult> add(final File file, final String remoteDir, final String entryName) {
+        Validate.notNull(file, "File for upload must be defined!");
+        Validate.isTrue(file.isFile(), String.format("File for upload=%s must exist!", file.getAbsolutePath()));
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(entryName, "entryName must be defined");
+
+        final CompletableFuture<UploadResult> completion = new CompletableFuture<UploadResult>();
+        final List<Archive> full = new ArrayList<Archive>(2);
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("SmallFilePacker has been closed");
+            }
+            Archive archive = pending.get(remoteDir);
+            if (archive != null && archive.entryNames.contains(entryName)) {
+                full.add(pending.remove(remoteDir));
+                archive = null;
+            }
+            if (archive == null) {
+                archive = new Archive(remoteDir);
+                pending.put(remoteDir, archive);
+                scheduleFlush(archive);
+            }
+            archive.add(file, entryName, completion);
+            if (archive.bytes >= maxArchiveBytes || archive.entries.size() >= maxArchiveFiles) {
+                full.add(pending.remove(remoteDir));
+            }
+        }
+        for (Archive archive : full) {
+            upload(archive);
+        }
+        return completion;
+    }
+
+    /**
+     * Uploads all the collected archives without waiting for them to be full.
+     */
+    public void flush() {
+        final List<Archive> archives;
+        synchronized (lock) {
+            archives = new ArrayList<Archive>(pending.values());
+            pending.clear();
+        }
+        for (Archive archive : archives) {
+            upload(archive);
+        }
+    }
+
+    /**
+     * Uploads all the collected archives and stops accepting new files. The uploads are not awaited, use the futures
+     * returned by {@link #add(File, String, String)}.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        flush();
+        timer.shutdown();
+    }
+
+    /**
+     * @param archivePrefix prefix of the archive names, {@link #DEFAULT_ARCHIVE_PREFIX} by default; the archives are
+     *                      named {@code prefix-timestamp-sequence.zip}
+     */
+    public void setArchivePrefix(final String archivePrefix) {
+        Validate.notEmpty(archivePrefix, "archivePrefix must not be empty");
+        this.archivePrefix = archivePrefix;
+    }
+
+    public String getArchivePrefix() {
+        return archivePrefix;
+    }
+
+    /**
+     * @return number of files waiting to be packed and uploaded
+     */
+    public int getPendingFiles() {
+        synchronized (lock) {
+            int files = 0;
+            for (Archive archive : pending.values()) {
+                files += archive.entries.size();
+            }
+            return files;
+        }
+    }
+
+    /** Must be called with {@link #lock} held. */
+    private void scheduleFlush(final Archive archive) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final boolean due;
+                synchronized (lock) {
+                    due = pending.get(archive.remoteDir) == archive;
+                    if (due) {
+                        pending.remove(archive.remoteDir);
+                    }
+                }
+                if (due) {
+                    upload(archive);
+                }
+            }
+        }, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void upload(final Archive archive) {
+        final String archiveName = String.format("%s-%d-%04d.zip", archivePrefix, System.currentTimeMillis(),
+                archiveSequence.incrementAndGet());
+        logger.debug("action=webdav_pack_upload status=start remote_dir={} archive={} files={} bytes={}",
+                new Object[] {archive.remoteDir, archiveName, archive.entries.size(), archive.bytes});
+        final CompletableFuture<UploadResult> upload;
+        try {
+            upload = uploader.getUploadScheduler().submit(UploadPriority.NORMAL, new Callable<UploadResult>() {
+                @Override
+                public UploadResult call() {
+                    return uploader.transferArchive(new ArchiveRequestEntity(archive.entries), archive.remoteDir,
+                            archiveName);
+                }
+            });
+        } catch (RuntimeException e) {
+            for (Entry entry : archive.entries) {
+                entry.completion.completeExceptionally(e);
+            }
+            return;
+        }
+        upload.whenComplete(new BiConsumer<UploadResult, Throwable>() {
+            @Override
+            public void accept(final UploadResult result, final Throwable failure) {
+                for (Entry entry : archive.entries) {
+                    if (failure != null) {
+                        entry.completion.completeExceptionally(failure);
+                    } else {
+                        entry.completion.complete(result);
+                    }
+                }
+            }
+        });
+    }
+
+    private static final class Entry {
+        private final File file;
+        private final String name;
+        private final CompletableFuture<UploadResult> completion;
+
+        Entry(final File file, final String name, final CompletableFuture<UploadResult> completion) {
+            this.file = file;
+            this.name = name;
+            this.completion = completion;
+        }
+    }
+
+    private static final class Archive {
+        private final String remoteDir;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final Set<String> entryNames = new HashSet<String>();
+        private long bytes;
+
+        Archive(final String remoteDir) {
+            this.remoteDir = remoteDir;
+        }
+
+        void add(final File file, final String entryName, final CompletableFuture<UploadResult> completion) {
+            entries.add(new Entry(file, entryName, completion));
+            entryNames.add(entryName);
+            bytes += file.length();
+        }
+    }
+
+    /**
+     * Zip archive streamed from the packed files. The files are read again if the request is resent.
+     */
+    private static final class ArchiveRequestEntity implements RequestEntity {
+        private final List<Entry> entries;
+
+        ArchiveRequestEntity(final List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeRequest(final OutputStream out) throws IOException {
+            final ZipOutputStream zip = new ZipOutputStream(out);
+            for (Entry entry : entries) {
+                final ZipEntry zipEntry = new ZipEntry(entry.name);
+                zipEntry.setTime(entry.file.lastModified());
+                zip.putNextEntry(zipEntry);
+                Files.copy(entry.file.toPath(), zip);
+                zip.closeEntry();
+            }
+            // not close(), the connection stream belongs to the transport
+            zip.finish();
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return ARCHIVE_CONTENT_TYPE;
+        }
+    }
+}
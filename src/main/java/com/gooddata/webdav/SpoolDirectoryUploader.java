@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a local spool directory and uploads every file dropped into it to {@code remoteDir}, so that producers
+ * get their files uploaded within moments instead of waiting for a periodic job.
+ * <p>
+ * A file is uploaded once it's complete: its size and modification time must not change for
+ * {@link #setStableMillis(long) stable time}. Producers which write files under a temporary name (hidden or ending
+ * with {@link #setTemporarySuffix(String) temporary suffix}, both ignored) and rename them when done can set the
+ * stable time to 0. Uploaded files are deleted or moved to the {@link #setCompletedDir(File) completed directory};
+ * failed ones stay in the spool and are retried after {@link #setRetryDelayMillis(long) retry delay}.
+ * <p>
+ * At most {@link #getMaxInFlight() maxInFlight} files are being uploaded at a time, through the
+ * {@link WebDavUploader#getUploadScheduler() upload scheduler} of the uploader. When the remote end slows down,
+ * the watcher waits for a free slot and the backlog stays in the spool directory rather than in memory.
+ * <p>
+ * Uploaded files are recorded in a journal in the spool directory before they are deleted or moved, so a file
+ * whose upload completed just before a crash or restart is not uploaded again. The journal is truncated whenever
+ * the spool is idle.
+ */
+public class SpoolDirectoryUploader {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_STABLE_MILLIS = 1000;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 30 * 1000L;
+    public static final long DEFAULT_RESCAN_MILLIS = 60 * 1000L;
+    public static final String DEFAULT_TEMPORARY_SUFFIX = ".tmp";
+
+    /** Journal of uploaded files; hidden, so it's not uploaded itself. */
+    static final String JOURNAL_NAME = ".webdav-spool.journal";
+
+    private static final long MAX_POLL_MILLIS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final WebDavUploader uploader;
+    private final File spoolDir;
+    private final String remoteDir;
+    private final String contentType;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    private final Object lock = new Object();
+    /** Files seen in the spool by name, in order of discovery. */
+    private final Map<String, SpoolFile> files = new LinkedHashMap<String, SpoolFile>();
+    private UploadJournal journal;
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile boolean running;
+
+    private final AtomicLong uploadedFiles = new AtomicLong();
+    private final AtomicLong failedUploads = new AtomicLong();
+
+    private volatile long stableMillis = DEFAULT_STABLE_MILLIS;
+    private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private volatile long rescanMillis = DEFAULT_RESCAN_MILLIS;
+    private volatile String temporarySuffix = DEFAULT_TEMPORARY_SUFFIX;
+    private volatile File completedDir;
+
+    /** @see #SpoolDirectoryUploader(WebDavUploader, File, String, String, int) */
+    public SpoolDirectoryUploader(final WebDavUploader uploader, final File spoolDir, final String remoteDir,
+            final String contentType) {
+        this(uploader, spoolDir, remoteDir, contentType, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates new spool uploader, call {@link #start()} to start watching.
+     *
+     * @param uploader uploader of the files
+     * @param spoolDir local directory to watch
+     * @param remoteDir remote directory the files are uploaded to under their local names
+     * @param contentType content type of the files
+     * @param maxInFlight maximum number of files being uploaded at a time
+     */
+    public SpoolDirectoryUploader(final WebDavUploader uploader, final File spoolDir, final String remoteDir,
+            final String contentType, final int maxInFlight) {
+        Validate.notNull(uploader, "uploader must not be null");
+        Validate.notNull(spoolDir, "spoolDir must be defined");
+        Validate.isTrue(spoolDir.isDirectory(), String.format("spoolDir=%s must be a directory",
+                spoolDir.getAbsolutePath()));
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.isTrue(maxInFlight > 0, "maxInFlight must be positive");
+        this.uploader = uploader;
+        this.spoolDir = spoolDir;
+        this.remoteDir = remoteDir;
+        this.contentType = contentType;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Opens the journal and starts watching the spool directory. Files already in the spool are picked up first.
+     */
+    public void start() {
+        synchronized (lock) {
+            Validate.isTrue(watcher == null, "SpoolDirectoryUploader has already been started");
+            journal = new UploadJournal(new File(spoolDir, JOURNAL_NAME));
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                spoolDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                journal.close();
+                throw new WebDavUploaderException("Cannot watch spool directory " + spoolDir.getAbsolutePath(), e);
+            }
+            running = true;
+            watcher = UploadThreads.newThreadFactory("webdav-spool-", false).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            });
+            watcher.start();
+        }
+        logger.info("action=webdav_spool status=started spool_dir={} remote_dir={}", spoolDir.getAbsolutePath(),
+                remoteDir);
+    }
+
+    /**
+     * Stops watching, waits for the uploads in progress and closes the journal. Files not uploaded yet stay in the
+     * spool directory and are picked up by the next start. Resources are released also when the watching has
+     * already stopped because of an error.
+     */
+    public void close() throws InterruptedException {
+        final Thread stopped;
+        final WatchService stoppedWatchService;
+        final UploadJournal stoppedJournal;
+        synchronized (lock) {
+            if (watcher == null) {
+                return;
+            }
+            running = false;
+            stopped = watcher;
+            stoppedWatchService = watchService;
+            stoppedJournal = journal;
+            watcher = null;
+        }
+        stopped.interrupt();
+        try {
+            stoppedWatchService.close();
+        } catch (IOException e) {
+            logger.warn("action=webdav_spool status=watch_close_error", e);
+        }
+        try {
+            stopped.join();
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            stoppedJournal.close();
+            synchronized (lock) {
+                files.clear();
+            }
+        }
+        logger.info("action=webdav_spool status=stopped spool_dir={} uploaded={} failed={}",
+                new Object[] {spoolDir.getAbsolutePath(), uploadedFiles.get(), failedUploads.get()});
+    }
+
+    /**
+     * @return true if the spool directory is being watched; false before {@link #start()}, after {@link #close()}
+     *         or when the watching failed, e.g. because the spool directory has been removed
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void watch() {
+        long nextRescan = 0;
+        try {
+            while (running) {
+                if (System.currentTimeMillis() >= nextRescan) {
+                    rescan();
+                    nextRescan = System.currentTimeMillis() + rescanMillis;
+                }
+                uploadReadyFiles();
+
+                final WatchKey key = watchService.poll(pollMillis(), TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        nextRescan = 0;
+                    } else {
+                        discovered(((Path) event.context()).getFileName().toString());
+                    }
+                }
+                if (!key.reset()) {
+                    logger.error("action=webdav_spool status=spool_dir_inaccessible spool_dir={}",
+                            spoolDir.getAbsolutePath());
+                    running = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (RuntimeException e) {
+            logger.error("action=webdav_spool status=watch_error spool_dir=" + spoolDir.getAbsolutePath(), e);
+            running = false;
+        }
+    }
+
+    private long pollMillis() {
+        synchronized (lock) {
+            if (files.isEmpty()) {
+                return MAX_POLL_MILLIS;
+            }
+        }
+        return Math.max(10, Math.min(stableMillis, MAX_POLL_MILLIS));
+    }
+
+    private void rescan() {
+        final String[] names = spoolDir.list();
+        if (names == null) {
+            logger.warn("action=webdav_spool status=list_error spool_dir={}", spoolDir.getAbsolutePath());
+            return;
+        }
+        for (String name : names) {
+            discovered(name);
+        }
+    }
+
+    private void discovered(final String name) {
+        if (name.startsWith(".") || name.endsWith(temporarySuffix)) {
+            return;
+        }
+        synchronized (lock) {
+            if (!files.containsKey(name)) {
+                files.put(name, new SpoolFile(new File(spoolDir, name)));
+            }
+        }
+    }
+
+    /**
+     * Starts upload of every complete file, waiting for a free upload slot before each of them.
+     */
+    private void uploadReadyFiles() throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        final List<SpoolFile> ready = new ArrayList<SpoolFile>();
+        synchronized (lock) {
+            final Iterator<SpoolFile> iterator = files.values().iterator();
+            while (iterator.hasNext()) {
+                final SpoolFile spoolFile = iterator.next();
+                if (spoolFile.busy || now < spoolFile.retryAt) {
+                    continue;
+                }
+                if (!spoolFile.file.isFile()) {
+                    iterator.remove();
+                } else if (spoolFile.isStable(now, stableMillis)) {
+                    spoolFile.busy = true;
+                    ready.add(spoolFile);
+                }
+            }
+            if (files.isEmpty() && journal.size() > 0) {
+                journal.clear();
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            final SpoolFile spoolFile = ready.get(i);
+            final String journalKey = UploadJournal.fileKey(spoolFile.file, remoteDir + '/' + spoolFile.file.getName());
+            if (journal.isCompleted(journalKey)) {
+                logger.info("action=webdav_spool status=journaled_file_completed file={}", spoolFile.file.getName());
+                completed(spoolFile);
+                continue;
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                synchronized (lock) {
+                    for (int j = i; j < ready.size(); j++) {
+                        ready.get(j).busy = false;
+                    }
+                }
+                throw e;
+            }
+            upload(spoolFile, journalKey);
+        }
+    }
+
+    private void upload(final SpoolFile spoolFile, final String journalKey) {
+        final String name = spoolFile.file.getName();
+        logger.debug("action=webdav_spool_upload status=start file={} bytes={}", name, spoolFile.length);
+        final CompletableFuture<UploadResult> upload;
+        try {
+            upload = uploader.transferFileAsync(spoolFile.file, remoteDir, name, contentType);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            failed(spoolFile, e);
+            return;
+        }
+        upload.whenComplete(new BiConsumer<UploadResult, Throwable>() {
+            @Override
+            public void accept(final UploadResult result, final Throwable failure) {
+                try {
+                    if (failure != null) {
+                        failed(spoolFile, failure);
+                    } else {
+                        journal.markCompleted(journalKey, "");
+                        uploadedFiles.incrementAndGet();
+                        logger.debug("action=webdav_spool_upload status=finished file={} remote_path={}", name,
+                                result.getRemotePath());
+                        completed(spoolFile);
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes or moves the uploaded file away from the spool.
+     */
+    private void completed(final SpoolFile spoolFile) {
+        final File target = completedDir;
+        try {
+            if (target == null) {
+                Files.deleteIfExists(spoolFile.file.toPath());
+            } else {
+                Files.move(spoolFile.file.toPath(), new File(target, spoolFile.file.getName()).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // the journal keeps the file from being uploaded again
+            logger.error("action=webdav_spool status=complete_error file=" + spoolFile.file.getAbsolutePath(), e);
+            retryLater(spoolFile);
+            return;
+        }
+        synchronized (lock) {
+            files.remove(spoolFile.file.getName());
+        }
+    }
+
+    private void failed(final SpoolFile spoolFile, final Throwable failure) {
+        failedUploads.incrementAndGet();
+        logger.warn("action=webdav_spool_upload status=error file=" + spoolFile.file.getName() + " retry_in_millis="
+                + retryDelayMillis, failure);
+        retryLater(spoolFile);
+    }
+
+    private void retryLater(final SpoolFile spoolFile) {
+        synchronized (lock) {
+            spoolFile.busy = false;
+            spoolFile.retryAt = System.currentTimeMillis() + retryDelayMillis;
+        }
+    }
+
+    /**
+     * @param stableMillis how long must size and modification time of a file stay unchanged before it's uploaded,
+     *                     {@link #DEFAULT_STABLE_MILLIS} by default; 0 uploads files as soon as they appear
+     */
+    public void setStableMillis(final long stableMillis) {
+        Validate.isTrue(stableMillis >= 0, "stableMillis must not be negative");
+        this.stableMillis = stableMillis;
+    }
+
+    public long getStableMillis() {
+        return stableMillis;
+    }
+
+    /**
+     * @param retryDelayMillis delay before a failed upload is tried again, {@link #DEFAULT_RETRY_DELAY_MILLIS} by
+     *                         default
+     */
+    public void setRetryDelayMillis(final long retryDelayMillis) {
+        Validate.isTrue(retryDelayMillis >= 0, "retryDelayMillis must not be negative");
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    /**
+     * @param rescanMillis interval of listing the whole spool directory in case a file system event has been missed,
+     *                     {@link #DEFAULT_RESCAN_MILLIS} by default
+     */
+    public void setRescanMillis(final long rescanMillis) {
+        Validate.isTrue(rescanMillis > 0, "rescanMillis must be positive");
+        this.rescanMillis = rescanMillis;
+    }
+
+    public long getRescanMillis() {
+        return rescanMillis;
+    }
+
+    /**
+     * @param temporarySuffix files with this suffix are being written and are ignored,
+     *                        {@link #DEFAULT_TEMPORARY_SUFFIX} by default
+     */
+    public void setTemporarySuffix(final String temporarySuffix) {
+        Validate.notEmpty(temporarySuffix, "temporarySuffix must not be empty");
+        this.temporarySuffix = temporarySuffix;
+    }
+
+    public String getTemporarySuffix() {
+        return temporarySuffix;
+    }
+
+    /**
+     * @param completedDir directory uploaded files are moved to (replacing files of the same name), or null (default)
+     *                     to delete them
+     */
+    public void setCompletedDir(final File completedDir) {
+        Validate.isTrue(completedDir == null || completedDir.isDirectory(), "completedDir must be a directory");
+        this.completedDir = completedDir;
+    }
+
+    public File getCompletedDir() {
+        return completedDir;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return number of files in the spool waiting for upload or being uploaded
+     */
+    public int getPendingFiles() {
+        synchronized (lock) {
+            return files.size();
+        }
+    }
+
+    public long getUploadedFiles() {
+        return uploadedFiles.get();
+    }
+
+    public long getFailedUploads() {
+        return failedUploads.get();
+    }
+
+    public File getSpoolDir() {
+        return spoolDir;
+    }
+
+    public String getRemoteDir() {
+        return remoteDir;
+    }
+
+    /**
+     * File seen in the spool; all fields are guarded by {@link SpoolDirectoryUploader#lock}.
+     */
+    private static final class SpoolFile {
+        private final File file;
+        private long length = -1;
+        private long lastModified;
+        private long unchangedSince;
+        private long retryAt;
+        private boolean busy;
+
+        SpoolFile(final File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return true if size and modification time haven't changed for {@code stableMillis}
+         */
+        boolean isStable(final long now, final long stableMillis) {
+            final long currentLength = file.length();
+            final long currentLastModified = file.lastModified();
+            if (currentLength != length || currentLastModified != lastModified) {
+                length = currentLength;
+                lastModified = currentLastModified;
+                unchangedSince = now;
+            }
+            return now - unchangedSince >= stableMillis;
+        }
+    }
+}
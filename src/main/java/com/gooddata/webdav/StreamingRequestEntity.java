@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.lang.Validate;
+
+/**
+ * {@link RequestEntity} streaming an {@link InputStream} directly to the connection through a fixed-size buffer.
+ * <p>
+ * Unlike {@link org.apache.commons.httpclient.methods.InputStreamRequestEntity} with automatic content length, the
+ * stream is never buffered in memory, so memory used by an upload doesn't depend on the payload size. If the content
+ * length is not known, chunked transfer encoding is used.
+ * <p>
+ * The entity can be written only once.
+ */
+public class StreamingRequestEntity implements RequestEntity {
+
+    /** Content length value which causes the entity to be sent using chunked transfer encoding. */
+    public static final long CONTENT_LENGTH_CHUNKED = -1;
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream content;
+    private final long contentLength;
+    private final String contentType;
+    private final int bufferSize;
+    private volatile boolean consumed;
+
+    /** @see #StreamingRequestEntity(InputStream, long, String, int) */
+    public StreamingRequestEntity(final InputStream content, final String contentType) {
+        this(content, CONTENT_LENGTH_CHUNKED, contentType, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates new streaming entity.
+     *
+     * @param content the stream to upload, it's not closed by the entity
+     * @param contentLength exact number of bytes in the stream or {@link #CONTENT_LENGTH_CHUNKED} if it's unknown
+     * @param contentType content type of the stream
+     * @param bufferSize size of the copy buffer in bytes
+     */
+    public StreamingRequestEntity(final InputStream content, final long contentLength, final String contentType,
+            final int bufferSize) {
+        Validate.notNull(content, "InputStream for upload must be defined!");
+        Validate.isTrue(contentLength >= 0 || contentLength == CONTENT_LENGTH_CHUNKED,
+                "contentLength must be non-negative or CONTENT_LENGTH_CHUNKED");
+        Validate.isTrue(bufferSize > 0, "bufferSize must be positive");
+        this.content = content;
+        this.contentLength = contentLength;
+        this.contentType = contentType;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        if (consumed) {
+            throw new IOException("Streaming request entity has already been sent and cannot be repeated");
+        }
+        consumed = true;
+
+        final int size = contentLength >= 0 && contentLength < bufferSize ? (int) Math.max(contentLength, 1) : bufferSize;
+        final byte[] buffer = new byte[size];
+        long remaining = contentLength;
+        int read;
+        while (remaining != 0 && (read = content.read(buffer, 0, toRead(buffer.length, remaining))) != -1) {
+            out.write(buffer, 0, read);
+            if (remaining > 0) {
+                remaining -= read;
+            }
+        }
+        if (remaining > 0) {
+            throw new IOException("Premature end of stream, " + remaining + " of " + contentLength
+                    + " declared bytes are missing");
+        }
+    }
+
+    /**
+     * Marks the entity as consumed and returns its content limited to the declared length, for transports which pull
+     * the body instead of letting the entity write it.
+     *
+     * @return stream of exactly {@link #getContentLength()} bytes (if known); premature end of the content is reported
+     *         as {@link IOException}
+     * @throws UncheckedIOException if the entity has already been consumed
+     */
+    InputStream consume() {
+        if (consumed) {
+            throw new UncheckedIOException(
+                    new IOException("Streaming request entity has already been sent and cannot be repeated"));
+        }
+        consumed = true;
+        return contentLength < 0 ? content : new DeclaredLengthInputStream();
+    }
+
+    private static int toRead(final int bufferLength, final long remaining) {
+        return remaining < 0 ? bufferLength : (int) Math.min(bufferLength, remaining);
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return true if the entity has already been written
+     */
+    public boolean isConsumed() {
+        return consumed;
+    }
+
+    private final class DeclaredLengthInputStream extends InputStream {
+        private long remaining = contentLength;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int read = content.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new IOException("Premature end of stream, " + remaining + " of " + contentLength
+                        + " declared bytes are missing");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Report of a directory synchronization.
+ * @see WebDavUploader#synchronizeDirectory(File, String, String, boolean, int)
+ */
+public final class SyncReport {
+
+    private final BatchUploadReport uploadReport;
+    private final List<File> skippedFiles;
+    private final List<RemoteResource> deletedResources;
+    private final long bytesSaved;
+
+    SyncReport(final BatchUploadReport uploadReport, final List<File> skippedFiles,
+            final List<RemoteResource> deletedResources, final long bytesSaved) {
+        this.uploadReport = uploadReport;
+        this.skippedFiles = Collections.unmodifiableList(new ArrayList<File>(skippedFiles));
+        this.deletedResources = Collections.unmodifiableList(new ArrayList<RemoteResource>(deletedResources));
+        this.bytesSaved = bytesSaved;
+    }
+
+    /**
+     * @return report of the upload of new and changed files
+     */
+    public BatchUploadReport getUploadReport() {
+        return uploadReport;
+    }
+
+    /**
+     * @return local files which haven't been uploaded because the remote copy is up to date
+     */
+    public List<File> getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    /**
+     * @return remote files deleted because they don't exist locally
+     */
+    public List<RemoteResource> getDeletedResources() {
+        return deletedResources;
+    }
+
+    /**
+     * @return number of bytes which didn't have to be uploaded
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * @return number of PUT requests which didn't have to be sent
+     */
+    public int getRequestsSaved() {
+        return skippedFiles.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SyncReport [uploaded=" + uploadReport.getSuccessCount() + ", failed=" + uploadReport.getFailureCount()
+                + ", skipped=" + skippedFiles.size() + ", deleted=" + deletedResources.size()
+                + ", bytesSaved=" + bytesSaved + "]";
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the temporary token (GDCAuthTT) obtained for a super secure token and keeps it fresh.
+ * <p>
+ * Concurrent refreshes are coalesced - when several threads find the same token expired, only one of them asks
+ * {@link WebDavSstAuthenticator} for a new token and the others wait for its result. The token is also refreshed
+ * in the background shortly before its validity ends, as long as it's being used, so uploads rarely pay for
+ * a 401 response and a resend.
+ * <p>
+ * Background refreshes of all the token managers are started by one scheduler thread and run on a pool of at most
+ * {@link #MAX_BACKGROUND_REFRESHES} threads, so a slow authentication endpoint delays only the refreshes waiting for
+ * it. Every refresh is bounded by the socket timeout of the {@link WebDavSstAuthenticator#getTransport() transport}
+ * of the authenticator.
+ */
+public class TemporaryTokenManager {
+
+    /** Default validity of the temporary token, see "TT_validity" of GDC REST API. */
+    public static final long DEFAULT_TOKEN_VALIDITY_MILLIS = 600 * 1000L;
+    public static final long DEFAULT_REFRESH_MARGIN_MILLIS = 60 * 1000L;
+    /** Maximum number of background refreshes running at once. */
+    public static final int MAX_BACKGROUND_REFRESHES = 4;
+
+    private static final ScheduledExecutorService REFRESH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "webdav-token-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static final ExecutorService REFRESH_EXECUTOR = createRefreshExecutor();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final WebDavSstAuthenticator authenticator;
+    private final String superSecureToken;
+
+    private final Object refreshLock = new Object();
+    private volatile UserLogin userLogin;
+    private volatile long issuedAt;
+    private volatile long lastAccess;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    private volatile long tokenValidityMillis = DEFAULT_TOKEN_VALIDITY_MILLIS;
+    private volatile long refreshMarginMillis = DEFAULT_REFRESH_MARGIN_MILLIS;
+    private volatile boolean proactiveRefresh = true;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * Creates new token manager.
+     *
+     * @param authenticator authenticator used for obtaining the temporary token
+     * @param superSecureToken super secure token the temporary token is requested for
+     */
+    public TemporaryTokenManager(final WebDavSstAuthenticator authenticator, final String superSecureToken) {
+        Validate.notNull(authenticator, "authenticator must not be null");
+        Validate.notEmpty(superSecureToken, "Super secure token must not be empty");
+        this.authenticator = authenticator;
+        this.superSecureToken = superSecureToken;
+    }
+
+    /**
+     * Returns the current user login, obtaining a new temporary token if there is none yet or if the current one
+     * is older than the configured validity.
+     *
+     * @return user login with valid temporary token
+     */
+    public UserLogin getUserLogin() {
+        final long now = currentTimeMillis();
+        lastAccess = now;
+        final UserLogin current = userLogin;
+        if (current != null && now - issuedAt < tokenValidityMillis) {
+            return current;
+        }
+        return refresh(current);
+    }
+
+    /**
+     * Obtains new temporary token unless {@code expiredLogin} has already been replaced by another thread, in which
+     * case the replacement is returned. Concurrent callers wait for single in-flight refresh.
+     *
+     * @param expiredLogin the login which has been rejected by the server (may be null)
+     * @return user login with fresh temporary token
+     */
+    public UserLogin refresh(final UserLogin expiredLogin) {
+        synchronized (refreshLock) {
+            final UserLogin current = userLogin;
+            if (current != null && current != expiredLogin) {
+                return current;
+            }
+            return doRefresh();
+        }
+    }
+
+    /** Must be called with {@link #refreshLock} held. */
+    private UserLogin doRefresh() {
+        logger.debug("action=webdav_token_refresh status=start");
+        final UserLogin fresh = authenticator.authenticate(superSecureToken);
+        issuedAt = currentTimeMillis();
+        userLogin = fresh;
+        refreshCount.incrementAndGet();
+        scheduleProactiveRefresh();
+        logger.debug("action=webdav_token_refresh status=finished");
+        return fresh;
+    }
+
+    /** Must be called with {@link #refreshLock} held. */
+    private void scheduleProactiveRefresh() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+        final long delay = tokenValidityMillis - refreshMarginMillis;
+        if (!proactiveRefresh || delay <= 0) {
+            return;
+        }
+        scheduledRefresh = REFRESH_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // the scheduler thread only triggers the refresh, the authentication call must not delay others
+                REFRESH_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        backgroundRefresh();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static ExecutorService createRefreshExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_BACKGROUND_REFRESHES, MAX_BACKGROUND_REFRESHES,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                UploadThreads.newThreadFactory("webdav-token-refresh-worker-", false));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void backgroundRefresh() {
+        if (currentTimeMillis() - lastAccess > tokenValidityMillis) {
+            // token is not used anymore - stop refreshing, it will be obtained on demand if needed again
+            logger.debug("action=webdav_token_refresh status=idle_skipped");
+            return;
+        }
+        try {
+            synchronized (refreshLock) {
+                doRefresh();
+            }
+        } catch (RuntimeException e) {
+            // not fatal, the token will be refreshed on demand
+            logger.warn("action=webdav_token_refresh status=background_error", e);
+        }
+    }
+
+    /**
+     * Sets how long is the temporary token considered valid after it has been issued.
+     *
+     * @param tokenValidityMillis token validity in milliseconds, {@link #DEFAULT_TOKEN_VALIDITY_MILLIS} by default
+     */
+    public void setTokenValidityMillis(final long tokenValidityMillis) {
+        Validate.isTrue(tokenValidityMillis > 0, "tokenValidityMillis must be positive");
+        this.tokenValidityMillis = tokenValidityMillis;
+    }
+
+    public long getTokenValidityMillis() {
+        return tokenValidityMillis;
+    }
+
+    /**
+     * Sets how long before the end of its validity is the token refreshed in the background.
+     *
+     * @param refreshMarginMillis margin in milliseconds, {@link #DEFAULT_REFRESH_MARGIN_MILLIS} by default
+     */
+    public void setRefreshMarginMillis(final long refreshMarginMillis) {
+        Validate.isTrue(refreshMarginMillis >= 0, "refreshMarginMillis must not be negative");
+        this.refreshMarginMillis = refreshMarginMillis;
+    }
+
+    public long getRefreshMarginMillis() {
+        return refreshMarginMillis;
+    }
+
+    /**
+     * Enables or disables background refresh of the token before it expires. Enabled by default.
+     */
+    public void setProactiveRefresh(final boolean proactiveRefresh) {
+        this.proactiveRefresh = proactiveRefresh;
+        if (!proactiveRefresh) {
+            synchronized (refreshLock) {
+                if (scheduledRefresh != null) {
+                    scheduledRefresh.cancel(false);
+                    scheduledRefresh = null;
+                }
+            }
+        }
+    }
+
+    public boolean isProactiveRefresh() {
+        return proactiveRefresh;
+    }
+
+    /**
+     * @return authenticator used for obtaining the temporary token
+     */
+    public WebDavSstAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * @return number of temporary tokens obtained so far
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
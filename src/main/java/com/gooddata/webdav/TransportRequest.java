@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Engine independent HTTP request executed by {@link WebDavTransport}.
+ */
+public final class TransportRequest {
+
+    /** Methods which may be repeated - repeated MKCOL returns 301 which is accepted by the uploader. */
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(
+            Arrays.asList("GET", "HEAD", "PUT", "DELETE", "PROPFIND", "MKCOL"));
+
+    private final String method;
+    private final String path;
+    /** Created on first use, most requests have no headers and one cookie. */
+    private Map<String, String> headers;
+    private Map<String, String> cookies;
+    private RequestEntity entity;
+    private boolean expectContinue;
+    private volatile boolean aborted;
+    private volatile Runnable abortAction;
+
+    /**
+     * Creates new request.
+     *
+     * @param method HTTP method, e.g. PUT or MKCOL
+     * @param path escaped absolute path of the target resource, e.g. /uploads/dir/file.csv
+     */
+    public TransportRequest(final String method, final String path) {
+        Validate.notEmpty(method, "method must not be empty");
+        Validate.notEmpty(path, "path must not be empty");
+        this.method = method;
+        this.path = path;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public TransportRequest setHeader(final String name, final String value) {
+        if (headers == null) {
+            headers = new LinkedHashMap<String, String>(4);
+        }
+        headers.put(name, value);
+        return this;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Sets cookie sent with the request, replacing previous value of the cookie.
+     */
+    public TransportRequest setCookie(final String name, final String value) {
+        if (cookies == null) {
+            cookies = new LinkedHashMap<String, String>(2);
+        }
+        cookies.put(name, value);
+        return this;
+    }
+
+    public Map<String, String> getCookies() {
+        return cookies == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(cookies);
+    }
+
+    public TransportRequest setEntity(final RequestEntity entity) {
+        this.entity = entity;
+        return this;
+    }
+
+    /**
+     * @return the request body or null if the request has no body
+     */
+    public RequestEntity getEntity() {
+        return entity;
+    }
+
+    /**
+     * Enables the "Expect: 100-continue" handshake for the request.
+     */
+    public TransportRequest setExpectContinue(final boolean expectContinue) {
+        this.expectContinue = expectContinue;
+        return this;
+    }
+
+    public boolean isExpectContinue() {
+        return expectContinue;
+    }
+
+    /**
+     * Aborts the request from any thread: the request fails right away if it hasn't been sent yet, otherwise its
+     * transport closes the connection the request is being sent or answered on. Returns immediately.
+     */
+    public void abort() {
+        aborted = true;
+        final Runnable action = abortAction;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Sets action of the transport aborting the request being executed; the action is run right away if
+     * the request has already been aborted. The action must not block and must tolerate being run more than once
+     * and after the request has ended.
+     */
+    public void setAbortAction(final Runnable abortAction) {
+        this.abortAction = abortAction;
+        if (abortAction != null && aborted) {
+            abortAction.run();
+        }
+    }
+
+    /**
+     * @return true if sending the request again has the same effect as sending it once
+     */
+    public boolean isIdempotent() {
+        return IDEMPOTENT_METHODS.contains(method);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + path;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response to {@link TransportRequest}. The response holds a pooled connection until {@link #release()} is called.
+ */
+public interface TransportResponse {
+
+    int getStatusCode();
+
+    /**
+     * @param name header name
+     * @return value of the first response header with given name or null
+     */
+    String getHeader(String name);
+
+    /**
+     * @param name cookie name
+     * @return value of the cookie set by the response or null
+     */
+    String getCookie(String name);
+
+    /**
+     * @return the response body or null if there is none; the stream is closed by {@link #release()}
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Discards the rest of the response body and returns the connection to the pool.
+     */
+    void release();
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * Compression applied to uploads by {@link CompressingRequestEntity}, see
+ * {@link WebDavUploader#setCompression(UploadCompression)}.
+ */
+public enum UploadCompression {
+    NONE("", null),
+    /** Single member gzip file, the remote file name gets ".gz" suffix. */
+    GZIP(".gz", "application/gzip"),
+    /** Zip archive with single entry named after the remote file, the remote file name gets ".zip" suffix. */
+    ZIP(".zip", "application/zip");
+
+    private final String suffix;
+    private final String contentType;
+
+    UploadCompression(final String suffix, final String contentType) {
+        this.suffix = suffix;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return suffix appended to the remote file name
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * @return content type of the compressed upload
+     */
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upload started by {@link WebDavUploader#startTransfer(java.io.File, String, String, String, UploadProgressListener)}
+ * - reports how many bytes have been sent, detects stalls and can be {@link #cancel() cancelled}.
+ * <p>
+ * Progress is counted in the write loop with a few field updates per written chunk, the listener is called only
+ * at the configured byte or time intervals. Stalls are detected by a shared monitoring thread comparing the byte
+ * count with its previous value, so stall detection costs nothing on the uploading thread.
+ */
+public class UploadHandle {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadHandle.class);
+
+    private static final ScheduledExecutorService MONITOR = Executors.newSingleThreadScheduledExecutor(
+            UploadThreads.newThreadFactory("webdav-upload-monitor-", false));
+
+    private final String remoteFileName;
+    private final long contentLength;
+    private final UploadProgressListener listener;
+    private final long progressIntervalBytes;
+    private final long progressIntervalNanos;
+    private final long stallTimeoutMillis;
+    private final CompletableFuture<UploadResult> result = new CompletableFuture<UploadResult>();
+
+    /** Written only by the uploading thread. */
+    private volatile long bytesSent;
+    private long nextProgressBytes;
+    private long nextProgressNanos;
+
+    private volatile boolean cancelled;
+    private volatile TransportRequest request;
+    private volatile CompletableFuture<UploadResult> scheduled;
+    private ScheduledFuture<?> stallCheck;
+
+    // accessed only by the monitoring thread
+    private long lastSeenBytes;
+    private long lastProgressNanos;
+    private int stallReports;
+
+    UploadHandle(final String remoteFileName, final long contentLength, final UploadProgressListener listener,
+            final long progressIntervalBytes, final long progressIntervalMillis, final long stallTimeoutMillis) {
+        this.remoteFileName = remoteFileName;
+        this.contentLength = contentLength;
+        this.listener = listener;
+        this.progressIntervalBytes = progressIntervalBytes;
+        this.progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(progressIntervalMillis);
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /**
+     * Cancels the upload: a queued upload is removed from the queue, a running one fails at its next write and its
+     * request is aborted, which closes the connection and so unblocks the uploading thread waiting for the server.
+     * The {@link #getResult() result} is cancelled. Returns immediately.
+     *
+     * @return false if the upload has already finished
+     */
+    public boolean cancel() {
+        if (result.isDone()) {
+            return false;
+        }
+        cancelled = true;
+        final CompletableFuture<UploadResult> current = scheduled;
+        if (current != null) {
+            current.cancel(false);
+        }
+        final TransportRequest inFlight = request;
+        if (inFlight != null) {
+            inFlight.abort();
+        }
+        result.cancel(false);
+        logger.info("action=webdav_upload status=cancelled remote_file={} bytes_sent={}", remoteFileName, bytesSent);
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return future completed when the upload finishes, cancelled by {@link #cancel()}
+     */
+    public CompletableFuture<UploadResult> getResult() {
+        return result;
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    /**
+     * @return number of bytes of the body sent so far, counted from zero again when the body is resent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return length of the body or -1 if it's not known (e.g. compressed body)
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getRemoteFileName() {
+        return remoteFileName;
+    }
+
+    //--------------------------------------------------- PACKAGE STUFF ------------------------------------------------
+
+    /**
+     * Called by the uploader once the upload has been queued.
+     */
+    void scheduled(final CompletableFuture<UploadResult> scheduledUpload) {
+        this.scheduled = scheduledUpload;
+        if (cancelled) {
+            scheduledUpload.cancel(false);
+        }
+    }
+
+    /**
+     * Called on the uploading thread when the upload starts.
+     */
+    synchronized void started() {
+        if (stallTimeoutMillis > 0) {
+            lastProgressNanos = System.nanoTime();
+            final long period = Math.max(Math.min(stallTimeoutMillis / 4, 1000), 10);
+            stallCheck = MONITOR.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    checkStall();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called on the uploading thread when the upload ends.
+     */
+    void finished(final UploadResult uploadResult, final Throwable failure) {
+        synchronized (this) {
+            if (stallCheck != null) {
+                stallCheck.cancel(false);
+                stallCheck = null;
+            }
+        }
+        request = null;
+        if (failure == null) {
+            result.complete(uploadResult);
+        } else if (!cancelled) {
+            result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Called when the request sending the body is created, so that it can be aborted.
+     */
+    void attach(final TransportRequest put) {
+        this.request = put;
+        if (cancelled) {
+            put.abort();
+        }
+    }
+
+    /**
+     * Called on the uploading thread before the body is (re)sent.
+     */
+    void bodyStarted() {
+        bytesSent = 0;
+        nextProgressBytes = progressIntervalBytes;
+        nextProgressNanos = System.nanoTime() + progressIntervalNanos;
+    }
+
+    /**
+     * Called on the uploading thread after every written chunk.
+     */
+    void bytesWritten(final int bytes) {
+        final long sent = bytesSent + bytes;
+        bytesSent = sent;
+        if (listener != null && (sent >= nextProgressBytes || System.nanoTime() >= nextProgressNanos
+                || sent == contentLength)) {
+            nextProgressBytes = sent + progressIntervalBytes;
+            nextProgressNanos = System.nanoTime() + progressIntervalNanos;
+            listener.onProgress(this, sent, contentLength);
+        }
+    }
+
+    private void checkStall() {
+        final long now = System.nanoTime();
+        final long sent = bytesSent;
+        if (sent != lastSeenBytes) {
+            lastSeenBytes = sent;
+            lastProgressNanos = now;
+            stallReports = 0;
+            return;
+        }
+        final long stalledMillis = TimeUnit.NANOSECONDS.toMillis(now - lastProgressNanos);
+        if (stalledMillis < stallTimeoutMillis * (stallReports + 1)) {
+            return;
+        }
+        stallReports++;
+        logger.warn("action=webdav_upload status=stalled remote_file={} bytes_sent={} stalled_millis={}",
+                new Object[] {remoteFileName, sent, stalledMillis});
+        if (listener != null) {
+            try {
+                listener.onStalled(this, stalledMillis);
+            } catch (RuntimeException e) {
+                logger.warn("action=webdav_upload status=stall_listener_error remote_file=" + remoteFileName, e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UploadHandle [remoteFileName=" + remoteFileName + ", bytesSent=" + bytesSent + ", contentLength="
+                + contentLength + ", cancelled=" + cancelled + "]";
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent local index of files uploaded by {@link WebDavUploader#transferFile(File, String, String, String)},
+ * so that an unchanged file is not uploaded again to the same remote path, see
+ * {@link WebDavUploader#setUploadIndex(UploadIndex)}.
+ * <p>
+ * For every remote path the index keeps size, modification time and SHA-256 of the local file last uploaded there.
+ * A file of the same size and modification time is considered unchanged without reading it; a file of the same size
+ * but different modification time (e.g. regenerated with the same content) is hashed and compared.
+ * <p>
+ * Entries are kept in memory, at most {@code maxEntries} of them, the least recently used are evicted. Every change
+ * is appended to the index file as one checksummed record and written to the OS immediately; a record torn by
+ * a crash is dropped when the index is loaded. Once the file holds many more records than live entries, it's
+ * compacted - rewritten with the live entries only and atomically replaced; it's also compacted when the index is
+ * {@link #close() closed}. The index is thread safe, but must not be opened by several processes at once.
+ */
+public class UploadIndex {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final int MAGIC = 0x57444958; // "WDIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    /** Size of a removed entry. */
+    private static final long REMOVED = -1;
+    /** The file is compacted when it has more records than this and than twice the number of entries. */
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Upload> entries;
+    private FileChannel channel;
+    private long records;
+
+    /** @see #UploadIndex(File, int) */
+    public UploadIndex(final File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Opens the index, loading entries recorded by previous runs.
+     *
+     * @param file index file, created if it doesn't exist
+     * @param maxEntries maximum number of remembered uploads
+     */
+    public UploadIndex(final File file, final int maxEntries) {
+        Validate.notNull(file, "file must be defined");
+        Validate.isTrue(maxEntries > 0, "maxEntries must be positive");
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Upload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Upload> eldest) {
+                return size() > UploadIndex.this.maxEntries;
+            }
+        };
+        try {
+            final long validLength = file.length() > 0 ? load() : 0;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (validLength == 0) {
+                channel.truncate(0);
+                channel.write(header());
+            } else {
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+            compactIfNeeded();
+        } catch (IOException e) {
+            closeChannel();
+            throw new WebDavUploaderException("Cannot open upload index " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return length of the valid part of the file, 0 if the file has to be rewritten
+     */
+    private long load() throws IOException {
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (content.length < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            logger.warn("action=webdav_index status=unknown_format_ignored file={}", file.getAbsolutePath());
+            return 0;
+        }
+        final CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 4) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            if (length <= 0 || buffer.remaining() < length + 8) {
+                buffer.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(content, buffer.position(), length);
+            final long checksum = buffer.getLong(buffer.position() + length);
+            if (checksum != crc.getValue()) {
+                buffer.position(start);
+                break;
+            }
+            final DataInputStream record = new DataInputStream(new ByteArrayInputStream(content, buffer.position(),
+                    length));
+            final String remotePath = record.readUTF();
+            final Upload entry = new Upload(record.readLong(), record.readLong(), record.readUTF());
+            if (entry.size == REMOVED) {
+                entries.remove(remotePath);
+            } else {
+                entries.put(remotePath, entry);
+            }
+            records++;
+            buffer.position(buffer.position() + length + 8);
+        }
+        if (buffer.hasRemaining()) {
+            logger.warn("action=webdav_index status=torn_record_ignored file={} bytes={}", file.getAbsolutePath(),
+                    buffer.remaining());
+        }
+        logger.debug("action=webdav_index status=loaded entries={} records={}", entries.size(), records);
+        return buffer.position();
+    }
+
+    /**
+     * Checks whether {@code localFile} is the same as the file last uploaded to {@code remotePath}. Reads the file
+     * only if its modification time has changed while its size hasn't; in that case the modification time
+     * in the index is updated when the content is the same.
+     *
+     * @param remotePath path of the remote file
+     * @param localFile file to upload
+     * @return true if the file doesn't have to be uploaded
+     */
+    public boolean isUnchanged(final String remotePath, final File localFile) {
+        final Upload entry;
+        synchronized (this) {
+            entry = entries.get(remotePath);
+        }
+        if (entry == null) {
+            return false;
+        }
+        final BasicFileAttributes attributes = attributes(localFile);
+        if (attributes.size() != entry.size) {
+            return false;
+        }
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        if (lastModified == entry.lastModified) {
+            return true;
+        }
+        if (!entry.hash.equals(hash(localFile))) {
+            return false;
+        }
+        if (attributes(localFile).lastModifiedTime().toMillis() == lastModified) {
+            append(remotePath, new Upload(entry.size, lastModified, entry.hash));
+        }
+        return true;
+    }
+
+    /**
+     * Records upload of {@code localFile} to {@code remotePath}. Nothing is recorded if the file has been modified
+     * since {@code before} has been taken, as the uploaded content is not known then.
+     *
+     * @param remotePath path of the remote file
+     * @param localFile the uploaded file
+     * @param before attributes of the file taken before the upload, see {@link #attributes(File)}
+     * @param hash lowercase hexadecimal {@link #HASH_ALGORITHM} of the uploaded content or null to compute it
+     */
+    public void record(final String remotePath, final File localFile, final BasicFileAttributes before,
+            final String hash) {
+        Validate.notEmpty(remotePath, "remotePath must be defined");
+        Validate.notNull(before, "before must be defined");
+        final String contentHash = hash != null ? hash : hash(localFile);
+        final BasicFileAttributes after = attributes(localFile);
+        if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            logger.debug("action=webdav_index status=modified_during_upload remote_path={}", remotePath);
+            return;
+        }
+        append(remotePath, new Upload(before.size(), before.lastModifiedTime().toMillis(), contentHash));
+    }
+
+    /**
+     * Forgets the upload to {@code remotePath}, e.g. because the remote file has been deleted.
+     */
+    public void remove(final String remotePath) {
+        synchronized (this) {
+            if (!entries.containsKey(remotePath)) {
+                return;
+            }
+        }
+        append(remotePath, new Upload(REMOVED, 0, ""));
+    }
+
+    /**
+     * @return number of remembered uploads
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Rewrites the index file with the live entries only. If that fails, the index stays open and keeps appending
+     * to the original file.
+     */
+    public synchronized void compact() {
+        checkOpen();
+        final File compacted = new File(file.getPath() + ".compact");
+        IOException failure = null;
+        try {
+            try (FileChannel output = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                output.write(header());
+                // least recently used first, so that the order survives reloading
+                for (Map.Entry<String, Upload> entry : entries.entrySet()) {
+                    output.write(encode(entry.getKey(), entry.getValue()));
+                }
+                output.force(true);
+            }
+            channel.close();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            failure = e;
+            if (!compacted.delete() && compacted.exists()) {
+                logger.warn("action=webdav_index status=compaction_cleanup_error file={}", compacted.getAbsolutePath());
+            }
+        }
+        if (!channel.isOpen()) {
+            // either the compacted or, if it hasn't been moved, the original file
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                channel.position(channel.size());
+            } catch (IOException e) {
+                channel = null;
+                throw new WebDavUploaderException("Cannot reopen upload index " + file.getAbsolutePath(), e);
+            }
+        }
+        if (failure != null) {
+            throw new WebDavUploaderException("Cannot compact upload index " + file.getAbsolutePath(), failure);
+        }
+        logger.debug("action=webdav_index status=compacted records={} entries={}", records, entries.size());
+        records = entries.size();
+    }
+
+    /**
+     * Compacts the index file, so that it's quickly loaded and keeps the order of use of the entries, and closes it.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            compact();
+        } catch (WebDavUploaderException e) {
+            logger.warn("action=webdav_index status=compaction_error", e);
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("action=webdav_index status=close_error", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * @return attributes of the file the index compares
+     */
+    public static BasicFileAttributes attributes(final File localFile) {
+        try {
+            return Files.readAttributes(localFile.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            throw new WebDavUploaderException("Cannot read attributes of " + localFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return lowercase hexadecimal {@link #HASH_ALGORITHM} of the file content
+     */
+    static String hash(final File localFile) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel input = FileChannel.open(localFile.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            while (input.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new WebDavUploaderException("Cannot read " + localFile.getAbsolutePath(), e);
+        }
+        return DigestingRequestEntity.toHex(digest.digest());
+    }
+
+    private void append(final String remotePath, final Upload entry) {
+        final ByteBuffer record = encode(remotePath, entry);
+        synchronized (this) {
+            checkOpen();
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } catch (IOException e) {
+                throw new WebDavUploaderException("Cannot write upload index " + file.getAbsolutePath(), e);
+            }
+            records++;
+            if (entry.size == REMOVED) {
+                entries.remove(remotePath);
+            } else {
+                entries.put(remotePath, entry);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (records > MIN_COMPACTION_RECORDS && records > 2L * entries.size()) {
+            try {
+                compact();
+            } catch (WebDavUploaderException e) {
+                // the records are safe in the original file, compaction is tried again with the next one
+                logger.warn("action=webdav_index status=compaction_error", e);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (channel == null) {
+            throw new IllegalStateException("Upload index " + file.getAbsolutePath() + " has been closed");
+        }
+    }
+
+    private static ByteBuffer header() {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    /**
+     * Record is the length of the body, the body and its CRC32.
+     */
+    private static ByteBuffer encode(final String remotePath, final Upload entry) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(remotePath.length() + 128);
+        final DataOutputStream body = new DataOutputStream(bytes);
+        try {
+            body.writeInt(0);
+            body.writeUTF(remotePath);
+            body.writeLong(entry.size);
+            body.writeLong(entry.lastModified);
+            body.writeUTF(entry.hash);
+            body.writeLong(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        final int length = record.capacity() - 12;
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt(0, length);
+        record.putLong(4 + length, crc.getValue());
+        return record;
+    }
+
+    private static final class Upload {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        Upload(final long size, final long lastModified, final String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.io.InputStream;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Single item of a batch upload - either a local file or an input stream together with its remote location.
+ * @see WebDavUploader#transferBatch(java.util.Collection, int)
+ */
+public final class UploadItem {
+
+    private final File file;
+    private final InputStream inputStream;
+    private final String remoteDir;
+    private final String remoteFileName;
+    private final String contentType;
+
+    /**
+     * Creates new item uploading local file.
+     *
+     * @param file local file to upload
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file
+     * @param contentType content type of the file
+     */
+    public UploadItem(final File file, final String remoteDir, final String remoteFileName, final String contentType) {
+        this(file, null, remoteDir, remoteFileName, contentType);
+        Validate.notNull(file, "File for upload must be defined!");
+    }
+
+    /**
+     * Creates new item uploading given input stream. The stream is not closed after the upload.
+     *
+     * @param inputStream stream to upload
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file
+     * @param contentType content type of the stream
+     */
+    public UploadItem(final InputStream inputStream, final String remoteDir, final String remoteFileName,
+            final String contentType) {
+        this(null, inputStream, remoteDir, remoteFileName, contentType);
+        Validate.notNull(inputStream, "InputStream for upload must be defined!");
+    }
+
+    private UploadItem(final File file, final InputStream inputStream, final String remoteDir,
+            final String remoteFileName, final String contentType) {
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
+        this.file = file;
+        this.inputStream = inputStream;
+        this.remoteDir = remoteDir;
+        this.remoteFileName = remoteFileName;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the local file or null if this item uploads an input stream
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the input stream or null if this item uploads a local file
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public String getRemoteDir() {
+        return remoteDir;
+    }
+
+    public String getRemoteFileName() {
+        return remoteFileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadItem [source=" + (file != null ? file.getAbsolutePath() : "stream")
+                + ", remoteDir=" + remoteDir + ", remoteFileName=" + remoteFileName + "]";
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk journal of completed uploads, so that a restarted process resumes a batch or a multi-part upload instead
+ * of re-sending everything, see {@link WebDavUploader#setUploadJournal(UploadJournal)}.
+ * <p>
+ * Every completed file or part is appended to the journal file as one line and written to the OS immediately.
+ * Entries are keyed by the remote path together with the local path, size and modification time of the uploaded
+ * file, so a file changed since its upload is not considered completed. A line torn by a crash is ignored and cut
+ * off the file when the journal is loaded, so that new entries are not appended to it.
+ */
+public class UploadJournal {
+
+    private static final char SEPARATOR = '\t';
+    private static final char LINE_END = '\n';
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+    private final Map<String, String> entries = new ConcurrentHashMap<String, String>();
+    private OutputStream output;
+
+    /**
+     * Opens the journal, loading entries recorded by previous runs.
+     *
+     * @param file journal file, created if it doesn't exist
+     */
+    public UploadJournal(final File file) {
+        Validate.notNull(file, "file must be defined");
+        this.file = file;
+        try {
+            if (file.isFile()) {
+                final byte[] content = FileUtils.readFileToByteArray(file);
+                final int validLength = lastLineEnd(content) + 1;
+                load(new String(content, 0, validLength, StandardCharsets.UTF_8));
+                if (validLength < content.length) {
+                    logger.warn("action=webdav_journal status=torn_entry_ignored file={}", file.getAbsolutePath());
+                    truncate(validLength);
+                }
+            }
+            this.output = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            throw new WebDavUploaderException("Cannot open upload journal " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private void load(final String content) {
+        int start = 0;
+        int end;
+        while ((end = content.indexOf(LINE_END, start)) >= 0) {
+            final String line = content.substring(start, end);
+            final int separator = line.indexOf(SEPARATOR);
+            if (separator > 0) {
+                entries.put(unescape(line.substring(0, separator)), unescape(line.substring(separator + 1)));
+            }
+            start = end + 1;
+        }
+        logger.debug("action=webdav_journal status=loaded entries={}", entries.size());
+    }
+
+    private static int lastLineEnd(final byte[] content) {
+        for (int i = content.length - 1; i >= 0; i--) {
+            if (content[i] == LINE_END) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void truncate(final long length) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @param key entry key, see {@link #fileKey(File, String)} and {@link #partKey(File, long, long, String)}
+     * @return true if the upload has been recorded as completed
+     */
+    public boolean isCompleted(final String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @param key entry key
+     * @return the value recorded with the completed upload (e.g. checksum of a part) or null
+     */
+    public String getValue(final String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Records completed upload.
+     *
+     * @param key entry key
+     * @param value value to record with the upload, e.g. checksum of a part; may be empty
+     */
+    public void markCompleted(final String key, final String value) {
+        Validate.notEmpty(key, "key must be defined");
+        final String safeValue = value != null ? value : "";
+        final byte[] line = (escape(key) + SEPARATOR + escape(safeValue) + LINE_END).getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (output == null) {
+                throw new IllegalStateException("Upload journal " + file.getAbsolutePath() + " has been closed");
+            }
+            try {
+                output.write(line);
+            } catch (IOException e) {
+                throw new WebDavUploaderException("Cannot write upload journal " + file.getAbsolutePath(), e);
+            }
+        }
+        entries.put(key, safeValue);
+    }
+
+    /**
+     * @return number of recorded uploads
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forgets all recorded uploads and truncates the journal file.
+     */
+    public synchronized void clear() {
+        try {
+            if (output != null) {
+                output.close();
+            }
+            output = new FileOutputStream(file, false);
+        } catch (IOException e) {
+            throw new WebDavUploaderException("Cannot truncate upload journal " + file.getAbsolutePath(), e);
+        }
+        entries.clear();
+    }
+
+    public synchronized void close() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                logger.warn("action=webdav_journal status=close_error", e);
+            }
+            output = null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return key of a whole file uploaded to {@code remotePath}
+     */
+    public static String fileKey(final File localFile, final String remotePath) {
+        return remotePath + SEPARATOR + localFile.getAbsolutePath() + SEPARATOR + localFile.length()
+                + SEPARATOR + localFile.lastModified();
+    }
+
+    /**
+     * @return key of region of a file uploaded as a part to {@code remotePath}
+     */
+    public static String partKey(final File localFile, final long offset, final long length, final String remotePath) {
+        return fileKey(localFile, remotePath) + SEPARATOR + offset + SEPARATOR + length;
+    }
+
+    private static String escape(final String value) {
+        final StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') {
+                escaped.append("\\\\");
+            } else if (c == SEPARATOR) {
+                escaped.append("\\t");
+            } else if (c == LINE_END) {
+                escaped.append("\\n");
+            } else if (c == '\r') {
+                escaped.append("\\r");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(final String value) {
+        final StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++i);
+                unescaped.append(next == 't' ? SEPARATOR : next == 'n' ? LINE_END : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Default thread safe {@link UploadMetricsListener} collecting per-phase latency histograms, upload sizes and
+ * throughput, re-authentication counts and error counts by HTTP status code. Recording allocates nothing.
+ * <p>
+ * Metrics can be exposed via JMX, see {@link #registerMBean(String)}, and may be shared by several uploaders.
+ */
+public class UploadMetrics implements UploadMetricsListener, UploadMetricsMXBean {
+
+    private static final int MAX_STATUS_CODE = 600;
+
+    private volatile Counters counters = new Counters();
+    private final List<WebDavUploader> monitoredUploaders = new CopyOnWriteArrayList<WebDavUploader>();
+
+    @Override
+    public void onRequest(final UploadPhase phase, final int statusCode, final long durationNanos) {
+        final Counters current = counters;
+        current.latencies[phase.ordinal()].record(durationNanos);
+        if (statusCode == 0 || statusCode >= 400) {
+            current.errorsByStatus.incrementAndGet(Math.min(statusCode, MAX_STATUS_CODE - 1));
+        }
+    }
+
+    @Override
+    public void onUpload(final long bytes, final long durationNanos, final boolean success) {
+        final Counters current = counters;
+        if (!success) {
+            current.failedUploads.incrementAndGet();
+            return;
+        }
+        current.uploads.incrementAndGet();
+        if (bytes >= 0) {
+            current.bytesUploaded.addAndGet(bytes);
+            current.uploadNanos.addAndGet(durationNanos);
+        }
+    }
+
+    @Override
+    public void onReauthentication() {
+        counters.reauthentications.incrementAndGet();
+    }
+
+    /**
+     * Adds connection pool of given uploader to the {@link #getConnectionsInPool() pool utilization} statistics.
+     *
+     * @param uploader uploader whose connection pool should be monitored
+     */
+    public void monitorConnectionPool(final WebDavUploader uploader) {
+        Validate.notNull(uploader, "uploader must not be null");
+        monitoredUploaders.add(uploader);
+    }
+
+    /**
+     * Registers these metrics to the platform MBean server.
+     *
+     * @param name object name, e.g. "com.gooddata.webdav:type=UploadMetrics,name=default"
+     */
+    public void registerMBean(final String name) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register upload metrics MBean " + name, e);
+        }
+    }
+
+    /**
+     * @param phase the phase
+     * @return latency histogram of requests of given phase
+     */
+    public LatencyHistogram getLatencyHistogram(final UploadPhase phase) {
+        return counters.latencies[phase.ordinal()];
+    }
+
+    @Override
+    public long getUploadCount() {
+        return counters.uploads.get();
+    }
+
+    @Override
+    public long getFailedUploadCount() {
+        return counters.failedUploads.get();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return counters.bytesUploaded.get();
+    }
+
+    @Override
+    public double getAverageThroughputBytesPerSecond() {
+        final Counters current = counters;
+        final long nanos = current.uploadNanos.get();
+        return nanos == 0 ? 0 : current.bytesUploaded.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public long getReauthenticationCount() {
+        return counters.reauthentications.get();
+    }
+
+    @Override
+    public long getTokenRefreshCount() {
+        return getLatencyHistogram(UploadPhase.TOKEN_REFRESH).getCount();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (UploadPhase phase : UploadPhase.values()) {
+            result.put(phase.name(), getLatencyHistogram(phase).getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return percentiles(99);
+    }
+
+    private Map<String, Double> percentiles(final double percentile) {
+        final Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (UploadPhase phase : UploadPhase.values()) {
+            result.put(phase.name(), getLatencyHistogram(phase).getPercentileMillis(percentile));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Long> getErrorCountsByStatus() {
+        final AtomicLongArray errors = counters.errorsByStatus;
+        final Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (int status = 0; status < MAX_STATUS_CODE; status++) {
+            final long count = errors.get(status);
+            if (count > 0) {
+                result.put(status, count);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getConnectionsInPool() {
+        int connections = 0;
+        for (WebDavUploader uploader : monitoredUploaders) {
+            connections += uploader.getConnectionsInPool();
+        }
+        return connections;
+    }
+
+    @Override
+    public int getMaxConnections() {
+        int connections = 0;
+        for (WebDavUploader uploader : monitoredUploaders) {
+            connections += uploader.getMaxConnections();
+        }
+        return connections;
+    }
+
+    @Override
+    public void reset() {
+        counters = new Counters();
+    }
+
+    @Override
+    public String toString() {
+        return "UploadMetrics [uploads=" + getUploadCount() + ", failedUploads=" + getFailedUploadCount()
+                + ", bytesUploaded=" + getBytesUploaded() + ", reauthentications=" + getReauthenticationCount()
+                + ", putP99Millis=" + getLatencyHistogram(UploadPhase.PUT).getPercentileMillis(99) + "]";
+    }
+
+    private static final class Counters {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[UploadPhase.values().length];
+        private final AtomicLongArray errorsByStatus = new AtomicLongArray(MAX_STATUS_CODE);
+        private final AtomicLong uploads = new AtomicLong();
+        private final AtomicLong failedUploads = new AtomicLong();
+        private final AtomicLong bytesUploaded = new AtomicLong();
+        private final AtomicLong uploadNanos = new AtomicLong();
+        private final AtomicLong reauthentications = new AtomicLong();
+
+        private Counters() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * Listener notified about requests and uploads performed by {@link WebDavUploader} and
+ * {@link WebDavSstAuthenticator}. Implementations are called on the upload threads and must be thread safe and fast.
+ * @see UploadMetrics
+ */
+public interface UploadMetricsListener {
+
+    /**
+     * Called after every HTTP request.
+     *
+     * @param phase phase the request belongs to
+     * @param statusCode returned HTTP status code or 0 if the request failed with an I/O error
+     * @param durationNanos duration of the request including re-authentication and resend
+     */
+    void onRequest(UploadPhase phase, int statusCode, long durationNanos);
+
+    /**
+     * Called after every upload (MKCOL requests and PUT).
+     *
+     * @param bytes number of bytes of the body written by the last PUT, counted while sending when the upload computes
+     *              a {@link WebDavUploader#setDigestAlgorithm(String) digest} or reports progress, otherwise the
+     *              size of the content or -1 if it's not known (e.g. compressed or chunked body)
+     * @param durationNanos duration of the whole upload including creation of the remote directories
+     * @param success whether the upload succeeded
+     */
+    void onUpload(long bytes, long durationNanos, boolean success);
+
+    /**
+     * Called when a request is rejected because of expired temporary token and is going to be resent.
+     */
+    void onReauthentication();
+}
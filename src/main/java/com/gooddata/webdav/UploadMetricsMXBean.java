@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link UploadMetrics}.
+ */
+public interface UploadMetricsMXBean {
+
+    long getUploadCount();
+
+    long getFailedUploadCount();
+
+    long getBytesUploaded();
+
+    /**
+     * @return average throughput of uploads with known size in bytes per second
+     */
+    double getAverageThroughputBytesPerSecond();
+
+    long getReauthenticationCount();
+
+    long getTokenRefreshCount();
+
+    /**
+     * @return number of requests per phase
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * @return median request latency per phase in milliseconds
+     */
+    Map<String, Double> getLatencyP50Millis();
+
+    /**
+     * @return 99th percentile of request latency per phase in milliseconds
+     */
+    Map<String, Double> getLatencyP99Millis();
+
+    /**
+     * @return number of failed requests per HTTP status code, I/O errors are counted under status 0
+     */
+    Map<Integer, Long> getErrorCountsByStatus();
+
+    /**
+     * @return number of connections currently held by connection pools of monitored uploaders
+     */
+    int getConnectionsInPool();
+
+    /**
+     * @return maximum number of connections of monitored uploaders
+     */
+    int getMaxConnections();
+
+    void reset();
+}
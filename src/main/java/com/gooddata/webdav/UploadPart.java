@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * One uploaded part of a {@link MultipartManifest multi-part upload}.
+ */
+public class UploadPart {
+
+    private final String name;
+    private final long offset;
+    private final long size;
+    private final String checksum;
+
+    /**
+     * @param name remote file name of the part
+     * @param offset position of the part in the original file
+     * @param size size of the part in bytes
+     * @param checksum hexadecimal checksum of the part content
+     */
+    public UploadPart(final String name, final long offset, final long size, final String checksum) {
+        Validate.notEmpty(name, "name must be defined");
+        this.name = name;
+        this.offset = offset;
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadPart{name=" + name + ", offset=" + offset + ", size=" + size + ", checksum=" + checksum + "}";
+    }
+}
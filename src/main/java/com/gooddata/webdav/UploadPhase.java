@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * Phases of the upload process measured by {@link UploadMetricsListener}.
+ */
+public enum UploadPhase {
+    MKCOL,
+    PUT,
+    PROPFIND,
+    DELETE,
+    TOKEN_REFRESH,
+    OTHER;
+
+    /**
+     * @param methodName name of HTTP method
+     * @return phase the HTTP method belongs to
+     */
+    public static UploadPhase forMethod(final String methodName) {
+        if ("PUT".equals(methodName)) {
+            return PUT;
+        } else if ("MKCOL".equals(methodName)) {
+            return MKCOL;
+        } else if ("PROPFIND".equals(methodName)) {
+            return PROPFIND;
+        } else if ("DELETE".equals(methodName)) {
+            return DELETE;
+        }
+        return OTHER;
+    }
+}
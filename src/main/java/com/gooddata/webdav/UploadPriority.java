@@ -0,0 +1,16 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * Priority of an asynchronous upload, see {@link UploadScheduler}. Uploads with higher priority are started first,
+ * uploads with the same priority in the order of submission.
+ */
+public enum UploadPriority {
+    /** Latency sensitive uploads, may use workers reserved by {@link UploadScheduler}. */
+    HIGH,
+    NORMAL,
+    /** Bulk loads. */
+    LOW
+}
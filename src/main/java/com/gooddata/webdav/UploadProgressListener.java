@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+/**
+ * Listener notified about progress of an upload started by
+ * {@link WebDavUploader#startTransfer(java.io.File, String, String, String, UploadProgressListener)}.
+ * Progress is reported on the uploading thread and stalls on a monitoring thread, so implementations must be thread
+ * safe and fast; they may {@link UploadHandle#cancel() cancel} the upload.
+ */
+public interface UploadProgressListener {
+
+    /**
+     * Called after every {@link WebDavUploader#setProgressIntervalBytes(long) interval of bytes} or
+     * {@link WebDavUploader#setProgressIntervalMillis(long) time}, whichever comes first, and when the whole body
+     * has been sent. The count starts again from zero when the body is resent, e.g. by a retry.
+     *
+     * @param handle the upload
+     * @param bytesSent number of bytes of the body sent so far
+     * @param contentLength length of the body or -1 if it's not known
+     */
+    void onProgress(UploadHandle handle, long bytesSent, long contentLength);
+
+    /**
+     * Called once the upload has sent no bytes for the {@link WebDavUploader#setStallTimeoutMillis(long) stall
+     * timeout}, e.g. because the connection or the server hangs, and again after every further timeout of no
+     * progress.
+     *
+     * @param handle the upload
+     * @param stalledMillis how long has the upload made no progress
+     */
+    void onStalled(UploadHandle handle, long stalledMillis);
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Outcome of a successful upload, see {@link WebDavUploader#setDigestAlgorithm(String)} and
+ * {@link WebDavUploader#setDigestVerification(DigestVerification)}.
+ */
+public final class UploadResult {
+
+    private final String remotePath;
+    private final long contentLength;
+    private final String digestAlgorithm;
+    private final String digest;
+    private final String etag;
+    private final boolean verified;
+    private final boolean skipped;
+
+    UploadResult(final String remotePath, final long contentLength, final String digestAlgorithm, final String digest,
+            final String etag, final boolean verified) {
+        this(remotePath, contentLength, digestAlgorithm, digest, etag, verified, false);
+    }
+
+    UploadResult(final String remotePath, final long contentLength, final String digestAlgorithm, final String digest,
+            final String etag, final boolean verified, final boolean skipped) {
+        Validate.notEmpty(remotePath, "remotePath must not be empty");
+        this.remotePath = remotePath;
+        this.contentLength = contentLength;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digest = digest;
+        this.etag = etag;
+        this.verified = verified;
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return path of the uploaded file on the server, e.g. {@code /uploads/dir/data.csv}
+     */
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    /**
+     * @return number of uploaded bytes or -1 if unknown
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return algorithm of {@link #getDigest()} or null if no digest has been computed
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return lowercase hexadecimal digest of the uploaded bytes or null if no digest has been computed
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return ETag of the uploaded file returned by the server or null
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return true if the server confirmed the digest of the uploaded file
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * @return true if the file has not been uploaded because the {@link WebDavUploader#setUploadIndex(UploadIndex)
+     *         upload index} knows it's unchanged since its last upload
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadResult [remotePath=" + remotePath + ", contentLength=" + contentLength + ", digest="
+                + digestAlgorithm + ":" + digest + ", etag=" + etag + ", verified=" + verified + ", skipped=" + skipped + "]";
+    }
+}
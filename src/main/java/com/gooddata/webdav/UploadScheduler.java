@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs asynchronous uploads submitted by {@link WebDavUploader}. Submitted uploads wait in a bounded queue ordered by
+ * {@link UploadPriority} and are started by a fixed number of worker threads. Some workers can be reserved for
+ * {@link UploadPriority#HIGH} uploads, so that small latency sensitive uploads don't wait for bulk loads occupying all
+ * the other workers.
+ * <p>
+ * An upload {@link #submitAsync(UploadPriority, Callable) submitted as asynchronous} only occupies a worker while it
+ * is being started; it then runs on the transport without holding a thread, so the number of running uploads is
+ * limited by {@code maxRunningUploads} rather than by the number of workers. Reserved workers also reserve the same
+ * number of running uploads for {@link UploadPriority#HIGH} uploads.
+ * <p>
+ * When the queue is full, submission either waits for free space or fails, depending on {@link QueueFullPolicy}.
+ * Cancelling the returned future removes a waiting upload from the queue; an upload which has already started
+ * runs to completion.
+ * <p>
+ * The workers are started by the first submitted upload and stopped by {@link #shutdown()}. The scheduler may be
+ * shared by several uploaders.
+ */
+public class UploadScheduler {
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Behaviour of {@link UploadScheduler#submit(UploadPriority, Callable)} when the queue is full.
+     */
+    public enum QueueFullPolicy {
+        /** The submitting thread waits for free space in the queue. */
+        BLOCK,
+        /** The returned future fails with {@link RejectedExecutionException}. */
+        REJECT
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int workers;
+    private final int reservedWorkers;
+    private final int maxRunningUploads;
+    private final int queueCapacity;
+    private final QueueFullPolicy queueFullPolicy;
+    private final ThreadFactory threadFactory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<Task<?>>();
+    private long sequence;
+    private int runningTasks;
+    private boolean started;
+    private boolean shutdown;
+
+    /**
+     * Creates scheduler with {@link #DEFAULT_WORKERS} workers (one of them reserved for high priority uploads) and
+     * blocking queue of {@link #DEFAULT_QUEUE_CAPACITY} uploads.
+     */
+    public UploadScheduler() {
+        this(DEFAULT_WORKERS, 1, DEFAULT_QUEUE_CAPACITY, QueueFullPolicy.BLOCK, false);
+    }
+
+    /**
+     * Creates new scheduler running at most {@code workers} uploads at once.
+     *
+     * @see #UploadScheduler(int, int, int, int, QueueFullPolicy, boolean)
+     */
+    public UploadScheduler(final int workers, final int reservedWorkers, final int queueCapacity,
+            final QueueFullPolicy queueFullPolicy, final boolean virtualThreads) {
+        this(workers, reservedWorkers, workers, queueCapacity, queueFullPolicy, virtualThreads);
+    }
+
+    /**
+     * Creates new scheduler. Its workers are started by the first submitted upload.
+     *
+     * @param workers number of worker threads starting the uploads and running the synchronous ones
+     * @param reservedWorkers number of workers running only {@link UploadPriority#HIGH} uploads, less than {@code workers}
+     * @param maxRunningUploads maximum number of concurrently running uploads including the asynchronous ones,
+     *                          at least {@code workers}
+     * @param queueCapacity maximum number of uploads waiting in the queue
+     * @param queueFullPolicy behaviour when the queue is full
+     * @param virtualThreads whether workers should be virtual threads (if supported by the JVM)
+     */
+    public UploadScheduler(final int workers, final int reservedWorkers, final int maxRunningUploads,
+            final int queueCapacity, final QueueFullPolicy queueFullPolicy, final boolean virtualThreads) {
+        Validate.isTrue(workers > 0, "workers must be positive");
+        Validate.isTrue(reservedWorkers >= 0 && reservedWorkers < workers,
+                "reservedWorkers must be non-negative and less than workers");
+        Validate.isTrue(maxRunningUploads >= workers, "maxRunningUploads must not be less than workers");
+        Validate.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+        Validate.notNull(queueFullPolicy, "queueFullPolicy must be defined");
+        this.workers = workers;
+        this.reservedWorkers = reservedWorkers;
+        this.maxRunningUploads = maxRunningUploads;
+        this.queueCapacity = queueCapacity;
+        this.queueFullPolicy = queueFullPolicy;
+        this.threadFactory = UploadThreads.newThreadFactory("webdav-async-upload-", virtualThreads);
+    }
+
+    /**
+     * Queues given upload.
+     *
+     * @param priority priority of the upload
+     * @param upload the upload
+     * @return future completed with the result of the upload; cancelling it removes the upload from the queue
+     */
+    public <T> CompletableFuture<T> submit(final UploadPriority priority, final Callable<T> upload) {
+        Validate.notNull(upload, "upload must be defined");
+        return submitAsync(priority, new Callable<CompletableFuture<T>>() {
+            @Override
+            public CompletableFuture<T> call() throws Exception {
+                return CompletableFuture.completedFuture(upload.call());
+            }
+        });
+    }
+
+    /**
+     * Queues given asynchronous upload. A worker only starts the upload, which keeps its place among the running
+     * uploads until the future it returns completes.
+     *
+     * @param priority priority of the upload
+     * @param upload starts the upload and returns its future
+     * @return future completed with the result of the upload; cancelling it removes the upload from the queue
+     */
+    public <T> CompletableFuture<T> submitAsync(final UploadPriority priority,
+            final Callable<CompletableFuture<T>> upload) {
+        Validate.notNull(priority, "priority must be defined");
+        Validate.notNull(upload, "upload must be defined");
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        lock.lock();
+        try {
+            while (!shutdown && queue.size() >= queueCapacity) {
+                if (queueFullPolicy == QueueFullPolicy.REJECT) {
+                    future.completeExceptionally(new RejectedExecutionException(
+                            "Upload queue is full, " + queueCapacity + " uploads are waiting"));
+                    return future;
+                }
+                notFull.await();
+            }
+            if (shutdown) {
+                future.completeExceptionally(new RejectedExecutionException("Upload scheduler has been shut down"));
+                return future;
+            }
+            if (!started) {
+                startWorkers();
+            }
+            final Task<T> task = new Task<T>(priority, sequence++, upload, future);
+            queue.add(task);
+            notEmpty.signalAll();
+            future.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T result, Throwable failure) {
+                    if (future.isCancelled()) {
+                        dequeue(task);
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    private void dequeue(final Task<?> task) {
+        lock.lock();
+        try {
+            if (queue.remove(task)) {
+                notFull.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Must be called with {@link #lock} held. */
+    private void startWorkers() {
+        for (int i = 0; i < workers; i++) {
+            final boolean highPriorityOnly = i < reservedWorkers;
+            final Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work(highPriorityOnly);
+                }
+            });
+            thread.start();
+        }
+        started = true;
+        logger.debug("action=webdav_async_upload status=workers_started workers={}", workers);
+    }
+
+    private void work(final boolean highPriorityOnly) {
+        while (true) {
+            final Task<?> task;
+            lock.lock();
+            try {
+                while (!shutdown && !isRunnable(queue.peek(), highPriorityOnly)) {
+                    notEmpty.await();
+                }
+                if (shutdown) {
+                    return;
+                }
+                task = queue.poll();
+                runningTasks++;
+                notFull.signal();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            task.start().whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object result, Throwable failure) {
+                    lock.lock();
+                    try {
+                        runningTasks--;
+                        // workers may wait for a free place among the running uploads
+                        notEmpty.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /** Must be called with {@link #lock} held. */
+    private boolean isRunnable(final Task<?> head, final boolean highPriorityOnly) {
+        if (head == null) {
+            return false;
+        }
+        if (head.priority == UploadPriority.HIGH) {
+            return runningTasks < maxRunningUploads;
+        }
+        return !highPriorityOnly && runningTasks < maxRunningUploads - reservedWorkers;
+    }
+
+    /**
+     * @return number of uploads waiting in the queue
+     */
+    public int getQueuedUploads() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of uploads being executed
+     */
+    public int getRunningUploads() {
+        lock.lock();
+        try {
+            return runningTasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getReservedWorkers() {
+        return reservedWorkers;
+    }
+
+    public int getMaxRunningUploads() {
+        return maxRunningUploads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public QueueFullPolicy getQueueFullPolicy() {
+        return queueFullPolicy;
+    }
+
+    /**
+     * Stops the workers after their current uploads. Waiting uploads are cancelled.
+     */
+    public void shutdown() {
+        final List<Task<?>> waiting;
+        lock.lock();
+        try {
+            shutdown = true;
+            waiting = new ArrayList<Task<?>>(queue);
+            queue.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Task<?> task : waiting) {
+            task.future.cancel(false);
+        }
+        logger.debug("action=webdav_async_upload status=shutdown cancelled={}", waiting.size());
+    }
+
+    private static final class Task<T> implements Comparable<Task<?>> {
+        private final UploadPriority priority;
+        private final long sequence;
+        private final Callable<CompletableFuture<T>> upload;
+        private final CompletableFuture<T> future;
+
+        Task(final UploadPriority priority, final long sequence, final Callable<CompletableFuture<T>> upload,
+                final CompletableFuture<T> future) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.upload = upload;
+            this.future = future;
+        }
+
+        /**
+         * Starts the upload.
+         *
+         * @return future completed when the upload is finished
+         */
+        CompletableFuture<?> start() {
+            if (future.isDone()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final CompletableFuture<T> started;
+            try {
+                started = upload.call();
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                return CompletableFuture.completedFuture(null);
+            }
+            return started.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T result, Throwable failure) {
+                    if (failure == null) {
+                        future.complete(result);
+                    } else {
+                        future.completeExceptionally(failure instanceof CompletionException
+                                && failure.getCause() != null ? failure.getCause() : failure);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(final Task<?> other) {
+            final int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread factories for upload workers. Virtual threads are used when requested and supported by the running JVM
+ * (Java 21+), platform daemon threads otherwise.
+ */
+final class UploadThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadThreads.class);
+
+    private UploadThreads() {
+    }
+
+    static ThreadFactory newThreadFactory(final String namePrefix, final boolean virtual) {
+        if (virtual) {
+            final ThreadFactory virtualFactory = virtualThreadFactory(namePrefix);
+            if (virtualFactory != null) {
+                return virtualFactory;
+            }
+            logger.warn("Virtual threads are not supported by this JVM, falling back to platform threads");
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, namePrefix + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Equivalent of {@code Thread.ofVirtual().name(namePrefix, 1).factory()} resolved reflectively, as the build
+     * targets Java 11 and the library must keep running on pre-21 runtimes where the API does not exist.
+     */
+    private static ThreadFactory virtualThreadFactory(final String namePrefix) {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            final Class<?> builderClass = ofVirtual.getReturnType();
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            logger.debug("Cannot create virtual thread factory", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares connections and temporary tokens among many {@link WebDavUploader} instances, typically one per tenant.
+ * <p>
+ * All the transports created by the registry use one connection manager, which keeps a separate pool of connections
+ * for every (protocol, host, port), limited by {@link #setMaxConnectionsPerHost(String, String, int, int) per host}
+ * and by the global limit. Connections idle for longer than the idle timeout are closed by a background reaper.
+ * Temporary tokens are cached per super secure token, so uploaders of the same tenant don't obtain their own ones.
+ * Asynchronous uploads of all the uploaders are run by one {@link #getUploadScheduler() shared scheduler}.
+ * <p>
+ * Credentials and cookies stay isolated - every uploader gets its own {@link HttpClientTransport} (cheap, just
+ * a handle of the shared pool) and requests carry their own cookie state.
+ */
+public class WebDavClientRegistry {
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+    private final IdleConnectionTimeoutThread idleConnectionReaper = new IdleConnectionTimeoutThread();
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(
+            UploadThreads.newThreadFactory("webdav-shared-transport-", false));
+    private final UploadScheduler uploadScheduler = new UploadScheduler();
+    private final ConcurrentMap<String, WebDavSstAuthenticator> authenticators =
+            new ConcurrentHashMap<String, WebDavSstAuthenticator>();
+    private final ConcurrentMap<String, TemporaryTokenManager> tokenManagers =
+            new ConcurrentHashMap<String, TemporaryTokenManager>();
+
+    /** @see #WebDavClientRegistry(int, int, long) */
+    public WebDavClientRegistry() {
+        this(DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates new registry.
+     *
+     * @param maxTotalConnections maximum number of connections to all hosts
+     * @param maxConnectionsPerHost default maximum number of connections to one (protocol, host, port)
+     * @param idleTimeoutMillis time after which idle connections are closed
+     */
+    public WebDavClientRegistry(final int maxTotalConnections, final int maxConnectionsPerHost,
+            final long idleTimeoutMillis) {
+        Validate.isTrue(maxTotalConnections > 0, "maxTotalConnections must be positive");
+        Validate.isTrue(maxConnectionsPerHost > 0, "maxConnectionsPerHost must be positive");
+        Validate.isTrue(idleTimeoutMillis > 0, "idleTimeoutMillis must be positive");
+        connectionManager.getParams().setMaxTotalConnections(maxTotalConnections);
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+
+        idleConnectionReaper.setName("webdav-idle-connection-reaper");
+        idleConnectionReaper.setConnectionTimeout(idleTimeoutMillis);
+        idleConnectionReaper.setTimeoutInterval(Math.max(1000L, idleTimeoutMillis / 2));
+        idleConnectionReaper.addConnectionManager(connectionManager);
+        idleConnectionReaper.start();
+    }
+
+    /**
+     * Creates uploader authenticated by {@code superSecureToken}, see
+     * {@link WebDavUploader#WebDavUploader(String, int, String, String, int, String, String)}.
+     */
+    public WebDavUploader createUploader(final String webDavHost, final int webDavPort, final String webDavProtocol,
+            final String gdcHost, final int gdcPort, final String gdcProtocol, final String superSecureToken) {
+        final WebDavUploader uploader = new WebDavUploader(createTransport(webDavProtocol, webDavHost, webDavPort),
+                getTokenManager(gdcProtocol, gdcHost, gdcPort, superSecureToken));
+        uploader.setUploadScheduler(uploadScheduler);
+        return uploader;
+    }
+
+    /**
+     * Creates uploader authenticated by username and password, see
+     * {@link WebDavUploader#WebDavUploader(String, String, String, int, String)}.
+     */
+    public WebDavUploader createUploader(final String webDavHost, final String username, final String password,
+            final int webDavPort, final String webDavProtocol) {
+        final WebDavTransport transport = createTransport(webDavProtocol, webDavHost, webDavPort);
+        transport.setCredentials(username, password);
+        final WebDavUploader uploader = new WebDavUploader(transport);
+        uploader.setUploadScheduler(uploadScheduler);
+        return uploader;
+    }
+
+    /**
+     * @return new transport with own credentials using the shared connections
+     */
+    public HttpClientTransport createTransport(final String protocol, final String host, final int port) {
+        return new HttpClientTransport(protocol, host, port, connectionManager, asyncExecutor);
+    }
+
+    /**
+     * @return authenticator shared by all tenants of given GDC rest api host
+     */
+    public WebDavSstAuthenticator getAuthenticator(final String protocol, final String host, final int port) {
+        final String key = key(protocol, host, port);
+        WebDavSstAuthenticator authenticator = authenticators.get(key);
+        if (authenticator == null) {
+            final WebDavSstAuthenticator created = new WebDavSstAuthenticator(createTransport(protocol, host, port));
+            authenticator = authenticators.putIfAbsent(key, created);
+            if (authenticator == null) {
+                authenticator = created;
+            }
+        }
+        return authenticator;
+    }
+
+    /**
+     * @return token manager shared by all uploaders using given super secure token
+     */
+    public TemporaryTokenManager getTokenManager(final String gdcProtocol, final String gdcHost, final int gdcPort,
+            final String superSecureToken) {
+        Validate.notEmpty(superSecureToken, "Super secure token must not be empty");
+        final String key = key(gdcProtocol, gdcHost, gdcPort) + " " + superSecureToken;
+        TemporaryTokenManager tokenManager = tokenManagers.get(key);
+        if (tokenManager == null) {
+            final TemporaryTokenManager created = new TemporaryTokenManager(
+                    getAuthenticator(gdcProtocol, gdcHost, gdcPort), superSecureToken);
+            tokenManager = tokenManagers.putIfAbsent(key, created);
+            if (tokenManager == null) {
+                tokenManager = created;
+            }
+        }
+        return tokenManager;
+    }
+
+    /**
+     * Forgets the temporary token cached for given super secure token, e.g. when the tenant is removed.
+     */
+    public void releaseTokenManager(final String gdcProtocol, final String gdcHost, final int gdcPort,
+            final String superSecureToken) {
+        final TemporaryTokenManager tokenManager = tokenManagers.remove(
+                key(gdcProtocol, gdcHost, gdcPort) + " " + superSecureToken);
+        if (tokenManager != null) {
+            tokenManager.setProactiveRefresh(false);
+        }
+    }
+
+    /**
+     * Sets maximum number of connections to given host, overriding the default per host limit.
+     */
+    public void setMaxConnectionsPerHost(final String protocol, final String host, final int port,
+            final int maxConnections) {
+        Validate.isTrue(maxConnections > 0, "maxConnections must be positive");
+        connectionManager.getParams().setMaxConnectionsPerHost(hostConfiguration(protocol, host, port), maxConnections);
+    }
+
+    public int getMaxConnectionsPerHost(final String protocol, final String host, final int port) {
+        return connectionManager.getParams().getMaxConnectionsPerHost(hostConfiguration(protocol, host, port));
+    }
+
+    public void setMaxTotalConnections(final int maxTotalConnections) {
+        Validate.isTrue(maxTotalConnections > 0, "maxTotalConnections must be positive");
+        connectionManager.getParams().setMaxTotalConnections(maxTotalConnections);
+    }
+
+    public int getMaxTotalConnections() {
+        return connectionManager.getParams().getMaxTotalConnections();
+    }
+
+    /**
+     * @return number of open connections to all hosts
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * @return number of cached token managers, i.e. of distinct super secure tokens
+     */
+    public int getTokenManagerCount() {
+        return tokenManagers.size();
+    }
+
+    /**
+     * @return scheduler running asynchronous uploads of all the uploaders created by the registry
+     */
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    /**
+     * Closes all the connections and stops background threads. Uploaders created by the registry can't be used
+     * afterwards.
+     */
+    public void shutdown() {
+        idleConnectionReaper.shutdown();
+        for (TemporaryTokenManager tokenManager : tokenManagers.values()) {
+            tokenManager.setProactiveRefresh(false);
+        }
+        tokenManagers.clear();
+        authenticators.clear();
+        uploadScheduler.shutdown();
+        asyncExecutor.shutdown();
+        connectionManager.shutdown();
+        logger.debug("action=webdav_client_registry status=shutdown");
+    }
+
+    private static HostConfiguration hostConfiguration(final String protocol, final String host, final int port) {
+        final HostConfiguration hostConfiguration = new HostConfiguration();
+        hostConfiguration.setHost(host, port, protocol);
+        return hostConfiguration;
+    }
+
+    private static String key(final String protocol, final String host, final int port) {
+        return protocol + "://" + host + ":" + port;
+    }
+}
@@ -5,16 +5,9 @@ package com.gooddata.webdav;
 
 import java.io.IOException;
 import org.apache.commons.httpclient.Cookie;
-import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.URI;
-import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.cookie.CookieSpecBase;
 import org.apache.commons.httpclient.cookie.MalformedCookieException;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,8 +18,6 @@ import org.slf4j.LoggerFactory;
  */
 public class WebDavSstAuthenticator {
 
-    private static final String URI_TEMPLATE = "${protocol}://${host}:${port}${path}";
-
     private static final String LOGIN_URI = "/gdc/account/login";
     private static final String TOKEN_URI = "/gdc/account/token";
 
@@ -34,27 +25,25 @@ public class WebDavSstAuthenticator {
     public static final String GDCAuthTT_COOKIE = "GDCAuthTT";
 
 
-    private final HttpClient httpClient;
-    private final String host;
-    private final int port;
-    private final String protocol;
+    private final WebDavTransport transport;
+    private volatile UploadMetricsListener metricsListener;
 
     private static final Logger logger = LoggerFactory.getLogger(WebDavSstAuthenticator.class);
 
-    static {
-        logger.info("Registering AcceptGDCAuthSSTCookiePolicy");
-        CookiePolicy.registerCookieSpec("AcceptGDCAuthSSTCookiePolicy", AcceptGDCAuthSSTCookiePolicy.class);
-    }
-
-
 
     public WebDavSstAuthenticator(String protocol, String host, int port) {
-        Validate.notEmpty(protocol);
-        Validate.notEmpty(host);
-        this.httpClient = new HttpClient();
-        this.host = host;
-        this.port = port;
-        this.protocol = protocol;
+        //pooled connection manager, the authenticator may be used by several threads at once
+        this(new HttpClientTransport(protocol, host, port));
+    }
+
+    /**
+     * Creates new authenticator which sends token requests through given {@code transport}.
+     *
+     * @param transport transport connected to GDC rest api host
+     */
+    public WebDavSstAuthenticator(WebDavTransport transport) {
+        Validate.notNull(transport, "transport must not be null");
+        this.transport = transport;
     }
 
     /**
@@ -63,78 +52,82 @@ public class WebDavSstAuthenticator {
      * @return {@link UserLogin} object with correctly set SST and TT tokens
      */
     public UserLogin authenticate(String superSecureToken) {
-        String gdcAuthTT = null;
-        //Requesting GDCAuthTT
-        String ttURI = getFullURI(protocol, host, port, TOKEN_URI);
-        HttpMethod temporaryTokenGet = new GetMethod(ttURI);
+        //Requesting GDCAuthTT with SST token cookie
+        final TransportRequest temporaryTokenGet = new TransportRequest("GET", TOKEN_URI)
+                .setCookie(GDC_AUTH_SST_COOKIE, superSecureToken);
+        final TransportResponse response = doHttpCall(temporaryTokenGet);
+        final String gdcAuthTT;
         try {
-            HttpState httpState = new HttpState();
-            //set SST token
-            Cookie ssTcookie = new Cookie();
-            ssTcookie.setDomain(host);
-            ssTcookie.setName(GDC_AUTH_SST_COOKIE);
-            ssTcookie.setValue(superSecureToken);
-            ssTcookie.setPath("/gdc/account");
-            httpState.addCookie(ssTcookie);
-
-            //do the request
-            doHttpCall(protocol, httpState, temporaryTokenGet);
-
-            Cookie[] cookies = httpState.getCookies();
-            for(int i = 0; i < cookies.length; i++ ){
-                Cookie cookie = cookies[i];
-                String name = cookie.getName();
-                String value = cookie.getValue();
-                logger.trace("Response header name={} value={}", name, value);
-                if(GDCAuthTT_COOKIE.equals(name)) {
-                    gdcAuthTT = value;
-                    break;
-                }
-            }
+            gdcAuthTT = response.getCookie(GDCAuthTT_COOKIE);
             if(gdcAuthTT == null) {
                 throw new RuntimeException("Missing GDCAuthTT cookie in the response");
             }
             logger.debug("Returned GDCAuthTT={}", gdcAuthTT);
         } finally {
-            temporaryTokenGet.releaseConnection();
+            response.release();
         }
 
         return new UserLogin(null, null, superSecureToken, gdcAuthTT);
     }
 
-    private String getFullURI(String protocol, String host, int port, String path) {
-        return URI_TEMPLATE.replace("${protocol}", protocol)
-                .replace("${host}", host)
-                .replace("${port}", String.valueOf(port))
-                .replace("${path}", path);
-    }
+    private TransportResponse doHttpCall(TransportRequest request){
+        //GDC REST API supports only JSON so we can hardcode headers for content type negotiation setup
+        request.setHeader("Content-Type", "application/json; charset= utf-8");
+        request.setHeader("Accept", "application/json");
 
-    private void doHttpCall(String protocol, HttpState httpState, HttpMethod method){
-        URI uri = null;
+        final TransportResponse response;
         try {
-            uri = method.getURI();
-            //GDC REST API supports only JSON so we can hardcode headers for content type negotiation setup
-            method.setRequestHeader("Content-Type", "application/json; charset= utf-8");
-            method.setRequestHeader("Accept", "application/json");
-
-            //register special cookie policy that is more friendly to cookie's origin path
-            method.getParams().setCookiePolicy("AcceptGDCAuthSSTCookiePolicy");
-
-            int statusCode = httpClient.executeMethod(new HostConfiguration(), method, httpState);
-
-            if (isSuccess(statusCode)) {
-                return;
-            } else if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-                //incorrect username or password
-                throw new RuntimeException("Wrong credentials!");
-            } else {
-                throw new RuntimeException("Unexpected status code=" + statusCode + " returned by call to uri=" + uri);
-            }
+            response = executeRequest(request);
         } catch (IOException e) {
-            throw new RuntimeException("Exception occured while calling uri=" + uri, e);
+            throw new RuntimeException("Exception occured while calling uri=" + request.getPath(), e);
+        }
+
+        final int statusCode = response.getStatusCode();
+        if (isSuccess(statusCode)) {
+            return response;
+        }
+        response.release();
+        if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+            //incorrect username or password
+            throw new RuntimeException("Wrong credentials!");
+        } else {
+            throw new RuntimeException("Unexpected status code=" + statusCode + " returned by call to uri="
+                    + request.getPath());
         }
     }
 
+    private TransportResponse executeRequest(TransportRequest request) throws IOException {
+        final UploadMetricsListener listener = metricsListener;
+        if (listener == null) {
+            return transport.execute(request);
+        }
+        final long start = System.nanoTime();
+        int statusCode = 0;
+        try {
+            final TransportResponse response = transport.execute(request);
+            statusCode = response.getStatusCode();
+            return response;
+        } finally {
+            listener.onRequest(UploadPhase.TOKEN_REFRESH, statusCode, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return transport used for token requests
+     */
+    public WebDavTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets listener notified about token requests.
+     *
+     * @param metricsListener the listener or null to disable instrumentation
+     */
+    public void setMetricsListener(UploadMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
     private boolean isSuccess(int statusCode) {
         return statusCode < 400;
     }
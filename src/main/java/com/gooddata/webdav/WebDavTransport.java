@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * HTTP engine used by {@link WebDavUploader} and {@link WebDavSstAuthenticator} to talk to a single host.
+ * <p>
+ * {@link HttpClientTransport} (blocking commons-httpclient) is the default implementation, {@link JdkHttpTransport}
+ * is a non-blocking implementation with HTTP/2 support.
+ */
+public interface WebDavTransport {
+
+    /**
+     * Executes given request and waits for the response.
+     *
+     * @param request the request
+     * @return the response, must be {@link TransportResponse#release() released} by the caller
+     * @throws IOException if the request cannot be sent or the response cannot be read
+     */
+    TransportResponse execute(TransportRequest request) throws IOException;
+
+    /**
+     * Executes given request asynchronously. The returned future completes exceptionally with {@link IOException}
+     * if the request cannot be sent.
+     *
+     * @param request the request
+     * @return future of the response, which must be {@link TransportResponse#release() released} by the caller
+     */
+    CompletableFuture<TransportResponse> executeAsync(TransportRequest request);
+
+    /**
+     * Sets credentials used for HTTP BASIC authentication.
+     */
+    void setCredentials(String username, String password);
+
+    /**
+     * @return host name requests are sent to
+     */
+    String getHost();
+
+    /**
+     * Sets maximum number of concurrent connections (or concurrently executed requests for multiplexing engines).
+     */
+    void setMaxConnections(int maxConnections);
+
+    int getMaxConnections();
+
+    /**
+     * @return number of connections (or executing requests) currently held by the transport
+     */
+    int getConnectionsInPool();
+
+    /**
+     * Closes idle connections and releases resources held by the transport.
+     */
+    void shutdown();
+}
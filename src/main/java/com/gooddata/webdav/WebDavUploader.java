@@ -6,45 +6,101 @@ package com.gooddata.webdav;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import static java.lang.String.format;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import org.apache.commons.httpclient.Cookie;
-import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import javax.xml.stream.XMLStreamException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
-import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.lang.Validate;
-import org.apache.jackrabbit.webdav.DavException;
-import org.apache.jackrabbit.webdav.MultiStatus;
-import org.apache.jackrabbit.webdav.MultiStatusResponse;
-import org.apache.jackrabbit.webdav.client.methods.MkColMethod;
-import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class WebDavUploader {
 
     private static final String WEBDAV_URI = "/uploads";
-    private static final String PUT_TEMPLATE = WEBDAV_URI + "/%s/%s";
 
     private static final String DIRECTORY_SEPARATOR = "/";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+    private static final byte[] PROPFIND_BODY = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<D:propfind xmlns:D=\"DAV:\"><D:prop>"
+            + "<D:resourcetype/><D:getcontentlength/><D:getlastmodified/><D:getetag/>"
+            + "</D:prop></D:propfind>").getBytes(StandardCharsets.UTF_8);
+
+    /** Value of {@link #setExpectContinueThreshold(long)} which disables the "Expect: 100-continue" handshake. */
+    public static final long EXPECT_CONTINUE_DISABLED = -1;
+
+    public static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_PART_PARALLELISM = 4;
+    /** Suffix of the manifest uploaded by {@link #transferLargeFile(File, String, String, String)}. */
+    public static final String MANIFEST_SUFFIX = ".manifest.json";
+
+    private static final String PART_NAME_FORMAT = "%s.part%04d";
+    private static final String PART_CHECKSUM_ALGORITHM = "SHA-256";
+
+    public static final long DEFAULT_PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 60 * 1000L;
 
     private static final int DEFAULT_PORT = 443;
     private static final String DEFAULT_PROTOCOL = "https";
 
-    private final HttpClient webDavHttpClient;
-    private final String superSecureToken;
-    private final WebDavSstAuthenticator gdcAuthenticator;
-    private volatile UserLogin userLogin;
+    private final WebDavTransport transport;
+    private final TemporaryTokenManager tokenManager;
+    private volatile RemoteDirectoryCache directoryCache = new RemoteDirectoryCache();
+    private volatile boolean streamingUploads;
+    private volatile int streamBufferSize = StreamingRequestEntity.DEFAULT_BUFFER_SIZE;
+    private volatile long expectContinueThreshold = EXPECT_CONTINUE_DISABLED;
+    private volatile int fileBufferSize = FileChannelRequestEntity.DEFAULT_BUFFER_SIZE;
+    private volatile UploadMetricsListener metricsListener;
+    private volatile UploadScheduler uploadScheduler;
+    /** Whether {@link #uploadScheduler} is the default one created by this uploader, guarded by {@code this}. */
+    private boolean ownsUploadScheduler;
+    private volatile long partSize = DEFAULT_PART_SIZE;
+    private volatile int partParallelism = DEFAULT_PART_PARALLELISM;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private volatile UploadJournal uploadJournal;
+    private volatile UploadIndex uploadIndex;
+    private volatile boolean rangeResume;
+    private volatile UploadCompression compression = UploadCompression.NONE;
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private volatile int compressionParallelism = 1;
+    private volatile String digestAlgorithm;
+    private volatile DigestVerification digestVerification = DigestVerification.NONE;
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED);
+    private volatile BandwidthLimiter sharedBandwidthLimiter;
+    private volatile int bandwidthWeight = 1;
+    private volatile long progressIntervalBytes = DEFAULT_PROGRESS_INTERVAL_BYTES;
+    private volatile long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+    private volatile long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -67,11 +123,23 @@ public class WebDavUploader {
      */
     public WebDavUploader(final String webDavHost, final String username, final String password,
             final int webDavPort, final String webDavProtocol) {
-        final HttpClient httpClient = createHttpClient(webDavHost, webDavPort, webDavProtocol);
-        httpClient.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
-        this.webDavHttpClient = httpClient;
-        this.superSecureToken = null;
-        this.gdcAuthenticator = null;
+        final WebDavTransport httpClientTransport = new HttpClientTransport(webDavProtocol, webDavHost, webDavPort);
+        httpClientTransport.setCredentials(username, password);
+        this.transport = httpClientTransport;
+        this.tokenManager = null;
+    }
+
+
+    /**
+     * Creates new instance of {@link WebDavUploader} which will send requests through given {@code transport}
+     * using its {@link WebDavTransport#setCredentials(String, String) credentials} for BASIC authentication.
+     *
+     * @param transport transport connected to WebDAV host, e.g. {@link JdkHttpTransport}
+     */
+    public WebDavUploader(final WebDavTransport transport) {
+        Validate.notNull(transport, "transport must not be null");
+        this.transport = transport;
+        this.tokenManager = null;
     }
 
 
@@ -92,221 +160,2197 @@ public class WebDavUploader {
             final String gdcHost, final int gdcPort, final String gdcProtocol, String superSecureToken) {
         Validate.notEmpty(superSecureToken, "Super secure token must not be empty to be able to authenticate against webdav!");
 
-        this.webDavHttpClient = createHttpClient(webDavHost, webDavPort, webDavProtocol);
-        this.superSecureToken= superSecureToken;
-        this.gdcAuthenticator = new WebDavSstAuthenticator(gdcProtocol, gdcHost, gdcPort);
+        this.transport = new HttpClientTransport(webDavProtocol, webDavHost, webDavPort);
+        this.tokenManager = new TemporaryTokenManager(new WebDavSstAuthenticator(gdcProtocol, gdcHost, gdcPort),
+                superSecureToken);
+        logger.debug("New instance of WebDavUploader using SST token for authentication has been created.");
+    }
+
+
+    /**
+     * Creates new instance of {@link WebDavUploader} which will send requests through given {@code transport}
+     * and authenticate them using temporary tokens of given (possibly shared) {@code tokenManager},
+     * see {@link WebDavClientRegistry}.
+     *
+     * @param transport transport connected to WebDAV host
+     * @param tokenManager token manager providing temporary tokens
+     */
+    public WebDavUploader(final WebDavTransport transport, final TemporaryTokenManager tokenManager) {
+        Validate.notNull(transport, "transport must not be null");
+        Validate.notNull(tokenManager, "tokenManager must not be null");
+
+        this.transport = transport;
+        this.tokenManager = tokenManager;
+        logger.debug("New instance of WebDavUploader using SST token for authentication has been created.");
+    }
+
+
+    /**
+     * Creates new instance of {@link WebDavUploader} which will send requests through given {@code transport}
+     * and authenticate them using temporary tokens obtained for {@code superSecureToken}.
+     *
+     * @param transport transport connected to WebDAV host, e.g. {@link JdkHttpTransport}
+     * @param gdcAuthenticator authenticator connected to GDC rest api host
+     * @param superSecureToken Super secure token used for WebDAV authentication
+     */
+    public WebDavUploader(final WebDavTransport transport, final WebDavSstAuthenticator gdcAuthenticator,
+            final String superSecureToken) {
+        Validate.notNull(transport, "transport must not be null");
+        Validate.notNull(gdcAuthenticator, "gdcAuthenticator must not be null");
+        Validate.notEmpty(superSecureToken, "Super secure token must not be empty to be able to authenticate against webdav!");
+
+        this.transport = transport;
+        this.tokenManager = new TemporaryTokenManager(gdcAuthenticator, superSecureToken);
         logger.debug("New instance of WebDavUploader using SST token for authentication has been created.");
     }
 
 
-    public void transferFile(final File fileToUpload, final String remoteDir, final String remoteFileName,
+    public UploadResult transferFile(final File fileToUpload, final String remoteDir, final String remoteFileName,
             final String contentType) {
         Validate.notNull(fileToUpload, "File for upload must be defined!");
         Validate.isTrue(fileToUpload.isFile(), format("File for upload=%s must exist!", fileToUpload.getAbsolutePath()));
 
+        final UploadIndex index = uploadIndex;
+        if (index != null) {
+            return transferIndexedFile(index, fileToUpload, remoteDir, remoteFileName, contentType);
+        }
         //upload the file
-        transferRequestEntity(new FileRequestEntity(fileToUpload, contentType), remoteDir, remoteFileName, contentType);
+        return transferRequestEntity(createFileRequestEntity(fileToUpload, contentType), remoteDir, remoteFileName,
+                contentType);
     }
 
 
 
-    public void transferInputStream(final InputStream inputStreamToUpload, final String remoteDir,
+    public UploadResult transferInputStream(final InputStream inputStreamToUpload, final String remoteDir,
             final String remoteFileName, final String contentType) {
         Validate.notNull(inputStreamToUpload, "InputStream for upload must be defined!");
-        transferRequestEntity(new InputStreamRequestEntity(inputStreamToUpload, contentType), remoteDir, remoteFileName, contentType);
+        return transferRequestEntity(createInputStreamRequestEntity(inputStreamToUpload, contentType), remoteDir, remoteFileName,
+                contentType);
+    }
+
+
+    /**
+     * Uploads given stream without buffering it in memory, see {@link StreamingRequestEntity}.
+     *
+     * @param inputStreamToUpload stream to upload
+     * @param contentLength exact length of the stream or {@link StreamingRequestEntity#CONTENT_LENGTH_CHUNKED}
+     *                      to use chunked transfer encoding
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file
+     * @param contentType content type of the stream
+     */
+    public UploadResult transferInputStream(final InputStream inputStreamToUpload, final long contentLength,
+            final String remoteDir, final String remoteFileName, final String contentType) {
+        Validate.notNull(inputStreamToUpload, "InputStream for upload must be defined!");
+        return transferRequestEntity(new StreamingRequestEntity(inputStreamToUpload, contentLength, contentType, streamBufferSize),
+                remoteDir, remoteFileName, contentType);
     }
 
 
 
-    public void transferRequestEntity(final RequestEntity requestEntityToUpload, final String remoteDir,
+    public UploadResult transferRequestEntity(final RequestEntity requestEntityToUpload, final String remoteDir,
             final String remoteFileName, final String contentType) {
         Validate.notNull(requestEntityToUpload, "RequestEntity for uploading must be defined!");
         Validate.notEmpty(remoteDir, "remote dir must be defined!");
         Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
 
-        //create new remote directory with all subdirectories
-        final String[] remoteDirectories = remoteDir.split(DIRECTORY_SEPARATOR);
-        String parentDirectory = WEBDAV_URI;
-        for (String remoteDirectory : remoteDirectories) {
-            final String newDirectory = parentDirectory + "/" + remoteDirectory;
-            final MkColMethod mkdir = new MkColMethod(newDirectory);
-            //if the remote dir already exists, 301 is returned; the directory should not exist now
-            this.executeAndReleaseMethod(mkdir, HttpStatus.SC_CREATED, HttpStatus.SC_MOVED_PERMANENTLY);
+        final UploadCompression compression = this.compression;
+        return putRequestEntity(withDigest(compress(requestEntityToUpload, compression, remoteFileName)), remoteDir,
+                remoteFileName + compression.getSuffix(), directoryCache);
+    }
 
-            // newDirectory is the parent directory for next subdirectory
-            parentDirectory = newDirectory;
-        }
 
-        //upload the file
-        final PutMethod put = new PutMethod(String.format(PUT_TEMPLATE, remoteDir, remoteFileName));
+    /** @see #transferFileAsync(File, String, String, String, UploadPriority) */
+    public CompletableFuture<UploadResult> transferFileAsync(final File fileToUpload, final String remoteDir,
+            final String remoteFileName, final String contentType) {
+        return transferFileAsync(fileToUpload, remoteDir, remoteFileName, contentType, UploadPriority.NORMAL);
+    }
 
-        put.setRequestEntity(requestEntityToUpload);
-        //if the file already existed, 204 is returned instead of 201
-        logger.info("action=webdav_upload status=start");
-        try {
-            this.executeAndReleaseMethod(put, HttpStatus.SC_CREATED);
-        } catch (WebDavUploaderException e) {
-            logger.info("action=webdav_upload status=error");
-            throw e;
-        }
-        logger.info("action=webdav_upload status=finished");
+    /**
+     * Queues upload of given file to the {@link #setUploadScheduler(UploadScheduler) upload scheduler} and returns
+     * immediately (unless the queue is full and blocks, see {@link UploadScheduler.QueueFullPolicy}).
+     * <p>
+     * The upload is {@link UploadScheduler#submitAsync(UploadPriority, Callable) asynchronous}: a worker of the
+     * scheduler only starts it and its requests are then executed by {@link WebDavTransport#executeAsync}, so with
+     * a non-blocking transport (e.g. {@link JdkHttpTransport}) a few threads drive as many uploads as the scheduler
+     * runs at once.
+     *
+     * @param fileToUpload file to upload
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file
+     * @param contentType content type of the file
+     * @param priority priority of the upload
+     * @return future completed when the file is uploaded; cancelling it removes the upload from the queue
+     */
+    public CompletableFuture<UploadResult> transferFileAsync(final File fileToUpload, final String remoteDir,
+            final String remoteFileName, final String contentType, final UploadPriority priority) {
+        Validate.notNull(fileToUpload, "File for upload must be defined!");
+        Validate.isTrue(fileToUpload.isFile(), format("File for upload=%s must exist!", fileToUpload.getAbsolutePath()));
+        return getUploadScheduler().submitAsync(priority, new Callable<CompletableFuture<UploadResult>>() {
+            @Override
+            public CompletableFuture<UploadResult> call() {
+                final UploadIndex index = uploadIndex;
+                if (index != null) {
+                    return startIndexedFileTransfer(index, fileToUpload, remoteDir, remoteFileName, contentType);
+                }
+                return startRequestEntityTransfer(createFileRequestEntity(fileToUpload, contentType), remoteDir,
+                        remoteFileName);
+            }
+        });
     }
 
 
+    /** @see #transferInputStreamAsync(InputStream, String, String, String, UploadPriority) */
+    public CompletableFuture<UploadResult> transferInputStreamAsync(final InputStream inputStreamToUpload,
+            final String remoteDir, final String remoteFileName, final String contentType) {
+        return transferInputStreamAsync(inputStreamToUpload, remoteDir, remoteFileName, contentType,
+                UploadPriority.NORMAL);
+    }
 
+    /**
+     * Queues upload of given stream to the {@link #setUploadScheduler(UploadScheduler) upload scheduler}, see
+     * {@link #transferFileAsync(File, String, String, String, UploadPriority)}. The stream is read by a worker
+     * of the scheduler and must stay open until the returned future completes.
+     *
+     * @param inputStreamToUpload stream to upload
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file
+     * @param contentType content type of the stream
+     * @param priority priority of the upload
+     * @return future completed when the stream is uploaded; cancelling it removes the upload from the queue
+     */
+    public CompletableFuture<UploadResult> transferInputStreamAsync(final InputStream inputStreamToUpload,
+            final String remoteDir, final String remoteFileName, final String contentType,
+            final UploadPriority priority) {
+        Validate.notNull(inputStreamToUpload, "InputStream for upload must be defined!");
+        return getUploadScheduler().submitAsync(priority, new Callable<CompletableFuture<UploadResult>>() {
+            @Override
+            public CompletableFuture<UploadResult> call() {
+                return startRequestEntityTransfer(createInputStreamRequestEntity(inputStreamToUpload, contentType),
+                        remoteDir, remoteFileName);
+            }
+        });
+    }
 
 
-    //--------------------------------------------------- PRIVATE STUFF ------------------------------------------------
+    /** @see #startTransfer(RequestEntity, String, String, String, UploadProgressListener) */
+    public UploadHandle startTransfer(final File fileToUpload, final String remoteDir, final String remoteFileName,
+            final String contentType, final UploadProgressListener listener) {
+        Validate.notNull(fileToUpload, "File for upload must be defined!");
+        Validate.isTrue(fileToUpload.isFile(), format("File for upload=%s must exist!", fileToUpload.getAbsolutePath()));
+        return startTransfer(createFileRequestEntity(fileToUpload, contentType), remoteDir, remoteFileName,
+                contentType, listener);
+    }
 
     /**
-     * Creates and configures new instance of {@link HttpClient} suitable for both BASIC and token based authentication
-     * schemes.
+     * Queues upload of given entity to the {@link #setUploadScheduler(UploadScheduler) upload scheduler} like
+     * {@link #transferFileAsync(File, String, String, String)}, returning handle which reports progress of the upload
+     * to {@code listener}, detects {@link #setStallTimeoutMillis(long) stalls} and can cancel the upload.
+     *
+     * @param requestEntityToUpload entity to upload
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file
+     * @param contentType content type of the entity
+     * @param listener listener notified about progress and stalls, may be null
+     * @return handle of the upload
      */
-    private HttpClient createHttpClient(String host, int port, String protocol) {
-        Validate.notEmpty(host, "webdav host cannot be empty");
-        Validate.isTrue(port > 0 && port < 65536, "valid webdav port must be specified");
-        Validate.notEmpty(protocol, "webdav protocol cannot be empty");
+    public UploadHandle startTransfer(final RequestEntity requestEntityToUpload, final String remoteDir,
+            final String remoteFileName, final String contentType, final UploadProgressListener listener) {
+        Validate.notNull(requestEntityToUpload, "RequestEntity for uploading must be defined!");
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
 
-        final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        final UploadCompression compression = this.compression;
+        final RequestEntity entity = compress(requestEntityToUpload, compression, remoteFileName);
+        final UploadHandle handle = new UploadHandle(remoteFileName + compression.getSuffix(),
+                entity.getContentLength(), listener, progressIntervalBytes, progressIntervalMillis, stallTimeoutMillis);
+        handle.scheduled(getUploadScheduler().submitAsync(UploadPriority.NORMAL,
+                new Callable<CompletableFuture<UploadResult>>() {
+                    @Override
+                    public CompletableFuture<UploadResult> call() {
+                        handle.started();
+                        return putRequestEntityAsync(withDigest(new ProgressRequestEntity(entity, handle)),
+                                remoteDir, handle.getRemoteFileName(), directoryCache).whenComplete(
+                                new BiConsumer<UploadResult, Throwable>() {
+                                    @Override
+                                    public void accept(UploadResult result, Throwable failure) {
+                                        handle.finished(result, failure != null ? unwrapCompletion(failure) : null);
+                                    }
+                                });
+                    }
+                }));
+        return handle;
+    }
 
-        final HostConfiguration hostConfig = new HostConfiguration();
-        hostConfig.setHost(host, port, protocol);
 
-        final HttpClient httpClient = new HttpClient(connectionManager);
-        httpClient.setHostConfiguration(hostConfig);
-        return httpClient;
-    }
+    /**
+     * Uploads given file in parts of {@link #setPartSize(long) fixed size} named {@code remoteFileName.part0000},
+     * {@code remoteFileName.part0001}, ... The parts are uploaded in parallel over the pooled connections
+     * (see {@link #setPartParallelism(int)}) and each of them is retried independently according to
+     * the {@link #setRetryPolicy(RetryPolicy) retry policy}. When all the parts are
+     * uploaded, {@link MultipartManifest manifest} listing their names, sizes and SHA-256 checksums is uploaded as
+     * {@code remoteFileName} + {@link #MANIFEST_SUFFIX}, so consumers know the set of parts is complete.
+     *
+     * @param fileToUpload file to upload
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param remoteFileName name of the remote file the parts and the manifest are named after
+     * @param contentType content type of the parts
+     * @return the uploaded manifest
+     */
+    public MultipartManifest transferLargeFile(final File fileToUpload, final String remoteDir,
+            final String remoteFileName, final String contentType) {
+        Validate.notNull(fileToUpload, "File for upload must be defined!");
+        Validate.isTrue(fileToUpload.isFile(), format("File for upload=%s must exist!", fileToUpload.getAbsolutePath()));
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
 
+        final long fileSize = fileToUpload.length();
+        final long currentPartSize = partSize;
+        final int partCount = (int) Math.max(1, (fileSize + currentPartSize - 1) / currentPartSize);
+        final int parallelism = Math.min(partParallelism, partCount);
+        ensureMaxConnections(parallelism);
 
+        final RemoteDirectoryCache cache = directoryCache != null ? directoryCache : new RemoteDirectoryCache();
+        createRemoteDirectories(remoteDir, cache);
 
-    private String executeAndReleaseMethod(final HttpMethod method, final int... acceptedStatus) {
+        logger.info("action=webdav_multipart_upload status=start parts={} size={}", partCount, fileSize);
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                UploadThreads.newThreadFactory("webdav-part-upload-", false));
+        final List<UploadPart> parts = new ArrayList<UploadPart>(partCount);
         try {
-            try {
-                executeMethod(method);
-            } catch (final IOException e) {
-                throw new WebDavUploaderException(
-                        String.format("A problem occured while executing %s on %s!", method.getName(), method.getPath()), e);
+            final List<Future<UploadPart>> futures = new ArrayList<Future<UploadPart>>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                final String partName = String.format(PART_NAME_FORMAT, remoteFileName, i);
+                final long offset = i * currentPartSize;
+                final long length = Math.min(currentPartSize, fileSize - offset);
+                futures.add(executor.submit(new Callable<UploadPart>() {
+                    @Override
+                    public UploadPart call() {
+                        return transferPart(fileToUpload, offset, length, remoteDir, partName, contentType, cache);
+                    }
+                }));
             }
-
-            final String resp;
-            try {
-                resp = method.getResponseBodyAsString();
-            } catch (final IOException e) {
-                throw new WebDavUploaderException("A problem occured while retrieving the response body!", e);
+            for (Future<UploadPart> future : futures) {
+                parts.add(future.get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDavUploaderException("Multi-part upload has been interrupted!", e);
+        } catch (ExecutionException e) {
+            logger.info("action=webdav_multipart_upload status=error");
+            throw new WebDavUploaderException(String.format("Multi-part upload of %s has failed!", remoteFileName),
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
 
-            // returned status should be any of acceptedStatus array
-            for (int status : acceptedStatus) {
-                if (status == method.getStatusCode()) {
-                    return resp;
+        final MultipartManifest manifest = new MultipartManifest(remoteFileName, fileSize, currentPartSize,
+                PART_CHECKSUM_ALGORITHM, parts);
+        putRequestEntity(new ByteArrayRequestEntity(manifest.toJson().getBytes(StandardCharsets.UTF_8),
+                "application/json"), remoteDir, remoteFileName + MANIFEST_SUFFIX, cache);
+        logger.info("action=webdav_multipart_upload status=finished parts={}", partCount);
+        return manifest;
+    }
+
+
+    /** @see #transferBatch(Collection, int, boolean) */
+    public BatchUploadReport transferBatch(final Collection<UploadItem> items, final int parallelism) {
+        return transferBatch(items, parallelism, false);
+    }
+
+    /**
+     * Uploads all given {@code items} using up to {@code parallelism} concurrent uploads. The connection pool is grown
+     * to {@code parallelism} connections if it is smaller. Remote directories shared by several items are created
+     * only once. Failure of one item doesn't stop the upload of the others.
+     *
+     * @param items items to upload
+     * @param parallelism maximum number of concurrent uploads
+     * @param virtualThreads whether uploads should run on virtual threads (if supported by the JVM)
+     * @return report with one result per item, in the order of {@code items}
+     */
+    public BatchUploadReport transferBatch(final Collection<UploadItem> items, final int parallelism,
+            final boolean virtualThreads) {
+        Validate.notNull(items, "items must be defined!");
+        Validate.noNullElements(items, "items must not contain null!");
+        Validate.isTrue(parallelism > 0, "parallelism must be positive");
+
+        final long batchStart = System.currentTimeMillis();
+        ensureMaxConnections(parallelism);
+
+        //create each distinct remote directory exactly once, before the uploads start
+        final RemoteDirectoryCache batchCache = directoryCache != null ? directoryCache : new RemoteDirectoryCache();
+        final Map<String, RuntimeException> directoryFailures = new HashMap<String, RuntimeException>();
+        for (UploadItem item : items) {
+            final String remoteDir = item.getRemoteDir();
+            if (!directoryFailures.containsKey(remoteDir)) {
+                try {
+                    createRemoteDirectories(remoteDir, batchCache);
+                    directoryFailures.put(remoteDir, null);
+                } catch (RuntimeException e) {
+                    directoryFailures.put(remoteDir, e);
                 }
             }
+        }
 
-            throw new WebDavUploaderException(
-                    String.format("Something went wrong while executing %s on %s. %s expected, %d returned instead with response '%s'!",
-                            method.getName(),
-                            method.getPath(),
-                            Arrays.toString(acceptedStatus),
-                            method.getStatusCode(),
-                            resp));
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(items.size(), 1)),
+                UploadThreads.newThreadFactory("webdav-batch-upload-", virtualThreads));
+        try {
+            final List<Future<BatchItemResult>> futures = new ArrayList<Future<BatchItemResult>>(items.size());
+            for (final UploadItem item : items) {
+                final RuntimeException directoryFailure = directoryFailures.get(item.getRemoteDir());
+                futures.add(executor.submit(new Callable<BatchItemResult>() {
+                    @Override
+                    public BatchItemResult call() {
+                        return directoryFailure != null
+                                ? new BatchItemResult(item, directoryFailure, 0)
+                                : transferBatchItem(item, batchCache);
+                    }
+                }));
+            }
+
+            final List<BatchItemResult> results = new ArrayList<BatchItemResult>(items.size());
+            for (Future<BatchItemResult> future : futures) {
+                results.add(future.get());
+            }
+            final BatchUploadReport report = new BatchUploadReport(results, System.currentTimeMillis() - batchStart);
+            logger.info("action=webdav_batch_upload status=finished items={} failures={}",
+                    results.size(), report.getFailureCount());
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDavUploaderException("Batch upload has been interrupted!", e);
+        } catch (ExecutionException e) {
+            throw new WebDavUploaderException("Unexpected failure of batch upload!", e.getCause());
         } finally {
-            method.releaseConnection();
+            executor.shutdownNow();
         }
     }
 
 
-    private List<String> executeAndReleasePropFindMethod(final PropFindMethod method) {
+    /**
+     * Lists the content of given remote directory using PROPFIND with depth 1. The directory itself is not included.
+     *
+     * @param remoteDir remote directory
+     * @return files and subdirectories of the remote directory
+     * @see #listRemoteDirectory(String, RemoteResourceHandler)
+     */
+    public List<RemoteResource> listRemoteDirectory(final String remoteDir) {
+        final List<RemoteResource> content = new ArrayList<RemoteResource>();
+        listRemoteDirectory(remoteDir, new RemoteResourceHandler() {
+            @Override
+            public void handle(RemoteResource resource) {
+                content.add(resource);
+            }
+        });
+        return content;
+    }
 
-        try {
-            final List<String> res = new ArrayList<String>();
-            MultiStatus ms;
 
-            try {
-                executeMethod(method);
-            } catch (final IOException e) {
-                throw new WebDavUploaderException(
-                        String.format("A problem occured while executing %s on %s!", method.getName(), method.getPath()), e);
+    /**
+     * Lists the content of given remote directory using PROPFIND with depth 1 and passes every file and subdirectory
+     * to {@code handler} as soon as it's parsed from the response. The response is parsed in a streaming fashion,
+     * so the memory used doesn't depend on the number of entries in the directory. The directory itself is not
+     * passed to the handler.
+     *
+     * @param remoteDir remote directory
+     * @param handler handler receiving the entries
+     * @return number of entries passed to the handler
+     */
+    public int listRemoteDirectory(final String remoteDir, final RemoteResourceHandler handler) {
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notNull(handler, "handler must be defined!");
+        final String directoryPath = WEBDAV_URI + DIRECTORY_SEPARATOR + remoteDir + DIRECTORY_SEPARATOR;
+        final int[] count = {0};
+        executeAndReleasePropFindRequest(createPropFindRequest(directoryPath), new RemoteResourceHandler() {
+            @Override
+            public void handle(RemoteResource resource) {
+                if (!isSameDirectory(resource.getHref(), directoryPath)) {
+                    handler.handle(resource);
+                    count[0]++;
+                }
             }
+        });
+        return count[0];
+    }
 
-            try {
-                ms = method.getResponseBodyAsMultiStatus();
-            } catch (IOException e) {
-                throw new WebDavUploaderException("A problem occured while retrieving the webDav multi status body", e);
-            } catch (DavException e) {
-                throw new WebDavUploaderException("A problem occured while retrieving the webDav multi status body", e);
+
+    /**
+     * Synchronizes files of local directory {@code localDir} (not recursively) into remote directory {@code remoteDir}.
+     * The remote directory is listed once and only files which are missing remotely or differ in size or are newer
+     * locally are uploaded. With {@link #setCompression(UploadCompression) compression} enabled, local files are
+     * matched with remote files named with the compression suffix and only their timestamps are compared.
+     *
+     * @param localDir local directory
+     * @param remoteDir remote directory, created if it doesn't exist
+     * @param contentType content type of uploaded files
+     * @param deleteRemoteExtras whether remote files which don't exist locally should be deleted
+     * @param parallelism maximum number of concurrent uploads
+     * @return report of the synchronization
+     */
+    public SyncReport synchronizeDirectory(final File localDir, final String remoteDir, final String contentType,
+            final boolean deleteRemoteExtras, final int parallelism) {
+        Validate.notNull(localDir, "Local directory must be defined!");
+        Validate.isTrue(localDir.isDirectory(), format("Local directory=%s must exist!", localDir.getAbsolutePath()));
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+
+        createRemoteDirectories(remoteDir, directoryCache != null ? directoryCache : new RemoteDirectoryCache());
+        final Map<String, RemoteResource> remoteFiles = new HashMap<String, RemoteResource>();
+        listRemoteDirectory(remoteDir, new RemoteResourceHandler() {
+            @Override
+            public void handle(RemoteResource resource) {
+                if (!resource.isCollection()) {
+                    remoteFiles.put(resource.getName(), resource);
+                }
             }
+        });
 
-            if (method.getStatusCode() != HttpStatus.SC_MULTI_STATUS) {
-                throw new WebDavUploaderException(String.format("Something went wrong while executing a PROPFIND method on %s."
-                        + "%d expected, %d returned instead",
-                        method.getPath(),
-                        HttpStatus.SC_MULTI_STATUS,
-                        method.getStatusCode()));
+        final UploadCompression compression = this.compression;
+        final List<UploadItem> items = new ArrayList<UploadItem>();
+        final List<File> skippedFiles = new ArrayList<File>();
+        long bytesSaved = 0;
+        final File[] localFiles = localDir.listFiles();
+        for (File localFile : localFiles != null ? localFiles : new File[0]) {
+            if (!localFile.isFile()) {
+                continue;
+            }
+            // batch items are uploaded with the suffix of the compression
+            final RemoteResource remoteFile = remoteFiles.remove(localFile.getName() + compression.getSuffix());
+            if (remoteFile != null && isUpToDate(localFile, remoteFile, compression != UploadCompression.NONE)) {
+                skippedFiles.add(localFile);
+                bytesSaved += localFile.length();
+            } else {
+                items.add(new UploadItem(localFile, remoteDir, localFile.getName(), contentType));
             }
+        }
 
-            final MultiStatusResponse[] responses = ms.getResponses();
+        final BatchUploadReport uploadReport = transferBatch(items, parallelism);
 
-            for (final MultiStatusResponse resp : responses) {
-                res.add(resp.getHref());
+        final List<RemoteResource> deletedResources = new ArrayList<RemoteResource>();
+        if (deleteRemoteExtras) {
+            for (RemoteResource remoteFile : remoteFiles.values()) {
+                // the href is escaped by the server, unlike the decoded name
+                executeAndReleaseRequest(new TransportRequest("DELETE", hrefPath(remoteFile.getHref())),
+                        HttpStatus.SC_NO_CONTENT, HttpStatus.SC_OK);
+                deletedResources.add(remoteFile);
             }
+        }
 
-            return res;
-        } finally {
-            method.releaseConnection();
+        final SyncReport report = new SyncReport(uploadReport, skippedFiles, deletedResources, bytesSaved);
+        logger.info("action=webdav_sync status=finished " + report);
+        return report;
+    }
+
+
+    /**
+     * Sets the maximum number of pooled connections to the WebDAV host. Defaults to 2 for {@link HttpClientTransport}.
+     *
+     * @param maxConnections maximum number of concurrent connections
+     * @see WebDavTransport#setMaxConnections(int)
+     */
+    public void setMaxConnections(final int maxConnections) {
+        transport.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * @return the maximum number of pooled connections to the WebDAV host
+     */
+    public int getMaxConnections() {
+        return transport.getMaxConnections();
+    }
+
+
+    /**
+     * Sets size of parts uploaded by {@link #transferLargeFile(File, String, String, String)}.
+     *
+     * @param partSize part size in bytes, {@link #DEFAULT_PART_SIZE} by default
+     */
+    public void setPartSize(final long partSize) {
+        Validate.isTrue(partSize > 0, "partSize must be positive");
+        this.partSize = partSize;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets maximum number of parts uploaded concurrently by {@link #transferLargeFile(File, String, String, String)}.
+     *
+     * @param partParallelism number of concurrent part uploads, {@link #DEFAULT_PART_PARALLELISM} by default
+     */
+    public void setPartParallelism(final int partParallelism) {
+        Validate.isTrue(partParallelism > 0, "partParallelism must be positive");
+        this.partParallelism = partParallelism;
+    }
+
+    public int getPartParallelism() {
+        return partParallelism;
+    }
+
+
+    /**
+     * Enables streaming of input streams passed to {@link #transferInputStream(InputStream, String, String, String)}
+     * and to batch uploads. When disabled (default), the whole stream is buffered in memory to compute its length
+     * which allows the request to be resent; when enabled, the stream is sent using chunked transfer encoding
+     * through a buffer of {@link #setStreamBufferSize(int) fixed size}.
+     *
+     * @param streamingUploads whether input streams should be streamed
+     */
+    public void setStreamingUploads(final boolean streamingUploads) {
+        this.streamingUploads = streamingUploads;
+    }
+
+    public boolean isStreamingUploads() {
+        return streamingUploads;
+    }
+
+    /**
+     * Sets size of the buffer used for streaming uploads.
+     *
+     * @param streamBufferSize buffer size in bytes, {@link StreamingRequestEntity#DEFAULT_BUFFER_SIZE} by default
+     */
+    public void setStreamBufferSize(final int streamBufferSize) {
+        Validate.isTrue(streamBufferSize > 0, "streamBufferSize must be positive");
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+
+    /**
+     * Sets size of the buffer used for file uploads, see {@link FileChannelRequestEntity}.
+     *
+     * @param fileBufferSize buffer size in bytes, {@link FileChannelRequestEntity#DEFAULT_BUFFER_SIZE} by default
+     */
+    public void setFileBufferSize(final int fileBufferSize) {
+        Validate.isTrue(fileBufferSize > 0, "fileBufferSize must be positive");
+        this.fileBufferSize = fileBufferSize;
+    }
+
+    public int getFileBufferSize() {
+        return fileBufferSize;
+    }
+
+
+    /**
+     * Enables the "Expect: 100-continue" handshake for uploads of at least {@code expectContinueThreshold} bytes
+     * (and uploads of unknown length). The server then rejects the upload (e.g. 401 because of expired temporary
+     * token, 403, 409 or 507) before any payload bytes are sent, which also allows non-repeatable entities
+     * to be resent after re-authentication.
+     *
+     * @param expectContinueThreshold minimal size of the upload in bytes or {@link #EXPECT_CONTINUE_DISABLED}
+     *                                (default)
+     */
+    public void setExpectContinueThreshold(final long expectContinueThreshold) {
+        Validate.isTrue(expectContinueThreshold >= 0 || expectContinueThreshold == EXPECT_CONTINUE_DISABLED,
+                "expectContinueThreshold must be non-negative or EXPECT_CONTINUE_DISABLED");
+        this.expectContinueThreshold = expectContinueThreshold;
+    }
+
+    public long getExpectContinueThreshold() {
+        return expectContinueThreshold;
+    }
+
+
+    /**
+     * Sets listener notified about requests, uploads and re-authentications of this uploader and about token
+     * refreshes of its {@link WebDavSstAuthenticator}. See {@link UploadMetrics} for the default implementation.
+     *
+     * @param metricsListener the listener or null (default) to disable instrumentation
+     */
+    public void setMetricsListener(final UploadMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        if (tokenManager != null) {
+            tokenManager.getAuthenticator().setMetricsListener(metricsListener);
         }
     }
 
+    public UploadMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * @return number of connections currently held by the connection pool
+     */
+    public int getConnectionsInPool() {
+        return transport.getConnectionsInPool();
+    }
+
 
-    private void executeMethod(HttpMethod method) throws IOException {
+    /**
+     * @return transport used for requests to the WebDAV host
+     */
+    public WebDavTransport getTransport() {
+        return transport;
+    }
 
-        preAuthenticate();
 
-        final int responseStatus = webDavHttpClient.executeMethod(method);
+    /**
+     * @return manager of the temporary token used for SST authentication, allows to configure token validity
+     *         and proactive refresh; null if BASIC authentication is used
+     */
+    public TemporaryTokenManager getTokenManager() {
+        return tokenManager;
+    }
 
-        if (responseStatus == HttpStatus.SC_UNAUTHORIZED && SstTokenAuthenticationUsed()) {
-            // Temporary token is probably expired (default validity 600 secs,
-            // see bear.git/resources/httpd/resources/global_variables.conf - key "TT_validity")
-            logger.info("action=webdav_upload status=tt_token_expired reauthenticate using user's SST token");
-            authenticate(method);
+
+    /**
+     * Sets the scheduler running asynchronous uploads. The connection pool is grown to the number of its workers
+     * if it is smaller. The scheduler may be shared by several uploaders, it is not stopped by {@link #shutdown()}.
+     * A default scheduler created by this uploader before is shut down.
+     *
+     * @param uploadScheduler the scheduler
+     */
+    public void setUploadScheduler(final UploadScheduler uploadScheduler) {
+        Validate.notNull(uploadScheduler, "uploadScheduler must be defined!");
+        ensureMaxConnections(uploadScheduler.getWorkers());
+        final UploadScheduler replaced;
+        synchronized (this) {
+            replaced = ownsUploadScheduler ? this.uploadScheduler : null;
+            this.uploadScheduler = uploadScheduler;
+            ownsUploadScheduler = false;
+        }
+        if (replaced != null) {
+            replaced.shutdown();
+        }
+    }
+
+    /**
+     * @return the scheduler running asynchronous uploads, a default {@link UploadScheduler} owned by this uploader
+     *         is created on first use and stopped by {@link #shutdown()}
+     */
+    public UploadScheduler getUploadScheduler() {
+        UploadScheduler scheduler = uploadScheduler;
+        if (scheduler == null) {
+            synchronized (this) {
+                scheduler = uploadScheduler;
+                if (scheduler == null) {
+                    scheduler = new UploadScheduler();
+                    setUploadScheduler(scheduler);
+                    ownsUploadScheduler = true;
+                }
+            }
         }
+        return scheduler;
     }
 
-    private void authenticate(HttpMethod method) throws IOException {
-        if (gdcAuthenticator == null) {
-            throw new IllegalStateException("GdcAuthenticator must be set for authentication via sst token");
+    /**
+     * Stops the default upload scheduler created by this uploader, if any. Uploads already running are finished,
+     * waiting ones are cancelled and later asynchronous uploads are rejected. A scheduler set by
+     * {@link #setUploadScheduler(UploadScheduler)} is left running, as it may be shared by other uploaders.
+     */
+    public void shutdown() {
+        final UploadScheduler scheduler;
+        synchronized (this) {
+            scheduler = ownsUploadScheduler ? uploadScheduler : null;
         }
-        //#12842 release the connection before we try re-authenticate
-        //because authentication itself allocates a new connection => deadlock
-        method.releaseConnection();
-        userLogin = gdcAuthenticator.authenticate(superSecureToken);
-        if (userLogin != null) {
-            preAuthenticate();
-            //after successful authentication re-send the request
-            logger.debug("action=webdav_upload status=RESENDING_REQUEST target_uri=" + method.getURI().toString());
-            webDavHttpClient.executeMethod(method);
+        if (scheduler != null) {
+            scheduler.shutdown();
         }
     }
 
-    private void preAuthenticate() {
-        if (SstTokenAuthenticationUsed() && userLogin != null) {
-            addCookie(WebDavSstAuthenticator.GDCAuthTT_COOKIE, userLogin.getGdcAuthTT());
+
+    /**
+     * Sets retry policy of idempotent requests (MKCOL, PUT, PROPFIND, DELETE) failing with I/O error or transient
+     * status. Requests with body are retried only if the body can be resent.
+     *
+     * @param retryPolicy the policy, {@link RetryPolicy#DEFAULT} by default, {@link RetryPolicy#NONE} disables retries
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        Validate.notNull(retryPolicy, "retryPolicy must be defined!");
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+
+    /**
+     * Sets journal of completed uploads. Files of {@link #transferBatch(Collection, int) batches} and parts of
+     * {@link #transferLargeFile(File, String, String, String) multi-part uploads} recorded in the journal are not
+     * uploaded again, so a restarted process resumes where it stopped; such batch items are
+     * {@link BatchItemResult#isSkipped() skipped}. Uploads of input streams are not journaled.
+     *
+     * @param uploadJournal the journal or null (default) to upload everything
+     */
+    public void setUploadJournal(final UploadJournal uploadJournal) {
+        this.uploadJournal = uploadJournal;
+    }
+
+    public UploadJournal getUploadJournal() {
+        return uploadJournal;
+    }
+
+
+    /**
+     * Sets index of uploaded files. A file passed to {@link #transferFile(File, String, String, String)} (or its
+     * asynchronous variant) is not uploaded if the index knows the same file has already been uploaded to the same
+     * remote path, without any request to the server; the returned result is {@link UploadResult#isSkipped() skipped}.
+     * The index is not consulted for streams and entities, nor does it notice remote files changed or deleted by
+     * others - use {@link UploadIndex#remove(String)} then. The content hash kept by the index is computed while
+     * the file is being sent. A failure to record an upload in the index is logged and doesn't fail the upload.
+     *
+     * @param uploadIndex the index or null (default) to upload every file
+     */
+    public void setUploadIndex(final UploadIndex uploadIndex) {
+        this.uploadIndex = uploadIndex;
+    }
+
+    public UploadIndex getUploadIndex() {
+        return uploadIndex;
+    }
+
+
+    /**
+     * Enables continuation of failed file uploads by byte-range PUT. The remote file is checked by HEAD before
+     * the first attempt and again before a retry; if the server advertises "Accept-Ranges: bytes" and keeps
+     * a partially written file which was created or changed (by ETag or Last-Modified) since the first check, only
+     * the missing bytes are sent with the "Content-Range" header and "If-Match" of its ETag. Otherwise the whole
+     * file is sent again. The server must support partial PUT and send ETags (e.g. Apache mod_dav), otherwise this
+     * should stay disabled (default).
+     *
+     * @param rangeResume whether failed file uploads should be continued
+     */
+    public void setRangeResume(final boolean rangeResume) {
+        this.rangeResume = rangeResume;
+    }
+
+    public boolean isRangeResume() {
+        return rangeResume;
+    }
+
+
+    /**
+     * Sets compression of uploaded files and streams. The data are compressed while being sent (see
+     * {@link CompressingRequestEntity}) and the remote file name gets {@link UploadCompression#getSuffix() suffix}
+     * of the compression, e.g. {@code data.csv} is uploaded as {@code data.csv.gz}. Parts of
+     * {@link #transferLargeFile(File, String, String, String) multi-part uploads} are never compressed.
+     *
+     * @param compression the compression, {@link UploadCompression#NONE} by default
+     */
+    public void setCompression(final UploadCompression compression) {
+        Validate.notNull(compression, "compression must be defined!");
+        this.compression = compression;
+    }
+
+    public UploadCompression getCompression() {
+        return compression;
+    }
+
+
+    /**
+     * @param compressionLevel compression level 0-9, {@link Deflater#DEFAULT_COMPRESSION} by default
+     */
+    public void setCompressionLevel(final int compressionLevel) {
+        Validate.isTrue(compressionLevel == Deflater.DEFAULT_COMPRESSION
+                || (compressionLevel >= 0 && compressionLevel <= 9), "compressionLevel must be between 0 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+
+    /**
+     * Sets number of blocks of one upload compressed at the same time, so that compression of a large file is not
+     * limited by a single core.
+     *
+     * @param compressionParallelism number of concurrently compressed blocks, 1 (no parallelism) by default
+     */
+    public void setCompressionParallelism(final int compressionParallelism) {
+        Validate.isTrue(compressionParallelism > 0, "compressionParallelism must be positive");
+        this.compressionParallelism = compressionParallelism;
+    }
+
+    public int getCompressionParallelism() {
+        return compressionParallelism;
+    }
+
+
+    /**
+     * Sets algorithm of the digest computed while files and streams are being uploaded (no second read pass),
+     * returned in {@link UploadResult#getDigest()}. The digest is computed from the sent bytes, i.e. after
+     * {@link #setCompression(UploadCompression) compression}. In-memory bodies digested by MD5 are sent with
+     * the "Content-MD5" header. Digested uploads are not {@link #setRangeResume(boolean) continued by range}.
+     *
+     * @param digestAlgorithm e.g. MD5 or SHA-256, null (default) not to compute any digest
+     * @throws IllegalArgumentException if the algorithm is not supported by the JVM
+     */
+    public void setDigestAlgorithm(final String digestAlgorithm) {
+        if (digestAlgorithm != null) {
+            try {
+                MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported digest algorithm " + digestAlgorithm, e);
+            }
+        }
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+
+    /**
+     * Sets how is the computed digest checked with the server, applies only if
+     * {@link #setDigestAlgorithm(String) digest algorithm} is set.
+     *
+     * @param digestVerification the verification, {@link DigestVerification#NONE} by default
+     */
+    public void setDigestVerification(final DigestVerification digestVerification) {
+        Validate.notNull(digestVerification, "digestVerification must be defined!");
+        this.digestVerification = digestVerification;
+    }
+
+    public DigestVerification getDigestVerification() {
+        return digestVerification;
+    }
+
+
+    /**
+     * Limits the rate of uploaded bytes of this uploader; concurrent uploads share the limit fairly. The limit may be
+     * changed at any time and applies to running uploads too, except for uploads started while this uploader was
+     * unlimited and had no {@link #setSharedBandwidthLimiter(BandwidthLimiter) shared limiter}.
+     *
+     * @param maxBytesPerSecond maximum rate, {@link BandwidthLimiter#UNLIMITED} (default) for no limit
+     */
+    public void setMaxBytesPerSecond(final long maxBytesPerSecond) {
+        bandwidthLimiter.setBytesPerSecond(maxBytesPerSecond);
+    }
+
+    public long getMaxBytesPerSecond() {
+        return bandwidthLimiter.getBytesPerSecond();
+    }
+
+
+    /**
+     * Sets limiter shared with other uploaders, e.g. to cap the total upload rate of the host. Uploads of this
+     * uploader obey both the shared limiter and its {@link #setMaxBytesPerSecond(long) own limit}.
+     *
+     * @param sharedBandwidthLimiter the limiter or null (default)
+     */
+    public void setSharedBandwidthLimiter(final BandwidthLimiter sharedBandwidthLimiter) {
+        this.sharedBandwidthLimiter = sharedBandwidthLimiter;
+    }
+
+    public BandwidthLimiter getSharedBandwidthLimiter() {
+        return sharedBandwidthLimiter;
+    }
+
+
+    /**
+     * Sets weight of uploads of this uploader when sharing limited bandwidth: an upload with weight 4 gets four
+     * times the bandwidth of a concurrent upload with weight 1, e.g. latency sensitive uploads next to bulk loads.
+     *
+     * @param bandwidthWeight the weight, 1 by default
+     */
+    public void setBandwidthWeight(final int bandwidthWeight) {
+        Validate.isTrue(bandwidthWeight > 0, "bandwidthWeight must be positive");
+        this.bandwidthWeight = bandwidthWeight;
+    }
+
+    public int getBandwidthWeight() {
+        return bandwidthWeight;
+    }
+
+
+    /**
+     * Sets how often is {@link UploadProgressListener#onProgress} called by uploads started by
+     * {@link #startTransfer(File, String, String, String, UploadProgressListener)}: after every
+     * {@code progressIntervalBytes} bytes, unless {@link #setProgressIntervalMillis(long) time interval} passes first.
+     *
+     * @param progressIntervalBytes number of bytes, {@link #DEFAULT_PROGRESS_INTERVAL_BYTES} by default
+     */
+    public void setProgressIntervalBytes(final long progressIntervalBytes) {
+        Validate.isTrue(progressIntervalBytes > 0, "progressIntervalBytes must be positive");
+        this.progressIntervalBytes = progressIntervalBytes;
+    }
+
+    public long getProgressIntervalBytes() {
+        return progressIntervalBytes;
+    }
+
+    /**
+     * Sets maximum time between two {@link UploadProgressListener#onProgress} calls of an upload which is sending
+     * data, see {@link #setProgressIntervalBytes(long)}.
+     *
+     * @param progressIntervalMillis time in milliseconds, {@link #DEFAULT_PROGRESS_INTERVAL_MILLIS} by default
+     */
+    public void setProgressIntervalMillis(final long progressIntervalMillis) {
+        Validate.isTrue(progressIntervalMillis > 0, "progressIntervalMillis must be positive");
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    /**
+     * Sets after how long without any sent byte is an upload started by
+     * {@link #startTransfer(File, String, String, String, UploadProgressListener)} reported as stalled. The time
+     * includes creating directories and waiting for the response once the whole body has been sent.
+     *
+     * @param stallTimeoutMillis timeout in milliseconds, {@link #DEFAULT_STALL_TIMEOUT_MILLIS} by default,
+     *                           0 disables stall detection
+     */
+    public void setStallTimeoutMillis(final long stallTimeoutMillis) {
+        Validate.isTrue(stallTimeoutMillis >= 0, "stallTimeoutMillis must not be negative");
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    public long getStallTimeoutMillis() {
+        return stallTimeoutMillis;
+    }
+
+
+    /**
+     * Sets the cache of remote directories known to exist. The cache may be shared by several uploaders
+     * which talk to the same WebDAV host.
+     *
+     * @param directoryCache the cache or null to issue MKCOL for every path segment on every upload
+     */
+    public void setDirectoryCache(final RemoteDirectoryCache directoryCache) {
+        this.directoryCache = directoryCache;
+    }
+
+    /**
+     * @return the cache of remote directories known to exist or null if caching is disabled
+     */
+    public RemoteDirectoryCache getDirectoryCache() {
+        return directoryCache;
+    }
+
+
+
+    /**
+     * Uploads archive created by {@link SmallFilePacker} - unlike {@link #transferRequestEntity} without
+     * {@link #setCompression(UploadCompression) compression} of the already compressed archive.
+     */
+    UploadResult transferArchive(final RequestEntity archive, final String remoteDir, final String archiveName) {
+        return putRequestEntity(withDigest(archive), remoteDir, archiveName, directoryCache);
+    }
+
+
+    //--------------------------------------------------- PRIVATE STUFF ------------------------------------------------
+
+    /**
+     * Creates the remote directory (consulting given {@code cache}) and uploads the entity into it.
+     */
+    private UploadResult putRequestEntity(final RequestEntity requestEntityToUpload, final String remoteDir,
+            final String remoteFileName, final RemoteDirectoryCache cache) {
+        logger.info("action=webdav_upload status=start");
+        final UploadMetricsListener listener = metricsListener;
+        final long start = listener != null ? System.nanoTime() : 0;
+        final String putPath;
+        final String[] etag = new String[1];
+        try {
+            //create new remote directory with all subdirectories
+            final String directoryPath = createRemoteDirectories(remoteDir, cache);
+
+            //upload the file
+            putPath = directoryPath + DIRECTORY_SEPARATOR + remoteFileName;
+            final TransportRequest put = createPutRequest(putPath, requestEntityToUpload);
+            //if the file already existed, 204 is returned instead of 201
+            if (cache == null) {
+                this.executeAndReleaseRequest(put, etag, HttpStatus.SC_CREATED);
+            } else {
+                //404 or 409 means that the parent directory is missing although it is cached - somebody removed it
+                final int status = this.executeAndReleaseRequest(put, etag,
+                        HttpStatus.SC_CREATED, HttpStatus.SC_NOT_FOUND, HttpStatus.SC_CONFLICT);
+                if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_CONFLICT) {
+                    logger.info("action=webdav_upload status=missing_parent_directory remote_dir={}", remoteDir);
+                    cache.invalidate(directoryPath);
+                    if (!canResend(requestEntityToUpload)) {
+                        throw new WebDavUploaderException(String.format(
+                                "Parent directory of %s is missing and the request entity cannot be resent!", putPath));
+                    }
+                    // any of the cached ancestors may have been removed as well
+                    createRemoteDirectories(remoteDir, cache, false);
+                    this.executeAndReleaseRequest(put, etag, HttpStatus.SC_CREATED);
+                }
+            }
+        } catch (WebDavUploaderException e) {
+            logger.info("action=webdav_upload status=error");
+            if (listener != null) {
+                listener.onUpload(sentBytes(requestEntityToUpload), System.nanoTime() - start, false);
+            }
+            throw e;
+        }
+        if (listener != null) {
+            listener.onUpload(sentBytes(requestEntityToUpload), System.nanoTime() - start, true);
+        }
+        logger.info("action=webdav_upload status=finished");
+        return createUploadResult(putPath, requestEntityToUpload, etag[0]);
+    }
+
+
+    /**
+     * Asynchronous counterpart of {@link #transferRequestEntity(RequestEntity, String, String, String)}.
+     */
+    private CompletableFuture<UploadResult> startRequestEntityTransfer(final RequestEntity requestEntityToUpload,
+            final String remoteDir, final String remoteFileName) {
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
+
+        final UploadCompression compression = this.compression;
+        return putRequestEntityAsync(withDigest(compress(requestEntityToUpload, compression, remoteFileName)),
+                remoteDir, remoteFileName + compression.getSuffix(), directoryCache);
+    }
+
+
+    /**
+     * Asynchronous counterpart of {@link #putRequestEntity(RequestEntity, String, String, RemoteDirectoryCache)}.
+     * Directories and the file are created by {@link WebDavTransport#executeAsync} requests and retries wait without
+     * holding a thread. A refresh of the temporary token and {@link #setDigestVerification(DigestVerification)
+     * verification} by PROPFIND still block the thread which runs them.
+     */
+    private CompletableFuture<UploadResult> putRequestEntityAsync(final RequestEntity requestEntityToUpload,
+            final String remoteDir, final String remoteFileName, final RemoteDirectoryCache cache) {
+        logger.info("action=webdav_upload status=start");
+        final UploadMetricsListener listener = metricsListener;
+        final long start = listener != null ? System.nanoTime() : 0;
+        final CompletableFuture<UploadResult> upload = createRemoteDirectoriesAsync(remoteDir, cache, true)
+                .thenCompose(new Function<String, CompletableFuture<UploadResult>>() {
+                    @Override
+                    public CompletableFuture<UploadResult> apply(final String directoryPath) {
+                        final String putPath = directoryPath + DIRECTORY_SEPARATOR + remoteFileName;
+                        final TransportRequest put = createPutRequest(putPath, requestEntityToUpload);
+                        final String[] etag = new String[1];
+                        final int[] acceptedStatus = cache == null ? new int[] {HttpStatus.SC_CREATED}
+                                : new int[] {HttpStatus.SC_CREATED, HttpStatus.SC_NOT_FOUND, HttpStatus.SC_CONFLICT};
+                        return executeAndReleaseRequestAsync(put, etag, acceptedStatus)
+                                .thenCompose(new Function<Integer, CompletableFuture<Integer>>() {
+                                    @Override
+                                    public CompletableFuture<Integer> apply(final Integer status) {
+                                        if (status != HttpStatus.SC_NOT_FOUND && status != HttpStatus.SC_CONFLICT) {
+                                            return CompletableFuture.completedFuture(status);
+                                        }
+                                        //the cached parent directory has been removed, see putRequestEntity
+                                        logger.info("action=webdav_upload status=missing_parent_directory "
+                                                + "remote_dir={}", remoteDir);
+                                        cache.invalidate(directoryPath);
+                                        if (!canResend(requestEntityToUpload)) {
+                                            throw new WebDavUploaderException(String.format("Parent directory of %s "
+                                                    + "is missing and the request entity cannot be resent!", putPath));
+                                        }
+                                        return createRemoteDirectoriesAsync(remoteDir, cache, false).thenCompose(
+                                                new Function<String, CompletableFuture<Integer>>() {
+                                                    @Override
+                                                    public CompletableFuture<Integer> apply(final String recreated) {
+                                                        return executeAndReleaseRequestAsync(put, etag,
+                                                                HttpStatus.SC_CREATED);
+                                                    }
+                                                });
+                                    }
+                                })
+                                .thenApply(new Function<Integer, UploadResult>() {
+                                    @Override
+                                    public UploadResult apply(final Integer status) {
+                                        return createUploadResult(putPath, requestEntityToUpload, etag[0]);
+                                    }
+                                });
+                    }
+                });
+        return upload.whenComplete(new BiConsumer<UploadResult, Throwable>() {
+            @Override
+            public void accept(UploadResult result, Throwable failure) {
+                logger.info(failure == null ? "action=webdav_upload status=finished" : "action=webdav_upload status=error");
+                if (listener != null) {
+                    listener.onUpload(sentBytes(requestEntityToUpload), System.nanoTime() - start,
+                            failure == null);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * @return number of bytes of the body written by the last attempt as counted by the digesting or progress
+     *         entity, the content length of the body if it isn't wrapped by either of them
+     */
+    private static long sentBytes(final RequestEntity requestEntity) {
+        RequestEntity entity = requestEntity;
+        if (entity instanceof DigestingRequestEntity) {
+            final long written = ((DigestingRequestEntity) entity).getWrittenLength();
+            if (written >= 0) {
+                return written;
+            }
+            entity = ((DigestingRequestEntity) entity).getDelegate();
+        }
+        if (entity instanceof ProgressRequestEntity) {
+            return ((ProgressRequestEntity) entity).getHandle().getBytesSent();
+        }
+        return requestEntity.getContentLength();
+    }
+
+
+    private TransportRequest createPutRequest(final String putPath, final RequestEntity requestEntity) {
+        final TransportRequest put = new TransportRequest("PUT", putPath).setEntity(rateLimited(requestEntity));
+        final RequestEntity content = requestEntity instanceof DigestingRequestEntity
+                ? ((DigestingRequestEntity) requestEntity).getDelegate() : requestEntity;
+        if (content instanceof ProgressRequestEntity) {
+            // the handle aborts the request when cancelled
+            ((ProgressRequestEntity) content).getHandle().attach(put);
+        }
+        final String contentMd5 = contentMd5(requestEntity);
+        if (contentMd5 != null) {
+            put.setHeader("Content-MD5", contentMd5);
+        }
+        final long threshold = expectContinueThreshold;
+        if (threshold != EXPECT_CONTINUE_DISABLED
+                && (requestEntity.getContentLength() < 0 || requestEntity.getContentLength() >= threshold)) {
+            put.setExpectContinue(true);
+        }
+        return put;
+    }
+
+
+    /**
+     * Checks whether the request entity can be sent again - either it's repeatable or its body hasn't been sent yet
+     * (e.g. because the request has been rejected during the "Expect: 100-continue" handshake).
+     */
+    private static boolean canResend(final RequestEntity requestEntity) {
+        if (requestEntity.isRepeatable()) {
+            return true;
+        }
+        final RequestEntity entity = unwrap(requestEntity);
+        return entity instanceof StreamingRequestEntity && !((StreamingRequestEntity) entity).isConsumed();
+    }
+
+
+    /**
+     * @return the innermost entity wrapped by digesting, progress, compressing and rate limiting entities
+     */
+    private static RequestEntity unwrap(final RequestEntity requestEntity) {
+        RequestEntity entity = requestEntity;
+        while (true) {
+            if (entity instanceof RateLimitedRequestEntity) {
+                entity = ((RateLimitedRequestEntity) entity).getDelegate();
+            } else if (entity instanceof DigestingRequestEntity) {
+                entity = ((DigestingRequestEntity) entity).getDelegate();
+            } else if (entity instanceof ProgressRequestEntity) {
+                entity = ((ProgressRequestEntity) entity).getDelegate();
+            } else if (entity instanceof CompressingRequestEntity) {
+                entity = ((CompressingRequestEntity) entity).getSource();
+            } else {
+                return entity;
+            }
+        }
+    }
+
+
+    private static RequestEntity unwrapRateLimited(final RequestEntity requestEntity) {
+        return requestEntity instanceof RateLimitedRequestEntity
+                ? ((RateLimitedRequestEntity) requestEntity).getDelegate() : requestEntity;
+    }
+
+
+    /**
+     * Wraps the entity into {@link RateLimitedRequestEntity} if a shared limiter is set or this uploader is limited.
+     */
+    private RequestEntity rateLimited(final RequestEntity requestEntity) {
+        final BandwidthLimiter shared = sharedBandwidthLimiter;
+        if (shared != null) {
+            return new RateLimitedRequestEntity(requestEntity, bandwidthWeight, bandwidthLimiter, shared);
+        }
+        if (bandwidthLimiter.getBytesPerSecond() != BandwidthLimiter.UNLIMITED) {
+            return new RateLimitedRequestEntity(requestEntity, bandwidthWeight, bandwidthLimiter);
+        }
+        return requestEntity;
+    }
+
+
+    /**
+     * Uploads the file unless the index knows it's unchanged and records the upload in the index.
+     */
+    private UploadResult transferIndexedFile(final UploadIndex index, final File file, final String remoteDir,
+            final String remoteFileName, final String contentType) {
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
+        final UploadCompression compression = this.compression;
+        final String remotePath = remotePath(remoteDir, remoteFileName + compression.getSuffix());
+        final BasicFileAttributes before = UploadIndex.attributes(file);
+        if (index.isUnchanged(remotePath, file)) {
+            logger.debug("action=webdav_upload status=unchanged_file_skipped remote_path={}", remotePath);
+            return new UploadResult(remotePath, before.size(), null, null, null, false, true);
+        }
+        final RequestEntity content = createIndexedFileRequestEntity(file, contentType, compression);
+        final UploadResult result = transferRequestEntity(content, remoteDir, remoteFileName, contentType);
+        recordInIndex(index, remotePath, file, before, content, result);
+        return result;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #transferIndexedFile(UploadIndex, File, String, String, String)}.
+     */
+    private CompletableFuture<UploadResult> startIndexedFileTransfer(final UploadIndex index, final File file,
+            final String remoteDir, final String remoteFileName, final String contentType) {
+        Validate.notEmpty(remoteDir, "remote dir must be defined!");
+        Validate.notEmpty(remoteFileName, "remoteFileName must be defined");
+        final UploadCompression compression = this.compression;
+        final String remotePath = remotePath(remoteDir, remoteFileName + compression.getSuffix());
+        final BasicFileAttributes before = UploadIndex.attributes(file);
+        if (index.isUnchanged(remotePath, file)) {
+            logger.debug("action=webdav_upload status=unchanged_file_skipped remote_path={}", remotePath);
+            return CompletableFuture.completedFuture(
+                    new UploadResult(remotePath, before.size(), null, null, null, false, true));
+        }
+        final RequestEntity content = createIndexedFileRequestEntity(file, contentType, compression);
+        return startRequestEntityTransfer(content, remoteDir, remoteFileName)
+                .thenApply(new Function<UploadResult, UploadResult>() {
+                    @Override
+                    public UploadResult apply(final UploadResult result) {
+                        recordInIndex(index, remotePath, file, before, content, result);
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Creates entity of the file computing its {@link UploadIndex#HASH_ALGORITHM content hash} while it's being sent,
+     * so the index doesn't read the file again. The entity isn't wrapped if the digest of the sent bytes is the hash.
+     */
+    private RequestEntity createIndexedFileRequestEntity(final File file, final String contentType,
+            final UploadCompression compression) {
+        final RequestEntity content = createFileRequestEntity(file, contentType);
+        if (compression == UploadCompression.NONE && UploadIndex.HASH_ALGORITHM.equalsIgnoreCase(digestAlgorithm)) {
+            return content;
+        }
+        return new DigestingRequestEntity(content, UploadIndex.HASH_ALGORITHM);
+    }
+
+    private void recordInIndex(final UploadIndex index, final String remotePath, final File file,
+            final BasicFileAttributes before, final RequestEntity content, final UploadResult result) {
+        final String hash;
+        if (content instanceof DigestingRequestEntity) {
+            hash = ((DigestingRequestEntity) content).getDigestHex();
+        } else {
+            // the digest of the sent bytes is the content hash
+            hash = UploadIndex.HASH_ALGORITHM.equalsIgnoreCase(result.getDigestAlgorithm()) ? result.getDigest() : null;
+        }
+        try {
+            index.record(remotePath, file, before, hash);
+        } catch (RuntimeException e) {
+            // the file has been uploaded, it will just be uploaded again next time
+            logger.warn("action=webdav_index status=record_error remote_path=" + remotePath, e);
+        }
+    }
+
+
+    private BatchItemResult transferBatchItem(final UploadItem item, final RemoteDirectoryCache batchCache) {
+        final long start = System.currentTimeMillis();
+        try {
+            final RequestEntity requestEntity;
+            final UploadCompression compression = this.compression;
+            final String remoteFileName = item.getRemoteFileName() + compression.getSuffix();
+            final UploadJournal journal = item.getFile() != null ? uploadJournal : null;
+            String journalKey = null;
+            if (item.getFile() != null) {
+                Validate.isTrue(item.getFile().isFile(),
+                        format("File for upload=%s must exist!", item.getFile().getAbsolutePath()));
+                if (journal != null) {
+                    journalKey = UploadJournal.fileKey(item.getFile(),
+                            remotePath(item.getRemoteDir(), remoteFileName));
+                    if (journal.isCompleted(journalKey)) {
+                        logger.debug("action=webdav_batch_upload status=journaled_item_skipped item={}", item);
+                        return new BatchItemResult(item, null, 0, true);
+                    }
+                }
+                requestEntity = createFileRequestEntity(item.getFile(), item.getContentType());
+            } else {
+                requestEntity = createInputStreamRequestEntity(item.getInputStream(), item.getContentType());
+            }
+            putRequestEntity(withDigest(compress(requestEntity, compression, item.getRemoteFileName())),
+                    item.getRemoteDir(), remoteFileName, batchCache);
+            if (journalKey != null) {
+                journal.markCompleted(journalKey, "");
+            }
+            return new BatchItemResult(item, null, System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            logger.warn("action=webdav_batch_upload status=item_error item=" + item, e);
+            return new BatchItemResult(item, e, System.currentTimeMillis() - start);
+        }
+    }
+
+
+    /**
+     * Uploads one part of a multi-part upload. Failed PUT of the part is retried according to {@link #retryPolicy}.
+     */
+    private UploadPart transferPart(final File file, final long offset, final long length, final String remoteDir,
+            final String partName, final String contentType, final RemoteDirectoryCache cache) {
+        final UploadJournal journal = uploadJournal;
+        final String journalKey = journal != null
+                ? UploadJournal.partKey(file, offset, length, remotePath(remoteDir, partName)) : null;
+        if (journalKey != null && journal.isCompleted(journalKey)) {
+            logger.debug("action=webdav_multipart_upload status=journaled_part_skipped part={}", partName);
+            return new UploadPart(partName, offset, length, journal.getValue(journalKey));
+        }
+        final DigestingRequestEntity requestEntity = new DigestingRequestEntity(
+                new FileChannelRequestEntity(file, offset, length, contentType, fileBufferSize),
+                PART_CHECKSUM_ALGORITHM);
+        putRequestEntity(requestEntity, remoteDir, partName, cache);
+        final String checksum = requestEntity.getDigestHex();
+        if (journalKey != null) {
+            journal.markCompleted(journalKey, checksum);
+        }
+        return new UploadPart(partName, offset, length, checksum);
+    }
+
+
+    /**
+     * Wraps the entity into {@link CompressingRequestEntity} unless the compression is {@link UploadCompression#NONE}.
+     * Blocks are compressed in parallel only if the entity is larger than one block or its length is unknown.
+     */
+    private RequestEntity compress(final RequestEntity requestEntity, final UploadCompression compression,
+            final String remoteFileName) {
+        if (compression == UploadCompression.NONE) {
+            return requestEntity;
+        }
+        final long length = requestEntity.getContentLength();
+        final int parallelism = length < 0 || length > CompressingRequestEntity.DEFAULT_BLOCK_SIZE
+                ? compressionParallelism : 1;
+        return new CompressingRequestEntity(requestEntity, compression, remoteFileName, compressionLevel, parallelism,
+                CompressingRequestEntity.DEFAULT_BLOCK_SIZE);
+    }
+
+
+    /**
+     * Wraps the entity into {@link DigestingRequestEntity} if {@link #digestAlgorithm} is set.
+     */
+    private RequestEntity withDigest(final RequestEntity requestEntity) {
+        final String algorithm = digestAlgorithm;
+        return algorithm != null ? new DigestingRequestEntity(requestEntity, algorithm) : requestEntity;
+    }
+
+
+    /**
+     * The header has to be sent before the body, so it's computed only for bodies held in memory - files and
+     * streams would have to be read twice.
+     *
+     * @return Base64 encoded MD5 of the body or null if it's not known in advance
+     */
+    private static String contentMd5(final RequestEntity requestEntity) {
+        if (!(requestEntity instanceof DigestingRequestEntity)) {
+            return null;
+        }
+        final DigestingRequestEntity digesting = (DigestingRequestEntity) requestEntity;
+        if (!"MD5".equalsIgnoreCase(digesting.getAlgorithm())
+                || !(digesting.getDelegate() instanceof ByteArrayRequestEntity)) {
+            return null;
+        }
+        try {
+            final byte[] content = ((ByteArrayRequestEntity) digesting.getDelegate()).getContent();
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 must be supported by every JVM", e);
+        }
+    }
+
+
+    /**
+     * Creates the result of a completed upload, verifying the digest according to {@link #digestVerification}.
+     *
+     * @throws WebDavUploaderException if the server reports different size or digest of the uploaded file
+     */
+    private UploadResult createUploadResult(final String putPath, final RequestEntity requestEntity,
+            final String etag) {
+        if (!(requestEntity instanceof DigestingRequestEntity)) {
+            return new UploadResult(putPath, requestEntity.getContentLength(), null, null, etag, false);
+        }
+        final DigestingRequestEntity digesting = (DigestingRequestEntity) requestEntity;
+        final String digest = digesting.getDigestHex();
+        final long length = digesting.getWrittenLength();
+        String remoteEtag = etag;
+        boolean verified = false;
+        switch (digestVerification) {
+            case PROPFIND:
+                final RemoteResource remote = findRemoteResource(putPath);
+                if (remote.getContentLength() != RemoteResource.UNKNOWN && remote.getContentLength() != length) {
+                    throw new WebDavUploaderException(String.format(
+                            "Size of uploaded %s is %d bytes on the server, %d bytes have been sent!",
+                            putPath, remote.getContentLength(), length));
+                }
+                if (remote.getEtag() != null) {
+                    remoteEtag = remote.getEtag();
+                }
+                verified = matchesDigest(putPath, remoteEtag, digest);
+                break;
+            case ETAG:
+                verified = matchesDigest(putPath, remoteEtag, digest);
+                break;
+            default:
+                break;
+        }
+        return new UploadResult(putPath, length, digesting.getAlgorithm(), digest, remoteEtag, verified);
+    }
+
+
+    /**
+     * @return true if the ETag is equal to the digest, false if the ETag doesn't look like a digest
+     * @throws WebDavUploaderException if the ETag looks like a digest but a different one
+     */
+    private boolean matchesDigest(final String putPath, final String etag, final String digest) {
+        if (etag == null || digest == null) {
+            logger.debug("action=webdav_upload status=digest_not_verifiable path={} etag={}", putPath, etag);
+            return false;
+        }
+        String value = etag.startsWith("W/") ? etag.substring(2) : etag;
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        if (value.length() != digest.length() || !value.matches("[0-9a-fA-F]+")) {
+            logger.debug("action=webdav_upload status=digest_not_verifiable path={} etag={}", putPath, etag);
+            return false;
+        }
+        if (!value.equalsIgnoreCase(digest)) {
+            throw new WebDavUploaderException(String.format(
+                    "Digest of uploaded %s doesn't match, %s has been sent but the server reports %s!",
+                    putPath, digest, value));
+        }
+        return true;
+    }
+
+
+    private RemoteResource findRemoteResource(final String path) {
+        final RemoteResource[] found = new RemoteResource[1];
+        executeAndReleasePropFindRequest(createPropFindRequest(path), new RemoteResourceHandler() {
+            @Override
+            public void handle(RemoteResource resource) {
+                if (found[0] == null && !resource.isCollection()) {
+                    found[0] = resource;
+                }
+            }
+        });
+        if (found[0] == null) {
+            throw new WebDavUploaderException(String.format("Uploaded file %s has not been found!", path));
+        }
+        return found[0];
+    }
+
+
+    private RequestEntity createFileRequestEntity(final File file, final String contentType) {
+        return new FileChannelRequestEntity(file, contentType, fileBufferSize);
+    }
+
+
+    private RequestEntity createInputStreamRequestEntity(final InputStream inputStream, final String contentType) {
+        if (streamingUploads) {
+            return new StreamingRequestEntity(inputStream, StreamingRequestEntity.CONTENT_LENGTH_CHUNKED, contentType,
+                    streamBufferSize);
+        }
+        return new InputStreamRequestEntity(inputStream, contentType);
+    }
+
+
+    /**
+     * Grows the connection pool to at least {@code maxConnections} connections.
+     */
+    private void ensureMaxConnections(final int maxConnections) {
+        synchronized (transport) {
+            if (getMaxConnections() < maxConnections) {
+                setMaxConnections(maxConnections);
+            }
+        }
+    }
+
+
+    /**
+     * Creates remote directory {@code remoteDir} including all its parents. Directories known to exist
+     * by given {@code cache} are skipped.
+     *
+     * @return escaped absolute path of the directory
+     */
+    private String createRemoteDirectories(final String remoteDir, final RemoteDirectoryCache cache) {
+        return createRemoteDirectories(remoteDir, cache, true);
+    }
+
+    /**
+     * @param consultCache whether directories known to exist by {@code cache} are skipped; created directories are
+     *                     added to the cache either way
+     */
+    private String createRemoteDirectories(final String remoteDir, final RemoteDirectoryCache cache,
+            final boolean consultCache) {
+        final String directoryPath = WEBDAV_URI + DIRECTORY_SEPARATOR + remoteDir;
+        if (consultCache && cache != null && cache.contains(directoryPath)) {
+            return directoryPath;
+        }
+
+        final String[] remoteDirectories = remoteDir.split(DIRECTORY_SEPARATOR);
+        String parentDirectory = WEBDAV_URI;
+        for (String remoteDirectory : remoteDirectories) {
+            final String newDirectory = parentDirectory + DIRECTORY_SEPARATOR + remoteDirectory;
+            if (!consultCache || cache == null || !cache.contains(newDirectory)) {
+                final TransportRequest mkdir = new TransportRequest("MKCOL", newDirectory);
+                //if the remote dir already exists, 301 is returned; the directory should not exist now
+                this.executeAndReleaseRequest(mkdir, HttpStatus.SC_CREATED, HttpStatus.SC_MOVED_PERMANENTLY);
+                if (cache != null) {
+                    cache.add(newDirectory);
+                }
+            }
+
+            // newDirectory is the parent directory for next subdirectory
+            parentDirectory = newDirectory;
+        }
+        return directoryPath;
+    }
+
+
+    /**
+     * Asynchronous counterpart of {@link #createRemoteDirectories(String, RemoteDirectoryCache, boolean)}, the MKCOL
+     * requests are chained one after another.
+     */
+    private CompletableFuture<String> createRemoteDirectoriesAsync(final String remoteDir,
+            final RemoteDirectoryCache cache, final boolean consultCache) {
+        final String directoryPath = WEBDAV_URI + DIRECTORY_SEPARATOR + remoteDir;
+        if (consultCache && cache != null && cache.contains(directoryPath)) {
+            return CompletableFuture.completedFuture(directoryPath);
+        }
+
+        CompletableFuture<Integer> created = CompletableFuture.completedFuture(null);
+        String parentDirectory = WEBDAV_URI;
+        for (String remoteDirectory : remoteDir.split(DIRECTORY_SEPARATOR)) {
+            final String newDirectory = parentDirectory + DIRECTORY_SEPARATOR + remoteDirectory;
+            if (!consultCache || cache == null || !cache.contains(newDirectory)) {
+                created = created.thenCompose(new Function<Integer, CompletableFuture<Integer>>() {
+                    @Override
+                    public CompletableFuture<Integer> apply(final Integer previous) {
+                        return executeAndReleaseRequestAsync(new TransportRequest("MKCOL", newDirectory), null,
+                                HttpStatus.SC_CREATED, HttpStatus.SC_MOVED_PERMANENTLY);
+                    }
+                }).thenApply(new Function<Integer, Integer>() {
+                    @Override
+                    public Integer apply(final Integer status) {
+                        if (cache != null) {
+                            cache.add(newDirectory);
+                        }
+                        return status;
+                    }
+                });
+            }
+            parentDirectory = newDirectory;
+        }
+        return created.thenApply(new Function<Integer, String>() {
+            @Override
+            public String apply(final Integer status) {
+                return directoryPath;
+            }
+        });
+    }
+
+
+    /**
+     * @return escaped absolute path of the remote file, concatenated rather than formatted as it's built per upload
+     */
+    private static String remotePath(final String remoteDir, final String remoteFileName) {
+        return WEBDAV_URI + DIRECTORY_SEPARATOR + remoteDir + DIRECTORY_SEPARATOR + remoteFileName;
+    }
+
+
+    /**
+     * Executes the request and checks its status.
+     *
+     * @return the returned status, one of {@code acceptedStatus}
+     */
+    private int executeAndReleaseRequest(final TransportRequest request, final int... acceptedStatus) {
+        return executeAndReleaseRequest(request, null, acceptedStatus);
+    }
+
+    /**
+     * @param responseEtag if not null, receives ETag of the accepted response
+     */
+    private int executeAndReleaseRequest(final TransportRequest request, final String[] responseEtag,
+            final int... acceptedStatus) {
+        final TransportResponse response;
+        final TransportRequest[] sentRequest = {request};
+        try {
+            response = executeRetrying(request, acceptedStatus, sentRequest);
+        } catch (final IOException e) {
+            throw new WebDavUploaderException(
+                    String.format("A problem occured while executing %s on %s!", request.getMethod(), request.getPath()), e);
+        }
+        return checkAndRelease(request, sentRequest[0], response, responseEtag, acceptedStatus);
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #executeAndReleaseRequest(TransportRequest, String[], int...)}, the returned
+     * future fails with {@link WebDavUploaderException}.
+     */
+    private CompletableFuture<Integer> executeAndReleaseRequestAsync(final TransportRequest request,
+            final String[] responseEtag, final int... acceptedStatus) {
+        final TransportRequest[] sentRequest = {request};
+        return executeRetryingAsync(request, acceptedStatus, sentRequest).handle(
+                new BiFunction<TransportResponse, Throwable, Integer>() {
+                    @Override
+                    public Integer apply(TransportResponse response, Throwable failure) {
+                        if (failure != null) {
+                            final Throwable cause = unwrapCompletion(failure);
+                            if (cause instanceof IOException) {
+                                throw new WebDavUploaderException(String.format(
+                                        "A problem occured while executing %s on %s!", request.getMethod(),
+                                        request.getPath()), cause);
+                            }
+                            throw failure instanceof CompletionException ? (CompletionException) failure
+                                    : new CompletionException(failure);
+                        }
+                        return checkAndRelease(request, sentRequest[0], response, responseEtag, acceptedStatus);
+                    }
+                });
+    }
+
+    /**
+     * Checks status of the response to the request and releases the response.
+     *
+     * @param sentRequest the request whose response it is, differs from {@code request} if it has been resumed
+     * @return the returned status, one of {@code acceptedStatus}
+     */
+    private int checkAndRelease(final TransportRequest request, final TransportRequest sentRequest,
+            final TransportResponse response, final String[] responseEtag, final int[] acceptedStatus) {
+        try {
+            // returned status should be any of acceptedStatus array
+            final int statusCode = response.getStatusCode();
+            if (isAccepted(sentRequest, statusCode, acceptedStatus)) {
+                if (responseEtag != null) {
+                    responseEtag[0] = response.getHeader("ETag");
+                }
+                return statusCode;
+            }
+
+            final String resp;
+            try {
+                final InputStream body = response.getBody();
+                resp = body != null ? IOUtils.toString(body, StandardCharsets.UTF_8) : "";
+            } catch (final IOException e) {
+                throw new WebDavUploaderException("A problem occured while retrieving the response body!", e);
+            }
+            throw new WebDavUploaderException(
+                    String.format("Something went wrong while executing %s on %s. %s expected, %d returned instead with response '%s'!",
+                            request.getMethod(),
+                            request.getPath(),
+                            Arrays.toString(acceptedStatus),
+                            statusCode,
+                            resp));
+        } finally {
+            response.release();
+        }
+    }
+
+
+    private TransportRequest createPropFindRequest(final String path) {
+        return new TransportRequest("PROPFIND", path)
+                .setHeader("Depth", "1")
+                .setEntity(new ByteArrayRequestEntity(PROPFIND_BODY, "text/xml; charset=UTF-8"));
+    }
+
+
+    private void executeAndReleasePropFindRequest(final TransportRequest request, final RemoteResourceHandler handler) {
+        final TransportResponse response;
+        try {
+            response = executeRetrying(request, new int[] {HttpStatus.SC_MULTI_STATUS}, null);
+        } catch (final IOException e) {
+            throw new WebDavUploaderException(
+                    String.format("A problem occured while executing %s on %s!", request.getMethod(), request.getPath()), e);
+        }
+
+        try {
+            if (response.getStatusCode() != HttpStatus.SC_MULTI_STATUS) {
+                throw new WebDavUploaderException(String.format("Something went wrong while executing a PROPFIND method on %s."
+                        + "%d expected, %d returned instead",
+                        request.getPath(),
+                        HttpStatus.SC_MULTI_STATUS,
+                        response.getStatusCode()));
+            }
+
+            try {
+                final InputStream responseBody = response.getBody();
+                if (responseBody == null) {
+                    throw new WebDavUploaderException("The webDav multi status body is empty");
+                }
+                MultiStatusParser.parse(responseBody, handler);
+            } catch (IOException e) {
+                throw new WebDavUploaderException("A problem occured while retrieving the webDav multi status body", e);
+            } catch (XMLStreamException e) {
+                throw new WebDavUploaderException("A problem occured while parsing the webDav multi status body", e);
+            }
+        } finally {
+            response.release();
+        }
+    }
+
+
+    private static boolean isSameDirectory(final String href, final String directoryPath) {
+        String path = hrefPath(href);
+        if (!path.endsWith(DIRECTORY_SEPARATOR)) {
+            path += DIRECTORY_SEPARATOR;
+        }
+        return path.equals(directoryPath);
+    }
+
+    /**
+     * @return escaped absolute path of given href, which may be an absolute URI
+     */
+    private static String hrefPath(final String href) {
+        final int schemeEnd = href.indexOf("://");
+        if (schemeEnd < 0) {
+            return href;
+        }
+        final int pathStart = href.indexOf(DIRECTORY_SEPARATOR, schemeEnd + 3);
+        return pathStart >= 0 ? href.substring(pathStart) : DIRECTORY_SEPARATOR;
+    }
+
+    /**
+     * Remote file is up to date if it has the same size (unless it's compressed) and it hasn't been modified locally
+     * after it was uploaded. Timestamps are compared with one second precision of HTTP dates.
+     */
+    private static boolean isUpToDate(final File localFile, final RemoteResource remoteFile, final boolean compressed) {
+        return (compressed || remoteFile.getContentLength() == localFile.length())
+                && remoteFile.getLastModified() != RemoteResource.UNKNOWN
+                && localFile.lastModified() / 1000 <= remoteFile.getLastModified() / 1000;
+    }
+
+
+    /**
+     * Executes the request, retrying it according to {@link #retryPolicy} if it fails with {@link IOException} or
+     * with a transient status which is not accepted. Failed file uploads are continued by byte-range PUT
+     * if {@link #rangeResume} is enabled and the server supports it.
+     *
+     * @param sentRequest if not null, receives the request whose response is returned
+     */
+    private TransportResponse executeRetrying(final TransportRequest request, final int[] acceptedStatus,
+            final TransportRequest[] sentRequest) throws IOException {
+        final RetryPolicy policy = retryPolicy;
+        // state of the target before the first attempt, a partial file is continued only if this upload wrote it
+        RemoteFileState before = isResumable(request) ? getRemoteFileState(request.getPath()) : null;
+        TransportRequest current = request;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final TransportResponse response = executeRequest(current);
+                final int status = response.getStatusCode();
+                if (current != request && status == HttpStatus.SC_PRECONDITION_FAILED
+                        && canRetry(policy, attempt, request)) {
+                    // the remote file has been changed by somebody else since it was checked, send it whole
+                    response.release();
+                    logger.info("action=webdav_upload status=range_resume_rejected path={}", current.getPath());
+                    before = null;
+                    current = request;
+                    continue;
+                }
+                if (isAccepted(current, status, acceptedStatus) || !policy.isRetryableStatus(status)
+                        || !canRetry(policy, attempt, current)) {
+                    if (sentRequest != null) {
+                        sentRequest[0] = current;
+                    }
+                    return response;
+                }
+                response.release();
+                logger.info("action=webdav_request status=retry method={} path={} attempt={} status_code={}",
+                        new Object[] {current.getMethod(), current.getPath(), attempt, status});
+            } catch (IOException e) {
+                if (!canRetry(policy, attempt, current)) {
+                    throw e;
+                }
+                logger.info("action=webdav_request status=retry method={} path={} attempt={} error={}",
+                        new Object[] {current.getMethod(), current.getPath(), attempt, e.toString()});
+            }
+            try {
+                Thread.sleep(policy.getDelayMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry " + current);
+            }
+            current = resumeIfPossible(request, before);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #executeRetrying(TransportRequest, int[], TransportRequest[])}, waiting for
+     * the next attempt doesn't hold a thread.
+     */
+    private CompletableFuture<TransportResponse> executeRetryingAsync(final TransportRequest request,
+            final int[] acceptedStatus, final TransportRequest[] sentRequest) {
+        final RetryPolicy policy = retryPolicy;
+        final CompletableFuture<RemoteFileState> before = isResumable(request)
+                ? getRemoteFileStateAsync(request.getPath()) : CompletableFuture.<RemoteFileState>completedFuture(null);
+        return before.thenCompose(new Function<RemoteFileState, CompletableFuture<TransportResponse>>() {
+            @Override
+            public CompletableFuture<TransportResponse> apply(final RemoteFileState state) {
+                return attemptAsync(policy, request, request, state, 1, acceptedStatus, sentRequest);
+            }
+        });
+    }
+
+    private CompletableFuture<TransportResponse> attemptAsync(final RetryPolicy policy, final TransportRequest request,
+            final TransportRequest current, final RemoteFileState before, final int attempt,
+            final int[] acceptedStatus, final TransportRequest[] sentRequest) {
+        return executeRequestAsync(current).handle(
+                new BiFunction<TransportResponse, Throwable, CompletableFuture<TransportResponse>>() {
+                    @Override
+                    public CompletableFuture<TransportResponse> apply(TransportResponse response, Throwable failure) {
+                        if (failure == null) {
+                            final int status = response.getStatusCode();
+                            if (current != request && status == HttpStatus.SC_PRECONDITION_FAILED
+                                    && canRetry(policy, attempt, request)) {
+                                response.release();
+                                logger.info("action=webdav_upload status=range_resume_rejected path={}",
+                                        current.getPath());
+                                return attemptAsync(policy, request, request, null, attempt + 1, acceptedStatus,
+                                        sentRequest);
+                            }
+                            if (isAccepted(current, status, acceptedStatus) || !policy.isRetryableStatus(status)
+                                    || !canRetry(policy, attempt, current)) {
+                                sentRequest[0] = current;
+                                return CompletableFuture.completedFuture(response);
+                            }
+                            response.release();
+                            logger.info("action=webdav_request status=retry method={} path={} attempt={} "
+                                    + "status_code={}", new Object[] {current.getMethod(), current.getPath(), attempt,
+                                    status});
+                        } else {
+                            final Throwable cause = unwrapCompletion(failure);
+                            if (!(cause instanceof IOException) || !canRetry(policy, attempt, current)) {
+                                return CompletableFuture.failedFuture(cause);
+                            }
+                            logger.info("action=webdav_request status=retry method={} path={} attempt={} error={}",
+                                    new Object[] {current.getMethod(), current.getPath(), attempt, cause.toString()});
+                        }
+                        final Executor delay = CompletableFuture.delayedExecutor(policy.getDelayMillis(attempt),
+                                TimeUnit.MILLISECONDS);
+                        return CompletableFuture.supplyAsync(new Supplier<RemoteFileState>() {
+                            @Override
+                            public RemoteFileState get() {
+                                return before;
+                            }
+                        }, delay).thenCompose(new Function<RemoteFileState, CompletableFuture<TransportRequest>>() {
+                            @Override
+                            public CompletableFuture<TransportRequest> apply(final RemoteFileState state) {
+                                return resumeIfPossibleAsync(request, state);
+                            }
+                        }).thenCompose(new Function<TransportRequest, CompletableFuture<TransportResponse>>() {
+                            @Override
+                            public CompletableFuture<TransportResponse> apply(final TransportRequest next) {
+                                return attemptAsync(policy, request, next, before, attempt + 1, acceptedStatus,
+                                        sentRequest);
+                            }
+                        });
+                    }
+                }).thenCompose(Function.<CompletableFuture<TransportResponse>>identity());
+    }
+
+    private static boolean canRetry(final RetryPolicy policy, final int attempt, final TransportRequest request) {
+        return attempt < policy.getMaxAttempts() && request.isIdempotent() && !request.isAborted()
+                && (request.getEntity() == null || canResend(request.getEntity()));
+    }
+
+    /**
+     * Accepted status is one of {@code acceptedStatus}, or any success of byte-range PUT continuing
+     * an existing file.
+     */
+    private static boolean isAccepted(final TransportRequest request, final int statusCode, final int[] acceptedStatus) {
+        for (int status : acceptedStatus) {
+            if (status == statusCode) {
+                return true;
+            }
+        }
+        return request.getHeaders().containsKey(CONTENT_RANGE_HEADER)
+                && (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_CREATED
+                || statusCode == HttpStatus.SC_NO_CONTENT);
+    }
+
+    /**
+     * @return whether failure of the request may be continued by byte-range PUT
+     */
+    private boolean isResumable(final TransportRequest request) {
+        return rangeResume && "PUT".equals(request.getMethod())
+                && !request.getHeaders().containsKey(CONTENT_RANGE_HEADER)
+                && unwrapRateLimited(request.getEntity()) instanceof FileChannelRequestEntity;
+    }
+
+    /**
+     * Creates byte-range PUT sending the rest of a partially uploaded file or returns the original request
+     * if the upload cannot be continued.
+     * <p>
+     * The remote file is continued only if it provably holds bytes written by this upload: it must have been
+     * missing before the first attempt or its ETag (Last-Modified if the server sends no ETag) must have changed
+     * since. The range PUT is conditional on the ETag seen after the failure, so the file cannot be continued if
+     * it has been replaced in the meantime.
+     *
+     * @param before state of the remote file before the first attempt, null if unknown
+     */
+    private TransportRequest resumeIfPossible(final TransportRequest original, final RemoteFileState before) {
+        if (before == null || !isResumable(original)) {
+            return original;
+        }
+        return resumedRequest(original, before, getRemoteFileState(original.getPath()));
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #resumeIfPossible(TransportRequest, RemoteFileState)}.
+     */
+    private CompletableFuture<TransportRequest> resumeIfPossibleAsync(final TransportRequest original,
+            final RemoteFileState before) {
+        if (before == null || !isResumable(original)) {
+            return CompletableFuture.completedFuture(original);
+        }
+        return getRemoteFileStateAsync(original.getPath()).thenApply(
+                new Function<RemoteFileState, TransportRequest>() {
+                    @Override
+                    public TransportRequest apply(final RemoteFileState after) {
+                        return resumedRequest(original, before, after);
+                    }
+                });
+    }
+
+    /**
+     * @param after state of the remote file after the failure, null if unknown
+     * @return byte-range PUT continuing the upload or the original request
+     */
+    private TransportRequest resumedRequest(final TransportRequest original, final RemoteFileState before,
+            final RemoteFileState after) {
+        final FileChannelRequestEntity entity = (FileChannelRequestEntity) unwrapRateLimited(original.getEntity());
+        final long total = entity.getContentLength();
+        final long written = after == null ? -1 : after.length;
+        if (written <= 0 || written >= total || !after.acceptsRanges || after.etag == null
+                || !after.isWrittenSince(before)) {
+            return original;
+        }
+        logger.info("action=webdav_upload status=range_resume path={} offset={} total={}",
+                new Object[] {original.getPath(), written, total});
+        final TransportRequest resumed = createPutRequest(original.getPath(), new FileChannelRequestEntity(
+                entity.getFile(), entity.getOffset() + written, total - written, entity.getContentType(),
+                fileBufferSize));
+        resumed.setHeader(CONTENT_RANGE_HEADER, "bytes " + written + "-" + (total - 1) + "/" + total);
+        resumed.setHeader("If-Match", after.etag);
+        return resumed;
+    }
+
+    /**
+     * @return state of the remote file obtained by HEAD, null if it cannot be determined
+     */
+    private RemoteFileState getRemoteFileState(final String path) {
+        final TransportResponse response;
+        try {
+            response = executeRequest(new TransportRequest("HEAD", path));
+        } catch (IOException e) {
+            logger.debug("action=webdav_upload status=range_resume_head_error", e);
+            return null;
+        }
+        return toRemoteFileState(response);
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #getRemoteFileState(String)}.
+     */
+    private CompletableFuture<RemoteFileState> getRemoteFileStateAsync(final String path) {
+        return executeRequestAsync(new TransportRequest("HEAD", path)).handle(
+                new BiFunction<TransportResponse, Throwable, RemoteFileState>() {
+                    @Override
+                    public RemoteFileState apply(TransportResponse response, Throwable failure) {
+                        if (failure != null) {
+                            logger.debug("action=webdav_upload status=range_resume_head_error", failure);
+                            return null;
+                        }
+                        return toRemoteFileState(response);
+                    }
+                });
+    }
+
+    /**
+     * Reads the state from the response to HEAD and releases the response.
+     */
+    private static RemoteFileState toRemoteFileState(final TransportResponse response) {
+        try {
+            if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                return RemoteFileState.MISSING;
+            }
+            final String contentLength = response.getHeader("Content-Length");
+            if (response.getStatusCode() != HttpStatus.SC_OK || contentLength == null) {
+                return null;
+            }
+            return new RemoteFileState(Long.parseLong(contentLength.trim()),
+                    "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges")), response.getHeader("ETag"),
+                    response.getHeader("Last-Modified"));
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Length, validators and range support of a remote file as reported by HEAD.
+     */
+    private static final class RemoteFileState {
+
+        static final RemoteFileState MISSING = new RemoteFileState(-1, false, null, null);
+
+        final long length;
+        final boolean acceptsRanges;
+        final String etag;
+        final String lastModified;
+
+        RemoteFileState(final long length, final boolean acceptsRanges, final String etag, final String lastModified) {
+            this.length = length;
+            this.acceptsRanges = acceptsRanges;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return whether the file has been created or modified since the {@code earlier} state
+         */
+        boolean isWrittenSince(final RemoteFileState earlier) {
+            if (earlier == MISSING) {
+                return this != MISSING;
+            }
+            if (earlier.etag != null) {
+                return !earlier.etag.equals(etag);
+            }
+            return earlier.lastModified != null && lastModified != null && !earlier.lastModified.equals(lastModified);
+        }
+    }
+
+    private TransportResponse executeRequest(TransportRequest request) throws IOException {
+        final UploadMetricsListener listener = metricsListener;
+        if (listener == null) {
+            return executeAndAuthenticateRequest(request, null);
+        }
+        final long start = System.nanoTime();
+        int statusCode = 0;
+        try {
+            final TransportResponse response = executeAndAuthenticateRequest(request, listener);
+            statusCode = response.getStatusCode();
+            return response;
+        } finally {
+            listener.onRequest(UploadPhase.forMethod(request.getMethod()), statusCode, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #executeRequest(TransportRequest)}.
+     */
+    private CompletableFuture<TransportResponse> executeRequestAsync(final TransportRequest request) {
+        final UploadMetricsListener listener = metricsListener;
+        final long start = System.nanoTime();
+        CompletableFuture<TransportResponse> response;
+        try {
+            final UserLogin login = preAuthenticate(request);
+            response = transport.executeAsync(request).thenCompose(
+                    new Function<TransportResponse, CompletableFuture<TransportResponse>>() {
+                        @Override
+                        public CompletableFuture<TransportResponse> apply(final TransportResponse response) {
+                            if (response.getStatusCode() == HttpStatus.SC_UNAUTHORIZED
+                                    && SstTokenAuthenticationUsed()) {
+                                logger.info("action=webdav_upload status=tt_token_expired reauthenticate using "
+                                        + "user's SST token");
+                                if (listener != null) {
+                                    listener.onReauthentication();
+                                }
+                                return authenticateAsync(request, response, login);
+                            }
+                            return CompletableFuture.completedFuture(response);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        if (listener == null) {
+            return response;
+        }
+        return response.whenComplete(new BiConsumer<TransportResponse, Throwable>() {
+            @Override
+            public void accept(TransportResponse result, Throwable failure) {
+                listener.onRequest(UploadPhase.forMethod(request.getMethod()),
+                        result != null ? result.getStatusCode() : 0, System.nanoTime() - start);
+            }
+        });
+    }
+
+    private TransportResponse executeAndAuthenticateRequest(TransportRequest request, UploadMetricsListener listener)
+            throws IOException {
+
+        final UserLogin login = preAuthenticate(request);
+
+        final TransportResponse response = transport.execute(request);
+
+        if (response.getStatusCode() == HttpStatus.SC_UNAUTHORIZED && SstTokenAuthenticationUsed()) {
+            // Temporary token is probably expired (default validity 600 secs,
+            // see bear.git/resources/httpd/resources/global_variables.conf - key "TT_validity")
+            logger.info("action=webdav_upload status=tt_token_expired reauthenticate using user's SST token");
+            if (listener != null) {
+                listener.onReauthentication();
+            }
+            return authenticate(request, response, login);
+        }
+        return response;
+    }
+
+    private TransportResponse authenticate(TransportRequest request, TransportResponse rejected, UserLogin expiredLogin)
+            throws IOException {
+        if (tokenManager == null) {
+            throw new IllegalStateException("TokenManager must be set for authentication via sst token");
+        }
+        //#12842 release the connection before we try re-authenticate
+        //because authentication itself allocates a new connection => deadlock
+        rejected.release();
+        //concurrent callers rejected with the same token share single refresh
+        final UserLogin userLogin = tokenManager.refresh(expiredLogin);
+        final RequestEntity requestEntity = request.getEntity();
+        if (requestEntity != null && !canResend(requestEntity)) {
+            throw new WebDavUploaderException(String.format("Request body of %s on %s has already been sent and "
+                    + "cannot be resent after re-authentication! Consider enabling expect-continue handshake.",
+                    request.getMethod(), request.getPath()));
+        }
+        request.setCookie(WebDavSstAuthenticator.GDCAuthTT_COOKIE, userLogin.getGdcAuthTT());
+        //after successful authentication re-send the request
+        logger.debug("action=webdav_upload status=RESENDING_REQUEST target_uri={}", request.getPath());
+        return transport.execute(request);
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticate(TransportRequest, TransportResponse, UserLogin)}.
+     */
+    private CompletableFuture<TransportResponse> authenticateAsync(final TransportRequest request,
+            final TransportResponse rejected, final UserLogin expiredLogin) {
+        if (tokenManager == null) {
+            throw new IllegalStateException("TokenManager must be set for authentication via sst token");
+        }
+        rejected.release();
+        final UserLogin userLogin = tokenManager.refresh(expiredLogin);
+        final RequestEntity requestEntity = request.getEntity();
+        if (requestEntity != null && !canResend(requestEntity)) {
+            throw new WebDavUploaderException(String.format("Request body of %s on %s has already been sent and "
+                    + "cannot be resent after re-authentication! Consider enabling expect-continue handshake.",
+                    request.getMethod(), request.getPath()));
+        }
+        request.setCookie(WebDavSstAuthenticator.GDCAuthTT_COOKIE, userLogin.getGdcAuthTT());
+        logger.debug("action=webdav_upload status=RESENDING_REQUEST target_uri={}", request.getPath());
+        return transport.executeAsync(request);
+    }
+
+    private static Throwable unwrapCompletion(final Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * Sets the temporary token cookie, obtaining the token first if needed.
+     * @return the login whose token has been set or null if SST authentication is not used
+     */
+    private UserLogin preAuthenticate(TransportRequest request) {
+        if (!SstTokenAuthenticationUsed()) {
+            return null;
         }
+        final UserLogin userLogin = tokenManager.getUserLogin();
+        request.setCookie(WebDavSstAuthenticator.GDCAuthTT_COOKIE, userLogin.getGdcAuthTT());
+        return userLogin;
     }
 
 
     private boolean SstTokenAuthenticationUsed() {
-        return superSecureToken != null;
-    }
-
-    private void addCookie(String cookieName, String cookieValue) {
-        Validate.notNull(webDavHttpClient, "HttpClient must be set prior setting of cookies!");
-        Validate.notNull(webDavHttpClient.getHostConfiguration(), "HttpClient.hostConfiguration must be set prior setting of cookies!");
-        final Cookie cookie = new Cookie();
-        cookie.setDomain(webDavHttpClient.getHostConfiguration().getHost());
-        cookie.setName(cookieName);
-        cookie.setValue(cookieValue);
-        cookie.setPath("/");
-        this.webDavHttpClient.getState().addCookie(cookie);
+        return tokenManager != null;
     }
 
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class AsyncUploadTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    private final UploadScheduler scheduler = new UploadScheduler(1, 0, 16, 100,
+            UploadScheduler.QueueFullPolicy.BLOCK, false);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testAsyncUploadsDoNotBlockOnTransport() throws Exception {
+        final HandshakeTransport transport = createTransport();
+        final WebDavUploader uploader = createUploader(transport);
+        uploader.setRetryPolicy(new RetryPolicy(2, 1, 10, 2));
+        uploader.transferFile(createFile("sync"), "dir", "sync.csv", "text/csv");
+        Assert.assertEquals(2, transport.blockingExecutions.get());
+
+        // the token expires and the first PUT fails transiently
+        server.validToken = "expired";
+        server.failingPuts.set(1);
+        final List<CompletableFuture<UploadResult>> uploads = new ArrayList<CompletableFuture<UploadResult>>();
+        for (int i = 0; i < 8; i++) {
+            uploads.add(uploader.transferFileAsync(createFile("file" + i), "dir/sub", "f" + i + ".csv", "text/csv"));
+        }
+        uploads.add(uploader.transferInputStreamAsync(new ByteArrayInputStream("stream".getBytes()), "dir/sub",
+                "s.csv", "text/csv"));
+        for (CompletableFuture<UploadResult> upload : uploads) {
+            upload.get(5, TimeUnit.SECONDS);
+        }
+
+        Assert.assertEquals(2, transport.blockingExecutions.get());
+        Assert.assertEquals("file7", new String(server.files.get("/uploads/dir/sub/f7.csv")));
+        Assert.assertEquals("stream", new String(server.files.get("/uploads/dir/sub/s.csv")));
+        Assert.assertEquals(2, server.tokens.get());
+    }
+
+    @Test
+    public void testAsyncUploadIsResumedByRangeAndFailureReported() throws Exception {
+        final WebDavUploader uploader = createUploader(createTransport());
+        uploader.setRetryPolicy(new RetryPolicy(2, 1, 10, 2));
+        uploader.setRangeResume(true);
+        server.failingPuts.set(1);
+        server.partialPuts = true;
+
+        uploader.transferFileAsync(createFile("0123456789"), "dir", "a.csv", "text/csv").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("0123456789", new String(server.uploaded));
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "HEAD /uploads/dir/a.csv", "PUT /uploads/dir/a.csv",
+                "HEAD /uploads/dir/a.csv", "PUT /uploads/dir/a.csv"), server.requests);
+
+        server.failingPuts.set(2);
+        server.partialPuts = false;
+        try {
+            uploader.transferFileAsync(createFile("failed"), "dir", "b.csv", "text/csv").get(5, TimeUnit.SECONDS);
+            Assert.fail("both attempts have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof WebDavUploaderException);
+        }
+        Assert.assertEquals(Set.of("/uploads/dir/a.csv"), server.files.keySet());
+    }
+
+    @Test
+    public void testShutdownStopsOnlyDefaultScheduler() throws Exception {
+        final WebDavUploader shared = createUploader(createTransport());
+        shared.shutdown();
+        shared.transferFileAsync(createFile("shared"), "dir", "shared.csv", "text/csv").get(5, TimeUnit.SECONDS);
+
+        final WebDavUploader uploader = new WebDavUploader(createTransport(),
+                new WebDavSstAuthenticator(new HttpClientTransport("http", "localhost", server.getPort())), "sst");
+        uploader.getTokenManager().setProactiveRefresh(false);
+        uploader.transferFileAsync(createFile("own"), "dir", "own.csv", "text/csv").get(5, TimeUnit.SECONDS);
+        uploader.shutdown();
+        try {
+            uploader.transferFileAsync(createFile("late"), "dir", "late.csv", "text/csv").get(5, TimeUnit.SECONDS);
+            Assert.fail("the default scheduler has been shut down");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(Set.of("/uploads/dir/shared.csv", "/uploads/dir/own.csv"), server.files.keySet());
+    }
+
+    private HandshakeTransport createTransport() {
+        return new HandshakeTransport(new JdkHttpTransport("http", "localhost", server.getPort()));
+    }
+
+    private WebDavUploader createUploader(final WebDavTransport transport) {
+        final WebDavUploader uploader = new WebDavUploader(transport,
+                new WebDavSstAuthenticator(new HttpClientTransport("http", "localhost", server.getPort())), "sst");
+        uploader.getTokenManager().setProactiveRefresh(false);
+        uploader.setUploadScheduler(scheduler);
+        return uploader;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BandwidthLimiterTest {
+
+    private static final int CHUNK = 16 * 1024;
+
+    @Test
+    public void testRateIsLimited() throws IOException {
+        final BandwidthLimiter limiter = new BandwidthLimiter(1024 * 1024);
+        final byte[] content = new byte[320 * 1024];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final long start = System.nanoTime();
+        new RateLimitedRequestEntity(new ByteArrayRequestEntity(content), 1, limiter).writeRequest(out);
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Assert.assertEquals(content.length, out.size());
+        // the bucket is empty at the beginning, 320 KB at 1 MB/s take about 300 ms
+        Assert.assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 250);
+    }
+
+    @Test
+    public void testBandwidthIsSharedByWeight() throws InterruptedException {
+        final BandwidthLimiter limiter = new BandwidthLimiter(4 * 1024 * 1024);
+        final AtomicLong total = new AtomicLong();
+        final long[] sent = new long[2];
+        final Thread light = startTransfer(limiter, 1, total, sent, 0);
+        final Thread heavy = startTransfer(limiter, 3, total, sent, 1);
+        light.join();
+        heavy.join();
+
+        final double ratio = (double) sent[1] / sent[0];
+        Assert.assertTrue("ratio " + ratio, ratio > 2.5 && ratio < 3.5);
+    }
+
+    @Test
+    public void testWaitingTransferIsReleasedWhenUnlimited() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter(1);
+        final BandwidthLimiter.Transfer transfer = limiter.newTransfer(1);
+        final Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // the bucket is empty at the beginning, the grant would take hours
+                    limiter.acquire(transfer, BandwidthLimiter.MAX_GRANT);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        waiting.start();
+        while (limiter.getWaitingTransfers() == 0) {
+            Thread.sleep(10);
+        }
+        limiter.setBytesPerSecond(BandwidthLimiter.UNLIMITED);
+        waiting.join(5000);
+        Assert.assertFalse(waiting.isAlive());
+    }
+
+    /**
+     * Sends chunks until both transfers together have sent 2 MB, i.e. while they compete.
+     */
+    private static Thread startTransfer(final BandwidthLimiter limiter, final int weight, final AtomicLong total,
+            final long[] sent, final int index) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final BandwidthLimiter.Transfer transfer = limiter.newTransfer(weight);
+                try {
+                    while (total.get() < 2 * 1024 * 1024) {
+                        limiter.acquire(transfer, CHUNK);
+                        total.addAndGet(CHUNK);
+                        sent[index] += CHUNK;
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
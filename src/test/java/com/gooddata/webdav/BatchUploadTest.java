@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BatchUploadTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger maxActiveUploads = new AtomicInteger();
+    private final List<Thread> uploadThreads = Collections.synchronizedList(new ArrayList<Thread>());
+
+    @Test
+    public void testParallelismIsBounded() {
+        final List<UploadItem> items = new ArrayList<UploadItem>();
+        for (int i = 0; i < 6; i++) {
+            items.add(new UploadItem(trackedStream("item" + i), "dir", "item" + i + ".csv", "text/csv"));
+        }
+
+        final BatchUploadReport report = server.createUploader().transferBatch(items, 2);
+
+        Assert.assertTrue(report.isSuccess());
+        Assert.assertEquals(6, report.getSuccessCount());
+        Assert.assertEquals(2, maxActiveUploads.get());
+        Assert.assertEquals("item5", new String(server.files.get("/uploads/dir/item5.csv")));
+    }
+
+    @Test
+    public void testEachDirectoryIsCreatedOnce() {
+        final List<UploadItem> items = List.of(new UploadItem(createFile("1"), "a/b", "1.csv", "text/csv"),
+                new UploadItem(createFile("2"), "a/c", "2.csv", "text/csv"),
+                new UploadItem(createFile("3"), "a/b", "3.csv", "text/csv"),
+                new UploadItem(createFile("4"), "a/b", "4.csv", "text/csv"));
+
+        Assert.assertTrue(server.createUploader().transferBatch(items, 3).isSuccess());
+
+        final List<String> mkcols = new ArrayList<String>();
+        for (String request : server.requests) {
+            if (request.startsWith("MKCOL")) {
+                mkcols.add(request);
+            }
+        }
+        Assert.assertEquals(List.of("MKCOL /uploads/a", "MKCOL /uploads/a/b", "MKCOL /uploads/a/c"), mkcols);
+    }
+
+    @Test
+    public void testFailuresAreReportedPerItem() {
+        server.forbiddenPaths.add("/uploads/denied");
+        server.forbiddenPaths.add("/uploads/dir/b.csv");
+        final List<UploadItem> items = List.of(new UploadItem(createFile("a"), "dir", "a.csv", "text/csv"),
+                new UploadItem(createFile("x"), "denied", "x.csv", "text/csv"),
+                new UploadItem(createFile("b"), "dir", "b.csv", "text/csv"),
+                new UploadItem(createFile("c"), "dir", "c.csv", "text/csv"));
+
+        final BatchUploadReport report = server.createUploader().transferBatch(items, 2);
+
+        Assert.assertFalse(report.isSuccess());
+        Assert.assertEquals(2, report.getSuccessCount());
+        Assert.assertEquals(List.of(items.get(1), items.get(2)),
+                List.of(report.getFailures().get(0).getItem(), report.getFailures().get(1).getItem()));
+        for (BatchItemResult failure : report.getFailures()) {
+            Assert.assertTrue(failure.getFailure() instanceof WebDavUploaderException);
+        }
+        Assert.assertEquals(items, List.of(report.getResults().get(0).getItem(), report.getResults().get(1).getItem(),
+                report.getResults().get(2).getItem(), report.getResults().get(3).getItem()));
+        Assert.assertEquals(Set.of("/uploads/dir/a.csv", "/uploads/dir/c.csv"), server.files.keySet());
+        // the items in the denied directory are not even attempted
+        Assert.assertFalse(server.requests.contains("PUT /uploads/denied/x.csv"));
+    }
+
+    @Test
+    public void testVirtualThreadsFallBackToPlatformThreads() throws Exception {
+        final List<UploadItem> items = List.of(new UploadItem(trackedStream("a"), "dir", "a.csv", "text/csv"),
+                new UploadItem(trackedStream("b"), "dir", "b.csv", "text/csv"));
+
+        Assert.assertTrue(server.createUploader().transferBatch(items, 2, true).isSuccess());
+
+        // virtual threads are used only by runtimes which have them (Java 21+)
+        final boolean virtualThreadsSupported = hasMethod(Thread.class, "ofVirtual");
+        Assert.assertEquals(2, uploadThreads.size());
+        for (Thread thread : uploadThreads) {
+            Assert.assertEquals(virtualThreadsSupported, isVirtual(thread));
+            Assert.assertTrue(thread.getName().startsWith("webdav-batch-upload-"));
+        }
+    }
+
+    /**
+     * @return stream of the content recording how many uploads read their stream at the same time
+     */
+    private FilterInputStream trackedStream(final String content) {
+        return new FilterInputStream(new ByteArrayInputStream(content.getBytes())) {
+            private boolean tracked;
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                if (!tracked) {
+                    tracked = true;
+                    uploadThreads.add(Thread.currentThread());
+                    final int active = activeUploads.incrementAndGet();
+                    maxActiveUploads.accumulateAndGet(active, Math::max);
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    } finally {
+                        activeUploads.decrementAndGet();
+                    }
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+    }
+
+    private static boolean hasMethod(final Class<?> type, final String name) {
+        try {
+            type.getMethod(name);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isVirtual(final Thread thread) throws Exception {
+        return hasMethod(Thread.class, "isVirtual") && (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressingRequestEntityTest {
+
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    @Test
+    public void testGzipIsReadable() throws IOException {
+        final byte[] content = createCsv();
+        for (int parallelism : new int[] {1, 4}) {
+            final byte[] gzip = compress(content, UploadCompression.GZIP, parallelism);
+            Assert.assertTrue(gzip.length < content.length / 2);
+            Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+        }
+    }
+
+    @Test
+    public void testZipIsReadable() throws IOException {
+        final byte[] content = createCsv();
+        for (int parallelism : new int[] {1, 4}) {
+            final File file = File.createTempFile("compressed", ".zip");
+            try {
+                FileUtils.writeByteArrayToFile(file, compress(content, UploadCompression.ZIP, parallelism));
+                final ZipFile zip = new ZipFile(file);
+                try {
+                    Assert.assertEquals(1, zip.size());
+                    final ZipEntry entry = zip.getEntry("data.csv");
+                    Assert.assertEquals(content.length, entry.getSize());
+                    Assert.assertArrayEquals(content, IOUtils.toByteArray(zip.getInputStream(entry)));
+                } finally {
+                    zip.close();
+                }
+            } finally {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyGzip() throws IOException {
+        final byte[] gzip = compress(new byte[0], UploadCompression.GZIP, 1);
+        Assert.assertEquals(0, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))).length);
+    }
+
+    private static byte[] compress(final byte[] content, final UploadCompression compression, final int parallelism)
+            throws IOException {
+        final CompressingRequestEntity entity = new CompressingRequestEntity(new ByteArrayRequestEntity(content),
+                compression, "data.csv", Deflater.DEFAULT_COMPRESSION, parallelism, BLOCK_SIZE);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeRequest(out);
+        return out.toByteArray();
+    }
+
+    /** CSV spanning several blocks, ending in the middle of one. */
+    private static byte[] createCsv() {
+        final Random random = new Random(42);
+        final StringBuilder csv = new StringBuilder("id,name,amount\n");
+        for (int i = 0; csv.length() < BLOCK_SIZE * 5 + 1000; i++) {
+            csv.append(i).append(",name").append(random.nextInt(100)).append(',').append(random.nextInt(10000))
+                    .append('\n');
+        }
+        return csv.toString().getBytes();
+    }
+}
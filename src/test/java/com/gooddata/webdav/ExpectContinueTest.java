@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ExpectContinueTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testHandshakeIsUsedFromThreshold() throws Exception {
+        final HandshakeTransport transport = createTransport();
+        final WebDavUploader uploader = createUploader(transport);
+        uploader.setExpectContinueThreshold(5);
+
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("1234".getBytes()), "dir", "small.csv", "text/csv");
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("12345".getBytes()), "dir", "exact.csv", "text/csv");
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("123456".getBytes()), "dir", "large.csv", "text/csv");
+        uploader.setExpectContinueThreshold(WebDavUploader.EXPECT_CONTINUE_DISABLED);
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("123456".getBytes()), "dir", "off.csv", "text/csv");
+
+        Assert.assertEquals(List.of("PUT /uploads/dir/exact.csv", "PUT /uploads/dir/large.csv"),
+                transport.expectContinueRequests);
+    }
+
+    @Test
+    public void testStreamRejectedDuringHandshakeIsResent() throws Exception {
+        final HandshakeTransport transport = createTransport();
+        final WebDavUploader uploader = createUploader(transport);
+        uploader.getTokenManager().setProactiveRefresh(false);
+        uploader.setExpectContinueThreshold(0);
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("first".getBytes()), "dir", "a.csv", "text/csv");
+
+        // the temporary token expires, the server rejects the handshake and the stream hasn't been read yet
+        transport.rejectedHandshakes.set(1);
+        uploader.transferInputStream(new ByteArrayInputStream("streamed".getBytes()), 8, "dir", "b.csv", "text/csv");
+
+        Assert.assertEquals("streamed", new String(server.files.get("/uploads/dir/b.csv")));
+        Assert.assertEquals(2, server.tokens.get());
+        Assert.assertEquals(List.of("PUT /uploads/dir/a.csv", "PUT /uploads/dir/b.csv", "PUT /uploads/dir/b.csv"),
+                transport.expectContinueRequests);
+    }
+
+    private HandshakeTransport createTransport() {
+        return new HandshakeTransport(new HttpClientTransport("http", "localhost", server.getPort()));
+    }
+
+    private WebDavUploader createUploader(final WebDavTransport transport) {
+        return new WebDavUploader(transport,
+                new WebDavSstAuthenticator(new HttpClientTransport("http", "localhost", server.getPort())), "sst");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FileChannelRequestEntityTest {
+
+    @Test
+    public void testFileIsWrittenRepeatedly() throws IOException {
+        final byte[] content = new byte[100000];
+        new Random(42).nextBytes(content);
+        final File file = File.createTempFile("webdav", "tmp");
+        try {
+            FileUtils.writeByteArrayToFile(file, content);
+            final FileChannelRequestEntity entity = new FileChannelRequestEntity(file, "application/octet-stream", 4096);
+            Assert.assertEquals(content.length, entity.getContentLength());
+            Assert.assertTrue(entity.isRepeatable());
+            for (int i = 0; i < 2; i++) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                entity.writeRequest(out);
+                Assert.assertArrayEquals(content, out.toByteArray());
+            }
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testRegionIsWritten() throws IOException {
+        final byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        final File file = File.createTempFile("webdav", "tmp");
+        try {
+            FileUtils.writeByteArrayToFile(file, content);
+            final FileChannelRequestEntity entity = new FileChannelRequestEntity(file, 1000, 5000,
+                    "application/octet-stream", 4096);
+            Assert.assertEquals(5000, entity.getContentLength());
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeRequest(out);
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 1000, 6000), out.toByteArray());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testBuffersArePooledAcrossThreads() throws Exception {
+        final File file = File.createTempFile("webdav", "tmp");
+        try {
+            FileUtils.writeByteArrayToFile(file, new byte[1000]);
+            final FileChannelRequestEntity entity = new FileChannelRequestEntity(file, "application/octet-stream", 512);
+            final ExecutorService executor = Executors.newCachedThreadPool();
+            try {
+                final List<Future<Integer>> written = new ArrayList<Future<Integer>>();
+                for (int i = 0; i < FileChannelRequestEntity.MAX_POOLED_BUFFERS * 2; i++) {
+                    written.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws IOException {
+                            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            entity.writeRequest(out);
+                            return out.size();
+                        }
+                    }));
+                }
+                for (Future<Integer> size : written) {
+                    Assert.assertEquals(1000, size.get(5, TimeUnit.SECONDS).intValue());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            final int pooled = FileChannelRequestEntity.getPooledBufferCount();
+            Assert.assertTrue(pooled > 0 && pooled <= FileChannelRequestEntity.MAX_POOLED_BUFFERS);
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport recording which requests asked for the "Expect: 100-continue" handshake and rejecting the given number
+ * of them with 401 before their body is sent, as a server does for an expired temporary token. Other requests
+ * are passed to the delegate. Requests executed by the blocking {@link #execute(TransportRequest)} are counted.
+ */
+class HandshakeTransport implements WebDavTransport {
+
+    final List<String> expectContinueRequests = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger rejectedHandshakes = new AtomicInteger();
+    final AtomicInteger blockingExecutions = new AtomicInteger();
+
+    private final WebDavTransport delegate;
+
+    HandshakeTransport(final WebDavTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public TransportResponse execute(final TransportRequest request) throws IOException {
+        blockingExecutions.incrementAndGet();
+        return isRejected(request) ? new RejectedHandshake() : delegate.execute(request);
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(final TransportRequest request) {
+        return isRejected(request) ? CompletableFuture.<TransportResponse>completedFuture(new RejectedHandshake())
+                : delegate.executeAsync(request);
+    }
+
+    private boolean isRejected(final TransportRequest request) {
+        if (!request.isExpectContinue()) {
+            return false;
+        }
+        expectContinueRequests.add(request.toString());
+        return rejectedHandshakes.getAndDecrement() > 0;
+    }
+
+    @Override
+    public void setCredentials(final String username, final String password) {
+        delegate.setCredentials(username, password);
+    }
+
+    @Override
+    public String getHost() {
+        return delegate.getHost();
+    }
+
+    @Override
+    public void setMaxConnections(final int maxConnections) {
+        delegate.setMaxConnections(maxConnections);
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return delegate.getMaxConnections();
+    }
+
+    @Override
+    public int getConnectionsInPool() {
+        return delegate.getConnectionsInPool();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    private static final class RejectedHandshake implements TransportResponse {
+        @Override
+        public int getStatusCode() {
+            return 401;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public String getCookie(String name) {
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return null;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
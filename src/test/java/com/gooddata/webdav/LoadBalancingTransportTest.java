@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadBalancingTransportTest {
+
+    @Test
+    public void testFailedRequestFailsOverAndEndpointIsEjected() throws IOException {
+        final StubTransport down = new StubTransport("down", -1);
+        final StubTransport up = new StubTransport("up", 201);
+        final LoadBalancingTransport transport = new LoadBalancingTransport(Arrays.asList(down, up));
+        transport.setEjectionThreshold(2);
+        // endpoint without any response has no latency yet, so it's preferred until ejected
+        transport.setSelection(LoadBalancingTransport.Selection.LATENCY_WEIGHTED);
+
+        for (int i = 0; i < 10; i++) {
+            final TransportResponse response = transport.execute(put());
+            Assert.assertEquals(201, response.getStatusCode());
+            response.release();
+        }
+
+        Assert.assertTrue(transport.isEjected(down));
+        Assert.assertFalse(transport.isEjected(up));
+        Assert.assertEquals(2, down.calls);
+        Assert.assertEquals(10, up.calls);
+    }
+
+    @Test
+    public void testNonIdempotentRequestDoesNotFailOver() {
+        final StubTransport down = new StubTransport("down", -1);
+        final LoadBalancingTransport transport = new LoadBalancingTransport(
+                Arrays.asList(down, new StubTransport("other", -1)));
+        try {
+            transport.execute(new TransportRequest("POST", "/gdc/account/login"));
+            Assert.fail("the request must fail");
+        } catch (IOException expected) {
+            Assert.assertEquals(1, down.calls + ((StubTransport) transport.getEndpoints().get(1)).calls);
+        }
+    }
+
+    @Test
+    public void testFailoverCanBeLeftToRetryPolicy() throws IOException {
+        final StubTransport first = new StubTransport("first", 503);
+        final StubTransport second = new StubTransport("second", 503);
+        final LoadBalancingTransport transport = new LoadBalancingTransport(Arrays.asList(first, second));
+        Assert.assertEquals(503, transport.execute(put()).getStatusCode());
+        Assert.assertEquals(2, first.calls + second.calls);
+
+        transport.setFailover(false);
+        Assert.assertEquals(503, transport.execute(put()).getStatusCode());
+        Assert.assertEquals(3, first.calls + second.calls);
+    }
+
+    @Test
+    public void testLeastOutstandingEndpointIsSelected() throws IOException {
+        final StubTransport first = new StubTransport("first", 201);
+        final StubTransport second = new StubTransport("second", 201);
+        final LoadBalancingTransport transport = new LoadBalancingTransport(Arrays.asList(first, second));
+
+        final TransportResponse pending = transport.execute(put());
+        for (int i = 0; i < 5; i++) {
+            transport.execute(put()).release();
+        }
+        pending.release();
+
+        // all the other requests avoided the endpoint busy with the pending one
+        Assert.assertEquals(6, first.calls + second.calls);
+        Assert.assertEquals(1, Math.min(first.calls, second.calls));
+    }
+
+    @Test
+    public void testEndpointFailingWithRuntimeExceptionIsSelectedAgain() throws IOException {
+        final StubTransport broken = new StubTransport("broken", 201);
+        broken.runtimeFailures = 1;
+        final StubTransport other = new StubTransport("other", 201);
+        final LoadBalancingTransport transport = new LoadBalancingTransport(Arrays.asList(broken, other));
+
+        while (broken.calls == 0) {
+            try {
+                transport.execute(put()).release();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals(0, broken.runtimeFailures);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            transport.execute(put()).release();
+        }
+
+        // the failed request is no longer counted as outstanding
+        Assert.assertTrue(broken.calls > 1);
+    }
+
+    private static TransportRequest put() {
+        return new TransportRequest("PUT", "/uploads/a.csv").setEntity(new ByteArrayRequestEntity(new byte[1]));
+    }
+
+    /**
+     * Responds with given status, or fails with {@link IOException} if the status is negative. The first
+     * {@code runtimeFailures} calls fail with {@link IllegalStateException}.
+     */
+    private static final class StubTransport implements WebDavTransport {
+        private final String host;
+        private final int status;
+        private int calls;
+        private int runtimeFailures;
+
+        StubTransport(final String host, final int status) {
+            this.host = host;
+            this.status = status;
+        }
+
+        @Override
+        public TransportResponse execute(final TransportRequest request) throws IOException {
+            calls++;
+            if (runtimeFailures > 0) {
+                runtimeFailures--;
+                throw new IllegalStateException("Broken " + host);
+            }
+            if (status < 0) {
+                throw new IOException("Connection refused by " + host);
+            }
+            return new TransportResponse() {
+                @Override
+                public int getStatusCode() {
+                    return status;
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return null;
+                }
+
+                @Override
+                public String getCookie(String name) {
+                    return null;
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return null;
+                }
+
+                @Override
+                public void release() {
+                }
+            };
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(final TransportRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setCredentials(final String username, final String password) {
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public void setMaxConnections(final int maxConnections) {
+        }
+
+        @Override
+        public int getMaxConnections() {
+            return 1;
+        }
+
+        @Override
+        public int getConnectionsInPool() {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
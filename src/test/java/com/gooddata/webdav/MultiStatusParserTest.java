@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultiStatusParserTest {
+
+    private static final String MULTI_STATUS = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<D:multistatus xmlns:D=\"DAV:\">"
+            + "<D:response><D:href>/uploads/tmp/</D:href>"
+            + "<D:propstat><D:prop><D:resourcetype><D:collection/></D:resourcetype></D:prop>"
+            + "<D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>"
+            + "<D:response><D:href>/uploads/tmp/data%20file.csv</D:href>"
+            + "<D:propstat><D:prop><D:resourcetype/><D:getcontentlength>18</D:getcontentlength>"
+            + "<D:getlastmodified>Tue, 15 Nov 1994 12:45:26 GMT</D:getlastmodified>"
+            + "<D:getetag>\"abc\"</D:getetag></D:prop>"
+            + "<D:status>HTTP/1.1 200 OK</D:status></D:propstat>"
+            + "<D:propstat><D:prop><D:getcontentlength>99</D:getcontentlength></D:prop>"
+            + "<D:status>HTTP/1.1 404 Not Found</D:status></D:propstat></D:response>"
+            + "</D:multistatus>";
+
+    @Test
+    public void testResponsesAreParsed() throws XMLStreamException {
+        final List<RemoteResource> resources = new ArrayList<RemoteResource>();
+        final int count = MultiStatusParser.parse(new ByteArrayInputStream(MULTI_STATUS.getBytes()),
+                new RemoteResourceHandler() {
+                    @Override
+                    public void handle(RemoteResource resource) {
+                        resources.add(resource);
+                    }
+                });
+
+        Assert.assertEquals(2, count);
+        Assert.assertTrue(resources.get(0).isCollection());
+        Assert.assertEquals("tmp", resources.get(0).getName());
+
+        final RemoteResource file = resources.get(1);
+        Assert.assertFalse(file.isCollection());
+        Assert.assertEquals("data file.csv", file.getName());
+        Assert.assertEquals(18, file.getContentLength());
+        Assert.assertEquals(784903526000L, file.getLastModified());
+        Assert.assertEquals("\"abc\"", file.getEtag());
+    }
+}
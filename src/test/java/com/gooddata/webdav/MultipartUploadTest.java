@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class MultipartUploadTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testLargeFileIsUploadedInParts() throws Exception {
+        final int port = server.getPort();
+        final WebDavUploader uploader = new WebDavUploader(new HttpClientTransport("http", "localhost", port),
+                new WebDavSstAuthenticator(new HttpClientTransport("http", "localhost", port)), "sst");
+        uploader.setPartSize(4);
+        uploader.setPartParallelism(3);
+
+        final MultipartManifest manifest = uploader.transferLargeFile(createFile("0123456789"), "dir", "big.csv",
+                "text/csv");
+
+        Assert.assertEquals(3, manifest.getParts().size());
+        Assert.assertEquals("0123", new String(server.files.get("/uploads/dir/big.csv.part0000")));
+        Assert.assertEquals("4567", new String(server.files.get("/uploads/dir/big.csv.part0001")));
+        Assert.assertEquals("89", new String(server.files.get("/uploads/dir/big.csv.part0002")));
+        Assert.assertEquals("PUT /uploads/dir/big.csv.manifest.json", server.requests.get(server.requests.size() - 1));
+        Assert.assertEquals(manifest.toJson(), new String(server.uploaded, "UTF-8"));
+        // SHA-256 of "89"
+        Assert.assertEquals("cd70bea023f752a0564abb6ed08d42c1440f2e33e29914e55e0be1595e24f45a",
+                manifest.getParts().get(2).getChecksum());
+    }
+
+    @Test
+    public void testFailedPartIsRetriedByRetryPolicyOnly() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setRetryPolicy(new RetryPolicy(2, 1, 10, 2));
+        server.failingPuts.set(10);
+
+        try {
+            uploader.transferLargeFile(createFile("0123456789"), "dir", "big.csv", "text/csv");
+            Assert.fail("part failing with 503 must fail the upload");
+        } catch (WebDavUploaderException expected) {
+            // expected
+        }
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "PUT /uploads/dir/big.csv.part0000",
+                "PUT /uploads/dir/big.csv.part0000"), server.requests);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.List;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class RemoteDirectoryCacheTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testHitsAndMisses() {
+        final RemoteDirectoryCache cache = new RemoteDirectoryCache();
+        Assert.assertFalse(cache.contains("/uploads/a"));
+        cache.add("/uploads/a");
+        Assert.assertTrue(cache.contains("/uploads/a"));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidateRemovesSubdirectories() {
+        final RemoteDirectoryCache cache = new RemoteDirectoryCache();
+        cache.add("/uploads/a");
+        cache.add("/uploads/a/b");
+        cache.add("/uploads/ab");
+        cache.invalidate("/uploads/a");
+        Assert.assertFalse(cache.contains("/uploads/a"));
+        Assert.assertFalse(cache.contains("/uploads/a/b"));
+        Assert.assertTrue(cache.contains("/uploads/ab"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        final RemoteDirectoryCache cache = new RemoteDirectoryCache(2, RemoteDirectoryCache.DEFAULT_TTL_MILLIS);
+        cache.add("/uploads/a");
+        cache.add("/uploads/b");
+        cache.contains("/uploads/a");
+        cache.add("/uploads/c");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(cache.contains("/uploads/a"));
+        Assert.assertFalse(cache.contains("/uploads/b"));
+    }
+
+    @Test
+    public void testExpiration() {
+        final long[] now = {1000L};
+        final RemoteDirectoryCache cache = new RemoteDirectoryCache(10, 100L) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        cache.add("/uploads/a");
+        now[0] += 100L;
+        Assert.assertTrue(cache.contains("/uploads/a"));
+        now[0] += 1L;
+        Assert.assertFalse(cache.contains("/uploads/a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemovedAncestorOfCachedDirectoryIsCreatedAgain() {
+        server.checkDirectories = true;
+        final WebDavUploader uploader = server.createUploader();
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("1".getBytes()), "a/b/c", "1.csv", "text/csv");
+
+        // somebody removes the top directory, the uploader still has the whole chain cached
+        server.deleteDirectory("/uploads/a");
+        server.requests.clear();
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("2".getBytes()), "a/b/c", "2.csv", "text/csv");
+
+        Assert.assertEquals(List.of("PUT /uploads/a/b/c/2.csv", "MKCOL /uploads/a", "MKCOL /uploads/a/b",
+                "MKCOL /uploads/a/b/c", "PUT /uploads/a/b/c/2.csv"), server.requests);
+        Assert.assertEquals("2", new String(server.files.get("/uploads/a/b/c/2.csv")));
+        Assert.assertTrue(uploader.getDirectoryCache().contains("/uploads/a/b"));
+    }
+}
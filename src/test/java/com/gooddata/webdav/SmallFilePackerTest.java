@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SmallFilePackerTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testSmallFilesArePackedIntoArchives() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        final SmallFilePacker packer = new SmallFilePacker(uploader, 1024, 2, 60000);
+
+        final CompletableFuture<UploadResult> a = packer.add(createFile("a"), "dir", "a.csv");
+        final CompletableFuture<UploadResult> b = packer.add(createFile("b"), "dir", "b.csv");
+        final CompletableFuture<UploadResult> c = packer.add(createFile("c"), "dir", "c.csv");
+        Assert.assertEquals(1, packer.getPendingFiles());
+        packer.close();
+
+        final UploadResult first = a.get(5, TimeUnit.SECONDS);
+        Assert.assertSame(first, b.get(5, TimeUnit.SECONDS));
+        final UploadResult second = c.get(5, TimeUnit.SECONDS);
+        Assert.assertNotEquals(first.getRemotePath(), second.getRemotePath());
+        Assert.assertEquals(Map.of("a.csv", "a", "b.csv", "b"), unzip(server.files.get(first.getRemotePath())));
+        Assert.assertEquals(Map.of("c.csv", "c"), unzip(server.files.get(second.getRemotePath())));
+        int puts = 0;
+        for (String request : server.requests) {
+            puts += request.startsWith("PUT ") ? 1 : 0;
+        }
+        Assert.assertEquals(2, puts);
+    }
+
+    private static Map<String, String> unzip(final byte[] archive) throws IOException {
+        final Map<String, String> entries = new HashMap<String, String>();
+        final ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive));
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            entries.put(entry.getName(), IOUtils.toString(zip, "UTF-8"));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SpoolDirectoryUploaderTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testSpoolDirectoryIsUploaded() throws Exception {
+        final File spool = Files.createTempDirectory("spool").toFile();
+        final File done = new File(spool, "done");
+        Assert.assertTrue(done.mkdir());
+        try {
+            // server.uploaded before a restart, but not moved away yet
+            final File journaled = new File(spool, "journaled.csv");
+            FileUtils.writeStringToFile(journaled, "journaled", "UTF-8");
+            final UploadJournal journal = new UploadJournal(new File(spool, SpoolDirectoryUploader.JOURNAL_NAME));
+            journal.markCompleted(UploadJournal.fileKey(journaled, "spool/journaled.csv"), "");
+            journal.close();
+            FileUtils.writeStringToFile(new File(spool, "a.csv"), "a", "UTF-8");
+            FileUtils.writeStringToFile(new File(spool, "b.csv.tmp"), "being written", "UTF-8");
+
+            final SpoolDirectoryUploader spoolUploader = new SpoolDirectoryUploader(server.createUploader(), spool, "spool",
+                    "text/csv", 2);
+            spoolUploader.setStableMillis(50);
+            spoolUploader.setCompletedDir(done);
+            spoolUploader.start();
+            FileUtils.writeStringToFile(new File(spool, "c.csv"), "c", "UTF-8");
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (done.list().length < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            spoolUploader.close();
+
+            Assert.assertEquals(Set.of("a.csv", "c.csv", "journaled.csv"), Set.of(done.list()));
+            Assert.assertEquals("a", new String(server.files.get("/uploads/spool/a.csv")));
+            Assert.assertEquals("c", new String(server.files.get("/uploads/spool/c.csv")));
+            Assert.assertFalse(server.files.containsKey("/uploads/spool/journaled.csv"));
+            Assert.assertTrue(new File(spool, "b.csv.tmp").isFile());
+            Assert.assertEquals(2, spoolUploader.getUploadedFiles());
+            Assert.assertEquals(0, spoolUploader.getPendingFiles());
+        } finally {
+            FileUtils.deleteDirectory(spool);
+        }
+    }
+
+    @Test
+    public void testClosedAfterWatcherFailureAndRestarted() throws Exception {
+        final File spool = Files.createTempDirectory("spool").toFile();
+        try {
+            final File journalFile = new File(spool, SpoolDirectoryUploader.JOURNAL_NAME);
+            final UploadJournal journal = new UploadJournal(journalFile);
+            journal.markCompleted("uploaded before restart", "");
+            journal.close();
+            final File pending = new File(spool, "pending.csv");
+            FileUtils.writeStringToFile(pending, "pending", "UTF-8");
+
+            final SpoolDirectoryUploader spoolUploader = new SpoolDirectoryUploader(server.createUploader(), spool,
+                    "spool", "text/csv", 1);
+            spoolUploader.setStableMillis(60000);
+            spoolUploader.start();
+            Assert.assertTrue(spoolUploader.isRunning());
+
+            // the journal cannot be truncated once the spool is empty, which stops the watcher
+            Assert.assertTrue(journalFile.delete());
+            Assert.assertTrue(journalFile.mkdir());
+            Assert.assertTrue(pending.delete());
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (spoolUploader.isRunning() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertFalse(spoolUploader.isRunning());
+            spoolUploader.close();
+
+            Assert.assertTrue(journalFile.delete());
+            FileUtils.writeStringToFile(new File(spool, "a.csv"), "a", "UTF-8");
+            spoolUploader.setStableMillis(0);
+            spoolUploader.start();
+            while (!server.files.containsKey("/uploads/spool/a.csv") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            spoolUploader.close();
+            Assert.assertEquals("a", new String(server.files.get("/uploads/spool/a.csv")));
+        } finally {
+            FileUtils.deleteDirectory(spool);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamingRequestEntityTest {
+
+    private static final byte[] CONTENT = "JUST A PLAIN TEXT!".getBytes();
+
+    @Test
+    public void testChunkedStreamIsCopiedThroughSmallBuffer() throws IOException {
+        final StreamingRequestEntity entity = new StreamingRequestEntity(new ByteArrayInputStream(CONTENT),
+                StreamingRequestEntity.CONTENT_LENGTH_CHUNKED, "text/plain", 4);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeRequest(out);
+        Assert.assertArrayEquals(CONTENT, out.toByteArray());
+        Assert.assertEquals(-1, entity.getContentLength());
+        Assert.assertFalse(entity.isRepeatable());
+    }
+
+    @Test
+    public void testExplicitLengthLimitsCopiedBytes() throws IOException {
+        final StreamingRequestEntity entity = new StreamingRequestEntity(new ByteArrayInputStream(CONTENT), 4,
+                "text/plain", 1024);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeRequest(out);
+        Assert.assertEquals("JUST", out.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPrematureEndOfStream() throws IOException {
+        new StreamingRequestEntity(new ByteArrayInputStream(CONTENT), CONTENT.length + 1, "text/plain", 1024)
+                .writeRequest(new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void testEntityCannotBeWrittenTwice() throws IOException {
+        final StreamingRequestEntity entity = new StreamingRequestEntity(new ByteArrayInputStream(CONTENT), "text/plain");
+        entity.writeRequest(new ByteArrayOutputStream());
+        entity.writeRequest(new ByteArrayOutputStream());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SynchronizeDirectoryTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    private File localDir;
+    private long uploadedAt;
+
+    @Before
+    public void createLocalDir() throws Exception {
+        localDir = Files.createTempDirectory("sync").toFile();
+        uploadedAt = System.currentTimeMillis();
+        createLocalFile("same.csv", "same", uploadedAt - 10000);
+        createLocalFile("changed.csv", "changed", uploadedAt - 10000);
+        createLocalFile("new.csv", "new", uploadedAt - 10000);
+    }
+
+    @After
+    public void deleteLocalDir() throws Exception {
+        FileUtils.deleteDirectory(localDir);
+    }
+
+    @Test
+    public void testRemoteDirectoryIsListed() {
+        server.putFile("/uploads/dir/a b%.csv", "ab", uploadedAt);
+
+        final Map<String, RemoteResource> listed = new HashMap<String, RemoteResource>();
+        for (RemoteResource resource : server.createUploader().listRemoteDirectory("dir")) {
+            listed.put(resource.getName(), resource);
+        }
+
+        Assert.assertEquals(Set.of("a b%.csv"), listed.keySet());
+        final RemoteResource resource = listed.get("a b%.csv");
+        Assert.assertEquals("/uploads/dir/a%20b%25.csv", resource.getHref());
+        Assert.assertEquals(2, resource.getContentLength());
+        Assert.assertEquals(uploadedAt / 1000, resource.getLastModified() / 1000);
+        Assert.assertFalse(resource.isCollection());
+    }
+
+    @Test
+    public void testOnlyChangedFilesAreUploadedAndExtrasDeleted() {
+        server.putFile("/uploads/dir/same.csv", "same", uploadedAt);
+        server.putFile("/uploads/dir/changed.csv", "old", uploadedAt);
+        server.putFile("/uploads/dir/old 100%.csv", "old", uploadedAt);
+
+        final SyncReport report = server.createUploader().synchronizeDirectory(localDir, "dir", "text/csv", true, 2);
+
+        Assert.assertTrue(report.getUploadReport().isSuccess());
+        Assert.assertEquals(List.of(new File(localDir, "same.csv")), report.getSkippedFiles());
+        Assert.assertEquals(2, report.getUploadReport().getSuccessCount());
+        Assert.assertEquals(1, report.getDeletedResources().size());
+        Assert.assertEquals("old 100%.csv", report.getDeletedResources().get(0).getName());
+        Assert.assertEquals(Set.of("/uploads/dir/same.csv", "/uploads/dir/changed.csv", "/uploads/dir/new.csv"),
+                server.files.keySet());
+        Assert.assertEquals("changed", new String(server.files.get("/uploads/dir/changed.csv")));
+        Assert.assertTrue(server.requests.contains("DELETE /uploads/dir/old 100%.csv"));
+
+        // nothing changed since the last synchronization
+        server.requests.clear();
+        final SyncReport again = server.createUploader().synchronizeDirectory(localDir, "dir", "text/csv", true, 2);
+        Assert.assertEquals(3, again.getSkippedFiles().size());
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "PROPFIND /uploads/dir/"), server.requests);
+    }
+
+    @Test
+    public void testCompressedFilesAreMatchedWithSuffix() {
+        server.putFile("/uploads/dir/same.csv.gz", "compressed", uploadedAt);
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setCompression(UploadCompression.GZIP);
+
+        final SyncReport report = uploader.synchronizeDirectory(localDir, "dir", "text/csv", true, 2);
+
+        Assert.assertTrue(report.getUploadReport().isSuccess());
+        Assert.assertEquals(List.of(new File(localDir, "same.csv")), report.getSkippedFiles());
+        Assert.assertEquals(2, report.getUploadReport().getSuccessCount());
+        Assert.assertTrue(report.getDeletedResources().isEmpty());
+        Assert.assertEquals(Set.of("/uploads/dir/same.csv.gz", "/uploads/dir/changed.csv.gz",
+                "/uploads/dir/new.csv.gz"), server.files.keySet());
+
+        // nothing changed since the last synchronization, the directory is cached
+        server.requests.clear();
+        final SyncReport again = uploader.synchronizeDirectory(localDir, "dir", "text/csv", true, 2);
+        Assert.assertEquals(3, again.getSkippedFiles().size());
+        Assert.assertEquals(List.of("PROPFIND /uploads/dir/"), server.requests);
+    }
+
+    private void createLocalFile(final String name, final String content, final long modified) throws Exception {
+        final File file = new File(localDir, name);
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+        Assert.assertTrue(file.setLastModified(modified));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TemporaryTokenManagerTest {
+
+    @Test
+    public void testConcurrentRefreshesAreCoalesced() throws Exception {
+        final CountingAuthenticator authenticator = new CountingAuthenticator();
+        final TemporaryTokenManager tokenManager = new TemporaryTokenManager(authenticator, "sst");
+        tokenManager.setProactiveRefresh(false);
+        final UserLogin expired = tokenManager.getUserLogin();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<UserLogin>> refreshed = new ArrayList<Future<UserLogin>>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                refreshed.add(executor.submit(new Callable<UserLogin>() {
+                    @Override
+                    public UserLogin call() throws InterruptedException {
+                        start.await();
+                        return tokenManager.refresh(expired);
+                    }
+                }));
+            }
+            start.countDown();
+            final UserLogin first = refreshed.get(0).get(5, TimeUnit.SECONDS);
+            Assert.assertNotSame(expired, first);
+            for (Future<UserLogin> login : refreshed) {
+                // failure of a refresh is rethrown here
+                Assert.assertSame(first, login.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(2, authenticator.calls.get());
+        Assert.assertEquals(2, tokenManager.getRefreshCount());
+    }
+
+    @Test
+    public void testExpiredTokenIsRefreshedBeforeUse() {
+        final long[] now = {0L};
+        final CountingAuthenticator authenticator = new CountingAuthenticator();
+        final TemporaryTokenManager tokenManager = new TemporaryTokenManager(authenticator, "sst") {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        tokenManager.setProactiveRefresh(false);
+        tokenManager.setTokenValidityMillis(1000L);
+
+        final UserLogin first = tokenManager.getUserLogin();
+        now[0] = 999L;
+        Assert.assertSame(first, tokenManager.getUserLogin());
+        now[0] = 1000L;
+        Assert.assertNotSame(first, tokenManager.getUserLogin());
+        Assert.assertEquals(2, authenticator.calls.get());
+    }
+
+    @Test
+    public void testSlowBackgroundRefreshDoesNotDelayOtherTokens() throws Exception {
+        final CountDownLatch slowRefreshStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final TemporaryTokenManager slow = new TemporaryTokenManager(new CountingAuthenticator() {
+            @Override
+            public UserLogin authenticate(String superSecureToken) {
+                final UserLogin login = super.authenticate(superSecureToken);
+                if (login.getGdcAuthTT().equals("tt2")) {
+                    slowRefreshStarted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return login;
+            }
+        }, "slow");
+        final TemporaryTokenManager fast = new TemporaryTokenManager(new CountingAuthenticator(), "fast");
+        slow.setTokenValidityMillis(1000L);
+        slow.setRefreshMarginMillis(900L);
+        fast.setTokenValidityMillis(1000L);
+        fast.setRefreshMarginMillis(800L);
+        try {
+            slow.getUserLogin();
+            fast.getUserLogin();
+            Assert.assertTrue(slowRefreshStarted.await(5, TimeUnit.SECONDS));
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (fast.getRefreshCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertTrue(fast.getRefreshCount() >= 2);
+            Assert.assertEquals(1, slow.getRefreshCount());
+        } finally {
+            release.countDown();
+            slow.setProactiveRefresh(false);
+            fast.setProactiveRefresh(false);
+        }
+    }
+
+    private static class CountingAuthenticator extends WebDavSstAuthenticator {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        CountingAuthenticator() {
+            super("https", "localhost", 443);
+        }
+
+        @Override
+        public UserLogin authenticate(String superSecureToken) {
+            final int call = calls.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new UserLogin(null, null, superSecureToken, "tt" + call);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.lang.management.ManagementFactory;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadAllocationTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testUploadAllocationBudget() throws Exception {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final WebDavUploader uploader = server.createUploader();
+        final ByteArrayRequestEntity entity = new ByteArrayRequestEntity(new byte[128], "text/csv");
+        for (int i = 0; i < 200; i++) {
+            uploader.transferRequestEntity(entity, "dir/sub", "warmup.csv", "text/csv");
+        }
+
+        final int uploads = 200;
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < uploads; i++) {
+            uploader.transferRequestEntity(entity, "dir/sub", "file.csv", "text/csv");
+        }
+        final long perUpload = (threads.getThreadAllocatedBytes(threadId) - before) / uploads;
+        // the bulk is HttpClient's own request and response processing, about 12 KB
+        Assert.assertTrue("allocated " + perUpload + " bytes per upload", perUpload < 16 * 1024);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.ByteArrayInputStream;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadCompressionTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testCompressedUploadIsRenamed() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setCompression(UploadCompression.GZIP);
+
+        uploader.transferFile(createFile("a,b\n1,2\n"), "dir", "a.csv", "text/csv");
+
+        Assert.assertEquals("a,b\n1,2\n", IOUtils.toString(new GZIPInputStream(
+                new ByteArrayInputStream(server.files.get("/uploads/dir/a.csv.gz"))), "UTF-8"));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.ByteArrayInputStream;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadDigestTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testDigestIsVerifiedByEtag() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setDigestAlgorithm("MD5");
+        uploader.setDigestVerification(DigestVerification.ETAG);
+
+        final UploadResult result = uploader.transferFile(createFile("verified"), "dir", "a.csv", "text/csv");
+        Assert.assertEquals("/uploads/dir/a.csv", result.getRemotePath());
+        Assert.assertEquals(8, result.getContentLength());
+        Assert.assertEquals(DigestUtils.md5Hex("verified"), result.getDigest());
+        Assert.assertTrue(result.isVerified());
+        Assert.assertNull(server.contentMd5);
+
+        // in-memory body is sent with Content-MD5
+        uploader.transferRequestEntity(new ByteArrayRequestEntity("memory".getBytes()), "dir", "b.csv", "text/csv");
+        Assert.assertEquals(Base64.getEncoder().encodeToString(DigestUtils.md5("memory")), server.contentMd5);
+
+        server.etag = DigestUtils.md5Hex("something else");
+        try {
+            uploader.transferFile(createFile("corrupted"), "dir", "c.csv", "text/csv");
+            Assert.fail("digest mismatch must be reported");
+        } catch (WebDavUploaderException expected) {
+            Assert.assertTrue(expected.getMessage().contains(DigestUtils.md5Hex("corrupted")));
+        }
+    }
+
+    @Test
+    public void testDigestedStreamRejectedDuringHandshakeIsResent() throws Exception {
+        final HandshakeTransport transport = new HandshakeTransport(
+                new HttpClientTransport("http", "localhost", server.getPort()));
+        final WebDavUploader uploader = new WebDavUploader(transport,
+                new WebDavSstAuthenticator(new HttpClientTransport("http", "localhost", server.getPort())), "sst");
+        uploader.getTokenManager().setProactiveRefresh(false);
+        uploader.setDigestAlgorithm("MD5");
+        uploader.setExpectContinueThreshold(0);
+
+        transport.rejectedHandshakes.set(1);
+        final UploadResult result = uploader.transferInputStream(new ByteArrayInputStream("streamed".getBytes()), 8,
+                "dir", "a.csv", "text/csv");
+        Assert.assertEquals(DigestUtils.md5Hex("streamed"), result.getDigest());
+
+        // progress reporting entity of the handle wraps the digesting one
+        transport.rejectedHandshakes.set(1);
+        final UploadHandle handle = uploader.startTransfer(new StreamingRequestEntity(
+                new ByteArrayInputStream("handled".getBytes()), 7, "text/csv", 1024), "dir", "b.csv", "text/csv", null);
+        Assert.assertEquals(DigestUtils.md5Hex("handled"), handle.getResult().get(5, TimeUnit.SECONDS).getDigest());
+        Assert.assertEquals("handled", new String(server.files.get("/uploads/dir/b.csv")));
+        Assert.assertEquals(3, server.tokens.get());
+    }
+}
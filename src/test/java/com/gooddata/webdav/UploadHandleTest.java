@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadHandleTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testUploadProgressIsReported() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setProgressIntervalBytes(256 * 1024);
+        uploader.setProgressIntervalMillis(60000);
+        final List<Long> progress = Collections.synchronizedList(new ArrayList<Long>());
+
+        final UploadHandle handle = uploader.startTransfer(new ByteArrayRequestEntity(new byte[1024 * 1024]), "dir",
+                "a.bin", "application/octet-stream", new UploadProgressListener() {
+                    @Override
+                    public void onProgress(UploadHandle handle, long bytesSent, long contentLength) {
+                        progress.add(bytesSent);
+                    }
+
+                    @Override
+                    public void onStalled(UploadHandle handle, long stalledMillis) {
+                    }
+                });
+
+        Assert.assertEquals("/uploads/dir/a.bin", handle.getResult().get(5, TimeUnit.SECONDS).getRemotePath());
+        Assert.assertEquals(List.of(256 * 1024L, 512 * 1024L, 768 * 1024L, 1024 * 1024L), progress);
+        Assert.assertEquals(1024 * 1024, handle.getBytesSent());
+        Assert.assertFalse(handle.cancel());
+    }
+
+    @Test
+    public void testStalledUploadIsCancelled() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setMaxConnections(1);
+        uploader.setStallTimeoutMillis(100);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final RequestEntity stalling = new ByteArrayRequestEntity(new byte[2048]) {
+            @Override
+            public void writeRequest(OutputStream out) throws IOException {
+                out.write(new byte[1024]);
+                out.flush();
+                try {
+                    resume.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                out.write(new byte[1024]);
+            }
+        };
+        final AtomicInteger stalls = new AtomicInteger();
+
+        final UploadHandle handle = uploader.startTransfer(stalling, "dir", "stalled.bin", "application/octet-stream",
+                new UploadProgressListener() {
+                    @Override
+                    public void onProgress(UploadHandle handle, long bytesSent, long contentLength) {
+                    }
+
+                    @Override
+                    public void onStalled(UploadHandle handle, long stalledMillis) {
+                        stalls.incrementAndGet();
+                        handle.cancel();
+                    }
+                });
+        try {
+            handle.getResult().get(5, TimeUnit.SECONDS);
+            Assert.fail("cancelled upload must not succeed");
+        } catch (CancellationException e) {
+            // expected
+        }
+        Assert.assertTrue(handle.isCancelled());
+        Assert.assertEquals(1, stalls.get());
+        Assert.assertEquals(1024, handle.getBytesSent());
+
+        // the uploading thread fails at its next write and releases the only connection
+        resume.countDown();
+        uploader.transferFileAsync(createFile("next"), "dir", "next.csv", "text/csv").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("next", new String(server.files.get("/uploads/dir/next.csv")));
+        Assert.assertNull(server.files.get("/uploads/dir/stalled.bin"));
+    }
+}
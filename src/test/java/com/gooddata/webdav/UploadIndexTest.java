@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadIndexTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testUnchangedFilesSurviveReopenAndTornRecordIsIgnored() throws IOException {
+        final File file = createTempFile(".index");
+        final File data = createTempFile(".csv");
+        FileUtils.writeStringToFile(data, "a,b\n1,2\n", "UTF-8");
+
+        final UploadIndex index = new UploadIndex(file);
+        Assert.assertFalse(index.isUnchanged("/uploads/dir/a.csv", data));
+        index.record("/uploads/dir/a.csv", data, UploadIndex.attributes(data), null);
+        index.record("/uploads/dir/b.csv", data, UploadIndex.attributes(data), null);
+        index.remove("/uploads/dir/b.csv");
+        Assert.assertTrue(index.isUnchanged("/uploads/dir/a.csv", data));
+        Assert.assertFalse(index.isUnchanged("/uploads/dir/b.csv", data));
+        index.close();
+
+        // process killed in the middle of writing a record
+        final FileOutputStream output = new FileOutputStream(file, true);
+        output.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        output.close();
+
+        final UploadIndex reopened = new UploadIndex(file);
+        Assert.assertEquals(1, reopened.size());
+        // regenerated with the same content
+        Assert.assertTrue(data.setLastModified(data.lastModified() - 10000));
+        Assert.assertTrue(reopened.isUnchanged("/uploads/dir/a.csv", data));
+        // same size, different content
+        FileUtils.writeStringToFile(data, "a,b\n3,4\n", "UTF-8");
+        Assert.assertFalse(reopened.isUnchanged("/uploads/dir/a.csv", data));
+        reopened.record("/uploads/dir/b.csv", data, UploadIndex.attributes(data), null);
+        reopened.close();
+
+        final UploadIndex again = new UploadIndex(file);
+        Assert.assertEquals(2, again.size());
+        Assert.assertTrue(again.isUnchanged("/uploads/dir/b.csv", data));
+        again.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvictedAndFileIsCompacted() throws IOException {
+        final File file = createTempFile(".index");
+        final File data = createTempFile(".csv");
+        FileUtils.writeStringToFile(data, "data", "UTF-8");
+
+        final UploadIndex index = new UploadIndex(file, 10);
+        for (int i = 0; i < 2000; i++) {
+            index.record("/uploads/dir/file" + i + ".csv", data, UploadIndex.attributes(data), "hash");
+            // keeps the first entry recently used
+            index.isUnchanged("/uploads/dir/file0.csv", data);
+        }
+        Assert.assertEquals(10, index.size());
+        // 2000 records take about 120 KB
+        Assert.assertTrue("index file has " + file.length() + " bytes", file.length() < 64 * 1024);
+        index.close();
+
+        final UploadIndex reopened = new UploadIndex(file, 10);
+        Assert.assertEquals(10, reopened.size());
+        Assert.assertTrue(reopened.isUnchanged("/uploads/dir/file0.csv", data));
+        Assert.assertTrue(reopened.isUnchanged("/uploads/dir/file1999.csv", data));
+        Assert.assertFalse(reopened.isUnchanged("/uploads/dir/file1.csv", data));
+        reopened.close();
+    }
+
+    @Test
+    public void testFailedCompactionKeepsIndexOpen() throws IOException {
+        final File file = createTempFile(".index");
+        final File data = createTempFile(".csv");
+        FileUtils.writeStringToFile(data, "data", "UTF-8");
+        final UploadIndex index = new UploadIndex(file);
+        index.record("/uploads/dir/a.csv", data, UploadIndex.attributes(data), "hash");
+
+        // the compacted file cannot be created
+        final File compacted = new File(file.getPath() + ".compact");
+        Assert.assertTrue(new File(compacted, "blocker").mkdirs());
+        try {
+            index.compact();
+            Assert.fail("compacted file is a directory");
+        } catch (WebDavUploaderException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Cannot compact upload index"));
+        } finally {
+            FileUtils.deleteDirectory(compacted);
+        }
+        index.record("/uploads/dir/b.csv", data, UploadIndex.attributes(data), "hash");
+        index.close();
+
+        final UploadIndex reopened = new UploadIndex(file);
+        Assert.assertTrue(reopened.isUnchanged("/uploads/dir/a.csv", data));
+        Assert.assertTrue(reopened.isUnchanged("/uploads/dir/b.csv", data));
+        reopened.close();
+    }
+
+    @Test
+    public void testIndexFailureDoesNotFailUpload() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        final UploadIndex index = new UploadIndex(createTempFile(".index"));
+        uploader.setUploadIndex(index);
+        index.close();
+
+        final UploadResult result = uploader.transferFile(createFile("data"), "dir", "a.csv", "text/csv");
+        Assert.assertFalse(result.isSkipped());
+        Assert.assertEquals("data", new String(server.files.get("/uploads/dir/a.csv")));
+    }
+
+    @Test
+    public void testUnchangedFileIsNotUploadedAgain() throws Exception {
+        final File indexFile = File.createTempFile("upload", ".index");
+        indexFile.deleteOnExit();
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setUploadIndex(new UploadIndex(indexFile));
+        uploader.setDigestAlgorithm("SHA-256");
+        final File file = createFile("a,b\n1,2\n");
+
+        Assert.assertFalse(uploader.transferFile(file, "dir", "a.csv", "text/csv").isSkipped());
+        final UploadResult skipped = uploader.transferFile(file, "dir", "a.csv", "text/csv");
+        Assert.assertTrue(skipped.isSkipped());
+        Assert.assertEquals("/uploads/dir/a.csv", skipped.getRemotePath());
+        Assert.assertFalse(uploader.transferFile(file, "dir", "b.csv", "text/csv").isSkipped());
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "PUT /uploads/dir/a.csv", "PUT /uploads/dir/b.csv"),
+                server.requests);
+
+        // the index survives restart and notices changed content
+        uploader.getUploadIndex().close();
+        uploader.setUploadIndex(new UploadIndex(indexFile));
+        Assert.assertTrue(uploader.transferFile(file, "dir", "b.csv", "text/csv").isSkipped());
+        FileUtils.writeStringToFile(file, "a,b\n3,4\n", "UTF-8");
+        // coarse file system timestamps must not hide the change
+        Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+        Assert.assertFalse(uploader.transferFile(file, "dir", "b.csv", "text/csv").isSkipped());
+        Assert.assertEquals("a,b\n3,4\n", new String(server.files.get("/uploads/dir/b.csv")));
+        Assert.assertEquals(4, server.requests.size());
+        uploader.getUploadIndex().close();
+    }
+
+    @Test
+    public void testContentHashIsComputedWhileUploading() throws Exception {
+        final List<String> hashes = new ArrayList<String>();
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setUploadIndex(new UploadIndex(createTempFile(".index")) {
+            @Override
+            public void record(String remotePath, File localFile, BasicFileAttributes before, String hash) {
+                hashes.add(hash);
+                super.record(remotePath, localFile, before, hash);
+            }
+        });
+        final File file = createFile("a,b\n1,2\n");
+
+        uploader.setDigestAlgorithm("MD5");
+        uploader.transferFile(file, "dir", "a.csv", "text/csv");
+        uploader.setCompression(UploadCompression.GZIP);
+        uploader.transferFileAsync(file, "dir", "b.csv", "text/csv").get(5, TimeUnit.SECONDS);
+        uploader.setDigestAlgorithm("SHA-256");
+        uploader.setCompression(UploadCompression.NONE);
+        uploader.transferFile(file, "dir", "c.csv", "text/csv");
+
+        final String hash = UploadIndex.hash(file);
+        Assert.assertEquals(List.of(hash, hash, hash), hashes);
+        uploader.getUploadIndex().close();
+        uploader.shutdown();
+    }
+
+    private static File createTempFile(final String suffix) throws IOException {
+        final File file = File.createTempFile("upload", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadJournalTest {
+
+    @Test
+    public void testEntriesSurviveReopenAndTornLineIsIgnored() throws IOException {
+        final File file = File.createTempFile("upload", ".journal");
+        file.deleteOnExit();
+
+        final UploadJournal journal = new UploadJournal(file);
+        journal.markCompleted("dir/a.csv\t1", "line\nbreak\\");
+        journal.markCompleted("dir/b.csv", "");
+        journal.close();
+
+        // process killed in the middle of writing an entry
+        final FileOutputStream output = new FileOutputStream(file, true);
+        output.write("dir/c.csv\tabc".getBytes("UTF-8"));
+        output.close();
+
+        final UploadJournal reopened = new UploadJournal(file);
+        Assert.assertEquals(2, reopened.size());
+        Assert.assertEquals("line\nbreak\\", reopened.getValue("dir/a.csv\t1"));
+        Assert.assertTrue(reopened.isCompleted("dir/b.csv"));
+        Assert.assertFalse(reopened.isCompleted("dir/c.csv"));
+        reopened.clear();
+        Assert.assertEquals(0, reopened.size());
+        reopened.close();
+        Assert.assertEquals(0, new UploadJournal(file).size());
+    }
+
+    @Test
+    public void testEntryAppendedAfterTornLineIsNotMergedIntoIt() throws IOException {
+        final File file = File.createTempFile("upload", ".journal");
+        file.deleteOnExit();
+
+        final UploadJournal journal = new UploadJournal(file);
+        journal.markCompleted("a", "");
+        journal.close();
+
+        final FileOutputStream output = new FileOutputStream(file, true);
+        output.write("torn\tabc".getBytes("UTF-8"));
+        output.close();
+
+        final UploadJournal reopened = new UploadJournal(file);
+        Assert.assertEquals("a\t\n".length(), file.length());
+        reopened.markCompleted("b", "sum");
+        reopened.close();
+
+        final UploadJournal again = new UploadJournal(file);
+        Assert.assertEquals(2, again.size());
+        Assert.assertTrue(again.isCompleted("a"));
+        Assert.assertEquals("sum", again.getValue("b"));
+        Assert.assertFalse(again.isCompleted("torn"));
+        again.close();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadMetricsTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testRequestsAndUploadsAreRecorded() {
+        final UploadMetrics metrics = new UploadMetrics();
+        for (int i = 0; i < 99; i++) {
+            metrics.onRequest(UploadPhase.PUT, 201, 1000000L);
+        }
+        metrics.onRequest(UploadPhase.PUT, 507, 100000000L);
+        metrics.onRequest(UploadPhase.MKCOL, 0, 1000L);
+        metrics.onUpload(1000, 1000000000L, true);
+        metrics.onUpload(-1, 1000L, false);
+        metrics.onReauthentication();
+
+        Assert.assertEquals(100, metrics.getLatencyHistogram(UploadPhase.PUT).getCount());
+        Assert.assertTrue(metrics.getLatencyP50Millis().get("PUT") <= 2.0);
+        Assert.assertEquals(100.0, metrics.getLatencyHistogram(UploadPhase.PUT).getMaxMillis(), 0.001);
+        Assert.assertEquals(Long.valueOf(1), metrics.getErrorCountsByStatus().get(507));
+        Assert.assertEquals(Long.valueOf(1), metrics.getErrorCountsByStatus().get(0));
+        Assert.assertEquals(1, metrics.getUploadCount());
+        Assert.assertEquals(1, metrics.getFailedUploadCount());
+        Assert.assertEquals(1000.0, metrics.getAverageThroughputBytesPerSecond(), 0.001);
+        Assert.assertEquals(1, metrics.getReauthenticationCount());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getUploadCount());
+    }
+
+    @Test
+    public void testUploadReportsWrittenBytesAndDirectoryFailures() throws Exception {
+        final List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setMetricsListener(new UploadMetrics() {
+            @Override
+            public void onUpload(long bytes, long durationNanos, boolean success) {
+                uploads.add(bytes + " " + success);
+            }
+        });
+        uploader.setDigestAlgorithm("MD5");
+        uploader.setCompression(UploadCompression.GZIP);
+        uploader.transferFile(createFile("a,b\n1,2\n"), "dir", "a.csv", "text/csv");
+        uploader.transferFileAsync(createFile("a,b\n3,4\n"), "dir", "b.csv", "text/csv").get();
+        uploader.shutdown();
+
+        server.forbiddenPaths.add("/uploads/denied");
+        try {
+            uploader.transferFile(createFile("x"), "denied", "x.csv", "text/csv");
+            Assert.fail("the directory cannot be created");
+        } catch (WebDavUploaderException e) {
+            // expected
+        }
+
+        Assert.assertEquals(List.of(server.files.get("/uploads/dir/a.csv.gz").length + " true",
+                server.files.get("/uploads/dir/b.csv.gz").length + " true", "-1 false"), uploads);
+    }
+}
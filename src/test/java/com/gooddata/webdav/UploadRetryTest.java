@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.File;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UploadRetryTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testTransientFailureIsRetried() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setRetryPolicy(new RetryPolicy(3, 1, 10, 2));
+        server.failingPuts.set(2);
+
+        uploader.transferFile(createFile("retried"), "dir", "a.csv", "text/csv");
+
+        Assert.assertEquals("retried", new String(server.uploaded));
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "PUT /uploads/dir/a.csv", "PUT /uploads/dir/a.csv",
+                "PUT /uploads/dir/a.csv"), server.requests);
+    }
+
+    @Test
+    public void testOnlyTransientStatusesAreRetryable() {
+        for (int status : new int[] {408, 429, 500, 502, 503, 504}) {
+            Assert.assertTrue(String.valueOf(status), RetryPolicy.DEFAULT.isRetryableStatus(status));
+        }
+        for (int status : new int[] {400, 404, 409, 412, 501, 505}) {
+            Assert.assertFalse(String.valueOf(status), RetryPolicy.DEFAULT.isRetryableStatus(status));
+        }
+    }
+
+    @Test
+    public void testFailedUploadIsResumedByRange() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setRetryPolicy(new RetryPolicy(2, 1, 10, 2));
+        uploader.setRangeResume(true);
+        server.failingPuts.set(1);
+        server.partialPuts = true;
+
+        uploader.transferFile(createFile("0123456789"), "dir", "a.csv", "text/csv");
+
+        Assert.assertEquals("0123456789", new String(server.uploaded));
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "HEAD /uploads/dir/a.csv", "PUT /uploads/dir/a.csv",
+                "HEAD /uploads/dir/a.csv", "PUT /uploads/dir/a.csv"), server.requests);
+    }
+
+    @Test
+    public void testStaleFileIsNotResumed() throws Exception {
+        final WebDavUploader uploader = server.createUploader();
+        uploader.setRetryPolicy(new RetryPolicy(2, 1, 10, 2));
+        uploader.setRangeResume(true);
+        // shorter file from an earlier upload, the new upload fails before anything is stored
+        server.putFile("/uploads/dir/a.csv", "old", System.currentTimeMillis() - 10000);
+        server.failingPuts.set(1);
+
+        uploader.transferFile(createFile("0123456789"), "dir", "a.csv", "text/csv");
+
+        Assert.assertEquals("0123456789", new String(server.files.get("/uploads/dir/a.csv")));
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "HEAD /uploads/dir/a.csv", "PUT /uploads/dir/a.csv",
+                "HEAD /uploads/dir/a.csv", "PUT /uploads/dir/a.csv"), server.requests);
+    }
+
+    @Test
+    public void testJournaledItemsAreNotUploadedAgain() throws Exception {
+        final File journalFile = File.createTempFile("upload", ".journal");
+        journalFile.deleteOnExit();
+        final List<UploadItem> items = List.of(new UploadItem(createFile("a"), "dir", "a.csv", "text/csv"),
+                new UploadItem(createFile("b"), "dir", "b.csv", "text/csv"));
+
+        final WebDavUploader uploader = server.createUploader();
+        UploadJournal journal = new UploadJournal(journalFile);
+        uploader.setUploadJournal(journal);
+        Assert.assertTrue(uploader.transferBatch(items.subList(0, 1), 1).isSuccess());
+        journal.close();
+
+        // restarted process reads the journal and uploads only the missing item
+        server.requests.clear();
+        journal = new UploadJournal(journalFile);
+        uploader.setUploadJournal(journal);
+        final BatchUploadReport report = uploader.transferBatch(items, 1);
+        journal.close();
+        Assert.assertTrue(report.isSuccess());
+        Assert.assertTrue(report.getResults().get(0).isSkipped());
+        Assert.assertFalse(report.getResults().get(1).isSkipped());
+        Assert.assertEquals(List.of("PUT /uploads/dir/b.csv"), server.requests);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+    private UploadScheduler scheduler;
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testHigherPriorityRunsFirst() throws Exception {
+        scheduler = new UploadScheduler(1, 0, 10, UploadScheduler.QueueFullPolicy.BLOCK, false);
+        final CompletableFuture<String> blocker = scheduler.submit(UploadPriority.NORMAL, blocking("blocker"));
+        awaitRunning(1);
+        scheduler.submit(UploadPriority.LOW, upload("low"));
+        scheduler.submit(UploadPriority.NORMAL, upload("normal1"));
+        scheduler.submit(UploadPriority.HIGH, upload("high"));
+        final CompletableFuture<String> last = scheduler.submit(UploadPriority.NORMAL, upload("normal2"));
+        release.countDown();
+
+        Assert.assertEquals("blocker", blocker.get(5, TimeUnit.SECONDS));
+        scheduler.submit(UploadPriority.LOW, upload("end")).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(last.isDone());
+        Assert.assertEquals(List.of("blocker", "high", "normal1", "normal2", "low", "end"), executed);
+    }
+
+    @Test
+    public void testFullQueueRejectsAndCancellationFreesSpace() throws Exception {
+        scheduler = new UploadScheduler(1, 0, 1, UploadScheduler.QueueFullPolicy.REJECT, false);
+        scheduler.submit(UploadPriority.NORMAL, blocking("blocker"));
+        awaitRunning(1);
+        final CompletableFuture<String> queued = scheduler.submit(UploadPriority.NORMAL, upload("queued"));
+        try {
+            scheduler.submit(UploadPriority.HIGH, upload("rejected")).get();
+            Assert.fail("queue is full");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        queued.cancel(false);
+        Assert.assertEquals(0, scheduler.getQueuedUploads());
+        final CompletableFuture<String> accepted = scheduler.submit(UploadPriority.NORMAL, upload("accepted"));
+        release.countDown();
+        Assert.assertEquals("accepted", accepted.get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(executed.contains("queued"));
+    }
+
+    @Test
+    public void testReservedWorkerRunsHighPriorityWhileOthersAreBusy() throws Exception {
+        scheduler = new UploadScheduler(2, 1, 10, UploadScheduler.QueueFullPolicy.BLOCK, false);
+        scheduler.submit(UploadPriority.LOW, blocking("bulk1"));
+        awaitRunning(1);
+        final CompletableFuture<String> bulk = scheduler.submit(UploadPriority.LOW, upload("bulk2"));
+        Assert.assertEquals("high", scheduler.submit(UploadPriority.HIGH, upload("high")).get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(bulk.isDone());
+    }
+
+    @Test
+    public void testAsynchronousUploadsDoNotHoldWorker() throws Exception {
+        scheduler = new UploadScheduler(1, 0, 3, 10, UploadScheduler.QueueFullPolicy.BLOCK, false);
+        final List<CompletableFuture<String>> started = Collections.synchronizedList(
+                new ArrayList<CompletableFuture<String>>());
+        final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(scheduler.submitAsync(UploadPriority.NORMAL, new Callable<CompletableFuture<String>>() {
+                @Override
+                public CompletableFuture<String> call() {
+                    final CompletableFuture<String> upload = new CompletableFuture<String>();
+                    started.add(upload);
+                    return upload;
+                }
+            }));
+        }
+
+        // the only worker has started three uploads, the fourth waits for one of them
+        awaitRunning(3);
+        Assert.assertEquals(1, scheduler.getQueuedUploads());
+        started.get(0).complete("first");
+        Assert.assertEquals("first", results.get(0).get(5, TimeUnit.SECONDS));
+        awaitRunning(3);
+        Assert.assertEquals(0, scheduler.getQueuedUploads());
+
+        started.get(1).completeExceptionally(new IllegalStateException("failed"));
+        try {
+            results.get(1).get(5, TimeUnit.SECONDS);
+            Assert.fail("the upload has failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        awaitRunning(2);
+    }
+
+    @Test
+    public void testWorkersStartWithFirstUpload() throws Exception {
+        final Set<Thread> existing = workerThreads();
+        scheduler = new UploadScheduler(3, 1, 10, UploadScheduler.QueueFullPolicy.BLOCK, false);
+        final Set<Thread> created = workerThreads();
+        created.removeAll(existing);
+        Assert.assertEquals(Collections.emptySet(), created);
+
+        Assert.assertEquals("first", scheduler.submit(UploadPriority.NORMAL, upload("first")).get(5, TimeUnit.SECONDS));
+        final Set<Thread> started = workerThreads();
+        started.removeAll(existing);
+        Assert.assertEquals(3, started.size());
+
+        scheduler.shutdown();
+        for (Thread thread : started) {
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+        }
+    }
+
+    private static Set<Thread> workerThreads() {
+        final Set<Thread> threads = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("webdav-async-upload-")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private void awaitRunning(final int running) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getRunningUploads() < running && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(running, scheduler.getRunningUploads());
+    }
+
+    private Callable<String> blocking(final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                executed.add(name);
+                release.await();
+                return name;
+            }
+        };
+    }
+
+    private Callable<String> upload(final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                executed.add(name);
+                return name;
+            }
+        };
+    }
+}
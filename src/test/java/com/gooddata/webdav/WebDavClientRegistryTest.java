@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class WebDavClientRegistryTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testRegistrySharesConnectionsAndTokens() throws Exception {
+        final int port = server.getPort();
+        final WebDavClientRegistry registry = new WebDavClientRegistry();
+        try {
+            final WebDavUploader first = registry.createUploader("localhost", port, "http", "localhost", port, "http",
+                    "sst");
+            final WebDavUploader second = registry.createUploader("localhost", port, "http", "localhost", port, "http",
+                    "sst");
+            Assert.assertSame(first.getTokenManager(), second.getTokenManager());
+            Assert.assertSame(registry.getUploadScheduler(), first.getUploadScheduler());
+            Assert.assertSame(registry.getUploadScheduler(), second.getUploadScheduler());
+
+            first.transferFile(createFile("first"), "dir", "a.csv", "text/csv");
+            second.transferFile(createFile("second"), "dir", "b.csv", "text/csv");
+
+            // one token for both uploaders, sequential server.requests of both reuse single connection
+            Assert.assertEquals(1, server.tokens.get());
+            Assert.assertEquals(1, registry.getConnectionsInPool());
+            Assert.assertEquals(1, registry.getTokenManagerCount());
+        } finally {
+            registry.shutdown();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.rules.ExternalResource;
+
+/**
+ * In-process stand-in for the token resource and the WebDAV {@code /uploads} tree, started for every test.
+ * <p>
+ * Uploaded files are kept in {@link #files} by decoded request path and every WebDAV request is recorded in
+ * {@link #requests} as {@code "<method> <path>"}. PROPFIND lists the files of a directory. Unless
+ * {@link #checkDirectories} is enabled, every path is treated as an existing directory.
+ */
+class WebDavTestServer extends ExternalResource {
+
+    final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger tokens = new AtomicInteger();
+    final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+    final Map<String, Long> lastModified = new ConcurrentHashMap<String, Long>();
+    /**
+     * Number of following PUTs failing with 503 before anything is stored, or storing half of the body and failing
+     * with 500 if partial.
+     */
+    final AtomicInteger failingPuts = new AtomicInteger();
+    volatile boolean partialPuts;
+    /** Directories created by MKCOL, PUT or MKCOL into a missing directory fails with 409 if enabled. */
+    final Set<String> directories = ConcurrentHashMap.newKeySet();
+    volatile boolean checkDirectories;
+    /** Paths all requests to which fail with 403. */
+    final Set<String> forbiddenPaths = ConcurrentHashMap.newKeySet();
+    volatile String validToken;
+    volatile byte[] uploaded;
+    /** ETag returned for PUT, MD5 of the body if null. */
+    volatile String etag;
+    volatile String contentMd5;
+
+    private HttpServer server;
+
+    @Override
+    protected void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/gdc/account/token", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+                if (cookie == null || !cookie.contains("GDCAuthSST=sst")) {
+                    respond(exchange, 401);
+                    return;
+                }
+                validToken = "tt" + tokens.incrementAndGet();
+                exchange.getResponseHeaders().add("Set-Cookie", "GDCAuthTT=" + validToken + "; Path=/");
+                respond(exchange, 200);
+            }
+        });
+        server.createContext("/uploads", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleUploads(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void after() {
+        server.stop(0);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stores a file as if it had been uploaded at {@code modified}.
+     */
+    void putFile(final String path, final String content, final long modified) {
+        files.put(path, content.getBytes(StandardCharsets.UTF_8));
+        lastModified.put(path, modified);
+    }
+
+    WebDavUploader createUploader() {
+        return new WebDavUploader(new HttpClientTransport("http", "localhost", getPort()),
+                new WebDavSstAuthenticator(new HttpClientTransport("http", "localhost", getPort())), "sst");
+    }
+
+    private void handleUploads(final HttpExchange exchange) throws IOException {
+        final byte[] body = read(exchange.getRequestBody());
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getPath();
+        requests.add(method + " " + path);
+        final String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookie == null || !cookie.contains("GDCAuthTT=" + validToken)) {
+            respond(exchange, 401);
+        } else if (forbiddenPaths.contains(path)) {
+            respond(exchange, 403);
+        } else if (checkDirectories && ("PUT".equals(method) || "MKCOL".equals(method))
+                && !isDirectory(path.substring(0, path.lastIndexOf('/')))) {
+            respond(exchange, 409);
+        } else if ("MKCOL".equals(method)) {
+            respond(exchange, directories.add(path) ? 201 : 301);
+        } else if ("PUT".equals(method) && failingPuts.getAndDecrement() > 0) {
+            if (partialPuts) {
+                files.put(path, Arrays.copyOf(body, body.length / 2));
+            }
+            respond(exchange, partialPuts ? 500 : 503);
+        } else if ("HEAD".equals(method)) {
+            final byte[] file = files.get(path);
+            if (file == null) {
+                respond(exchange, 404);
+                return;
+            }
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(file.length));
+            exchange.getResponseHeaders().add("ETag", "\"" + DigestUtils.md5Hex(file) + "\"");
+            respond(exchange, 200);
+        } else if ("PUT".equals(method) && exchange.getRequestHeaders().getFirst("Content-Range") != null) {
+            final byte[] head = files.get(path);
+            final String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            if (head == null || ifMatch != null && !ifMatch.equals("\"" + DigestUtils.md5Hex(head) + "\"")) {
+                respond(exchange, 412);
+                return;
+            }
+            final byte[] whole = Arrays.copyOf(head, head.length + body.length);
+            System.arraycopy(body, 0, whole, head.length, body.length);
+            uploaded = whole;
+            files.put(path, whole);
+            respond(exchange, 204);
+        } else if ("PUT".equals(method)) {
+            uploaded = body;
+            files.put(path, body);
+            lastModified.put(path, System.currentTimeMillis());
+            contentMd5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+            exchange.getResponseHeaders().add("ETag", "\"" + (etag != null ? etag : DigestUtils.md5Hex(body)) + "\"");
+            respond(exchange, 201);
+        } else if ("PROPFIND".equals(method)) {
+            respondMultiStatus(exchange, path);
+        } else if ("DELETE".equals(method)) {
+            lastModified.remove(path);
+            respond(exchange, files.remove(path) != null ? 204 : 404);
+        } else {
+            respond(exchange, 201);
+        }
+    }
+
+    private boolean isDirectory(final String path) {
+        return "/uploads".equals(path) || directories.contains(path);
+    }
+
+    /**
+     * Removes the directory with its subdirectories as if somebody else deleted it.
+     */
+    void deleteDirectory(final String path) {
+        directories.removeIf(directory -> directory.equals(path) || directory.startsWith(path + "/"));
+    }
+
+    private void respondMultiStatus(final HttpExchange exchange, final String path) throws IOException {
+        final String directory = path.endsWith("/") ? path : path + "/";
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        xml.append("<D:multistatus xmlns:D=\"DAV:\">");
+        xml.append("<D:response><D:href>").append(escape(directory)).append("</D:href><D:propstat><D:prop>")
+                .append("<D:resourcetype><D:collection/></D:resourcetype>")
+                .append("</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>");
+        final SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            final String filePath = file.getKey();
+            if (filePath.startsWith(directory) && filePath.indexOf('/', directory.length()) < 0) {
+                xml.append("<D:response><D:href>").append(escape(filePath)).append("</D:href><D:propstat><D:prop>")
+                        .append("<D:resourcetype/><D:getcontentlength>").append(file.getValue().length)
+                        .append("</D:getcontentlength><D:getlastmodified>")
+                        .append(httpDate.format(new Date(lastModified.getOrDefault(filePath, 0L))))
+                        .append("</D:getlastmodified></D:prop><D:status>HTTP/1.1 200 OK</D:status>")
+                        .append("</D:propstat></D:response>");
+            }
+        }
+        xml.append("</D:multistatus>");
+        final byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(207, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    /**
+     * @return the path percent-encoded as an href
+     */
+    private static String escape(final String path) {
+        try {
+            return new URI(null, null, path, null).getRawPath().replace("&", "&amp;");
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    static File createFile(final String content) {
+        try {
+            final File file = File.createTempFile("transport", ".csv");
+            file.deleteOnExit();
+            FileUtils.writeStringToFile(file, content, "UTF-8");
+            return file;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] read(final InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static void respond(final HttpExchange exchange, final int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2007-2011, GoodData(R) Corporation. All rights reserved.
+ */
+package com.gooddata.webdav;
+
+import static com.gooddata.webdav.WebDavTestServer.createFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class WebDavTransportTest {
+
+    @Rule
+    public final WebDavTestServer server = new WebDavTestServer();
+
+    @Test
+    public void testHttpClientTransport() throws Exception {
+        final int port = server.getPort();
+        assertUploadWithExpiredToken(new HttpClientTransport("http", "localhost", port),
+                new HttpClientTransport("http", "localhost", port));
+    }
+
+    @Test
+    public void testJdkHttpTransport() throws Exception {
+        final int port = server.getPort();
+        assertUploadWithExpiredToken(new JdkHttpTransport("http", "localhost", port),
+                new JdkHttpTransport("http", "localhost", port));
+    }
+
+    @Test
+    public void testHttpClientTransportShutsDownOwnExecutor() throws Exception {
+        final HttpClientTransport transport = new HttpClientTransport("http", "localhost", server.getPort());
+        transport.executeAsync(new TransportRequest("MKCOL", "/uploads/dir")).get(5, TimeUnit.SECONDS).release();
+        transport.shutdown();
+        try {
+            transport.executeAsync(new TransportRequest("MKCOL", "/uploads/dir"));
+            Assert.fail("executor of the transport must be shut down");
+        } catch (RejectedExecutionException expected) {
+            // expected
+        }
+
+        // executor passed in belongs to the caller
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new HttpClientTransport("http", "localhost", server.getPort(), executor).shutdown();
+            Assert.assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testJdkHttpTransportStopsEntityWriterOfFailedExchange() throws Exception {
+        final ServerSocket closingServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // reads the request head, then drops the connection
+                    final Socket socket = closingServer.accept();
+                    socket.getInputStream().read(new byte[1024]);
+                    socket.close();
+                } catch (IOException ignored) {
+                    // test finished
+                }
+            }
+        });
+        acceptor.start();
+        final CountDownLatch writerFailed = new CountDownLatch(1);
+        final RequestEntity endless = new RequestEntity() {
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public void writeRequest(OutputStream out) throws IOException {
+                try {
+                    final byte[] chunk = new byte[8192];
+                    while (true) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    writerFailed.countDown();
+                    throw e;
+                }
+            }
+
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+        };
+        final JdkHttpTransport transport = new JdkHttpTransport("http", "localhost", closingServer.getLocalPort());
+        try {
+            transport.execute(new TransportRequest("PUT", "/uploads/endless.bin").setEntity(endless));
+            Assert.fail("the exchange must fail");
+        } catch (IOException expected) {
+            // expected
+        } finally {
+            closingServer.close();
+        }
+        Assert.assertTrue("blocked entity writer", writerFailed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testJdkHttpTransportReadsWrappedEntity() throws Exception {
+        final DigestingRequestEntity digesting = new DigestingRequestEntity(
+                new FileChannelRequestEntity(createFile("digested"), "text/csv"), "SHA-256") {
+            @Override
+            public void writeRequest(OutputStream out) {
+                throw new AssertionError("the entity must be read by the client, not written by a helper thread");
+            }
+        };
+        final RequestEntity entity = new RateLimitedRequestEntity(digesting, 1, new BandwidthLimiter(1024 * 1024));
+        server.validToken = "tt";
+        final JdkHttpTransport transport = new JdkHttpTransport("http", "localhost", server.getPort());
+
+        final TransportResponse response = transport.execute(new TransportRequest("PUT", "/uploads/dir/d.csv")
+                .setEntity(entity).setCookie(WebDavSstAuthenticator.GDCAuthTT_COOKIE, "tt"));
+        response.release();
+
+        Assert.assertEquals(201, response.getStatusCode());
+        Assert.assertEquals("digested", new String(server.uploaded));
+        Assert.assertEquals(DigestingRequestEntity.toHex(MessageDigest.getInstance("SHA-256").digest("digested".getBytes())), digesting.getDigestHex());
+        Assert.assertEquals(8, digesting.getWrittenLength());
+    }
+
+    private void assertUploadWithExpiredToken(final WebDavTransport webDavTransport,
+            final WebDavTransport gdcTransport) throws Exception {
+        final WebDavUploader uploader = new WebDavUploader(webDavTransport, new WebDavSstAuthenticator(gdcTransport),
+                "sst");
+        uploader.getTokenManager().setProactiveRefresh(false);
+        uploader.transferInputStream(new ByteArrayInputStream("first".getBytes()), 5, "dir", "a.csv", "text/csv");
+        Assert.assertEquals("first", new String(server.uploaded));
+
+        // the server forgets the token, the upload is re-authenticated and resent
+        server.validToken = "expired";
+        uploader.transferFile(createFile("second"), "dir", "b.csv", "text/csv");
+        Assert.assertEquals("second", new String(server.uploaded));
+        Assert.assertEquals(2, server.tokens.get());
+
+        uploader.transferFileAsync(createFile("third"), "dir", "c.csv", "text/csv").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("third", new String(server.uploaded));
+        Assert.assertEquals(List.of("MKCOL /uploads/dir", "PUT /uploads/dir/a.csv", "PUT /uploads/dir/b.csv",
+                "PUT /uploads/dir/b.csv", "PUT /uploads/dir/c.csv"), server.requests);
+        if (webDavTransport instanceof JdkHttpTransport) {
+            // every response has been released
+            Assert.assertEquals(0, webDavTransport.getConnectionsInPool());
+        }
+    }
+}